@@ -0,0 +1,122 @@
+package org.jaredstevens.interviews.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Writes a line for every request in Common Log Format, which most log tools already know how to read:
+ *   127.0.0.1 - - [19/Oct/2017:06:32:19 +0000] "GET /index.html HTTP/1.1" 200 2326
+ * The size is the whole response, header included. Requests that were sampled for their cost (see ResourceCosts)
+ * get two more fields on the end, the thread's CPU time in microseconds and the bytes it allocated:
+ *   127.0.0.1 - - [19/Oct/2017:06:32:19 +0000] "GET /index.html HTTP/1.1" 200 2326 cpu_us=412 alloc=18736
+ * Lines are buffered and flushed about once a second, and
+ * when the log is closed, so logging doesn't cost every request a write to disk.
+ */
+public class AccessLog implements AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+					.withZone(ZoneId.systemDefault());
+	private static final long FLUSH_MILLIS = 1000;
+
+	private final Path path;
+	// Null if the log couldn't be opened
+	private Writer writer;
+
+	/**
+	 * Opens the log for appending. If it can't be opened, that's logged and requests just aren't written to it.
+	 * @param path The log file
+	 */
+	public AccessLog(final Path path) {
+		this.path = path;
+		try {
+			this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch(IOException e) {
+			AccessLog.LOGGER.error("Couldn't open the access log {}. Requests won't be logged.", path, e);
+			return;
+		}
+		final Thread flusher = new Thread(this::flushPeriodically, "access-log");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Logs a finished request.
+	 */
+	public void log(final AccessRecord record) {
+		final String line = AccessLog.format(record);
+		synchronized(this) {
+			if(this.writer == null) {
+				return;
+			}
+			try {
+				this.writer.write(line);
+				this.writer.write('\n');
+			} catch(IOException e) {
+				AccessLog.LOGGER.warn("Couldn't write to the access log.", e);
+			}
+		}
+	}
+
+	static String format(final AccessRecord record) {
+		final String line = (record.getRemoteAddress() == null ? "-" : record.getRemoteAddress()) + " - - ["
+						+ AccessLog.TIMESTAMP.format(Instant.ofEpochMilli(record.getTimestamp())) + "] \""
+						+ record.getRequestLine() + "\" " + record.getStatus() + " "
+						+ (record.getBytes() == 0 ? "-" : String.valueOf(record.getBytes()));
+		if(record.getCpuNanos() < 0 && record.getAllocatedBytes() < 0) {
+			return line;
+		}
+		return line + " cpu_us=" + (record.getCpuNanos() < 0 ? "-" : String.valueOf(record.getCpuNanos() / 1000))
+						+ " alloc=" + (record.getAllocatedBytes() < 0 ? "-" : String.valueOf(record.getAllocatedBytes()));
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Flushes and closes the log.
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.writer == null) {
+			return;
+		}
+		try {
+			this.writer.close();
+		} catch(IOException e) {
+			AccessLog.LOGGER.warn("Couldn't close the access log.", e);
+		}
+		this.writer = null;
+	}
+
+	private void flushPeriodically() {
+		while(true) {
+			try {
+				Thread.sleep(AccessLog.FLUSH_MILLIS);
+			} catch(InterruptedException e) {
+				return;
+			}
+			synchronized(this) {
+				if(this.writer == null) {
+					return;
+				}
+				try {
+					this.writer.flush();
+				} catch(IOException e) {
+					AccessLog.LOGGER.warn("Couldn't flush the access log.", e);
+				}
+			}
+		}
+	}
+}
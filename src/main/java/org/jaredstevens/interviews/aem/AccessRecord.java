@@ -0,0 +1,122 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+
+import java.net.Socket;
+
+/**
+ * What gets logged about one request. While the request is being served, its record is kept in a thread local,
+ * so whatever ends up writing the response can fill in the status and size without them being passed back up
+ * through every method in between.
+ */
+public class AccessRecord {
+	private static final ThreadLocal<AccessRecord> CURRENT = new ThreadLocal<>();
+
+	private final String remoteAddress;
+	private final String requestLine;
+	private final String resource;
+	// When the request started, in milliseconds since the epoch
+	private final long timestamp = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private int status;
+	private long bytes;
+	private long durationNanos;
+	// What the serving thread's counters read when the request started being measured. -1 if it isn't measured.
+	private long startCpuNanos = -1;
+	private long startAllocatedBytes = -1;
+	// What the request cost its thread, or -1 if it wasn't measured
+	private long cpuNanos = -1;
+	private long allocatedBytes = -1;
+
+	AccessRecord(final String remoteAddress, final String requestLine, final String resource) {
+		this.remoteAddress = remoteAddress;
+		this.requestLine = requestLine;
+		this.resource = resource;
+	}
+
+	/**
+	 * Starts a record for a request being served on this thread.
+	 * @param header The request
+	 * @param socket The client's socket, or null if there isn't one
+	 */
+	public static AccessRecord begin(final HttpRequestHeader header, final Socket socket) {
+		final String requestLine = header.getRequestString() != null ? header.getRequestString()
+						: header.getMethod() + " " + header.getResource() + " " + header.getProtocol();
+		final AccessRecord record = new AccessRecord(socket == null ? null : socket.getInetAddress().getHostAddress(),
+						requestLine, header.getResource());
+		AccessRecord.CURRENT.set(record);
+		return record;
+	}
+
+	/**
+	 * Records the response to the request being served on this thread. Does nothing if there isn't one.
+	 * @param status The response's status code
+	 * @param bytes The size of the response, header included
+	 */
+	public static void recordResponse(final int status, final long bytes) {
+		final AccessRecord record = AccessRecord.CURRENT.get();
+		if(record != null) {
+			record.status = status;
+			record.bytes += bytes;
+		}
+	}
+
+	/**
+	 * Starts measuring the CPU time and memory this thread spends on the request. Only a sample of requests are
+	 * measured (see ResourceCosts).
+	 */
+	void measureCost() {
+		this.startCpuNanos = ResourceCosts.Threads.cpuNanos();
+		this.startAllocatedBytes = ResourceCosts.Threads.allocatedBytes();
+	}
+
+	/**
+	 * Finishes the record. The request is no longer being served on this thread.
+	 */
+	public void end() {
+		if(this.startCpuNanos >= 0) {
+			this.cpuNanos = ResourceCosts.Threads.cpuNanos() - this.startCpuNanos;
+		}
+		if(this.startAllocatedBytes >= 0) {
+			this.allocatedBytes = ResourceCosts.Threads.allocatedBytes() - this.startAllocatedBytes;
+		}
+		this.durationNanos = System.nanoTime() - this.startNanos;
+		AccessRecord.CURRENT.remove();
+	}
+
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	public String getRequestLine() {
+		return requestLine;
+	}
+
+	public String getResource() {
+		return resource;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+}
@@ -0,0 +1,310 @@
+package org.jaredstevens.interviews.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serves a document root out of a single .zip/.jar archive.
+ * The archive is memory-mapped once and its central directory is read into a map at startup. After that,
+ * looking up a file is a hash lookup and reading it is a read out of the mapping -- there's no open/stat
+ * per request, and swapping the archive file makes a deploy atomic.
+ * Stored entries are read straight out of the mapping. Deflated entries are inflated on the fly as they're
+ * streamed, so we never hold a whole inflated file in memory.
+ * Every entry's data is checked against the end of the mapping when the archive is indexed, so a truncated or
+ * corrupt archive loses the bad entries (or is turned away) at startup rather than failing requests later.
+ * NOTE: Zip64 archives (more than 65535 entries or larger than 4 GB) aren't supported.
+ */
+public class ArchiveDocumentRoot {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveDocumentRoot.class);
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int MAX_COMMENT_LENGTH = 65535;
+	static final int METHOD_STORED = 0;
+	static final int METHOD_DEFLATED = 8;
+
+	private final String filename;
+	private final MappedByteBuffer mapping;
+	private final Map<String, Entry> entries;
+
+	/**
+	 * Maps the archive into memory and indexes its central directory.
+	 * @param filename The .zip or .jar file to serve from
+	 * @throws IOException Thrown if the archive can't be read or isn't a zip file we understand.
+	 */
+	public ArchiveDocumentRoot(final String filename) throws IOException {
+		this.filename = filename;
+		try(RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Archive is too large to map: " + filename);
+			}
+			// The mapping stays valid after the channel is closed.
+			this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		this.mapping.order(ByteOrder.LITTLE_ENDIAN);
+		this.entries = this.readCentralDirectory();
+		ArchiveDocumentRoot.LOGGER.info("Indexed {} entries from archive {}", this.entries.size(), filename);
+	}
+
+	/**
+	 * Checks to see if a document root points at an archive instead of a directory.
+	 * @param documentRoot The document root from the server configuration
+	 * @return True if the document root is a .zip or .jar file
+	 */
+	public static boolean isArchive(final String documentRoot) {
+		if(documentRoot == null) {
+			return false;
+		}
+		final String lowerCase = documentRoot.toLowerCase();
+		return (lowerCase.endsWith(".zip") || lowerCase.endsWith(".jar")) && new File(documentRoot).isFile();
+	}
+
+	/**
+	 * Looks up an entry in the archive.
+	 * @param name The entry's name, without a leading '/'. For example: css/site.css
+	 * @return The entry, or null if the archive doesn't contain a file with that name.
+	 */
+	public Entry getEntry(final String name) {
+		return this.entries.get(name);
+	}
+
+	/**
+	 * Opens a stream over an entry's (uncompressed) data.
+	 * @param entry The entry to read
+	 * @return An InputStream that reads the entry straight out of the mapped archive.
+	 */
+	public InputStream openStream(final Entry entry) {
+		final InputStream rawStream = new ByteBufferInputStream(this.getData(entry));
+		if(entry.getMethod() == ArchiveDocumentRoot.METHOD_STORED) {
+			return rawStream;
+		}
+		final Inflater inflater = new Inflater(true);
+		return new InflaterInputStream(rawStream, inflater) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				// We supplied the inflater, so we're responsible for freeing its native memory.
+				inflater.end();
+			}
+		};
+	}
+
+	/**
+	 * Gets an entry's data as it's stored in the archive. For a stored entry, that's the file itself, and it can be
+	 * written to a channel straight out of the mapping.
+	 * @param entry The entry to read
+	 * @return A read-only view of the entry's (possibly compressed) data in the mapped archive
+	 */
+	public ByteBuffer getData(final Entry entry) {
+		final ByteBuffer data = this.mapping.asReadOnlyBuffer();
+		data.position(entry.getDataOffset());
+		// Checked against the mapping's size when the archive was indexed, so this fits in an int.
+		data.limit(entry.getDataOffset() + (int)entry.getCompressedSize());
+		return data.slice();
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Reads the end of central directory record, then walks the central directory to build the entry index.
+	 * @return A map of entry names to entries
+	 * @throws IOException Thrown if the archive is malformed or uses features we don't support.
+	 */
+	private Map<String, Entry> readCentralDirectory() throws IOException {
+		final int endOfCentralDirectory = this.findEndOfCentralDirectory();
+		final int entryCount = this.mapping.getShort(endOfCentralDirectory + 10) & 0xffff;
+		final long centralDirectorySize = this.mapping.getInt(endOfCentralDirectory + 12) & 0xffffffffL;
+		final long centralDirectoryOffset = this.mapping.getInt(endOfCentralDirectory + 16) & 0xffffffffL;
+		if(entryCount == 0xffff || centralDirectorySize == 0xffffffffL || centralDirectoryOffset == 0xffffffffL) {
+			throw new IOException("Zip64 archives aren't supported: " + this.filename);
+		}
+
+		if(centralDirectoryOffset > endOfCentralDirectory) {
+			throw new IOException("Corrupt central directory in archive: " + this.filename);
+		}
+
+		final Map<String, Entry> retVal = new HashMap<>(entryCount * 2);
+		int position = (int)centralDirectoryOffset;
+		for(int i = 0; i < entryCount; ++i) {
+			if((long)position + CENTRAL_DIRECTORY_HEADER_SIZE > this.mapping.limit() || this.mapping.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+				throw new IOException("Corrupt central directory in archive: " + this.filename);
+			}
+			final int flags = this.mapping.getShort(position + 8) & 0xffff;
+			final int method = this.mapping.getShort(position + 10) & 0xffff;
+			final long compressedSize = this.mapping.getInt(position + 20) & 0xffffffffL;
+			final long size = this.mapping.getInt(position + 24) & 0xffffffffL;
+			final int nameLength = this.mapping.getShort(position + 28) & 0xffff;
+			final int extraLength = this.mapping.getShort(position + 30) & 0xffff;
+			final int commentLength = this.mapping.getShort(position + 32) & 0xffff;
+			final long localHeaderOffset = this.mapping.getInt(position + 42) & 0xffffffffL;
+			if((long)position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength > this.mapping.limit()) {
+				throw new IOException("Corrupt central directory in archive: " + this.filename);
+			}
+			final String name = this.readString(position + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength);
+			position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+			if(name.endsWith("/")) {
+				// Directories don't have any data to serve.
+				continue;
+			}
+			if((flags & 0x1) != 0) {
+				ArchiveDocumentRoot.LOGGER.warn("Skipping encrypted archive entry: {}", name);
+				continue;
+			}
+			if(method != METHOD_STORED && method != METHOD_DEFLATED) {
+				ArchiveDocumentRoot.LOGGER.warn("Skipping archive entry with unsupported compression method {}: {}", method, name);
+				continue;
+			}
+			final long dataOffset = this.getDataOffset(localHeaderOffset, name);
+			if(dataOffset + compressedSize > this.mapping.limit()) {
+				ArchiveDocumentRoot.LOGGER.warn("Skipping archive entry whose data runs past the end of the archive: {}", name);
+				continue;
+			}
+			if(method == METHOD_STORED && compressedSize != size) {
+				// The size is sent as the Content-Length, so it has to be what's actually there.
+				ArchiveDocumentRoot.LOGGER.warn("Skipping stored archive entry whose sizes don't match: {}", name);
+				continue;
+			}
+			retVal.put(name, new Entry(name, method, compressedSize, size, (int)dataOffset));
+		}
+		return retVal;
+	}
+
+	/**
+	 * The end of central directory record sits at the end of the file, followed by an optional comment
+	 * of up to 64k. Scan backwards for its signature.
+	 * @return The offset of the end of central directory record
+	 * @throws IOException Thrown if the record can't be found.
+	 */
+	private int findEndOfCentralDirectory() throws IOException {
+		final int lastPossible = this.mapping.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+		final int firstPossible = Math.max(0, lastPossible - MAX_COMMENT_LENGTH);
+		for(int position = lastPossible; position >= firstPossible; --position) {
+			if(this.mapping.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+				return position;
+			}
+		}
+		throw new IOException("Not a zip archive: " + this.filename);
+	}
+
+	/**
+	 * The local header's name and extra fields can differ in length from the central directory's,
+	 * so we have to read the local header to find where an entry's data actually starts.
+	 */
+	private long getDataOffset(final long localHeaderOffset, final String name) throws IOException {
+		if(localHeaderOffset + LOCAL_HEADER_SIZE > this.mapping.limit() || this.mapping.getInt((int)localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("Corrupt local header for archive entry: " + name);
+		}
+		final int offset = (int)localHeaderOffset;
+		final int nameLength = this.mapping.getShort(offset + 26) & 0xffff;
+		final int extraLength = this.mapping.getShort(offset + 28) & 0xffff;
+		return (long)offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+	}
+
+	private String readString(final int position, final int length) {
+		final byte[] raw = new byte[length];
+		final ByteBuffer view = this.mapping.duplicate();
+		view.position(position);
+		view.get(raw);
+		return new String(raw, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A single file in the archive.
+	 */
+	public static class Entry {
+		private final String name;
+		private final int method;
+		private final long compressedSize;
+		private final long size;
+		private final int dataOffset;
+
+		Entry(final String name, final int method, final long compressedSize, final long size, final int dataOffset) {
+			this.name = name;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.dataOffset = dataOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		/**
+		 * @return The uncompressed size of the entry. This is what gets sent as the Content-Length.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		int getDataOffset() {
+			return dataOffset;
+		}
+	}
+
+	/**
+	 * Reads from a ByteBuffer. Used to read entries straight out of the mapped archive.
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) {
+			if(length == 0) {
+				return 0;
+			}
+			if(!this.buffer.hasRemaining()) {
+				return -1;
+			}
+			final int bytesRead = Math.min(length, this.buffer.remaining());
+			this.buffer.get(bytes, offset, bytesRead);
+			return bytesRead;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+}
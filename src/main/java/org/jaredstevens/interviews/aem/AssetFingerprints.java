@@ -0,0 +1,251 @@
+package org.jaredstevens.interviews.aem;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content hashes for the static assets in the document root, so they can be served at fingerprinted URLs.
+ * app.js is also served as app.3f9a1c2b.js, where 3f9a1c2b is the start of the SHA-256 of its contents. Since that
+ * URL changes whenever the file does, browsers can cache it forever. Pages find the current URLs in the manifest.
+ * Hashes are only recomputed for files whose size or modification time has changed since they were last hashed.
+ * A scan hashes the changed files in parallel, and a fingerprinted URL is checked against the file on disk when
+ * it's requested, so a file that changed since the last scan is never served under its old fingerprint. When a
+ * rehash finds a file has changed, its open file cache entry is dropped too, so the new URL doesn't get the old bytes.
+ * The manifest is served from the last scan. If that's getting old, the next one runs in the background.
+ */
+public class AssetFingerprints {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AssetFingerprints.class);
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+	public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final int HASH_LENGTH = 8;
+	// How long a scan is trusted before the manifest starts another one
+	private static final long RESCAN_MILLIS = 5000;
+	private static final Pattern FINGERPRINTED = Pattern.compile("^(.*)\\.([0-9a-f]{" + AssetFingerprints.HASH_LENGTH + "})(\\.[^./]+)$");
+
+	private final Path root;
+	// The document root as configured, which is how the open file cache knows the assets
+	private final String documentRoot;
+	private final OpenFileCache openFiles;
+	private final Set<String> extensions = new HashSet<>();
+	// Keyed by the logical path, like /js/app.js
+	private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+	private volatile long lastScan;
+	private final AtomicBoolean scanning = new AtomicBoolean();
+
+	/**
+	 * @param documentRoot The directory the assets are served from
+	 * @param extensions The extensions of the files to fingerprint, like "js" and "css"
+	 */
+	public AssetFingerprints(final String documentRoot, final List<String> extensions) {
+		this(documentRoot, extensions, null);
+	}
+
+	/**
+	 * @param documentRoot The directory the assets are served from
+	 * @param extensions The extensions of the files to fingerprint, like "js" and "css"
+	 * @param openFiles The cache the assets are served from, so changed ones can be dropped from it. Can be null.
+	 */
+	public AssetFingerprints(final String documentRoot, final List<String> extensions, final OpenFileCache openFiles) {
+		this.root = Paths.get(documentRoot).toAbsolutePath().normalize();
+		this.documentRoot = documentRoot;
+		this.openFiles = openFiles;
+		for(String extension : extensions) {
+			this.extensions.add(extension.replaceFirst("^\\.", "").toLowerCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * Walks the document root and hashes any assets that are new or have changed, several at a time.
+	 */
+	public void scan() {
+		final long started = System.nanoTime();
+		final List<Path> assets;
+		try(Stream<Path> files = Files.walk(this.root)) {
+			assets = files.filter(path -> this.isAsset(path.getFileName().toString()) && Files.isRegularFile(path))
+							.collect(Collectors.toList());
+		} catch(IOException | UncheckedIOException e) {
+			AssetFingerprints.LOGGER.warn("Couldn't scan {} for assets.", this.root, e);
+			return;
+		}
+		final Set<String> found = ConcurrentHashMap.newKeySet();
+		assets.parallelStream().forEach(path -> {
+			final String logical = "/" + this.root.relativize(path).toString().replace('\\', '/');
+			if(this.fingerprint(logical) != null) {
+				found.add(logical);
+			}
+		});
+		this.fingerprints.keySet().retainAll(found);
+		this.lastScan = System.currentTimeMillis();
+		AssetFingerprints.LOGGER.info("Fingerprinted {} assets in {} ms", found.size(), (System.nanoTime() - started) / 1000000);
+	}
+
+	/**
+	 * Gets a file's current fingerprint, hashing it if it's new or has changed.
+	 * @param logical The file's path under the document root, like /js/app.js
+	 * @return The fingerprint, or null if the file isn't there (or isn't an asset)
+	 */
+	public String fingerprint(final String logical) {
+		if(!this.isAsset(logical)) {
+			return null;
+		}
+		final Path path = this.root.resolve(logical.substring(1)).normalize();
+		if(!path.startsWith(this.root)) {
+			return null;
+		}
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			final Fingerprint current = this.fingerprints.get(logical);
+			if(current != null && current.size == attributes.size() && current.lastModified == attributes.lastModifiedTime().toMillis()) {
+				return current.hash;
+			}
+			final Fingerprint fingerprint = new Fingerprint(attributes.size(), attributes.lastModifiedTime().toMillis(), AssetFingerprints.hash(path));
+			if(this.fingerprints.put(logical, fingerprint) != null) {
+				this.invalidate(logical);
+			}
+			return fingerprint.hash;
+		} catch(NoSuchFileException e) {
+			if(this.fingerprints.remove(logical) != null) {
+				this.invalidate(logical);
+			}
+			return null;
+		} catch(IOException e) {
+			AssetFingerprints.LOGGER.warn("Couldn't fingerprint {}", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Maps a fingerprinted URL back to the file it's for.
+	 * @param resource A normalized request path
+	 * @return The file's logical path, or null if the resource isn't a fingerprinted URL for the current
+	 * contents of a file
+	 */
+	public String resolve(final String resource) {
+		final Matcher matcher = AssetFingerprints.FINGERPRINTED.matcher(resource);
+		if(!matcher.matches()) {
+			return null;
+		}
+		final String logical = matcher.group(1) + matcher.group(3);
+		return matcher.group(2).equals(this.fingerprint(logical)) ? logical : null;
+	}
+
+	/**
+	 * Checks that an open copy of an asset is the one its current fingerprint was computed from. A cached copy
+	 * can be a little older than the file on disk.
+	 * @param logical The file's path under the document root
+	 * @param size The open copy's size
+	 * @param lastModified The open copy's modification time
+	 * @return True if the copy matches the fingerprint
+	 */
+	public boolean isCurrent(final String logical, final long size, final long lastModified) {
+		final Fingerprint current = this.fingerprints.get(logical);
+		return current != null && current.size == size && current.lastModified == lastModified;
+	}
+
+	private void invalidate(final String logical) {
+		if(this.openFiles != null) {
+			this.openFiles.invalidate(new File(this.documentRoot + logical));
+		}
+	}
+
+	/**
+	 * @param logical The file's path under the document root
+	 * @param hash Its fingerprint
+	 * @return The fingerprinted URL for it
+	 */
+	static String fingerprintedUrl(final String logical, final String hash) {
+		final int dot = logical.lastIndexOf('.');
+		return logical.substring(0, dot) + "." + hash + logical.substring(dot);
+	}
+
+	/**
+	 * @return Every asset's fingerprinted URL as of the last scan, keyed by its logical path, formatted as JSON
+	 */
+	public String toManifestJson() {
+		if(System.currentTimeMillis() - this.lastScan > AssetFingerprints.RESCAN_MILLIS && this.scanning.compareAndSet(false, true)) {
+			// Walking the whole tree is too slow to do on a request's thread. The request gets the last scan.
+			CompletableFuture.runAsync(() -> {
+				try {
+					this.scan();
+				} finally {
+					this.scanning.set(false);
+				}
+			});
+		}
+		final Map<String, String> manifest = new TreeMap<>();
+		for(Map.Entry<String, Fingerprint> entry : this.fingerprints.entrySet()) {
+			manifest.put(entry.getKey(), AssetFingerprints.fingerprintedUrl(entry.getKey(), entry.getValue().hash));
+		}
+		return AssetFingerprints.GSON.toJson(manifest);
+	}
+
+	private boolean isAsset(final String name) {
+		final int dot = name.lastIndexOf('.');
+		return dot > name.lastIndexOf('/') && this.extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	private static String hash(final Path path) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			// Every JRE has to have SHA-256
+			throw new IllegalStateException(e);
+		}
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(65536);
+			while(channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		final byte[] hash = digest.digest();
+		final StringBuilder hex = new StringBuilder();
+		for(int i = 0; i < AssetFingerprints.HASH_LENGTH / 2; ++i) {
+			hex.append(String.format("%02x", hash[i]));
+		}
+		return hex.toString();
+	}
+
+	private static class Fingerprint {
+		private final long size;
+		private final long lastModified;
+		private final String hash;
+
+		Fingerprint(final long size, final long lastModified, final String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces large downloads so a few of them can't saturate the uplink and make every small page slow.
+ * There are two limits, either of which can be turned off: one per connection, and one shared by every
+ * download on the server. Both work like a virtual clock. Each slice of data is given a time it's allowed to go
+ * out, which is when the previous slice would have finished at the configured rate, and the writer sleeps until
+ * then. For the shared limit, slices are handed out in the order they're asked for. Every active download asks for
+ * its next slice as soon as it has written the last one, so downloads take turns and split the bandwidth evenly.
+ * Responses smaller than shaping_min_size aren't paced at all.
+ */
+public class BandwidthShaper {
+	// The most data written in one go. This is the size of a turn when downloads take turns.
+	private static final int SLICE_SIZE = 65536;
+	private static final double NANOS_PER_SECOND = 1000000000.0;
+
+	private final long minSize;
+	// 0 means there's no limit
+	private final double connectionNanosPerByte;
+	private final double globalNanosPerByte;
+	// When the next slice of the shared limit is free
+	private final AtomicLong globalNextFree = new AtomicLong(System.nanoTime());
+	private final ServerMetrics metrics;
+
+	/**
+	 * @param minSize Responses smaller than this aren't paced
+	 * @param connectionBytesPerSecond The limit for each download, or 0 for no limit
+	 * @param globalBytesPerSecond The limit for all downloads together, or 0 for no limit
+	 * @param metrics Where paced responses and time spent waiting are recorded
+	 */
+	public BandwidthShaper(final long minSize, final long connectionBytesPerSecond, final long globalBytesPerSecond, final ServerMetrics metrics) {
+		this.minSize = minSize;
+		this.connectionNanosPerByte = connectionBytesPerSecond > 0 ? BandwidthShaper.NANOS_PER_SECOND / connectionBytesPerSecond : 0;
+		this.globalNanosPerByte = globalBytesPerSecond > 0 ? BandwidthShaper.NANOS_PER_SECOND / globalBytesPerSecond : 0;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Wraps a response stream in one that's paced, if the response is big enough to need it.
+	 * @param outputStream The browser's output stream
+	 * @param length The length of the response body
+	 * @return The stream to write the response to
+	 */
+	public OutputStream shape(final OutputStream outputStream, final long length) {
+		if(length < this.minSize) {
+			return outputStream;
+		}
+		this.metrics.recordShapedResponse();
+		return new PacedOutputStream(outputStream);
+	}
+
+	/**
+	 * Reserves time for some bytes under the shared limit.
+	 * @return When the bytes are allowed to go out, in System.nanoTime() terms
+	 */
+	long reserveGlobal(final int bytes) {
+		final long cost = (long)(bytes * this.globalNanosPerByte);
+		while(true) {
+			final long next = this.globalNextFree.get();
+			// If the link has been idle, there's no saved up credit. Start from now.
+			final long start = Math.max(next, System.nanoTime());
+			if(this.globalNextFree.compareAndSet(next, start + cost)) {
+				return start;
+			}
+		}
+	}
+
+	/**
+	 * @throws InterruptedIOException If the thread is interrupted, e.g., because the server is stopping. parkNanos
+	 * 	returns right away once a thread's been interrupted, so carrying on would just spin.
+	 */
+	private void sleepUntil(final long time) throws InterruptedIOException {
+		long remaining;
+		while((remaining = time - System.nanoTime()) > 0) {
+			if(Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while pacing a download");
+			}
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/**
+	 * Writes a single download's data a slice at a time, waiting on each limit before each slice.
+	 */
+	private class PacedOutputStream extends FilterOutputStream {
+		private long nextFree = System.nanoTime();
+
+		PacedOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			this.write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] bytes, int offset, int length) throws IOException {
+			while(length > 0) {
+				final int slice = Math.min(length, BandwidthShaper.SLICE_SIZE);
+				final long waitStart = System.nanoTime();
+				if(BandwidthShaper.this.connectionNanosPerByte > 0) {
+					final long start = Math.max(this.nextFree, waitStart);
+					this.nextFree = start + (long)(slice * BandwidthShaper.this.connectionNanosPerByte);
+					BandwidthShaper.this.sleepUntil(start);
+				}
+				// Only ask for shared time once this download is ready to use it, so its turn isn't wasted.
+				if(BandwidthShaper.this.globalNanosPerByte > 0) {
+					BandwidthShaper.this.sleepUntil(BandwidthShaper.this.reserveGlobal(slice));
+				}
+				BandwidthShaper.this.metrics.recordShapingDelay(System.nanoTime() - waitStart);
+				this.out.write(bytes, offset, slice);
+				offset += slice;
+				length -= slice;
+			}
+		}
+
+		/**
+		 * Leaves the underlying stream open. It's the client's connection.
+		 */
+		@Override
+		public void close() throws IOException {
+			this.flush();
+		}
+	}
+}
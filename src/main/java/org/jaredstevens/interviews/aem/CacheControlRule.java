@@ -0,0 +1,55 @@
+package org.jaredstevens.interviews.aem;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+/**
+ * One entry in the "cache_control" section of the server configuration. Responses for paths that match the
+ * glob get the rule's Cache-Control header. For example, {"pattern": "/**.html", "value": "no-cache"}.
+ * The glob is matched against the whole path, and ** matches across directories.
+ */
+public class CacheControlRule {
+	private String pattern;
+	private String value;
+	// Compiled the first time it's needed, since Gson doesn't call a constructor with the fields set
+	private transient volatile PathMatcher matcher;
+
+	public CacheControlRule() {
+	}
+
+	public CacheControlRule(final String pattern, final String value) {
+		this.pattern = pattern;
+		this.value = value;
+	}
+
+	/**
+	 * @param resource A normalized request path, like /css/site.css
+	 * @return True if the rule applies to it
+	 */
+	public boolean matches(final String resource) {
+		PathMatcher current = this.matcher;
+		if(current == null) {
+			current = FileSystems.getDefault().getPathMatcher("glob:" + this.pattern);
+			this.matcher = current;
+		}
+		return current.matches(Paths.get(resource));
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	public void setPattern(String pattern) {
+		this.pattern = pattern;
+		this.matcher = null;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+}
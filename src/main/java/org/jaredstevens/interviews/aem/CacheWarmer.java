@@ -0,0 +1,174 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.jfr.PathResolutionEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gets the files the server is likely to be asked for ready right after it starts taking connections, so the first
+ * few minutes after a restart aren't all cache misses. It runs in the background, so requests don't wait on it.
+ * The most requested files are picked out of the end of the last run's access log. Then, most requested first,
+ * they're looked up and opened (which fills the open file cache with their paths, sizes and content types) and
+ * read through once (which gets them into the OS page cache). That's done on a few threads at once until the
+ * time budget or the byte budget runs out, or the thread doing it is interrupted because the server is stopping.
+ * Files that don't fit in the byte budget are still opened, just not read.
+ */
+public class CacheWarmer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheWarmer.class);
+	// Only the end of the access log is read, so a huge log doesn't hold up startup
+	private static final long MAX_LOG_BYTES = 16 * 1024 * 1024;
+	private static final int READ_BUFFER_SIZE = 65536;
+	// Picks the method, resource and status out of a Common Log Format line
+	private static final Pattern LOG_LINE = Pattern.compile("^\\S+ \\S+ \\S+ \\[[^]]*] \"(\\S+) (\\S+)[^\"]*\" (\\d{3}) ");
+
+	private final ServerContext context;
+
+	public CacheWarmer(final ServerContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Warms the caches from the access log. Returns once it's done or the time budget has run out.
+	 */
+	public void warm() {
+		final ServerConfig config = this.context.getConfig();
+		final long started = System.nanoTime();
+		if(config.getAccessLog() == null || config.getWarmupTimeBudget() <= 0 || this.context.getArchive() != null) {
+			// Nothing to go on, or nothing to warm. An archive is already mapped and indexed.
+			return;
+		}
+		final List<String> resources;
+		try {
+			resources = CacheWarmer.rankResources(new File(config.getAccessLog()).toPath(),
+							Math.max(1, config.getOpenFileCacheMaxEntries()));
+		} catch(NoSuchFileException e) {
+			CacheWarmer.LOGGER.info("No access log from a previous run to warm up from.");
+			return;
+		} catch(IOException e) {
+			CacheWarmer.LOGGER.warn("Couldn't read the access log to warm up from.", e);
+			return;
+		}
+		final long deadline = started + config.getWarmupTimeBudget() * 1000000;
+		final AtomicInteger warmed = new AtomicInteger();
+		final AtomicLong bytesRead = new AtomicLong();
+		final AtomicLong bytesLeft = new AtomicLong(config.getWarmupByteBudget());
+		final RequestHandler handler = new RequestHandler((Socket)null, this.context);
+		final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, config.getWarmupThreads()));
+		for(String resource : resources) {
+			pool.execute(() -> {
+				if(System.nanoTime() - deadline < 0 && this.warm(handler, resource, deadline, bytesLeft, bytesRead)) {
+					warmed.incrementAndGet();
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			if(!pool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				CacheWarmer.LOGGER.info("Ran out of time warming up.");
+				pool.shutdownNow();
+			}
+		} catch(InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		final long millis = (System.nanoTime() - started) / 1000000;
+		this.context.getMetrics().recordWarmup(warmed.get(), bytesRead.get(), millis);
+		CacheWarmer.LOGGER.info("Warmed up {} of {} resources ({} bytes) in {} ms", warmed.get(), resources.size(), bytesRead.get(), millis);
+	}
+
+	/**
+	 * Opens one file, and reads it if it fits in what's left of the byte budget.
+	 * @return True if the file was there to open
+	 */
+	private boolean warm(final RequestHandler handler, final String resource, final long deadline,
+											 final AtomicLong bytesLeft, final AtomicLong bytesRead) {
+		final File file = handler.getFileObject(resource);
+		try(OpenFileCache.OpenFile openFile = handler.openFile(this.context.getVirtualHosts().getDefaultHost(), file, resource, PathResolutionEvent.start())) {
+			handler.contentTypeOf(file, openFile);
+			final long size = openFile.getSize();
+			if(bytesLeft.addAndGet(-size) < 0) {
+				bytesLeft.addAndGet(size);
+				return true;
+			}
+			final byte[] buffer = new byte[CacheWarmer.READ_BUFFER_SIZE];
+			try(InputStream inputStream = openFile.newInputStream()) {
+				int read;
+				while(System.nanoTime() - deadline < 0 && (read = inputStream.read(buffer)) != -1) {
+					bytesRead.addAndGet(read);
+				}
+			}
+			return true;
+		} catch(IOException e) {
+			// It's gone since the last run, or it never was a file (i.e., an admin resource).
+			CacheWarmer.LOGGER.debug("Skipping {} during warm-up.", resource, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Ranks the resources in an access log by how often they were successfully fetched.
+	 * @param accessLog The log. Only the end of it is read.
+	 * @param limit The most resources to return
+	 * @return The most requested resources, most requested first
+	 */
+	static List<String> rankResources(final Path accessLog, final int limit) throws IOException {
+		final Map<String, Integer> counts = new HashMap<>();
+		try(FileChannel channel = FileChannel.open(accessLog, StandardOpenOption.READ)) {
+			final long start = Math.max(0, channel.size() - CacheWarmer.MAX_LOG_BYTES);
+			channel.position(start);
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			if(start > 0) {
+				// Probably started partway through a line
+				reader.readLine();
+			}
+			String line;
+			while((line = reader.readLine()) != null) {
+				final Matcher matcher = CacheWarmer.LOG_LINE.matcher(line);
+				if(!matcher.find() || !"GET".equals(matcher.group(1))) {
+					continue;
+				}
+				final int status = Integer.parseInt(matcher.group(3));
+				if(status != 200 && status != 304) {
+					continue;
+				}
+				String resource = matcher.group(2);
+				final int query = resource.indexOf('?');
+				if(query >= 0) {
+					resource = resource.substring(0, query);
+				}
+				counts.merge(resource, 1, Integer::sum);
+			}
+		}
+		final List<Map.Entry<String, Integer>> ranked = new ArrayList<>(counts.entrySet());
+		ranked.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+		final List<String> resources = new ArrayList<>();
+		for(Map.Entry<String, Integer> entry : ranked.subList(0, Math.min(limit, ranked.size()))) {
+			resources.add(entry.getKey());
+		}
+		return resources;
+	}
+}
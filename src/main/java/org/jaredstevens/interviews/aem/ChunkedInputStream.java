@@ -0,0 +1,98 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a body sent with "Transfer-Encoding: chunked", handing back just the data. The chunk sizes, extensions
+ * and trailers are read and thrown away. Reading stops at the last chunk, which leaves the underlying stream
+ * positioned at the start of the next request.
+ */
+public class ChunkedInputStream extends InputStream {
+	private final HttpInputStream in;
+	// How much of the current chunk is left to read
+	private long chunkRemaining;
+	// True once we've read into a chunk, which means there's a line break to skip before the next size line
+	private boolean inChunk;
+	private boolean finished;
+
+	/**
+	 * @param in The client's stream, positioned at the first chunk size line
+	 */
+	public ChunkedInputStream(final HttpInputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] single = new byte[1];
+		return this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+		if(this.finished) {
+			return -1;
+		}
+		if(length == 0) {
+			return 0;
+		}
+		if(this.chunkRemaining == 0 && !this.nextChunk()) {
+			return -1;
+		}
+		final int bytesRead = this.in.read(buffer, offset, (int)Math.min(length, this.chunkRemaining));
+		if(bytesRead == -1) {
+			throw new EOFException("Chunked body ended in the middle of a chunk.");
+		}
+		this.chunkRemaining -= bytesRead;
+		return bytesRead;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.finished ? 0 : (int)Math.min(this.in.available(), this.chunkRemaining);
+	}
+
+	/**
+	 * Moves on to the next chunk.
+	 * @return False if that was the last chunk
+	 */
+	private boolean nextChunk() throws IOException {
+		if(this.inChunk) {
+			// The line break after the previous chunk's data
+			this.in.readLine();
+		}
+		final String sizeLine = this.in.readLine();
+		if(sizeLine == null) {
+			throw new EOFException("Chunked body ended before the last chunk.");
+		}
+		final int extension = sizeLine.indexOf(';');
+		try {
+			this.chunkRemaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+		} catch(NumberFormatException e) {
+			throw new IOException("Malformed chunk size: " + sizeLine);
+		}
+		if(this.chunkRemaining < 0) {
+			throw new IOException("Malformed chunk size: " + sizeLine);
+		}
+		this.inChunk = true;
+		if(this.chunkRemaining == 0) {
+			// Skip the trailers
+			String trailer;
+			while((trailer = this.in.readLine()) != null && !trailer.isEmpty()) {
+				// We don't use them
+			}
+			this.finished = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Leaves the underlying stream open. It's the client's connection.
+	 */
+	@Override
+	public void close() {
+	}
+}
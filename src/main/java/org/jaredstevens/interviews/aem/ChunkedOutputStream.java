@@ -0,0 +1,162 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes a response body with "Transfer-Encoding: chunked", for responses whose length isn't known until
+ * they're done (generated pages, compressed data, proxied streams).
+ * Each chunk is staged in one buffer along with its size line and trailing line break, so it goes out in a
+ * single write.
+ * Data is collected until there's a full chunk, or until flush() is called, so the client sees the first bytes
+ * as soon as the code producing them asks for it. Closing the stream writes the last chunk and any trailers,
+ * but leaves the client's connection open for the next request.
+ */
+public class ChunkedOutputStream extends OutputStream {
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+	// Room in front of the data for the chunk size line: up to 8 hex digits plus "\r\n"
+	private static final int SIZE_LINE_SPACE = 10;
+
+	private final OutputStream out;
+	// The size line, then the chunk's data, then "\r\n"
+	private final byte[] buffer;
+	private final int chunkSize;
+	private final boolean framed;
+	private final Map<String, String> trailers = new LinkedHashMap<>();
+	private int count;
+	private long bytesWritten;
+	private boolean closed;
+
+	/**
+	 * @param out The client's output stream. The response header should already be written.
+	 * @param chunkSize The most data sent in a single chunk
+	 */
+	public ChunkedOutputStream(final OutputStream out, final int chunkSize) {
+		this(out, chunkSize, true);
+	}
+
+	/**
+	 * @param out The client's output stream. The response header should already be written.
+	 * @param chunkSize The most data sent in a single chunk
+	 * @param framed False to leave the chunk framing off. HTTP/2 frames the body itself, so chunked encoding
+	 *               isn't allowed there. Trailers are dropped in that case.
+	 */
+	public ChunkedOutputStream(final OutputStream out, final int chunkSize, final boolean framed) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size has to be positive: " + chunkSize);
+		}
+		this.out = out;
+		this.chunkSize = chunkSize;
+		this.buffer = new byte[ChunkedOutputStream.SIZE_LINE_SPACE + chunkSize + 2];
+		this.framed = framed;
+	}
+
+	/**
+	 * Adds a trailer, which is sent after the last chunk. Handy for things that aren't known until the whole
+	 * body has been written, like a checksum or how long it took to generate.
+	 */
+	public void addTrailer(final String name, final String value) {
+		this.trailers.put(name, value);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		this.ensureOpen();
+		this.buffer[ChunkedOutputStream.SIZE_LINE_SPACE + this.count++] = (byte)b;
+		if(this.count == this.chunkSize) {
+			this.writeChunk();
+		}
+	}
+
+	@Override
+	public void write(final byte[] bytes, int offset, int length) throws IOException {
+		this.ensureOpen();
+		while(length > 0) {
+			final int toCopy = Math.min(length, this.chunkSize - this.count);
+			System.arraycopy(bytes, offset, this.buffer, ChunkedOutputStream.SIZE_LINE_SPACE + this.count, toCopy);
+			this.count += toCopy;
+			offset += toCopy;
+			length -= toCopy;
+			if(this.count == this.chunkSize) {
+				this.writeChunk();
+			}
+		}
+	}
+
+	/**
+	 * Sends whatever has been written so far as a chunk, even if it's short.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(this.count > 0) {
+			this.writeChunk();
+		}
+		this.out.flush();
+	}
+
+	/**
+	 * Ends the body: sends anything that's left, the last (empty) chunk and the trailers.
+	 * The underlying stream is flushed but not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(this.closed) {
+			return;
+		}
+		if(this.count > 0) {
+			this.writeChunk();
+		}
+		if(this.framed) {
+			final StringBuilder end = new StringBuilder("0\r\n");
+			for(Map.Entry<String, String> trailer : this.trailers.entrySet()) {
+				end.append(trailer.getKey()).append(": ").append(trailer.getValue()).append("\r\n");
+			}
+			end.append("\r\n");
+			this.out.write(end.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		this.out.flush();
+		this.closed = true;
+	}
+
+	/**
+	 * @return How much of the body has been sent so far, not counting the chunk framing
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/**
+	 * Sends the buffered data as a chunk and empties the buffer.
+	 */
+	private void writeChunk() throws IOException {
+		this.bytesWritten += this.count;
+		if(!this.framed) {
+			this.out.write(this.buffer, ChunkedOutputStream.SIZE_LINE_SPACE, this.count);
+			this.count = 0;
+			return;
+		}
+		// Fill in the size line right in front of the data, working backwards from the end of it.
+		int start = ChunkedOutputStream.SIZE_LINE_SPACE;
+		this.buffer[--start] = '\n';
+		this.buffer[--start] = '\r';
+		int size = this.count;
+		do {
+			this.buffer[--start] = ChunkedOutputStream.HEX_DIGITS[size & 0xf];
+			size >>>= 4;
+		} while(size != 0);
+		final int end = ChunkedOutputStream.SIZE_LINE_SPACE + this.count;
+		this.buffer[end] = '\r';
+		this.buffer[end + 1] = '\n';
+		this.out.write(this.buffer, start, end + 2 - start);
+		this.count = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if(this.closed) {
+			throw new IOException("The chunked body has already been finished.");
+		}
+	}
+}
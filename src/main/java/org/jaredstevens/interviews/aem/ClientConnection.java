@@ -0,0 +1,222 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the registry knows about one open connection: what it's doing, when it last did something, and how much
+ * it's sent and received. It's updated by whichever thread is serving the connection and read by the admin
+ * endpoint and the idle reaper, so the fields are all safe to read from another thread.
+ */
+public class ClientConnection {
+	public enum State {
+		// Accepted, but the TLS handshake or first read hasn't finished
+		OPEN,
+		// Waiting on a keep-alive connection for the next request
+		IDLE,
+		// Reading a request or sending a response
+		ACTIVE,
+		// Handed over to an HTTP/2 session, which manages its own streams
+		HTTP2,
+		// Picked to be closed while it was idle. It can't become active again.
+		CLOSING
+	}
+
+	private final long id;
+	private final Socket socket;
+	private final InetAddress address;
+	private final long openedAt = System.currentTimeMillis();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	// Set while the connection is somewhere on the idle reaper's wheel
+	final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final AtomicReference<State> state = new AtomicReference<>(State.OPEN);
+	// In System.nanoTime() terms
+	private volatile long lastActivity = System.nanoTime();
+
+	ClientConnection(final long id, final Socket socket) {
+		this.id = id;
+		this.socket = socket;
+		// A Unix domain socket doesn't have a client address of its own.
+		this.address = socket instanceof UnixDomainSocket ? null : socket.getInetAddress();
+	}
+
+	/**
+	 * Records that the connection is waiting for its next request.
+	 */
+	public void markIdle() {
+		// The time goes first, so the reaper never sees IDLE with the time from before the last request.
+		this.lastActivity = System.nanoTime();
+		this.moveTo(State.IDLE);
+	}
+
+	/**
+	 * Records that the connection is reading a request or sending a response.
+	 * @return False if it's already being closed for sitting idle, in which case it shouldn't be used
+	 */
+	public boolean markActive() {
+		if(!this.moveTo(State.ACTIVE)) {
+			return false;
+		}
+		this.lastActivity = System.nanoTime();
+		return true;
+	}
+
+	public void markHttp2() {
+		if(this.moveTo(State.HTTP2)) {
+			this.lastActivity = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Claims an idle connection to be closed. Like markActive, this only wins if the connection hasn't moved on,
+	 * so a connection can't be closed right after whoever serves it picked it back up.
+	 * @param idleSince The last activity time the caller decided to close it over
+	 * @return True if the caller should close the connection
+	 */
+	boolean markClosing(final long idleSince) {
+		if(!this.state.compareAndSet(State.IDLE, State.CLOSING)) {
+			return false;
+		}
+		if(this.lastActivity == idleSince) {
+			return true;
+		}
+		// It was active (and went idle again) after the caller looked. That's a new idle period.
+		this.state.compareAndSet(State.CLOSING, State.IDLE);
+		return false;
+	}
+
+	private boolean moveTo(final State next) {
+		State current;
+		do {
+			current = this.state.get();
+			if(current == State.CLOSING) {
+				return false;
+			}
+		} while(!this.state.compareAndSet(current, next));
+		return true;
+	}
+
+	public void recordRequest() {
+		this.requests.increment();
+	}
+
+	public void addBytesOut(final long bytes) {
+		this.bytesOut.add(bytes);
+	}
+
+	/**
+	 * Closes the socket out from under whoever is serving it. A thread blocked reading the next request gets an
+	 * exception and cleans up like the client had hung up.
+	 */
+	void close() {
+		try {
+			this.socket.close();
+		} catch(IOException e) {
+			// It's going away either way
+		}
+	}
+
+	/**
+	 * Marks the connection closed.
+	 * @return True the first time it's called
+	 */
+	boolean markClosed() {
+		return this.closed.compareAndSet(false, true);
+	}
+
+	boolean isClosed() {
+		return this.closed.get();
+	}
+
+	/**
+	 * @return A stream that counts the bytes read through it
+	 */
+	public InputStream countInput(final InputStream inputStream) {
+		return new FilterInputStream(inputStream) {
+			@Override
+			public int read() throws IOException {
+				final int next = super.read();
+				if(next != -1) {
+					ClientConnection.this.bytesIn.increment();
+				}
+				return next;
+			}
+
+			@Override
+			public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+				final int read = super.read(bytes, offset, length);
+				if(read > 0) {
+					ClientConnection.this.bytesIn.add(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * @return A stream that counts the bytes written through it
+	 */
+	public OutputStream countOutput(final OutputStream outputStream) {
+		return new FilterOutputStream(outputStream) {
+			@Override
+			public void write(final int b) throws IOException {
+				this.out.write(b);
+				ClientConnection.this.bytesOut.increment();
+			}
+
+			@Override
+			public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+				this.out.write(bytes, offset, length);
+				ClientConnection.this.bytesOut.add(length);
+			}
+		};
+	}
+
+	/**
+	 * @return The connection's details for the admin endpoint
+	 */
+	Map<String, Object> describe() {
+		final Map<String, Object> description = new LinkedHashMap<>();
+		description.put("id", this.id);
+		description.put("remote_address", this.address == null ? "unix" : this.address.getHostAddress() + ":" + this.socket.getPort());
+		description.put("state", this.state.get().name());
+		description.put("age_millis", System.currentTimeMillis() - this.openedAt);
+		description.put("idle_millis", (System.nanoTime() - this.lastActivity) / 1000000);
+		description.put("requests", this.requests.sum());
+		description.put("bytes_in", this.bytesIn.sum());
+		description.put("bytes_out", this.bytesOut.sum());
+		return description;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return The client's address, or null if it came in on a Unix domain socket
+	 */
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public long getLastActivity() {
+		return lastActivity;
+	}
+}
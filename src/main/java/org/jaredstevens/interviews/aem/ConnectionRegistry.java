@@ -0,0 +1,306 @@
+package org.jaredstevens.interviews.aem;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps track of every open client connection, so we know how many sockets we're holding and what they're up to.
+ * It enforces a cap on connections, both overall and per client IP. When a new connection would go over a cap,
+ * the connection that's been sitting idle between requests the longest is closed to make room. If nothing is
+ * idle, the new connection is turned away.
+ * It also closes keep-alive connections that have been idle for idle_timeout milliseconds. Rather than keep a
+ * timer per connection, idle connections go on a timer wheel: a ring of slots, one per tick, each holding the
+ * connections that are due then. A connection that became active again in the meantime is just skipped, and one
+ * that's been idle for less time than it was due (because it did something and went idle again) is put back on
+ * the wheel for its new time. Nothing is ever taken off the wheel early, so going idle and active doesn't cost
+ * anything more than setting a couple of fields.
+ */
+public class ConnectionRegistry {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionRegistry.class);
+	private static final Gson GSON = new GsonBuilder()
+					.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+					.setPrettyPrinting()
+					.create();
+	private static final int WHEEL_SLOTS = 1024;
+	private static final long TICK_MILLIS = 100;
+
+	private final Map<Long, ClientConnection> connections = new ConcurrentHashMap<>();
+	private final Map<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<>();
+	private final AtomicLong nextId = new AtomicLong();
+	private final AtomicInteger open = new AtomicInteger();
+	// 0 means no cap
+	private final int maxConnections;
+	private final int maxPerAddress;
+	// 0 means idle connections aren't reaped, and the socket timeout is left to close them
+	private final long idleTimeoutNanos;
+	private final long tickNanos;
+	private final ServerMetrics metrics;
+	private final List<Queue<ClientConnection>> wheel = new ArrayList<>(ConnectionRegistry.WHEEL_SLOTS);
+	private final long startNanos = System.nanoTime();
+	// The last tick the reaper has handled
+	private volatile long currentTick;
+	private volatile Thread reaper;
+	private volatile boolean closed;
+
+	/**
+	 * @param config The server configuration. Sets the caps and the idle timeout.
+	 * @param metrics Where rejected, evicted and reaped connections are recorded
+	 */
+	public ConnectionRegistry(final ServerConfig config, final ServerMetrics metrics) {
+		this(config.getMaxConnections(), config.getMaxConnectionsPerIp(), config.getIdleTimeout(), ConnectionRegistry.TICK_MILLIS, metrics);
+	}
+
+	ConnectionRegistry(final int maxConnections, final int maxPerAddress, final long idleTimeoutMillis, final long tickMillis, final ServerMetrics metrics) {
+		this.maxConnections = maxConnections;
+		this.maxPerAddress = maxPerAddress;
+		this.idleTimeoutNanos = idleTimeoutMillis * 1000000;
+		this.tickNanos = tickMillis * 1000000;
+		this.metrics = metrics;
+		for(int i = 0; i < ConnectionRegistry.WHEEL_SLOTS; ++i) {
+			this.wheel.add(new ConcurrentLinkedQueue<>());
+		}
+	}
+
+	/**
+	 * Registers a newly accepted connection, making room for it if the server is at a cap.
+	 * This is only called from the accept loop, so the caps are never overshot by two connections checking at
+	 * the same time.
+	 * Connections without an address of their own (Unix domain sockets) only count against the total.
+	 * @param socket The connection
+	 * @return The registered connection, or null if there's no room for it and it should be closed
+	 */
+	public ClientConnection register(final Socket socket) {
+		final ClientConnection connection = new ClientConnection(this.nextId.incrementAndGet(), socket);
+		final InetAddress address = connection.getAddress();
+		if(address != null && this.maxPerAddress > 0 && this.countFor(address) >= this.maxPerAddress && !this.closeOldestIdle(address)) {
+			this.metrics.recordConnectionRejected();
+			return null;
+		}
+		if(this.maxConnections > 0 && this.open.get() >= this.maxConnections && !this.closeOldestIdle(null)) {
+			this.metrics.recordConnectionRejected();
+			return null;
+		}
+		this.open.incrementAndGet();
+		if(address != null) {
+			this.perAddress.computeIfAbsent(address, key -> new AtomicInteger()).incrementAndGet();
+		}
+		this.connections.put(connection.getId(), connection);
+		return connection;
+	}
+
+	/**
+	 * Takes a connection out of the registry once it's closed. It's safe to call more than once.
+	 */
+	public void unregister(final ClientConnection connection) {
+		if(!connection.markClosed()) {
+			return;
+		}
+		this.connections.remove(connection.getId());
+		this.open.decrementAndGet();
+		if(connection.getAddress() != null) {
+			this.perAddress.computeIfPresent(connection.getAddress(), (key, count) -> count.decrementAndGet() == 0 ? null : count);
+		}
+	}
+
+	/**
+	 * Marks a connection idle between requests, putting it on the wheel if it isn't already.
+	 */
+	public void markIdle(final ClientConnection connection) {
+		connection.markIdle();
+		if(this.isReaping() && connection.scheduled.compareAndSet(false, true)) {
+			this.schedule(connection, connection.getLastActivity() + this.idleTimeoutNanos);
+		}
+	}
+
+	/**
+	 * @return True if idle connections are closed by the reaper rather than by the socket timeout
+	 */
+	public boolean isReaping() {
+		return this.idleTimeoutNanos > 0;
+	}
+
+	/**
+	 * @return The number of open connections
+	 */
+	public int size() {
+		return this.open.get();
+	}
+
+	/**
+	 * @return The number of connections in the middle of a request
+	 */
+	public int countActive() {
+		int active = 0;
+		for(ClientConnection connection : this.connections.values()) {
+			if(connection.getState() == ClientConnection.State.ACTIVE) {
+				++active;
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Closes every open connection.
+	 */
+	public void closeAll() {
+		for(ClientConnection connection : this.connections.values()) {
+			this.close(connection);
+		}
+	}
+
+	/**
+	 * Closes every open connection and stops the reaper. Called when the server stops.
+	 */
+	public void close() {
+		final Thread current;
+		synchronized(this) {
+			this.closed = true;
+			current = this.reaper;
+		}
+		this.closeAll();
+		if(current != null) {
+			current.interrupt();
+			try {
+				current.join(1000);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection and takes it out of the registry. An idle connection may be parked on the drainer
+	 * rather than held by a thread, so there may be nobody else to unregister it. Whoever is serving it notices
+	 * the socket close, and their unregister does nothing.
+	 */
+	private void close(final ClientConnection connection) {
+		connection.close();
+		this.unregister(connection);
+	}
+
+	/**
+	 * @return The connection table, formatted as JSON
+	 */
+	public String toJson() {
+		final List<Map<String, Object>> table = new ArrayList<>();
+		for(ClientConnection connection : this.connections.values()) {
+			table.add(connection.describe());
+		}
+		final Map<String, Object> result = new LinkedHashMap<>();
+		result.put("open", this.open.get());
+		result.put("max_connections", this.maxConnections);
+		result.put("max_connections_per_ip", this.maxPerAddress);
+		result.put("connections", table);
+		return ConnectionRegistry.GSON.toJson(result);
+	}
+
+	private int countFor(final InetAddress address) {
+		final AtomicInteger count = this.perAddress.get(address);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Closes the connection that's been idle the longest.
+	 * @param address Only look at connections from this address, or null for any
+	 * @return False if nothing was idle
+	 */
+	private boolean closeOldestIdle(final InetAddress address) {
+		ClientConnection oldest;
+		long oldestIdleSince;
+		do {
+			oldest = null;
+			oldestIdleSince = 0;
+			for(ClientConnection connection : this.connections.values()) {
+				final long idleSince = connection.getLastActivity();
+				if(connection.getState() == ClientConnection.State.IDLE && (address == null || address.equals(connection.getAddress()))
+								&& (oldest == null || idleSince < oldestIdleSince)) {
+					oldest = connection;
+					oldestIdleSince = idleSince;
+				}
+			}
+			if(oldest == null) {
+				return false;
+			}
+			// If it was picked back up in the meantime, look again.
+		} while(!oldest.markClosing(oldestIdleSince));
+		ConnectionRegistry.LOGGER.debug("At the connection cap. Closing idle connection {}.", oldest.getId());
+		this.metrics.recordConnectionEvicted();
+		this.close(oldest);
+		return true;
+	}
+
+	/**
+	 * Puts a connection on the wheel. Times further out than the wheel goes around are put in the last slot, and
+	 * the connection is just rescheduled when it comes up.
+	 */
+	private void schedule(final ClientConnection connection, final long dueNanos) {
+		this.startReaper();
+		final long current = this.currentTick;
+		final long tick = Math.min(Math.max((dueNanos - this.startNanos) / this.tickNanos + 1, current + 1),
+						current + ConnectionRegistry.WHEEL_SLOTS - 1);
+		this.wheel.get((int)(tick % ConnectionRegistry.WHEEL_SLOTS)).add(connection);
+	}
+
+	private void startReaper() {
+		if(this.reaper == null) {
+			synchronized(this) {
+				if(this.reaper == null && !this.closed) {
+					final Thread thread = new Thread(this::reap, "idle-reaper");
+					thread.setDaemon(true);
+					thread.start();
+					this.reaper = thread;
+				}
+			}
+		}
+	}
+
+	private void reap() {
+		while(!this.closed) {
+			final long tick = this.currentTick + 1;
+			long wait;
+			while((wait = this.startNanos + tick * this.tickNanos - System.nanoTime()) > 0) {
+				if(this.closed) {
+					return;
+				}
+				LockSupport.parkNanos(wait);
+			}
+			this.currentTick = tick;
+			final Queue<ClientConnection> slot = this.wheel.get((int)(tick % ConnectionRegistry.WHEEL_SLOTS));
+			final long now = System.nanoTime();
+			ClientConnection connection;
+			while((connection = slot.poll()) != null) {
+				connection.scheduled.set(false);
+				if(connection.isClosed() || connection.getState() != ClientConnection.State.IDLE) {
+					// It'll go back on the wheel the next time it goes idle.
+					continue;
+				}
+				final long idleSince = connection.getLastActivity();
+				final long due = idleSince + this.idleTimeoutNanos;
+				if(now - due >= 0 && connection.markClosing(idleSince)) {
+					ConnectionRegistry.LOGGER.debug("Closing idle connection {}.", connection.getId());
+					this.metrics.recordConnectionReaped();
+					this.close(connection);
+				} else if(connection.getState() == ClientConnection.State.IDLE && connection.scheduled.compareAndSet(false, true)) {
+					// Not due yet, or it was picked back up and went idle again since we looked.
+					this.schedule(connection, connection.getLastActivity() + this.idleTimeoutNanos);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.jaredstevens.interviews.aem;
+
+import org.apache.tika.Tika;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Works out content types. Tika takes the better part of a second to load its detectors, which used to happen
+ * when RequestHandler was loaded, so the first request after a restart waited for it. Now the types almost every
+ * site is made of come out of a small table by extension, and Tika is only loaded when something else turns up
+ * (or when warmUp is called on a background thread after startup).
+ * The table only has types Tika agrees with for files that are what their extension says, so a file gets the
+ * same type whichever way it's detected.
+ */
+final class ContentTypes {
+	private static final Map<String, String> BY_EXTENSION = new HashMap<>();
+
+	static {
+		ContentTypes.BY_EXTENSION.put("html", "text/html");
+		ContentTypes.BY_EXTENSION.put("htm", "text/html");
+		ContentTypes.BY_EXTENSION.put("css", "text/css");
+		ContentTypes.BY_EXTENSION.put("js", "application/javascript");
+		ContentTypes.BY_EXTENSION.put("json", "application/json");
+		ContentTypes.BY_EXTENSION.put("xml", "application/xml");
+		ContentTypes.BY_EXTENSION.put("svg", "image/svg+xml");
+		ContentTypes.BY_EXTENSION.put("txt", "text/plain");
+		ContentTypes.BY_EXTENSION.put("png", "image/png");
+		ContentTypes.BY_EXTENSION.put("jpg", "image/jpeg");
+		ContentTypes.BY_EXTENSION.put("jpeg", "image/jpeg");
+		ContentTypes.BY_EXTENSION.put("gif", "image/gif");
+	}
+
+	// Loaded the first time something's looked up that isn't in the table
+	private static class Detector {
+		private static final Tika TIKA = new Tika();
+	}
+
+	private ContentTypes() {
+	}
+
+	/**
+	 * @return The content type for a file on disk. Anything not in the table is sniffed.
+	 */
+	static String detect(final File file) throws IOException {
+		final String contentType = ContentTypes.byExtension(file.getName());
+		return contentType != null ? contentType : Detector.TIKA.detect(file);
+	}
+
+	/**
+	 * @return The content type for a name, going by the name alone
+	 */
+	static String detect(final String name) {
+		final String contentType = ContentTypes.byExtension(name);
+		return contentType != null ? contentType : Detector.TIKA.detect(name);
+	}
+
+	/**
+	 * @return The content type for something in memory. Anything not in the table is sniffed.
+	 */
+	static String detect(final String name, final byte[] data) {
+		final String contentType = ContentTypes.byExtension(name);
+		return contentType != null ? contentType : Detector.TIKA.detect(data, name);
+	}
+
+	/**
+	 * Loads Tika, so nothing that turns up later has to wait for it.
+	 */
+	static void warmUp() {
+		Detector.TIKA.detect("warm-up.bin");
+	}
+
+	private static String byExtension(final String name) {
+		final int dot = name.lastIndexOf('.');
+		if(dot < 0 || dot < name.lastIndexOf('/')) {
+			return null;
+		}
+		return ContentTypes.BY_EXTENSION.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,308 @@
+package org.jaredstevens.interviews.aem;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders autoindex listings of directories that don't have an index.html, as HTML or as JSON.
+ * A listing is rendered once and cached with the directory's modification time. Adding, removing or renaming a
+ * file changes that time, so the next request sees a different time and renders the listing again. A file that
+ * only changed size doesn't change its directory, so a cached listing is also only trusted for a while.
+ * A directory with more entries than the stream threshold is never rendered into memory. Its listing is written
+ * straight to the client a chunk at a time, in whatever order the file system hands the entries back, so a
+ * directory with a hundred thousand files costs about as much memory as one with ten.
+ * Dot files (.htaccess, .git and friends) are left out.
+ */
+public class DirectoryListings {
+	private static final DateTimeFormatter HTML_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+	private static final Comparator<Entry> BY_NAME = Comparator.comparing((Entry entry) -> !entry.directory).thenComparing(entry -> entry.name);
+
+	public enum Format {
+		HTML("text/html; charset=utf-8"),
+		JSON("application/json");
+
+		private final String contentType;
+
+		Format(final String contentType) {
+			this.contentType = contentType;
+		}
+
+		public String getContentType() {
+			return this.contentType;
+		}
+	}
+
+	private final int maxEntries;
+	private final long validMillis;
+	private final int streamThreshold;
+	// Keyed by format, directory and the URL it's listed at. Least recently used first.
+	private final Map<String, Listing> listings;
+
+	/**
+	 * @param maxEntries The most listings to keep
+	 * @param validMillis How long a listing is trusted when its directory hasn't changed
+	 * @param streamThreshold Directories with more entries than this are streamed rather than cached
+	 */
+	public DirectoryListings(final int maxEntries, final long validMillis, final int streamThreshold) {
+		this.maxEntries = maxEntries;
+		this.validMillis = validMillis;
+		this.streamThreshold = streamThreshold;
+		this.listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Listing> eldest) {
+				return this.size() > DirectoryListings.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets a directory's listing, from the cache if the directory hasn't changed since it was rendered.
+	 * @param directory The directory
+	 * @param url The directory's URL, ending with a '/'. Links in the listing are built on it.
+	 * @return The listing, or null if the directory is too big to render in memory and should be streamed
+	 * @throws NoSuchFileException If the directory isn't there
+	 */
+	public byte[] get(final Path directory, final String url, final Format format) throws IOException {
+		final long modified = Files.getLastModifiedTime(directory).toMillis();
+		final long now = System.currentTimeMillis();
+		final String key = format + " " + directory + " " + url;
+		synchronized(this.listings) {
+			final Listing listing = this.listings.get(key);
+			if(listing != null && listing.modified == modified && now - listing.renderedAt < this.validMillis) {
+				return listing.body;
+			}
+		}
+		// Count first, which doesn't stat anything, so a huge directory isn't read into memory just to find out
+		// it's huge.
+		if(this.countEntries(directory) > this.streamThreshold) {
+			return null;
+		}
+		final List<Entry> entries = new ArrayList<>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for(Path path : stream) {
+				final Entry entry = Entry.read(path);
+				if(entry != null) {
+					entries.add(entry);
+				}
+			}
+		}
+		entries.sort(DirectoryListings.BY_NAME);
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final Renderer renderer = DirectoryListings.renderer(format, body, url);
+		for(Entry entry : entries) {
+			renderer.entry(entry);
+		}
+		renderer.finish();
+		final byte[] rendered = body.toByteArray();
+		if(this.maxEntries > 0) {
+			synchronized(this.listings) {
+				this.listings.put(key, new Listing(modified, now, rendered));
+			}
+		}
+		return rendered;
+	}
+
+	/**
+	 * Writes a directory's listing as it's read, without caching it or sorting it.
+	 * @param out Where to write it. It's flushed but not closed.
+	 */
+	public void stream(final Path directory, final String url, final Format format, final OutputStream out) throws IOException {
+		final Renderer renderer = DirectoryListings.renderer(format, out, url);
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for(Path path : stream) {
+				final Entry entry = Entry.read(path);
+				if(entry != null) {
+					renderer.entry(entry);
+				}
+			}
+		}
+		renderer.finish();
+	}
+
+	/**
+	 * @return How many entries a directory has, dot files included, giving up once it's over the stream threshold
+	 */
+	private int countEntries(final Path directory) throws IOException {
+		int count = 0;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for(Path ignored : stream) {
+				if(++count > this.streamThreshold) {
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static Renderer renderer(final Format format, final OutputStream out, final String url) throws IOException {
+		final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		return format == Format.JSON ? new JsonRenderer(writer) : new HtmlRenderer(writer, url);
+	}
+
+	private static class Listing {
+		private final long modified;
+		private final long renderedAt;
+		private final byte[] body;
+
+		private Listing(final long modified, final long renderedAt, final byte[] body) {
+			this.modified = modified;
+			this.renderedAt = renderedAt;
+			this.body = body;
+		}
+	}
+
+	private static class Entry {
+		private final String name;
+		private final boolean directory;
+		private final long size;
+		private final long modified;
+
+		private Entry(final String name, final boolean directory, final long size, final long modified) {
+			this.name = name;
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		/**
+		 * @return The entry, or null if it's a dot file or it went away while the directory was being read
+		 */
+		static Entry read(final Path path) throws IOException {
+			final String name = path.getFileName().toString();
+			if(name.startsWith(".")) {
+				return null;
+			}
+			try {
+				final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				return new Entry(name, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+			} catch(NoSuchFileException e) {
+				return null;
+			}
+		}
+	}
+
+	private interface Renderer {
+		void entry(Entry entry) throws IOException;
+
+		/**
+		 * Writes whatever comes after the entries and flushes.
+		 */
+		void finish() throws IOException;
+	}
+
+	private static class HtmlRenderer implements Renderer {
+		private final Writer writer;
+		private final String url;
+
+		private HtmlRenderer(final Writer writer, final String url) throws IOException {
+			this.writer = writer;
+			this.url = url;
+			final String title = "Index of " + HtmlRenderer.escape(url);
+			writer.write("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>" + title + "</title></head><body><h1>"
+							+ title + "</h1><table>\n<tr><th>Name</th><th>Last modified</th><th>Size</th></tr>\n");
+			if(!url.equals("/")) {
+				writer.write("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+			}
+		}
+
+		@Override
+		public void entry(final Entry entry) throws IOException {
+			final String name = entry.directory ? entry.name + "/" : entry.name;
+			this.writer.write("<tr><td><a href=\"");
+			this.writer.write(HtmlRenderer.escape(this.url + HtmlRenderer.encode(entry.name) + (entry.directory ? "/" : "")));
+			this.writer.write("\">");
+			this.writer.write(HtmlRenderer.escape(name));
+			this.writer.write("</a></td><td>");
+			this.writer.write(DirectoryListings.HTML_DATE.format(Instant.ofEpochMilli(entry.modified)));
+			this.writer.write("</td><td>");
+			this.writer.write(entry.directory ? "-" : String.valueOf(entry.size));
+			this.writer.write("</td></tr>\n");
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.writer.write("</table></body></html>\n");
+			this.writer.flush();
+		}
+
+		/**
+		 * Percent-encodes a file name for use as a path segment.
+		 */
+		private static String encode(final String name) throws UnsupportedEncodingException {
+			return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+		}
+
+		private static String escape(final String text) {
+			final StringBuilder escaped = new StringBuilder(text.length());
+			for(int i = 0; i < text.length(); ++i) {
+				final char c = text.charAt(i);
+				switch(c) {
+					case '<':
+						escaped.append("&lt;");
+						break;
+					case '>':
+						escaped.append("&gt;");
+						break;
+					case '&':
+						escaped.append("&amp;");
+						break;
+					case '"':
+						escaped.append("&quot;");
+						break;
+					default:
+						escaped.append(c);
+						break;
+				}
+			}
+			return escaped.toString();
+		}
+	}
+
+	private static class JsonRenderer implements Renderer {
+		private final JsonWriter json;
+
+		private JsonRenderer(final Writer writer) throws IOException {
+			this.json = new JsonWriter(writer);
+			this.json.beginArray();
+		}
+
+		@Override
+		public void entry(final Entry entry) throws IOException {
+			this.json.beginObject();
+			this.json.name("name").value(entry.name);
+			this.json.name("type").value(entry.directory ? "directory" : "file");
+			if(!entry.directory) {
+				this.json.name("size").value(entry.size);
+			}
+			this.json.name("modified").value(Instant.ofEpochMilli(entry.modified).toString());
+			this.json.endObject();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.json.endArray();
+			this.json.flush();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.HeaderTooLargeException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A buffered stream that can read HTTP header lines as well as raw bytes.
+ * A BufferedReader decodes everything it buffers into characters, which mangles anything that follows the
+ * header (request bodies, HTTP/2 frames). This reads lines a byte at a time out of the buffer instead, so
+ * whatever comes after the header is still available as-is.
+ * When it's reading from a socket, it can also enforce a deadline across many reads. The socket's timeout only
+ * covers a single read, so a client sending one byte at a time could otherwise take as long as it likes.
+ */
+public class HttpInputStream extends BufferedInputStream {
+	private static final int INITIAL_LINE_SIZE = 256;
+	private byte[] lineBuffer = new byte[INITIAL_LINE_SIZE];
+	// Null if the stream isn't reading from a socket, in which case deadlines aren't enforced
+	private final Socket socket;
+	// When the current deadline passes, in System.nanoTime() terms. 0 means there isn't one.
+	private long deadline;
+	// The socket's own timeout, put back when the deadline is cleared
+	private int readTimeout;
+	// Set when a read timed out part way through a line
+	private boolean partialLine;
+
+	public HttpInputStream(final InputStream in) {
+		this(in, null);
+	}
+
+	/**
+	 * @param in The stream to read from
+	 * @param socket The socket the stream comes from, so deadlines can be enforced. Can be null.
+	 */
+	public HttpInputStream(final InputStream in, final Socket socket) {
+		super(in);
+		this.socket = socket;
+	}
+
+	/**
+	 * Reads a line terminated by '\n' (or "\r\n").
+	 * @return The line without its terminator, or null if the stream ended before any data was read.
+	 * @throws IOException Thrown if there's a problem reading from the underlying stream.
+	 */
+	public String readLine() throws IOException {
+		try {
+			return this.readLine(Integer.MAX_VALUE);
+		} catch(HeaderTooLargeException e) {
+			// Can't happen without a limit
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Reads a line terminated by '\n' (or "\r\n"), giving up once it's longer than it's allowed to be. Nothing
+	 * past the limit is buffered, so a client can't make us hold onto an endless line.
+	 * @param maxLength The longest the line can be, not counting its terminator
+	 * @return The line without its terminator, or null if the stream ended before any data was read.
+	 * @throws IOException Thrown if there's a problem reading from the underlying stream.
+	 * @throws HeaderTooLargeException Thrown if the line is too long. The rest of it is left unread.
+	 */
+	public String readLine(final int maxLength) throws IOException, HeaderTooLargeException {
+		int length = 0;
+		int next;
+		this.partialLine = false;
+		try {
+			while((next = this.read()) != -1 && next != '\n') {
+				// Leave room for a '\r' that turns out to be part of the terminator
+				if(length > maxLength) {
+					throw new HeaderTooLargeException("Line is longer than " + maxLength + " bytes");
+				}
+				if(length == this.lineBuffer.length) {
+					this.lineBuffer = Arrays.copyOf(this.lineBuffer, length * 2);
+				}
+				this.lineBuffer[length++] = (byte)next;
+			}
+		} catch(SocketTimeoutException e) {
+			this.partialLine = length > 0;
+			throw e;
+		}
+		if(next == -1 && length == 0) {
+			return null;
+		}
+		if(length > 0 && this.lineBuffer[length - 1] == '\r') {
+			--length;
+		}
+		if(length > maxLength) {
+			throw new HeaderTooLargeException("Line is longer than " + maxLength + " bytes");
+		}
+		return new String(this.lineBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Blocks until there's something to read, without consuming it.
+	 * @return False if the stream ended instead
+	 * @throws IOException Thrown if there's a problem reading from the underlying stream.
+	 */
+	public boolean awaitData() throws IOException {
+		if(this.pos < this.count) {
+			return true;
+		}
+		this.mark(1);
+		final int next = this.read();
+		this.reset();
+		return next != -1;
+	}
+
+	/**
+	 * @return True if there's data in the buffer, so a read won't have to wait on the socket
+	 */
+	public synchronized boolean hasBufferedData() {
+		return this.pos < this.count;
+	}
+
+	/**
+	 * @return True if the last read timed out after part of a line had arrived
+	 */
+	public boolean hasPartialLine() {
+		return this.partialLine;
+	}
+
+	/**
+	 * Starts a deadline. Every read until clearDeadline() is called has to finish before it passes, or it throws
+	 * a SocketTimeoutException. Each read still times out after the socket's own timeout, too.
+	 * @param timeoutMillis How long from now the deadline is. 0 means there isn't one.
+	 */
+	public void startDeadline(final long timeoutMillis) throws IOException {
+		if(this.socket == null || timeoutMillis <= 0) {
+			return;
+		}
+		this.readTimeout = this.socket.getSoTimeout();
+		this.deadline = System.nanoTime() + timeoutMillis * 1000000;
+	}
+
+	/**
+	 * Clears the deadline and puts the socket's timeout back the way it was.
+	 */
+	public void clearDeadline() throws IOException {
+		if(this.deadline != 0) {
+			this.deadline = 0;
+			this.socket.setSoTimeout(this.readTimeout);
+		}
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		this.beforeRead();
+		return super.read();
+	}
+
+	@Override
+	public synchronized int read(final byte[] bytes, final int offset, final int length) throws IOException {
+		this.beforeRead();
+		return super.read(bytes, offset, length);
+	}
+
+	/**
+	 * If the buffer's empty, the next read goes to the socket. Shorten its timeout so it can't block past the
+	 * deadline.
+	 */
+	private void beforeRead() throws IOException {
+		if(this.deadline == 0 || this.pos < this.count) {
+			return;
+		}
+		final long remaining = (this.deadline - System.nanoTime()) / 1000000;
+		if(remaining <= 0) {
+			throw new SocketTimeoutException("Deadline passed");
+		}
+		this.socket.setSoTimeout((int)(this.readTimeout > 0 ? Math.min(remaining, this.readTimeout) : Math.min(remaining, Integer.MAX_VALUE)));
+	}
+
+	/**
+	 * Checks to see if the next bytes in the stream match the expected bytes without consuming them.
+	 * This stops reading as soon as a byte doesn't match, so it won't block waiting on a short request.
+	 * @param expected The bytes we're looking for
+	 * @return True if the stream starts with the expected bytes
+	 * @throws IOException Thrown if there's a problem reading from the underlying stream.
+	 */
+	public boolean startsWith(final byte[] expected) throws IOException {
+		this.mark(expected.length);
+		try {
+			for(byte expectedByte : expected) {
+				if(this.read() != (expectedByte & 0xff)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			this.reset();
+		}
+	}
+}
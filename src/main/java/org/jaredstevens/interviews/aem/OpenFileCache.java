@@ -0,0 +1,398 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps hot files open between requests, like nginx's open_file_cache. Without it, every request for a file
+ * costs a couple of stats, an open and a close, and Tika opens the file again to sniff its type.
+ * Each cached file holds one open FileChannel along with the size, modification time and content type. Reads
+ * are positional, so any number of requests can stream the same file through the one descriptor at once.
+ * Entries are reference counted: the cache holds one reference and each request holds another while it's
+ * sending, so an entry that gets evicted or replaced is only closed once the last request using it is done.
+ * An entry is trusted for open_file_cache_valid milliseconds. After that, the next request stats the file
+ * and reopens it if it's changed or gone. When the cache is full, the entry that's gone unused the longest
+ * out of a small sample is evicted.
+ * Files can belong to an owner (a virtual host) with a byte quota. When an owner's files add up to more than its
+ * quota, its own least recently used files are evicted, and a file bigger than the whole quota isn't cached.
+ */
+public class OpenFileCache {
+	// How many entries are looked at when picking one to evict
+	private static final int EVICTION_SAMPLE = 8;
+
+	private final Map<String, OpenFile> files = new ConcurrentHashMap<>();
+	private final Map<String, Long> quotas = new ConcurrentHashMap<>();
+	// The size of the cached files belonging to each owner
+	private final Map<String, AtomicLong> usage = new ConcurrentHashMap<>();
+	// 0 turns caching off. Every open gets its own channel that's closed when it's released.
+	private final int maxEntries;
+	private final long validNanos;
+	private final ServerMetrics metrics;
+
+	/**
+	 * @param maxEntries The most files kept open at once, or 0 to not cache at all
+	 * @param validMillis How long an entry is used before checking whether the file has changed
+	 * @param metrics Where hits and misses are recorded
+	 */
+	public OpenFileCache(final int maxEntries, final long validMillis, final ServerMetrics metrics) {
+		this.maxEntries = maxEntries;
+		this.validNanos = validMillis * 1000000;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Opens a file, or takes another reference to it if it's already open. Close the result when done.
+	 * @param file The file to open
+	 * @return The open file
+	 * @throws FileNotFoundException If the file doesn't exist or is a directory
+	 * @throws AccessDeniedException If the server isn't allowed to read the file
+	 * @throws IOException If the file couldn't be opened for some other reason
+	 */
+	public OpenFile open(final File file) throws IOException {
+		return this.open(file, null);
+	}
+
+	/**
+	 * Opens a file on behalf of an owner, keeping the owner's cached files within its quota.
+	 * @param file The file to open
+	 * @param owner Who the file belongs to, or null if it isn't subject to a quota
+	 * @return The open file
+	 * @throws IOException If the file couldn't be opened. See open(File).
+	 */
+	public OpenFile open(final File file, final String owner) throws IOException {
+		final String key = file.getPath();
+		final long now = System.nanoTime();
+		final OpenFile cached = this.files.get(key);
+		if(cached != null && (now - cached.validatedAt <= this.validNanos || this.revalidate(key, cached, now)) && cached.retain()) {
+			cached.lastUsed = now;
+			this.metrics.recordOpenFileCache(true);
+			return cached;
+		}
+		this.metrics.recordOpenFileCache(false);
+		final OpenFile opened = OpenFile.open(file.toPath(), now);
+		final long quota = owner == null ? 0 : this.quotas.getOrDefault(owner, 0L);
+		if(this.maxEntries <= 0 || (quota > 0 && opened.size > quota)) {
+			return opened;
+		}
+		// One reference for the caller and one for the cache
+		opened.retain();
+		opened.owner = owner;
+		if(owner != null) {
+			// Counted before it's in the cache, since another thread can evict it (and uncount it) as soon as it is.
+			this.usage.computeIfAbsent(owner, name -> new AtomicLong()).addAndGet(opened.size);
+		}
+		final OpenFile previous = this.files.put(key, opened);
+		if(previous != null) {
+			this.discard(previous);
+		}
+		if(quota > 0) {
+			this.enforceQuota(owner, quota, opened);
+		}
+		if(this.files.size() > this.maxEntries) {
+			this.evictOne(opened);
+		}
+		return opened;
+	}
+
+	/**
+	 * Drops a file from the cache, e.g., because it was just replaced. Requests that are still sending the
+	 * old copy finish with it.
+	 * @param file The file that changed
+	 */
+	public void invalidate(final File file) {
+		final OpenFile cached = this.files.remove(file.getPath());
+		if(cached != null) {
+			this.discard(cached);
+		}
+	}
+
+	/**
+	 * Drops everything from the cache, e.g., because the server is stopping. Each file is closed once the
+	 * requests still sending it are done with it.
+	 */
+	public void clear() {
+		for(String key : this.files.keySet()) {
+			final OpenFile cached = this.files.remove(key);
+			if(cached != null) {
+				this.discard(cached);
+			}
+		}
+	}
+
+	/**
+	 * Caps the bytes of an owner's files that are kept open.
+	 * @param owner The owner
+	 * @param bytes The quota, or 0 for none
+	 */
+	public void setQuota(final String owner, final long bytes) {
+		this.quotas.put(owner, bytes);
+	}
+
+	/**
+	 * @return The size of the cached files belonging to an owner
+	 */
+	public long getUsage(final String owner) {
+		final AtomicLong bytes = this.usage.get(owner);
+		return bytes == null ? 0 : bytes.get();
+	}
+
+	/**
+	 * @return The number of files in the cache
+	 */
+	public int size() {
+		return this.files.size();
+	}
+
+	/**
+	 * Checks whether a cached file has changed since it was opened.
+	 * @return True if the entry is still good. If not, it's been dropped from the cache.
+	 */
+	private boolean revalidate(final String key, final OpenFile cached, final long now) {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(cached.path, BasicFileAttributes.class);
+			if(attributes.size() == cached.size && attributes.lastModifiedTime().toMillis() == cached.lastModified) {
+				cached.validatedAt = now;
+				return true;
+			}
+		} catch(IOException e) {
+			// Gone or unreadable. Opening it again will report why.
+		}
+		if(this.files.remove(key, cached)) {
+			this.discard(cached);
+		}
+		return false;
+	}
+
+	/**
+	 * Evicts whichever of a few entries has gone unused the longest. This is only approximately LRU, but it
+	 * doesn't need any bookkeeping on the hit path beyond a timestamp.
+	 * @param keep The entry that was just added, which shouldn't be picked
+	 */
+	private void evictOne(final OpenFile keep) {
+		String oldestKey = null;
+		OpenFile oldest = null;
+		final Iterator<Map.Entry<String, OpenFile>> entries = this.files.entrySet().iterator();
+		for(int i = 0; i < OpenFileCache.EVICTION_SAMPLE && entries.hasNext(); ++i) {
+			final Map.Entry<String, OpenFile> entry = entries.next();
+			if(entry.getValue() != keep && (oldest == null || entry.getValue().lastUsed < oldest.lastUsed)) {
+				oldestKey = entry.getKey();
+				oldest = entry.getValue();
+			}
+		}
+		if(oldest != null && this.files.remove(oldestKey, oldest)) {
+			this.discard(oldest);
+		}
+	}
+
+	/**
+	 * Evicts an owner's least recently used files until it's back within its quota. This looks at every entry,
+	 * but it only happens when an owner's files are added to the cache, not on hits.
+	 * @param keep The entry that was just added, which shouldn't be picked
+	 */
+	private void enforceQuota(final String owner, final long quota, final OpenFile keep) {
+		while(this.getUsage(owner) > quota) {
+			Map.Entry<String, OpenFile> oldest = null;
+			for(Map.Entry<String, OpenFile> entry : this.files.entrySet()) {
+				final OpenFile candidate = entry.getValue();
+				if(candidate != keep && owner.equals(candidate.owner) && (oldest == null || candidate.lastUsed < oldest.getValue().lastUsed)) {
+					oldest = entry;
+				}
+			}
+			if(oldest == null) {
+				return;
+			}
+			if(this.files.remove(oldest.getKey(), oldest.getValue())) {
+				this.discard(oldest.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Drops the cache's reference to an entry that's been taken out of the cache.
+	 */
+	private void discard(final OpenFile file) {
+		if(file.owner != null) {
+			this.usage.computeIfAbsent(file.owner, name -> new AtomicLong()).addAndGet(-file.size);
+		}
+		file.close();
+	}
+
+	/**
+	 * An open file and what we know about it. Closing it releases a reference. The channel itself is closed
+	 * once every reference is released.
+	 */
+	public static class OpenFile implements AutoCloseable {
+		private final Path path;
+		private final FileChannel channel;
+		private final long size;
+		private final long lastModified;
+		private final AtomicInteger references = new AtomicInteger(1);
+		private volatile long validatedAt;
+		private volatile long lastUsed;
+		// Filled in the first time someone needs it
+		private volatile String contentType;
+		// Set before the file goes in the cache
+		private String owner;
+
+		private OpenFile(final Path path, final FileChannel channel, final BasicFileAttributes attributes, final long now) {
+			this.path = path;
+			this.channel = channel;
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			this.validatedAt = now;
+			this.lastUsed = now;
+		}
+
+		static OpenFile open(final Path path, final long now) throws IOException {
+			final FileChannel channel;
+			try {
+				channel = FileChannel.open(path, StandardOpenOption.READ);
+			} catch(NoSuchFileException e) {
+				throw new FileNotFoundException("Unable to locate file: " + path.toAbsolutePath());
+			} catch(AccessDeniedException e) {
+				throw new AccessDeniedException("Unable to read file: " + path.toAbsolutePath());
+			}
+			try {
+				final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				// A directory opens fine as a channel, but there's nothing to read.
+				if(attributes.isDirectory()) {
+					throw new FileNotFoundException("Unable to locate file: " + path.toAbsolutePath());
+				}
+				return new OpenFile(path, channel, attributes, now);
+			} catch(IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Takes another reference, unless the file has already been closed.
+		 */
+		boolean retain() {
+			int count;
+			do {
+				count = this.references.get();
+				if(count <= 0) {
+					return false;
+				}
+			} while(!this.references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/**
+		 * Releases a reference, closing the channel if it was the last one.
+		 */
+		@Override
+		public void close() {
+			if(this.references.decrementAndGet() == 0) {
+				try {
+					this.channel.close();
+				} catch(IOException e) {
+					// Nothing was written through it, so there's nothing to lose.
+				}
+			}
+		}
+
+		/**
+		 * @return A stream over the whole file. It reads at its own position, so it doesn't get in the way of any
+		 * other stream over the same file. Closing it doesn't release the file.
+		 */
+		public InputStream newInputStream() {
+			return new InputStream() {
+				private long position;
+
+				@Override
+				public int read() throws IOException {
+					final byte[] one = new byte[1];
+					return this.read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+				}
+
+				@Override
+				public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+					final long remaining = OpenFile.this.size - this.position;
+					if(remaining <= 0) {
+						return -1;
+					}
+					if(length == 0) {
+						return 0;
+					}
+					final int read = OpenFile.this.channel.read(ByteBuffer.wrap(bytes, offset, (int)Math.min(length, remaining)), this.position);
+					if(read <= 0) {
+						// The file was truncated out from under us
+						return -1;
+					}
+					this.position += read;
+					return read;
+				}
+
+				@Override
+				public long skip(final long n) {
+					final long skipped = Math.max(0, Math.min(n, OpenFile.this.size - this.position));
+					this.position += skipped;
+					return skipped;
+				}
+
+				@Override
+				public int available() {
+					return (int)Math.min(Integer.MAX_VALUE, OpenFile.this.size - this.position);
+				}
+			};
+		}
+
+		/**
+		 * Sends part of the file straight to a channel, without copying it through the heap.
+		 * @return The number of bytes sent, which can be 0 if the channel is non-blocking and full
+		 * @throws EOFException If the file has been truncated so the region isn't there anymore
+		 */
+		long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+			final long sent = this.channel.transferTo(position, count, target);
+			if(sent == 0 && position >= this.channel.size()) {
+				throw new EOFException("File was truncated while it was being sent: " + this.path.toAbsolutePath());
+			}
+			return sent;
+		}
+
+		/**
+		 * @return The file's size when it was opened
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return The file's content type, or null if nobody has worked it out yet
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		public void setContentType(String contentType) {
+			this.contentType = contentType;
+		}
+
+		boolean isOpen() {
+			return this.channel.isOpen();
+		}
+	}
+}
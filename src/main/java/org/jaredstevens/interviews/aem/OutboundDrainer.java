@@ -0,0 +1,355 @@
+package org.jaredstevens.interviews.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finishes sending responses to slow clients so the worker that produced them doesn't have to wait.
+ * A worker queues up a response (see OutboundQueue), switches the socket to non-blocking mode and writes
+ * whatever the socket will take. Fast clients usually take all of it right there. If some is left over, the
+ * connection is handed to the drainer: a single thread that waits for the socket to be writable again and
+ * keeps sending. Once the response is all out, the socket goes back to blocking mode and the connection goes
+ * back on the fast lane to read its next request.
+ * A connection that goes write_stall_timeout milliseconds without taking a single byte is dropped.
+ * The same thread also watches keep-alive connections that are waiting for their next request (see park), so
+ * they don't each hold a worker while they're idle. Those are closed by the connection registry's reaper.
+ * Each server has its own drainer, and close() stops its thread when the server stops.
+ */
+public class OutboundDrainer implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(OutboundDrainer.class);
+	// How often stalled connections are looked for
+	private static final long TICK_MILLIS = 250;
+
+	private final int maxConnections;
+	private final long stallTimeoutNanos;
+	private final RequestLanes lanes;
+	private final ServerMetrics metrics;
+	private final Queue<Drain> incoming = new ConcurrentLinkedQueue<>();
+	private final Queue<Parked> incomingParked = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger active = new AtomicInteger();
+	// Opened (and the thread started) the first time something needs draining
+	private volatile Selector selector;
+	private Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * @param maxConnections The most connections drained at once. Past that, workers finish their own writes.
+	 * @param stallTimeoutMillis How long a connection can go without taking any data before it's dropped
+	 * @param lanes Where connections go once their responses are sent
+	 * @param metrics Where drained responses and stalled connections are recorded
+	 */
+	public OutboundDrainer(final int maxConnections, final long stallTimeoutMillis, final RequestLanes lanes, final ServerMetrics metrics) {
+		this.maxConnections = maxConnections;
+		this.stallTimeoutNanos = stallTimeoutMillis * 1000000;
+		this.lanes = lanes;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sends a response, handing it off to the drainer if the client can't take it all right away.
+	 * @param channel The client's socket channel, in blocking mode
+	 * @param queue The response
+	 * @param connection Picks the connection back up once the response is sent
+	 * @param onClose Closes the connection if the drainer has to give up on it
+	 * @return True if the drainer took over. The caller should forget about the connection; it'll be closed or
+	 * resumed when the drainer's done. False if the response has been sent and the caller can carry on.
+	 * @throws IOException If the write failed. The queue has been closed, and so should the connection be.
+	 */
+	public boolean send(final SocketChannel channel, final OutboundQueue queue, final Runnable connection, final Runnable onClose) throws IOException {
+		if(this.active.incrementAndGet() > this.maxConnections) {
+			// Busy. Do it the old way.
+			this.active.decrementAndGet();
+			try {
+				if(!queue.writeTo(channel)) {
+					throw new IOException("Blocking write didn't finish");
+				}
+			} finally {
+				queue.close();
+			}
+			return false;
+		}
+		try {
+			channel.configureBlocking(false);
+			if(queue.writeTo(channel)) {
+				channel.configureBlocking(true);
+				this.active.decrementAndGet();
+				queue.close();
+				return false;
+			}
+			final Selector selector = this.selector();
+			this.metrics.recordDrainedResponse();
+			this.incoming.add(new Drain(channel, queue, connection, onClose));
+			selector.wakeup();
+			return true;
+		} catch(IOException e) {
+			this.active.decrementAndGet();
+			queue.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for a keep-alive connection's next request without tying up a worker. Once the request starts
+	 * arriving, the socket goes back to blocking mode and the connection goes back on the fast lane.
+	 * @param channel The client's socket channel, with nothing left unread in its buffer
+	 * @param connection Picks the connection back up
+	 * @param onClose Closes the connection if it can't be watched
+	 * @throws IOException If the channel couldn't be switched to non-blocking mode
+	 */
+	public void park(final SocketChannel channel, final Runnable connection, final Runnable onClose) throws IOException {
+		channel.configureBlocking(false);
+		final Selector selector = this.selector();
+		this.incomingParked.add(new Parked(channel, connection, onClose));
+		selector.wakeup();
+	}
+
+	private Selector selector() throws IOException {
+		if(this.closed) {
+			throw new IOException("The drainer has been shut down.");
+		}
+		Selector current = this.selector;
+		if(current == null) {
+			synchronized(this) {
+				current = this.selector;
+				if(current == null) {
+					if(this.closed) {
+						throw new IOException("The drainer has been shut down.");
+					}
+					current = Selector.open();
+					this.selector = current;
+					this.thread = new Thread(this, "outbound-drainer");
+					this.thread.setDaemon(true);
+					this.thread.start();
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Stops the drainer's thread and closes its selector. Whatever it was still draining or watching is given
+	 * up on and closed.
+	 */
+	public void close() {
+		final Thread current;
+		synchronized(this) {
+			this.closed = true;
+			current = this.thread;
+		}
+		if(current == null) {
+			return;
+		}
+		this.selector.wakeup();
+		try {
+			current.join(1000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		final Selector selector = this.selector;
+		final List<Drain> finished = new ArrayList<>();
+		final List<Parked> woken = new ArrayList<>();
+		long lastStallCheck = System.nanoTime();
+		while(!this.closed) {
+			try {
+				selector.select(OutboundDrainer.TICK_MILLIS);
+			} catch(IOException e) {
+				OutboundDrainer.LOGGER.warn("The drainer's selector failed.", e);
+				continue;
+			}
+			final long now = System.nanoTime();
+			Drain drain;
+			while((drain = this.incoming.poll()) != null) {
+				try {
+					drain.lastProgress = now;
+					drain.channel.register(selector, SelectionKey.OP_WRITE, drain);
+				} catch(IOException e) {
+					this.drop(drain, e);
+				}
+			}
+			Parked parked;
+			while((parked = this.incomingParked.poll()) != null) {
+				try {
+					parked.channel.register(selector, SelectionKey.OP_READ, parked);
+				} catch(IOException e) {
+					// Most likely the reaper closed it in the meantime.
+					OutboundDrainer.LOGGER.debug("Couldn't watch an idle connection.", e);
+					parked.onClose.run();
+				}
+			}
+			final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+			while(selected.hasNext()) {
+				final SelectionKey key = selected.next();
+				selected.remove();
+				if(key.attachment() instanceof Parked) {
+					key.cancel();
+					woken.add((Parked)key.attachment());
+					continue;
+				}
+				drain = (Drain)key.attachment();
+				try {
+					if(drain.queue.writeTo(drain.channel)) {
+						key.cancel();
+						finished.add(drain);
+					} else {
+						drain.lastProgress = now;
+					}
+				} catch(IOException e) {
+					key.cancel();
+					this.drop(drain, e);
+				}
+			}
+			if(now - lastStallCheck >= OutboundDrainer.TICK_MILLIS * 1000000) {
+				lastStallCheck = now;
+				for(SelectionKey key : selector.keys()) {
+					if(!(key.attachment() instanceof Drain)) {
+						continue;
+					}
+					drain = (Drain)key.attachment();
+					if(key.isValid() && now - drain.lastProgress > this.stallTimeoutNanos) {
+						key.cancel();
+						this.metrics.recordWriteStall();
+						this.drop(drain, null);
+					}
+				}
+			}
+			if(!finished.isEmpty() || !woken.isEmpty()) {
+				this.resume(selector, finished, woken);
+			}
+		}
+		this.abandonAll(selector);
+	}
+
+	/**
+	 * Closes everything the drainer still has once it's been shut down, along with the selector.
+	 */
+	private void abandonAll(final Selector selector) {
+		for(SelectionKey key : selector.keys()) {
+			this.abandon(key.attachment());
+		}
+		Object attachment;
+		while((attachment = this.incoming.poll()) != null || (attachment = this.incomingParked.poll()) != null) {
+			this.abandon(attachment);
+		}
+		try {
+			selector.close();
+		} catch(IOException e) {
+			OutboundDrainer.LOGGER.debug("Couldn't close the drainer's selector.", e);
+		}
+	}
+
+	private void abandon(final Object attachment) {
+		if(attachment instanceof Drain) {
+			final Drain drain = (Drain)attachment;
+			drain.queue.close();
+			this.active.decrementAndGet();
+			drain.onClose.run();
+		} else if(attachment instanceof Parked) {
+			((Parked)attachment).onClose.run();
+		}
+	}
+
+	/**
+	 * Puts finished and woken connections back in blocking mode and back on the fast lane. If the lanes have
+	 * been shut down, the connections are closed instead.
+	 */
+	private void resume(final Selector selector, final List<Drain> finished, final List<Parked> woken) {
+		// A channel can't go back to blocking mode until its cancelled key is flushed out of the selector.
+		try {
+			selector.selectNow();
+		} catch(IOException e) {
+			OutboundDrainer.LOGGER.debug("Couldn't flush cancelled keys.", e);
+		}
+		for(Drain drain : finished) {
+			try {
+				drain.channel.configureBlocking(true);
+				drain.queue.close();
+				this.active.decrementAndGet();
+			} catch(IOException e) {
+				this.drop(drain, e);
+				continue;
+			}
+			try {
+				this.lanes.submit(drain.connection);
+			} catch(RejectedExecutionException e) {
+				drain.onClose.run();
+			}
+		}
+		finished.clear();
+		for(Parked parked : woken) {
+			try {
+				parked.channel.configureBlocking(true);
+				this.lanes.submit(parked.connection);
+			} catch(IOException e) {
+				OutboundDrainer.LOGGER.debug("Lost an idle connection.", e);
+				parked.onClose.run();
+			} catch(RejectedExecutionException e) {
+				parked.onClose.run();
+			}
+		}
+		woken.clear();
+	}
+
+	/**
+	 * Gives up on a connection.
+	 * @param cause Why, or null if it stalled
+	 */
+	private void drop(final Drain drain, final IOException cause) {
+		if(cause != null) {
+			OutboundDrainer.LOGGER.debug("Lost a connection while draining its response.", cause);
+		} else {
+			OutboundDrainer.LOGGER.warn("Dropping a connection that stopped reading: {}", drain.channel.socket().getInetAddress());
+		}
+		drain.queue.close();
+		this.active.decrementAndGet();
+		drain.onClose.run();
+	}
+
+	/**
+	 * A connection being drained.
+	 */
+	private static class Drain {
+		private final SocketChannel channel;
+		private final OutboundQueue queue;
+		private final Runnable connection;
+		private final Runnable onClose;
+		private long lastProgress;
+
+		Drain(final SocketChannel channel, final OutboundQueue queue, final Runnable connection, final Runnable onClose) {
+			this.channel = channel;
+			this.queue = queue;
+			this.connection = connection;
+			this.onClose = onClose;
+		}
+	}
+
+	/**
+	 * A connection waiting for its next request.
+	 */
+	private static class Parked {
+		private final SocketChannel channel;
+		private final Runnable connection;
+		private final Runnable onClose;
+
+		Parked(final SocketChannel channel, final Runnable connection, final Runnable onClose) {
+			this.channel = channel;
+			this.connection = connection;
+			this.onClose = onClose;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The data waiting to go out on one connection: buffers (response headers) and regions of open files (bodies),
+ * in the order they're sent. File regions are sent straight from the file with transferTo, so they don't take up
+ * any memory while they wait. Mapped regions are already in memory (the page cache). Other buffers take up heap,
+ * so the bytes held in them are capped.
+ * It can be written to a channel in either blocking or non-blocking mode. In non-blocking mode, writeTo sends
+ * what the socket will take right now and picks up from there the next time.
+ */
+public class OutboundQueue implements AutoCloseable {
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private final int maxBufferedBytes;
+	private int bufferedBytes;
+	// Everything ever added, for accounting
+	private long size;
+
+	/**
+	 * @param maxBufferedBytes The most bytes that can be queued in buffers. File regions don't count.
+	 */
+	public OutboundQueue(final int maxBufferedBytes) {
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/**
+	 * Queues some bytes.
+	 * @return False if there isn't room for them
+	 */
+	public boolean add(final ByteBuffer buffer) {
+		if(this.bufferedBytes + buffer.remaining() > this.maxBufferedBytes) {
+			return false;
+		}
+		this.bufferedBytes += buffer.remaining();
+		this.size += buffer.remaining();
+		this.segments.add(new BufferSegment(buffer, buffer.remaining()));
+		return true;
+	}
+
+	/**
+	 * Queues part of a memory-mapped file. It's written to the channel straight out of the mapping, and doesn't
+	 * count against the cap on buffered bytes.
+	 */
+	public void addMapped(final ByteBuffer mapped) {
+		this.size += mapped.remaining();
+		this.segments.add(new BufferSegment(mapped, 0));
+	}
+
+	/**
+	 * Queues part of a file. The queue takes over the caller's reference to the file and releases it once the
+	 * region has been sent (or the queue is closed).
+	 */
+	public void add(final OpenFileCache.OpenFile file, final long position, final long count) {
+		this.segments.add(new FileRegion(file, position, count));
+		this.size += count;
+	}
+
+	/**
+	 * @return The total number of bytes that have been queued
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * Writes as much as the channel will take.
+	 * @return True once everything has been written
+	 * @throws IOException If the write fails. The queue should be closed.
+	 */
+	public boolean writeTo(final WritableByteChannel channel) throws IOException {
+		Segment segment;
+		while((segment = this.segments.peek()) != null) {
+			if(!segment.writeTo(channel)) {
+				return false;
+			}
+			this.segments.poll();
+			segment.release();
+			if(segment instanceof BufferSegment) {
+				this.bufferedBytes -= ((BufferSegment)segment).size;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Releases any files that haven't been sent.
+	 */
+	@Override
+	public void close() {
+		Segment segment;
+		while((segment = this.segments.poll()) != null) {
+			segment.release();
+		}
+		this.bufferedBytes = 0;
+	}
+
+	private interface Segment {
+		/**
+		 * @return True if the whole segment has been written
+		 */
+		boolean writeTo(WritableByteChannel channel) throws IOException;
+
+		void release();
+	}
+
+	private static class BufferSegment implements Segment {
+		private final ByteBuffer buffer;
+		// How much it counts against the cap on buffered bytes
+		private final int size;
+
+		BufferSegment(final ByteBuffer buffer, final int size) {
+			this.buffer = buffer;
+			this.size = size;
+		}
+
+		@Override
+		public boolean writeTo(final WritableByteChannel channel) throws IOException {
+			while(this.buffer.hasRemaining()) {
+				if(channel.write(this.buffer) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	private static class FileRegion implements Segment {
+		private final OpenFileCache.OpenFile file;
+		private long position;
+		private long remaining;
+
+		FileRegion(final OpenFileCache.OpenFile file, final long position, final long count) {
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		@Override
+		public boolean writeTo(final WritableByteChannel channel) throws IOException {
+			while(this.remaining > 0) {
+				final long written = this.file.transferTo(this.position, this.remaining, channel);
+				if(written <= 0) {
+					return false;
+				}
+				this.position += written;
+				this.remaining -= written;
+			}
+			return true;
+		}
+
+		@Override
+		public void release() {
+			this.file.close();
+		}
+	}
+}
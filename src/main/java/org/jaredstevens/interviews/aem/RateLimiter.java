@@ -0,0 +1,194 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket rate limiting per client IP. Each client gets a bucket that holds up to "burst" tokens and
+ * refills at a steady rate; every connection and request takes a token, and a client with an empty bucket
+ * gets a 429 instead of a worker thread.
+ * Checks happen on the accept thread, so they have to be cheap. The buckets live in a fixed-size table of
+ * primitive longs: the key is the IPv4 address (or the /64 prefix for IPv6), and the bucket's token count
+ * and last refill time are packed together into a single long that's updated with compare-and-set. A check
+ * doesn't lock or allocate anything. Buckets are only refilled when they're looked at, and entries that have
+ * sat idle are taken over by new clients once the table fills up.
+ */
+public class RateLimiter {
+	// Tokens are counted in thousandths so slow refill rates still add up
+	private static final long MILLI_TOKENS = 1000;
+	private static final int TOKEN_BITS = 24;
+	private static final long TOKEN_MASK = (1L << RateLimiter.TOKEN_BITS) - 1;
+	private static final int STRIPES = 16;
+	// How many slots we look at for a key before giving up and reclaiming one
+	private static final int MAX_PROBES = 8;
+
+	// Each stripe holds interleaved key/state pairs. A key of 0 is an empty slot, a state of 0 is a full bucket.
+	private final AtomicLongArray[] stripes = new AtomicLongArray[RateLimiter.STRIPES];
+	private final int slotMask;
+	private final double milliTokensPerMilli;
+	private final long capacity;
+	private final long idleTimeout;
+	private final long startNanos = System.nanoTime();
+	private final byte[] tooManyRequests;
+
+	/**
+	 * @param requestsPerSecond How quickly a client's bucket refills
+	 * @param burst How many requests a client can make back to back
+	 * @param tableSize About how many clients are tracked at once. Rounded up to a power of two.
+	 * @param idleTimeout How long a client has to be idle before its entry can be reused, in milliseconds
+	 */
+	public RateLimiter(final double requestsPerSecond, final int burst, final int tableSize, final long idleTimeout) {
+		if(requestsPerSecond <= 0 || burst < 1 || burst * RateLimiter.MILLI_TOKENS > RateLimiter.TOKEN_MASK) {
+			throw new IllegalArgumentException("Rate limit needs a positive rate and a burst between 1 and "
+							+ RateLimiter.TOKEN_MASK / RateLimiter.MILLI_TOKENS);
+		}
+		int slotsPerStripe = Integer.highestOneBit(Math.max(RateLimiter.MAX_PROBES, tableSize / RateLimiter.STRIPES - 1)) << 1;
+		for(int i = 0; i < RateLimiter.STRIPES; ++i) {
+			this.stripes[i] = new AtomicLongArray(slotsPerStripe * 2);
+		}
+		this.slotMask = slotsPerStripe - 1;
+		// requests/second is the same number as thousandths of a token per millisecond
+		this.milliTokensPerMilli = requestsPerSecond;
+		this.capacity = burst * RateLimiter.MILLI_TOKENS;
+		this.idleTimeout = idleTimeout;
+		final long retryAfter = Math.max(1, (long)Math.ceil(1 / requestsPerSecond));
+		this.tooManyRequests = ("HTTP/1.1 429 Too Many Requests\n" +
+						"Retry-After: " + retryAfter + "\n" +
+						"Content-Length: 0\n" +
+						"Connection: close\n\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Takes a token from a client's bucket.
+	 * @param address The client's address
+	 * @return True if the client is under its limit
+	 */
+	public boolean tryAcquire(final InetAddress address) {
+		return this.tryAcquire(RateLimiter.key(address), this.now());
+	}
+
+	/**
+	 * Takes a token from the bucket for a key.
+	 * @param key The client's key (see key()). 0 isn't a valid key.
+	 * @param now The current time, in milliseconds from some fixed point. It has to be at least 1.
+	 * @return True if the client is under its limit
+	 */
+	boolean tryAcquire(final long key, final long now) {
+		final int hash = RateLimiter.mix(key);
+		final AtomicLongArray stripe = this.stripes[hash & (RateLimiter.STRIPES - 1)];
+		final int start = hash >>> 4;
+		int oldestSlot = -1;
+		long oldestTime = Long.MAX_VALUE;
+		for(int probe = 0; probe < RateLimiter.MAX_PROBES; ++probe) {
+			final int keyIndex = ((start + probe) & this.slotMask) * 2;
+			final long slotKey = stripe.get(keyIndex);
+			if(slotKey == key) {
+				return this.take(stripe, keyIndex + 1, now);
+			}
+			if(slotKey == 0) {
+				if(stripe.compareAndSet(keyIndex, 0, key) || stripe.get(keyIndex) == key) {
+					return this.take(stripe, keyIndex + 1, now);
+				}
+				continue;
+			}
+			final long state = stripe.get(keyIndex + 1);
+			final long lastUsed = state == 0 ? 0 : state >>> RateLimiter.TOKEN_BITS;
+			if(lastUsed < oldestTime) {
+				oldestTime = lastUsed;
+				oldestSlot = keyIndex;
+			}
+		}
+		// There's no room for this client near its home slot. Take over whichever neighbor has been idle the
+		// longest. Usually it's past the idle timeout and nothing is lost. If not, the table is too small, and that
+		// client just starts over with a full bucket the next time it shows up.
+		if(oldestSlot >= 0) {
+			final long oldKey = stripe.get(oldestSlot);
+			if(stripe.compareAndSet(oldestSlot, oldKey, key)) {
+				stripe.set(oldestSlot + 1, 0);
+				return this.take(stripe, oldestSlot + 1, now);
+			}
+		}
+		// Lost a race for the slot. Let this one through rather than spin.
+		return true;
+	}
+
+	/**
+	 * Refills a bucket for the time that's passed since it was last used, then takes a token if there is one.
+	 */
+	private boolean take(final AtomicLongArray stripe, final int stateIndex, final long now) {
+		while(true) {
+			final long state = stripe.get(stateIndex);
+			long tokens;
+			long time;
+			if(state == 0 || now - (state >>> RateLimiter.TOKEN_BITS) >= this.idleTimeout) {
+				tokens = this.capacity;
+				time = now;
+			} else {
+				tokens = state & RateLimiter.TOKEN_MASK;
+				time = state >>> RateLimiter.TOKEN_BITS;
+				final long added = (long)((now - time) * this.milliTokensPerMilli);
+				// Only move the clock forward when it earns something, otherwise slow rates would never refill.
+				if(added > 0) {
+					tokens = Math.min(this.capacity, tokens + added);
+					time = now;
+				}
+			}
+			final boolean allowed = tokens >= RateLimiter.MILLI_TOKENS;
+			if(allowed) {
+				tokens -= RateLimiter.MILLI_TOKENS;
+			}
+			final long next = (time << RateLimiter.TOKEN_BITS) | tokens;
+			if(next == state || stripe.compareAndSet(stateIndex, state, next)) {
+				return allowed;
+			}
+		}
+	}
+
+	/**
+	 * Sends the 429 response. It's encoded once up front, since it goes out when we're trying to spend as
+	 * little as possible on a client.
+	 */
+	public void reject(final OutputStream outputStream) throws IOException {
+		outputStream.write(this.tooManyRequests);
+		outputStream.flush();
+		AccessRecord.recordResponse(429, this.tooManyRequests.length);
+	}
+
+	/**
+	 * Turns a client address into a table key. IPv4 clients are tracked by address. IPv6 clients are tracked
+	 * by their /64 prefix, since a single client usually has a whole /64 to pick addresses from.
+	 */
+	static long key(final InetAddress address) {
+		if(address instanceof Inet4Address) {
+			// Inet4Address's hash code is the address itself, and getting it doesn't copy the address bytes.
+			return (address.hashCode() & 0xffffffffL) | (1L << 32);
+		}
+		final byte[] bytes = address.getAddress();
+		long prefix = 0;
+		for(int i = 0; i < 8; ++i) {
+			prefix = (prefix << 8) | (bytes[i] & 0xff);
+		}
+		return prefix == 0 ? 1 : prefix;
+	}
+
+	/**
+	 * Spreads the key's bits around so neighboring addresses don't pile up in neighboring slots.
+	 */
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	/**
+	 * @return Milliseconds since the limiter was created, starting at 1 so a state is never accidentally 0
+	 */
+	private long now() {
+		return (System.nanoTime() - this.startNanos) / 1000000 + 1;
+	}
+}
@@ -1,10 +1,21 @@
 package org.jaredstevens.interviews.aem;
 
-import org.apache.tika.Tika;
+import org.jaredstevens.interviews.aem.http2.Http2Connection;
 import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HeaderTooLargeException;
+import org.jaredstevens.interviews.aem.httppojos.HttpHeaders;
 import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestMethod;
 import org.jaredstevens.interviews.aem.httppojos.HttpResponseHeader;
 import org.jaredstevens.interviews.aem.httppojos.InternalResourceTooLargeException;
+import org.jaredstevens.interviews.aem.httppojos.RequestTimeoutException;
+import org.jaredstevens.interviews.aem.jfr.BodyTransferEvent;
+import org.jaredstevens.interviews.aem.jfr.HeaderParseEvent;
+import org.jaredstevens.interviews.aem.jfr.HeaderWriteEvent;
+import org.jaredstevens.interviews.aem.jfr.MimeDetectionEvent;
+import org.jaredstevens.interviews.aem.jfr.PathResolutionEvent;
+import org.jaredstevens.interviews.aem.jfr.RequestEvent;
+import org.jaredstevens.interviews.aem.proxy.ProxyHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,11 +24,14 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
-import java.nio.file.AccessDeniedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Copyright Jared Stevens 2017 All Rights Reserved
@@ -25,19 +39,65 @@ import java.util.List;
  */
 public class RequestHandler implements Runnable {
 	private static final String PROTOCOL = "HTTP/1.1";
-	// Used for identifying file mime-types
-	private static final Tika tika = new Tika();
+	private static final String HTTP2_PROTOCOL = "HTTP/2.0";
 	private static final Logger LOGGER = LoggerFactory.getLogger(RequestHandler.class);
 	// This limits the size of internal resources. That way, the server doesn't try to serve some 3 GB file.
 	private static final int INTERNAL_RESOURCE_MAX_SIZE = 1048576;
+	// How much of a file is read (and written to the client) at a time
+	private static final int RESPONSE_BUFFER_SIZE = 8192;
+	// The most header bytes a queued response can hold. The body is sent straight from the file.
+	private static final int OUTBOUND_BUFFER_SIZE = 65536;
+	// Room for a response header in front of the first chunk of the body. Bigger headers are written on their own.
+	private static final int RESPONSE_HEADER_BUFFER_SIZE = 4096;
 
 	private Socket clientSocket;
 	private String documentRoot;
+	// Set when the document root is a .zip/.jar archive instead of a directory
+	private ArchiveDocumentRoot archive;
+	private final ServerContext context;
+	// The client's stream, positioned at the body of the request being processed. This is null for HTTP/2
+	// streams, which don't pass request bodies through.
+	private HttpInputStream requestInput;
+	// The connection's streams. They're opened on the first run and kept across hand-offs between lanes.
+	private HttpInputStream inputFromClient;
+	private OutputStream outputStream;
+	// A response processRequest queued up rather than writing itself. See sendPendingResponse.
+	private OutboundQueue pendingResponse;
+	// Set when the connection can't be used for another request, i.e., we stopped reading part way through a body
+	private boolean closeConnection;
+	// Set while the connection waits for its next request on the drainer's selector instead of a worker
+	private boolean parked;
+	// This connection's entry in the connection registry. Null when there isn't a real connection (i.e., tests).
+	private final ClientConnection connection;
+	// The accept loop already took a rate limit token for this connection, which covers its first request.
+	private final AtomicBoolean acceptTokenUnused = new AtomicBoolean(true);
+	// Every HTTP/1.1 request on this connection is read into these, and their responses are built in the same
+	// header object and staged in the same buffer, so a keep-alive connection isn't allocating them over and
+	// over. HTTP/2 streams run at the same time as each other, so they get their own.
+	private final List<String> requestLines = new ArrayList<>();
+	private final HttpRequestHeader request = new HttpRequestHeader();
+	private final HttpResponseHeader response = new HttpResponseHeader();
+	private byte[] responseBuffer;
 
 	public RequestHandler(final Socket inSocket, final String documentRoot) {
+		this(inSocket, documentRoot, null);
+	}
+
+	public RequestHandler(final Socket inSocket, final String documentRoot, final ArchiveDocumentRoot archive) {
+		this(inSocket, ServerContext.forDocumentRoot(documentRoot, archive));
+	}
+
+	public RequestHandler(final Socket inSocket, final ServerContext context) {
+		this(inSocket, context, null);
+	}
+
+	public RequestHandler(final Socket inSocket, final ServerContext context, final ClientConnection connection) {
 		RequestHandler.LOGGER.debug("Initializing the thread...");
 		this.clientSocket = inSocket;
-		this.documentRoot = documentRoot;
+		this.context = context;
+		this.connection = connection;
+		this.documentRoot = context.getConfig().getDocumentRoot();
+		this.archive = context.getArchive();
 	}
 
 	/**
@@ -48,67 +108,446 @@ public class RequestHandler implements Runnable {
 	 * 4. Processes the request using the processRequest method
 	 * This method reads headers from the same connection until there the socket disconnects.
 	 * This behavior provides keep-alive functionality.
+	 * If the client speaks HTTP/2 (either right away, or by asking to upgrade), the connection is handed
+	 * off to an Http2Connection, which runs each stream through processRequest.
+	 * When a request turns out to need a large response, the rest of that request is handed to the large lane
+	 * (see RequestLanes) and this thread goes back to the pool. The large lane sends the response (or leaves it
+	 * to the drainer), then runs this handler again, and it picks up where it left off with the next request.
 	 */
 	public void run() {
 		RequestHandler.LOGGER.debug("Thread started. Streaming input data from socket.");
-		OutputStream outputStream = null;
-		try {
-			outputStream = this.clientSocket.getOutputStream();
-		} catch(IOException e) {
-			RequestHandler.LOGGER.warn("There was a problem opening the output stream to the client.", e);
-		}
-
 		HttpRequestHeader header;
-		try(BufferedReader inputFromClient = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()))) {
+		try {
+			if(this.inputFromClient == null) {
+				if(!this.openConnection()) {
+					this.closeClientSocket();
+					return;
+				}
+				if(RequestHandler.isHttp2Preface(this.inputFromClient)) {
+					this.markHttp2();
+					this.requestInput = null;
+					new Http2Connection(this.inputFromClient, this.outputStream, this::processStream, this.context.getLanes().getStreamLane()).serve();
+					this.closeClientSocket();
+					return;
+				}
+			}
 			// Loop over and process requests until the client stops sending them. Provides keep-alive functionality.
-			while ((header = this.processHeader(inputFromClient)) != null) {
-				this.processRequest(header, outputStream);
+			while (!this.closeConnection && this.awaitNextRequest() && (header = this.processHeader(this.inputFromClient)) != null) {
+				if(Http2Connection.isUpgradeRequest(header)) {
+					this.markHttp2();
+					// The upgrade request's stream has no body, and the connection's stream is all frames from here on.
+					this.requestInput = null;
+					new Http2Connection(this.inputFromClient, this.outputStream, this::processStream, this.context.getLanes().getStreamLane()).serveUpgrade(header);
+					break;
+				}
+				if(this.connection != null) {
+					this.connection.markActive();
+				}
+				this.requestInput = this.inputFromClient;
+				final RequestLanes lanes = this.context.getLanes();
+				if(lanes.isLarge(this.resolveResponseSize(header))) {
+					final HttpRequestHeader largeRequest = header;
+					if(lanes.handOff(() -> this.serveLargeRequest(largeRequest), this, this::closeClientSocket)) {
+						return;
+					}
+				}
+				this.processRequest(header, this.outputStream);
+				if(this.pendingResponse != null && this.sendPendingResponse()) {
+					return;
+				}
+			}
+			if(this.parked) {
+				// Nothing else can touch this handler once it's parked, since the drainer may run it again right away.
+				this.context.getDrainer().park(this.clientSocket.getChannel(), this, this::closeClientSocket);
+				return;
 			}
 		} catch(IOException e) {
-			if(e.getMessage().equals("Connection reset")) {
+			if("Connection reset".equals(e.getMessage())) {
 				RequestHandler.LOGGER.debug("Its likely the client closed the connection.");
 			} else {
 				RequestHandler.LOGGER.warn("There was a problem getting an input stream from the client.", e);
 			}
+		} catch(HeaderTooLargeException e) {
+			RequestHandler.LOGGER.warn("Request header was too large: {}", e.getMessage());
+			final HttpResponseHeader responseHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 431, "Request Header Fields Too Large", new HashMap<>());
+			responseHeader.add("Connection", "close");
+			this.sendInternalResponse(responseHeader, "/error_pages/431.html", this.outputStream);
+		} catch(RequestTimeoutException e) {
+			RequestHandler.LOGGER.warn("Request header took too long: {}", this.clientSocket.getInetAddress());
+			final HttpResponseHeader responseHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 408, "Request Timeout", new HashMap<>());
+			responseHeader.add("Connection", "close");
+			this.sendInternalResponse(responseHeader, "/error_pages/408.html", this.outputStream);
 		} catch(BadRequestException e) {
 			// If we can't parse the request, send a 400 error back.
 			RequestHandler.LOGGER.warn("Request was malformed: ", e);
 			final HttpResponseHeader responseHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 400, "Bad Request", new HashMap<>());
-			this.sendInternalResponse(responseHeader, "/error_pages/400.html", outputStream);
+			this.sendInternalResponse(responseHeader, "/error_pages/400.html", this.outputStream);
 		}
+		this.closeClientSocket();
 		RequestHandler.LOGGER.debug("Processed all requests... freeing up the thread.");
 	}
 
 	/**
-	 * Reads the next request header
+	 * Gets the connection ready for its first request: finishes the TLS handshake (so a failed one is counted
+	 * and dropped) and opens the streams to and from the client.
+	 * @return False if the connection can't be used
+	 */
+	private boolean openConnection() throws IOException {
+		if(!TlsSupport.handshake(this.clientSocket, this.context.getMetrics())) {
+			return false;
+		}
+		try {
+			this.outputStream = this.clientSocket.getOutputStream();
+			if(this.connection != null) {
+				this.outputStream = this.connection.countOutput(this.outputStream);
+			}
+		} catch(IOException e) {
+			RequestHandler.LOGGER.warn("There was a problem opening the output stream to the client.", e);
+		}
+		final InputStream socketInput = this.clientSocket.getInputStream();
+		this.inputFromClient = new HttpInputStream(this.connection != null ? this.connection.countInput(socketInput) : socketInput, this.clientSocket);
+		return true;
+	}
+
+	/**
+	 * Waits for the client to start its next request. If the registry is reaping idle connections, a plain
+	 * connection is parked: run() hands it to the drainer, which waits for the request on its selector and
+	 * puts the connection back on the fast lane when it starts arriving. The reaper closes it if that takes too
+	 * long. That way idle keep-alive connections don't hold workers. A connection that can't be parked (TLS,
+	 * Unix domain sockets, or no drainer) waits on the worker, but no longer than idle_timeout. Without
+	 * reaping, the socket timeout applies like it always has.
+	 * @return False if the connection was closed while it was idle, the server is stopping, or the connection
+	 * 	is to be parked
+	 */
+	private boolean awaitNextRequest() {
+		if(this.context.isDraining() && this.requestInput != null) {
+			// The server's stopping, and this connection has had its last request. A client that was about to
+			// send another one on it will see it close and retry on a new connection.
+			return false;
+		}
+		if(this.connection == null) {
+			return true;
+		}
+		if(this.parked) {
+			// Back from the drainer, which only runs this once the next request has started arriving. If the
+			// reaper got to the connection first, it's closing it.
+			this.parked = false;
+			return this.connection.markActive();
+		}
+		final ConnectionRegistry registry = this.context.getConnections();
+		registry.markIdle(this.connection);
+		if(!registry.isReaping()) {
+			return true;
+		}
+		if(this.context.getDrainer() != null && this.clientSocket.getChannel() != null && !this.inputFromClient.hasBufferedData()) {
+			this.parked = true;
+			return false;
+		}
+		try {
+			final int readTimeout = this.clientSocket.getSoTimeout();
+			this.clientSocket.setSoTimeout((int)Math.min(this.context.getConfig().getIdleTimeout(), Integer.MAX_VALUE));
+			final boolean more = this.inputFromClient.awaitData();
+			this.clientSocket.setSoTimeout(readTimeout);
+			return this.connection.markActive() && more;
+		} catch(IOException e) {
+			RequestHandler.LOGGER.debug("Connection closed while it was idle.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Processes an HTTP/2 stream's request. Streams run at the same time as each other, so each one gets its own
+	 * handler rather than sharing this one's per-request state. The first stream gets the connection's rate
+	 * limit token, if it hasn't been used yet.
+	 * @param requestHeader The stream's request
+	 * @param outputStream The stream's output stream
+	 */
+	private void processStream(final HttpRequestHeader requestHeader, final OutputStream outputStream) {
+		final RequestHandler stream = new RequestHandler(this.clientSocket, this.context, this.connection);
+		stream.documentRoot = this.documentRoot;
+		stream.archive = this.archive;
+		stream.acceptTokenUnused.set(this.acceptTokenUnused.getAndSet(false));
+		stream.processRequest(requestHeader, outputStream);
+	}
+
+	private void markHttp2() {
+		if(this.connection != null) {
+			this.connection.markHttp2();
+		}
+	}
+
+	private void closeClientSocket() {
+		try {
+			if(this.inputFromClient != null) {
+				this.inputFromClient.close();
+			}
+			this.clientSocket.close();
+		} catch(IOException e) {
+			RequestHandler.LOGGER.debug("Couldn't close the connection to the client.", e);
+		}
+		if(this.connection != null) {
+			this.context.getConnections().unregister(this.connection);
+		}
+	}
+
+	/**
+	 * Serves a request on the large lane, including the write. Leaving a queued response for the fast lane to
+	 * send once the connection is back would put the transfer right back on the fast lane.
+	 * @return True if the connection should go back on the fast lane. False if the drainer took it over or it
+	 * 	was closed.
+	 */
+	private boolean serveLargeRequest(final HttpRequestHeader header) {
+		this.processRequest(header, this.outputStream);
+		try {
+			return this.pendingResponse == null || !this.sendPendingResponse();
+		} catch(IOException e) {
+			RequestHandler.LOGGER.debug("Couldn't send a large response.", e);
+			this.closeClientSocket();
+			return false;
+		}
+	}
+
+	/**
+	 * Sends the response processRequest queued up. If the client can't take it all right away, the drainer
+	 * finishes sending it and runs this handler again once it's done.
+	 * @return True if the drainer took over the connection
+	 */
+	private boolean sendPendingResponse() throws IOException {
+		final OutboundQueue queue = this.pendingResponse;
+		this.pendingResponse = null;
+		if(this.connection != null) {
+			this.connection.addBytesOut(queue.size());
+		}
+		final BodyTransferEvent event = BodyTransferEvent.start();
+		final long size = queue.size();
+		final boolean drained = this.context.getDrainer().send(this.clientSocket.getChannel(), queue, this, this::closeClientSocket);
+		event.finish(200, size, drained);
+		return drained;
+	}
+
+	/**
+	 * Checks whether a response can be queued for the drainer instead of written by this thread. It has to be big
+	 * enough to be worth it, and be going straight to a plain (not TLS, not HTTP/2) socket.
+	 */
+	private boolean canQueueResponse(final OutputStream outputStream, final long size) {
+		return this.context.getDrainer() != null && outputStream == this.outputStream && outputStream != null
+						&& this.clientSocket.getChannel() != null && size >= this.context.getConfig().getDrainMinSize();
+	}
+
+	/**
+	 * Gets a file out of the open file cache, recording how long it took to find.
+	 * @param site The site the file belongs to. Its files count against its cache quota.
+	 * @param file The file
+	 * @param resource The resource that was requested
+	 * @param event Started before the resource was mapped to the file
+	 */
+	OpenFileCache.OpenFile openFile(final VirtualHost site, final File file, final String resource, final PathResolutionEvent event) throws IOException {
+		boolean found = false;
+		try {
+			final OpenFileCache.OpenFile openFile = this.context.getOpenFiles().open(file, site.getName());
+			found = true;
+			return openFile;
+		} finally {
+			event.finish(resource, file.getPath(), found);
+		}
+	}
+
+	/**
+	 * Opens a file like openFile(), but makes sure an asset requested at a fingerprinted URL is the copy that was
+	 * fingerprinted. The cache only checks the disk every so often, and its copy is about to be sent as immutable.
+	 * @param asset The asset's logical path, or null if it wasn't requested at a fingerprinted URL
+	 * @throws FileNotFoundException If the asset has changed again since it was fingerprinted
+	 */
+	OpenFileCache.OpenFile openAsset(final VirtualHost site, final File file, final String resource, final String asset,
+																	 final PathResolutionEvent event) throws IOException {
+		final OpenFileCache.OpenFile openFile = this.openFile(site, file, resource, event);
+		final AssetFingerprints assets = site.getAssets();
+		if(asset == null || assets == null || assets.isCurrent(asset, openFile.getSize(), openFile.getLastModified())) {
+			return openFile;
+		}
+		// The cached copy is older than the fingerprint. Drop it and open the file again.
+		openFile.close();
+		this.context.getOpenFiles().invalidate(file);
+		final OpenFileCache.OpenFile reopened = this.context.getOpenFiles().open(file, site.getName());
+		if(assets.isCurrent(asset, reopened.getSize(), reopened.getLastModified())) {
+			return reopened;
+		}
+		reopened.close();
+		throw new FileNotFoundException("Changed since it was fingerprinted: " + file.getAbsoluteFile());
+	}
+
+	/**
+	 * Picks the site a request is for.
+	 */
+	VirtualHost siteFor(final HttpRequestHeader requestHeader) {
+		return this.context.getVirtualHosts().lookup(requestHeader.getHost());
+	}
+
+	/**
+	 * Checks to see if a resource is a fingerprinted URL for the current contents of an asset.
+	 * @param site The site the request is for
+	 * @param resource The resource being requested
+	 * @return The asset's path under the site's document root, or null if it isn't a fingerprinted URL
+	 */
+	String resolveAsset(final VirtualHost site, final String resource) {
+		final AssetFingerprints assets = site.getAssets();
+		return assets == null ? null : assets.resolve(RequestHandler.normalizeResource(resource));
+	}
+
+	/**
+	 * Works out a response's Cache-Control header from the configured rules.
+	 * @param resource The resource being requested
+	 * @return The header's value, or null if no rule matches
+	 */
+	String cacheControlFor(final String resource) {
+		final List<CacheControlRule> rules = this.context.getConfig().getCacheControl();
+		if(rules == null || rules.isEmpty()) {
+			return null;
+		}
+		final String path = RequestHandler.normalizeResource(resource);
+		for(CacheControlRule rule : rules) {
+			if(rule.matches(path)) {
+				return rule.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends a site's asset manifest, which maps each fingerprinted asset to its current fingerprinted URL.
+	 * @param site The site the request is for
+	 * @param resource The resource being requested
+	 * @param outputStream The browser's output stream
+	 * @return True if the request was for the manifest and it was sent
+	 */
+	boolean serveAssetManifest(final VirtualHost site, final String resource, final OutputStream outputStream) {
+		final AssetFingerprints assets = site.getAssets();
+		if(assets == null || !resource.equals(this.context.getConfig().getAssetManifestPath())) {
+			return false;
+		}
+		final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", new HashMap<>());
+		header.add("Cache-Control", "no-cache");
+		RequestHandler.sendBytes(header, assets.toManifestJson().getBytes(StandardCharsets.UTF_8), "application/json", outputStream);
+		return true;
+	}
+
+	/**
+	 * Works out a file's content type, unless it's already cached with the open file.
+	 */
+	String contentTypeOf(final File file, final OpenFileCache.OpenFile openFile) throws IOException {
+		final MimeDetectionEvent event = MimeDetectionEvent.start();
+		String contentType = openFile.getContentType();
+		final boolean cached = contentType != null;
+		if(!cached) {
+			contentType = ContentTypes.detect(file);
+			openFile.setContentType(contentType);
+		}
+		event.finish(file.getPath(), contentType, cached);
+		return contentType;
+	}
+
+	/**
+	 * Works out how big the response to a request will be, without opening anything. This is a stat() of the
+	 * file, or a look in the archive's index.
+	 * @return The size of the response body, or 0 if it isn't a file (or isn't known up front)
+	 */
+	long resolveResponseSize(final HttpRequestHeader requestHeader) {
+		if(requestHeader.getMethod() != HttpRequestMethod.GET) {
+			return 0;
+		}
+		final ProxyHandler proxy = this.context.getProxy();
+		if(proxy != null && proxy.handles(requestHeader.getResource())) {
+			return 0;
+		}
+		final VirtualHost site = this.siteFor(requestHeader);
+		if(this.archive != null && site == this.context.getVirtualHosts().getDefaultHost()) {
+			final ArchiveDocumentRoot.Entry entry = this.archive.getEntry(
+							RequestHandler.normalizeResource(requestHeader.getResource()).replaceFirst("^/+", ""));
+			return entry == null ? 0 : entry.getSize();
+		}
+		// length() is 0 for files that don't exist
+		final String asset = this.resolveAsset(site, requestHeader.getResource());
+		return (asset != null ? new File(site.getDocumentRoot() + asset)
+						: this.getFileObject(site.getDocumentRoot(), requestHeader.getResource())).length();
+	}
+
+	/**
+	 * Checks to see if the client opened the connection with the HTTP/2 preface (prior knowledge).
+	 * @param inputFromClient The input stream from the browser. Nothing is consumed from it.
+	 * @return True if the client is speaking HTTP/2
+	 */
+	static boolean isHttp2Preface(final HttpInputStream inputFromClient) throws IOException {
+		try {
+			return inputFromClient.startsWith(Http2Connection.PREFACE);
+		} catch(SocketTimeoutException e) {
+			// Nothing arrived in time. Let processHeader deal with it like any other idle connection.
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the next request header. The header has to fit within the configured size limits and arrive before
+	 * the header deadline, so a client can't tie up a thread by sending an endless header, or by sending a
+	 * normal one a byte at a time. The deadline starts when the first byte arrives. Waiting for that is just
+	 * being idle, which the socket's own timeout takes care of.
 	 * @param inputFromClient The input stream from the browser
 	 * @return An HttpRequestHeader containing the request information. If there are no headers
 	 * 	left to read, null is returned.
 	 * @throws BadRequestException Thrown if the method is bad, or if the header is malformed.
+	 * @throws HeaderTooLargeException Thrown if the request line or header is over a size limit
+	 * @throws RequestTimeoutException Thrown if part of a header arrived, but not all of it in time
 	 */
-	HttpRequestHeader processHeader(final BufferedReader inputFromClient) throws BadRequestException {
+	HttpRequestHeader processHeader(final HttpInputStream inputFromClient) throws BadRequestException {
+		final ServerConfig config = this.context.getConfig();
 		HttpRequestHeader requestHeader = null;
-		List<String> requestLines = new ArrayList<>();
+		final List<String> requestLines = this.requestLines;
+		requestLines.clear();
+		int headerSize = 0;
+		final HeaderParseEvent event = HeaderParseEvent.start();
 		try {
 			RequestHandler.LOGGER.debug("Reading data from the client's header...");
+			if(!inputFromClient.awaitData()) {
+				return null;
+			}
+			inputFromClient.startDeadline(config.getHeaderTimeout());
 			String line;
-			while((line = inputFromClient.readLine()) != null) {
+			// The request line has its own limit. Each header line can use whatever's left of the header's.
+			while((line = inputFromClient.readLine(requestLines.isEmpty()
+							? config.getMaxRequestLineLength() : Math.max(0, config.getMaxHeaderSize() - headerSize))) != null) {
 				RequestHandler.LOGGER.debug(line);
 				if(line.length() <= 0) {
 					break;
 				} else {
+					if(!requestLines.isEmpty()) {
+						headerSize += line.length() + 2;
+						if(requestLines.size() > config.getMaxHeaderCount()) {
+							throw new HeaderTooLargeException("More than " + config.getMaxHeaderCount() + " header fields");
+						}
+					}
 					requestLines.add(line);
 				}
 			}
-			requestHeader = HttpRequestHeader.fromList(requestLines);
+			this.request.parse(requestLines);
+			requestHeader = this.request;
 		} catch(SocketTimeoutException e) {
+			if(!requestLines.isEmpty() || inputFromClient.hasPartialLine()) {
+				throw new RequestTimeoutException("The request header didn't arrive in time");
+			}
 			RequestHandler.LOGGER.debug("Got tired of waiting for data. Returning what I've got.");
 		} catch (IOException e) {
-			if(e.getMessage().equals("Connection reset")) {
+			if("Connection reset".equals(e.getMessage())) {
 				RequestHandler.LOGGER.debug("Its likely the client closed the connection.");
 			} else {
 				RequestHandler.LOGGER.debug("There was a problem reading data from the client.", e);
 			}
+		} finally {
+			try {
+				inputFromClient.clearDeadline();
+			} catch(IOException e) {
+				RequestHandler.LOGGER.debug("Couldn't reset the socket's timeout.", e);
+			}
+			event.finish(requestHeader == null ? null : String.valueOf(requestHeader.getMethod()),
+							requestHeader == null ? null : requestHeader.getResource(), Math.max(0, requestLines.size() - 1), headerSize);
 		}
 		return requestHeader;
 	}
@@ -123,40 +562,78 @@ public class RequestHandler implements Runnable {
 	 * @param outputStream The browser's output stream (used to send data to the browser)
 	 */
 	 void processRequest(HttpRequestHeader requestHeader, OutputStream outputStream) {
+		final AccessRecord record = AccessRecord.begin(requestHeader, this.clientSocket);
+		final ResourceCosts costs = this.context.getResourceCosts();
+		if(costs != null) {
+			costs.sample(record);
+		}
+		final RequestEvent event = RequestEvent.start(String.valueOf(requestHeader.getMethod()), requestHeader.getResource());
+		try {
+			this.serveRequest(requestHeader, outputStream);
+		} finally {
+			record.end();
+			if(costs != null) {
+				costs.record(record);
+			}
+			event.finish(record.getStatus(), record.getBytes());
+			this.context.getStartup().responseSent();
+			final AccessLog accessLog = this.context.getAccessLog();
+			if(accessLog != null) {
+				accessLog.log(record);
+			}
+		}
+	}
+
+	private void serveRequest(final HttpRequestHeader requestHeader, final OutputStream outputStream) {
+		this.context.getMetrics().recordRequest();
+		if(this.connection != null) {
+			this.connection.recordRequest();
+		}
+		if(!this.checkRateLimit(outputStream)) {
+			return;
+		}
+		final ProxyHandler proxy = this.context.getProxy();
+		if(proxy != null && proxy.handles(requestHeader.getResource())) {
+			this.proxyRequest(proxy, requestHeader, outputStream);
+			return;
+		}
+		final VirtualHost site = this.siteFor(requestHeader);
+		// The archive only stands in for the default site's document root. Other sites are still directories.
+		final boolean archived = this.archive != null && site == this.context.getVirtualHosts().getDefaultHost();
 		switch(requestHeader.getMethod()) {
-			// We only support GET for now
+			// GET serves files, and PUT and POST are uploads (when they're turned on)
 			case GET:
+				if(this.serveAdminResource(requestHeader, outputStream) || this.serveAssetManifest(site, requestHeader.getResource(), outputStream)) {
+					break;
+				}
+				if(RequestHandler.isHiddenResource(requestHeader.getResource())) {
+					final HttpResponseHeader hiddenHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 404, "Not Found", new HashMap<>());
+					this.sendInternalResponse(hiddenHeader, "/error_pages/404.html", outputStream);
+					break;
+				}
+				if(archived) {
+					this.serveArchiveResource(requestHeader.getResource(), outputStream);
+					break;
+				}
 				// Let's get a file object. This can be used in reading the file and determining file size.
-				final File file = this.getFileObject(requestHeader.getResource());
-				try(final FileInputStream inputStream = RequestHandler.getInputStream(file)) {
-					HashMap<String,String> headers = new HashMap<>();
-					headers.put("Content-Length", String.valueOf(file.length()));
-					headers.put("Content-Type", RequestHandler.tika.detect(file));
-					final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", headers);
-					RequestHandler.sendResponse(header, inputStream, outputStream);
-				} catch(AccessDeniedException e) {
-					// Looks like the client is requesting a resource that is read only or that the server doesn't have access to serve.
-					final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 401, "Unauthorized", new HashMap<>());
-					this.sendInternalResponse(header, "/error_pages/401.html", outputStream);
-					RequestHandler.LOGGER.warn("Access denied: {}", file.getAbsoluteFile());
-				} catch(FileNotFoundException e) {
-					HttpResponseHeader header;
-					// Check to see if this request is for internal resources (i.e., background images for a 404 error page)
-					if(!this.serveInternalResource(requestHeader.getResource(), outputStream)) {
-						// Looks like its a legit 404. Send the 404 error page.
-						header = new HttpResponseHeader(RequestHandler.PROTOCOL, 404, "Not Found", new HashMap<>());
-						RequestHandler.LOGGER.warn("File not found: {}", file.getAbsoluteFile());
-						this.sendInternalResponse(header, "/error_pages/404.html", outputStream);
-					}
-				} catch(IOException e) {
-					// There was some kind of problem reading/sending data to the client
-					final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 500, "Internal Server Error", new HashMap<>());
-					RequestHandler.LOGGER.warn("Unexpected error when reading file: {}", file.getAbsoluteFile());
-					this.sendInternalResponse(header, "/error_pages/500.html", outputStream);
+				final PathResolutionEvent resolution = PathResolutionEvent.start();
+				// A fingerprinted URL is served from the file it's for.
+				final String asset = this.resolveAsset(site, requestHeader.getResource());
+				final File file = asset != null ? new File(site.getDocumentRoot() + asset) : this.getFileObject(site.getDocumentRoot(), requestHeader.getResource());
+				this.serveFile(site, requestHeader, requestHeader.getResource(), file, asset, resolution, outputStream);
+				break;
+			case PUT:
+			case POST:
+				if(this.context.getConfig().isUploadsEnabled() && !archived && this.requestInput != null) {
+					this.receiveUpload(requestHeader, this.requestInput, outputStream);
+					break;
 				}
+				// Uploads are turned off (or there's nowhere to put one), so this is like any other unsupported request.
+				final HttpResponseHeader unsupportedHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 400, "Bad Request", new HashMap<>());
+				this.sendInternalResponse(unsupportedHeader, "/error_pages/400.html", outputStream);
 				break;
 			default:
-				// The request used an unsupported request method (only GET is supported currently)
+				// The request used an unsupported request method
 				final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 400, "Bad Request", new HashMap<>());
 				this.sendInternalResponse(header, "/error_pages/400.html", outputStream);
 				break;
@@ -164,6 +641,526 @@ public class RequestHandler implements Runnable {
 		RequestHandler.LOGGER.debug("Served the request. I'm done.");
 	}
 
+	/**
+	 * Serves a file from a site's document root. A directory is served by its index.html or, failing that, a
+	 * listing (with autoindex turned on). Missing files are a 404.
+	 * @param resource The resource the file is served as
+	 * @param file The file being requested
+	 * @param asset The asset's logical path if it was requested at a fingerprinted URL, or null
+	 * @param resolution Covers looking the file up. It's finished once the file's open (or isn't there).
+	 */
+	private void serveFile(final VirtualHost site, final HttpRequestHeader requestHeader, final String resource, final File file,
+												 final String asset, final PathResolutionEvent resolution, final OutputStream outputStream) {
+		final boolean fingerprinted = asset != null;
+		try(final OpenFileCache.OpenFile openFile = this.openAsset(site, file, resource, asset, resolution)) {
+			final String contentType = this.contentTypeOf(file, openFile);
+			final HttpResponseHeader header = this.responseHeaderFor(outputStream, 200, "OK");
+			header.add("Content-Length", String.valueOf(openFile.getSize()));
+			header.add("Content-Type", contentType);
+			// The contents at a fingerprinted URL never change, so browsers can hang on to them for good.
+			final String cacheControl = fingerprinted ? AssetFingerprints.IMMUTABLE : this.cacheControlFor(resource);
+			if(cacheControl != null) {
+				header.add("Cache-Control", cacheControl);
+			}
+			final OutputStream shapedStream = this.shape(outputStream, openFile.getSize());
+			if(shapedStream == outputStream && this.canQueueResponse(outputStream, openFile.getSize()) && openFile.retain()) {
+				// Leave the write to run(), which can hand it to the drainer if the client is slow.
+				final HeaderWriteEvent headerWrite = HeaderWriteEvent.start();
+				final byte[] headerBytes = header.getRawResponse().getBytes();
+				this.pendingResponse = new OutboundQueue(RequestHandler.OUTBOUND_BUFFER_SIZE);
+				this.pendingResponse.add(ByteBuffer.wrap(headerBytes));
+				this.pendingResponse.add(openFile, 0, openFile.getSize());
+				headerWrite.finish(200, headerBytes.length);
+				AccessRecord.recordResponse(200, this.pendingResponse.size());
+			} else {
+				RequestHandler.sendResponse(header, openFile.newInputStream(), shapedStream, this.responseBufferFor(outputStream));
+			}
+		} catch(AccessDeniedException e) {
+			// Looks like the client is requesting a resource that is read only or that the server doesn't have access to serve.
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 401, "Unauthorized", new HashMap<>());
+			this.sendInternalResponse(header, "/error_pages/401.html", outputStream);
+			RequestHandler.LOGGER.warn("Access denied: {}", file.getAbsoluteFile());
+		} catch(FileNotFoundException e) {
+			// Directories can't be opened, so they end up here.
+			if(!fingerprinted && this.serveDirectory(site, requestHeader, outputStream)) {
+				return;
+			}
+			HttpResponseHeader header;
+			// Check to see if this request is for internal resources (i.e., background images for a 404 error page)
+			if(!this.serveInternalResource(resource, outputStream)) {
+				// Looks like its a legit 404. Send the 404 error page.
+				header = new HttpResponseHeader(RequestHandler.PROTOCOL, 404, "Not Found", new HashMap<>());
+				RequestHandler.LOGGER.warn("File not found: {}", file.getAbsoluteFile());
+				this.sendInternalResponse(header, "/error_pages/404.html", outputStream);
+			}
+		} catch(IOException e) {
+			// There was some kind of problem reading/sending data to the client
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 500, "Internal Server Error", new HashMap<>());
+			RequestHandler.LOGGER.warn("Unexpected error when reading file: {}", file.getAbsoluteFile());
+			this.sendInternalResponse(header, "/error_pages/500.html", outputStream);
+		}
+	}
+
+	/**
+	 * Serves a directory: its index.html if it has one, or else a listing if autoindex is turned on. A directory
+	 * asked for without its trailing slash is redirected to it, since relative links in the page (and every link
+	 * in a listing) are resolved against the URL.
+	 * @return False if the request isn't for a directory, or there's nothing to serve for it (a 404)
+	 */
+	private boolean serveDirectory(final VirtualHost site, final HttpRequestHeader requestHeader, final OutputStream outputStream) {
+		final String url = RequestHandler.cleanResource(requestHeader.getResource());
+		final File directory = new File(site.getDocumentRoot() + url);
+		try {
+			// cleanResource strips '..', but make sure symlinks can't land us outside the document root either.
+			final Path root = new File(site.getDocumentRoot()).getCanonicalFile().toPath();
+			if(!directory.getCanonicalFile().toPath().startsWith(root)) {
+				RequestHandler.LOGGER.warn("Refusing to serve a directory outside the document root: {}", directory.getAbsoluteFile());
+				return false;
+			}
+		} catch(IOException e) {
+			return false;
+		}
+		if(!directory.isDirectory()) {
+			return false;
+		}
+		if(!url.endsWith("/")) {
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 301, "Moved Permanently", new HashMap<>());
+			header.add("Location", requestHeader.getResource() + "/");
+			RequestHandler.sendBytes(header, new byte[0], "text/html", outputStream);
+			return true;
+		}
+		final File index = new File(directory, "index.html");
+		if(index.isFile()) {
+			this.serveFile(site, requestHeader, url + "index.html", index, null, PathResolutionEvent.start(), outputStream);
+			return true;
+		}
+		final DirectoryListings listings = this.context.getDirectoryListings();
+		if(listings == null) {
+			return false;
+		}
+		final String accept = requestHeader.getHeader("Accept");
+		final DirectoryListings.Format format = accept != null && accept.contains("application/json") ? DirectoryListings.Format.JSON
+						: DirectoryListings.Format.HTML;
+		final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", new HashMap<>());
+		final String cacheControl = this.cacheControlFor(url);
+		if(cacheControl != null) {
+			header.add("Cache-Control", cacheControl);
+		}
+		final byte[] listing;
+		try {
+			listing = listings.get(directory.toPath(), url, format);
+		} catch(NoSuchFileException e) {
+			return false;
+		} catch(IOException e) {
+			RequestHandler.LOGGER.warn("Couldn't list directory: {}", directory.getAbsoluteFile(), e);
+			final HttpResponseHeader errorHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 500, "Internal Server Error", new HashMap<>());
+			this.sendInternalResponse(errorHeader, "/error_pages/500.html", outputStream);
+			return true;
+		}
+		if(listing != null) {
+			RequestHandler.sendBytes(header, listing, format.getContentType(), outputStream);
+			return true;
+		}
+		// Too big to render in memory, so it's streamed as it's read.
+		header.add("Content-Type", format.getContentType());
+		try {
+			final ChunkedOutputStream body = this.startChunkedResponse(requestHeader, header, outputStream);
+			listings.stream(directory.toPath(), url, format, body);
+			body.close();
+		} catch(IOException e) {
+			// Part of the response is already out, so there's no sending an error page. The client will see the
+			// body end early.
+			RequestHandler.LOGGER.warn("Couldn't stream the listing of {}", directory.getAbsoluteFile(), e);
+			this.closeConnection = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the header of a response whose length isn't known up front. HTTP/1.1 clients get the body chunked.
+	 * HTTP/2 frames the body itself, and an HTTP/1.0 client can't read chunks, so they get it as is. For HTTP/1.0
+	 * the connection is closed afterward to mark the end of it.
+	 * @return The stream to write the body to. Closing it ends the body (but not the connection).
+	 */
+	private ChunkedOutputStream startChunkedResponse(final HttpRequestHeader requestHeader, final HttpResponseHeader header, final OutputStream outputStream) throws IOException {
+		final boolean framed = RequestHandler.PROTOCOL.equals(requestHeader.getProtocol());
+		if(framed) {
+			header.add("Transfer-Encoding", "chunked");
+		} else if(!RequestHandler.HTTP2_PROTOCOL.equals(requestHeader.getProtocol())) {
+			header.add("Connection", "close");
+			this.closeConnection = true;
+		}
+		final byte[] headerBytes = header.getRawResponse().getBytes(StandardCharsets.ISO_8859_1);
+		outputStream.write(headerBytes);
+		AccessRecord.recordResponse(header.getStatusCode(), headerBytes.length);
+		return new ChunkedOutputStream(outputStream, this.context.getConfig().getResponseChunkSize(), framed) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				AccessRecord.recordResponse(header.getStatusCode(), this.getBytesWritten());
+			}
+		};
+	}
+
+	/**
+	 * Serves a request out of the archive document root. This mirrors the file handling in processRequest,
+	 * except that there's nothing to open -- the entry is read straight out of the mapped archive. A stored entry
+	 * big enough to queue is left for run() to write to the socket's channel straight from the mapping, the way
+	 * serveFile leaves a file to transferTo.
+	 * @param resource The resource being requested
+	 * @param outputStream The browser's output stream
+	 */
+	void serveArchiveResource(final String resource, final OutputStream outputStream) {
+		final String entryName = RequestHandler.normalizeResource(resource).replaceFirst("^/+", "");
+		final ArchiveDocumentRoot.Entry entry = this.archive.getEntry(entryName);
+		if(entry == null) {
+			// Same as a missing file: check the internal resources before sending a 404.
+			if(!this.serveInternalResource(resource, outputStream)) {
+				final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 404, "Not Found", new HashMap<>());
+				RequestHandler.LOGGER.warn("Archive entry not found: {}", entryName);
+				this.sendInternalResponse(header, "/error_pages/404.html", outputStream);
+			}
+			return;
+		}
+		HashMap<String,String> headers = new HashMap<>();
+		headers.put("Content-Length", String.valueOf(entry.getSize()));
+		// There's no file on disk to sniff, so go by the entry's name.
+		headers.put("Content-Type", ContentTypes.detect(entryName));
+		final String cacheControl = this.cacheControlFor(resource);
+		if(cacheControl != null) {
+			headers.put("Cache-Control", cacheControl);
+		}
+		final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", headers);
+		final OutputStream shapedStream = this.shape(outputStream, entry.getSize());
+		if(entry.getMethod() == ArchiveDocumentRoot.METHOD_STORED && shapedStream == outputStream && this.canQueueResponse(outputStream, entry.getSize())) {
+			final HeaderWriteEvent headerWrite = HeaderWriteEvent.start();
+			final byte[] headerBytes = header.getRawResponse().getBytes();
+			this.pendingResponse = new OutboundQueue(RequestHandler.OUTBOUND_BUFFER_SIZE);
+			this.pendingResponse.add(ByteBuffer.wrap(headerBytes));
+			this.pendingResponse.addMapped(this.archive.getData(entry));
+			headerWrite.finish(200, headerBytes.length);
+			AccessRecord.recordResponse(200, this.pendingResponse.size());
+			return;
+		}
+		boolean started = false;
+		try(final InputStream inputStream = new BufferedInputStream(this.archive.openStream(entry), RequestHandler.RESPONSE_BUFFER_SIZE)) {
+			// Inflate the first chunk before anything is sent, so a corrupt entry still gets a proper error.
+			inputStream.mark(1);
+			inputStream.read();
+			inputStream.reset();
+			started = true;
+			RequestHandler.sendResponse(header, inputStream, shapedStream);
+		} catch(IOException e) {
+			RequestHandler.LOGGER.warn("Unexpected error when reading archive entry: {}", entryName, e);
+			if(!started) {
+				final HttpResponseHeader errorHeader = new HttpResponseHeader(RequestHandler.PROTOCOL, 500, "Internal Server Error", new HashMap<>());
+				this.sendInternalResponse(errorHeader, "/error_pages/500.html", outputStream);
+			}
+		}
+	}
+
+	/**
+	 * Takes a rate limit token for a request, sending a 429 if the client is out of them.
+	 * @param outputStream The browser's output stream
+	 * @return False if the client is over its limit and the request shouldn't be processed
+	 */
+	boolean checkRateLimit(final OutputStream outputStream) {
+		final RateLimiter rateLimiter = this.context.getRateLimiter();
+		if(rateLimiter == null || this.clientSocket == null || this.clientSocket instanceof UnixDomainSocket
+						|| this.acceptTokenUnused.compareAndSet(true, false)
+						|| rateLimiter.tryAcquire(this.clientSocket.getInetAddress())) {
+			return true;
+		}
+		this.context.getMetrics().recordRateLimitedRequest();
+		try {
+			rateLimiter.reject(outputStream);
+		} catch(IOException e) {
+			RequestHandler.LOGGER.debug("Couldn't send a 429 to a rate limited client.", e);
+		}
+		this.closeConnection = true;
+		return false;
+	}
+
+	/**
+	 * Stores the body of a PUT/POST request at the requested path in the document root.
+	 * The body is streamed through a fixed size buffer into a temp file next to the target, which is then
+	 * renamed over the target. Readers either see the old file or the new one, never a partial upload.
+	 * @param requestHeader The request header from the browser
+	 * @param body The client's stream, positioned at the start of the request body
+	 * @param outputStream The browser's output stream
+	 */
+	void receiveUpload(final HttpRequestHeader requestHeader, final HttpInputStream body, final OutputStream outputStream) {
+		final boolean chunked = requestHeader.getHeader("Transfer-Encoding") != null
+						&& requestHeader.getHeader("Transfer-Encoding").toLowerCase().contains("chunked");
+		long contentLength = -1;
+		if(!chunked) {
+			try {
+				contentLength = Long.parseLong(requestHeader.getHeader("Content-Length").trim());
+			} catch(NullPointerException | NumberFormatException e) {
+				// Without a length, there's no telling where the body ends.
+				final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 411, "Length Required", new HashMap<>());
+				this.sendInternalResponse(header, "/error_pages/411.html", outputStream);
+				this.closeConnection = true;
+				return;
+			}
+			if(contentLength < 0) {
+				// Copying "until the end" would read into the next request.
+				final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 400, "Bad Request", new HashMap<>());
+				this.sendInternalResponse(header, "/error_pages/400.html", outputStream);
+				this.closeConnection = true;
+				return;
+			}
+		}
+		final long maxSize = this.context.getConfig().getUploadMaxSize();
+		if(maxSize > 0 && contentLength > maxSize) {
+			this.sendUploadTooLarge(outputStream);
+			return;
+		}
+
+		final String documentRoot = this.siteFor(requestHeader).getDocumentRoot();
+		final File target = this.getFileObject(documentRoot, requestHeader.getResource());
+		final Path targetPath;
+		try {
+			// normalizeResource strips '..', but make sure symlinks or odd encodings can't land us outside either.
+			final Path root = new File(documentRoot).getCanonicalFile().toPath();
+			targetPath = target.getCanonicalFile().toPath();
+			if(!targetPath.startsWith(root) || targetPath.equals(root) || target.isDirectory()
+							|| RequestHandler.isHiddenResource(requestHeader.getResource())) {
+				throw new AccessDeniedException(target.getPath());
+			}
+			Files.createDirectories(targetPath.getParent());
+		} catch(IOException e) {
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 401, "Unauthorized", new HashMap<>());
+			RequestHandler.LOGGER.warn("Can't store an upload at {}", target.getAbsoluteFile());
+			this.sendInternalResponse(header, "/error_pages/401.html", outputStream);
+			this.closeConnection = true;
+			return;
+		}
+
+		// Everything checks out, so tell the client to go ahead and send the body.
+		if("100-continue".equalsIgnoreCase(requestHeader.getHeader("Expect"))) {
+			try {
+				outputStream.write((RequestHandler.PROTOCOL + " 100 Continue\n\n").getBytes(StandardCharsets.ISO_8859_1));
+				outputStream.flush();
+			} catch(IOException e) {
+				RequestHandler.LOGGER.warn("There was a problem sending 100 Continue to the client.", e);
+				this.closeConnection = true;
+				return;
+			}
+		}
+
+		Path tempFile = null;
+		try {
+			final boolean existed = Files.exists(targetPath);
+			tempFile = Files.createTempFile(targetPath.getParent(), ".upload-", ".tmp");
+			final long received;
+			try(OutputStream fileStream = Files.newOutputStream(tempFile)) {
+				final InputStream bodyStream = chunked ? new ChunkedInputStream(body) : body;
+				received = RequestHandler.copyBody(bodyStream, fileStream, contentLength, maxSize);
+			}
+			if(received < 0) {
+				this.sendUploadTooLarge(outputStream);
+				return;
+			}
+			try {
+				Files.move(tempFile, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, targetPath, StandardCopyOption.REPLACE_EXISTING);
+			}
+			tempFile = null;
+			// Don't keep serving the old copy out of the open file cache.
+			this.context.getOpenFiles().invalidate(target);
+			RequestHandler.LOGGER.info("Stored {} bytes at {}", received, targetPath);
+			final HttpResponseHeader header = existed
+							? new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", new HashMap<>())
+							: new HttpResponseHeader(RequestHandler.PROTOCOL, 201, "Created", new HashMap<>());
+			header.add("Content-Length", "0");
+			final byte[] headerBytes = header.getRawResponse().getBytes(StandardCharsets.ISO_8859_1);
+			outputStream.write(headerBytes);
+			outputStream.flush();
+			AccessRecord.recordResponse(header.getStatusCode(), headerBytes.length);
+		} catch(SocketTimeoutException e) {
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 408, "Request Timeout", new HashMap<>());
+			RequestHandler.LOGGER.warn("Timed out waiting on an upload to {}", targetPath);
+			this.sendInternalResponse(header, "/error_pages/408.html", outputStream);
+			this.closeConnection = true;
+		} catch(IOException e) {
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 500, "Internal Server Error", new HashMap<>());
+			RequestHandler.LOGGER.warn("Couldn't store an upload at {}", targetPath, e);
+			this.sendInternalResponse(header, "/error_pages/500.html", outputStream);
+			this.closeConnection = true;
+		} finally {
+			if(tempFile != null) {
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch(IOException e) {
+					RequestHandler.LOGGER.warn("Couldn't clean up temp file {}", tempFile, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies a request body to a file through a fixed size buffer.
+	 * @param length The number of bytes to copy, or -1 to copy until the stream ends
+	 * @param maxSize The most we're willing to copy, or 0 for no limit
+	 * @return The number of bytes copied, or -1 if the body was bigger than maxSize
+	 * @throws EOFException Thrown if the stream ends before length bytes were read.
+	 */
+	static long copyBody(final InputStream in, final OutputStream out, final long length, final long maxSize) throws IOException {
+		final byte[] buffer = new byte[RequestHandler.RESPONSE_BUFFER_SIZE];
+		long total = 0;
+		while(length < 0 || total < length) {
+			final int toRead = length < 0 ? buffer.length : (int)Math.min(buffer.length, length - total);
+			final int bytesRead = in.read(buffer, 0, toRead);
+			if(bytesRead == -1) {
+				if(length < 0) {
+					break;
+				}
+				throw new EOFException("Request body ended " + (length - total) + " bytes early.");
+			}
+			total += bytesRead;
+			if(maxSize > 0 && total > maxSize) {
+				return -1;
+			}
+			out.write(buffer, 0, bytesRead);
+		}
+		return total;
+	}
+
+	/**
+	 * Turns away an upload that's over upload_max_size. We don't read the rest of the body, so the connection
+	 * is closed afterward.
+	 */
+	private void sendUploadTooLarge(final OutputStream outputStream) {
+		final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 413, "Payload Too Large", new HashMap<>());
+		header.add("Connection", "close");
+		this.sendInternalResponse(header, "/error_pages/413.html", outputStream);
+		this.closeConnection = true;
+	}
+
+	/**
+	 * Forwards a request to a backend server and relays the response back to the browser.
+	 * @param proxy The proxy handler that owns the request's path
+	 * @param requestHeader The request header from the browser
+	 * @param outputStream The browser's output stream
+	 */
+	void proxyRequest(final ProxyHandler proxy, final HttpRequestHeader requestHeader, final OutputStream outputStream) {
+		if(this.requestInput == null && ProxyHandler.hasRequestBody(requestHeader)) {
+			// There's no way to get at the body of an HTTP/2 request, so it can't be forwarded.
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 400, "Bad Request", new HashMap<>());
+			this.sendInternalResponse(header, "/error_pages/400.html", outputStream);
+			return;
+		}
+		final String clientAddress = this.clientSocket != null ? this.clientSocket.getInetAddress().getHostAddress() : null;
+		try {
+			if(!proxy.forward(requestHeader, this.requestInput, outputStream, clientAddress)) {
+				// The body may be unread or half read, and whatever's left of it must not be taken for the next
+				// request. It could be any size, so hang up after the error rather than read it all.
+				if(this.requestInput != null && ProxyHandler.hasRequestBody(requestHeader)) {
+					this.closeConnection = true;
+				}
+				final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 502, "Bad Gateway", new HashMap<>());
+				this.sendInternalResponse(header, "/error_pages/502.html", outputStream);
+			}
+		} catch(IOException e) {
+			RequestHandler.LOGGER.warn("Lost the connection part way through a proxied response.", e);
+			// The browser has part of a response and will wait for the rest, so hang up on it. HTTP/2 streams
+			// share the socket, so they're left to end on their own.
+			if(this.requestInput != null && this.clientSocket != null) {
+				try {
+					this.clientSocket.close();
+				} catch(IOException closeException) {
+					RequestHandler.LOGGER.debug("Couldn't close the client socket.", closeException);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers requests for the server's own admin resources. These live under the configured admin_path, and
+	 * are checked before the document root so they can't be shadowed by a file.
+	 * Metrics and the connection table are only answered for clients with the admin_token or, without one, for
+	 * clients on this machine. The ready check is open to anyone, since load balancers need it and it only says
+	 * yes or no.
+	 * @param requestHeader The request
+	 * @param outputStream The browser's output stream
+	 * @return True if the request was for an admin resource and a response was sent
+	 */
+	boolean serveAdminResource(final HttpRequestHeader requestHeader, final OutputStream outputStream) {
+		final String adminPath = this.context.getConfig().getAdminPath();
+		final String resource = requestHeader.getResource();
+		if(adminPath == null || !resource.startsWith(adminPath)) {
+			return false;
+		}
+		switch(resource.substring(adminPath.length())) {
+			case "/metrics":
+				if(this.isAdminAuthorized(requestHeader, outputStream)) {
+					RequestHandler.sendAdminJson(this.context.getMetrics().toJson(), outputStream);
+				}
+				return true;
+			case "/connections":
+				if(this.isAdminAuthorized(requestHeader, outputStream)) {
+					RequestHandler.sendAdminJson(this.context.getConnections().toJson(), outputStream);
+				}
+				return true;
+			case "/ready":
+				// Health checks can hold off sending traffic until warm-up is done.
+				final boolean ready = this.context.isReady();
+				final HttpResponseHeader header = ready ? new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", new HashMap<>())
+								: new HttpResponseHeader(RequestHandler.PROTOCOL, 503, "Service Unavailable", new HashMap<>());
+				header.add("Cache-Control", "no-store");
+				RequestHandler.sendBytes(header, ("{\"ready\": " + ready + "}").getBytes(StandardCharsets.UTF_8), "application/json", outputStream);
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Checks that the client may see the admin resources, and sends a 401 if it can't.
+	 * @return True if the client is allowed in
+	 */
+	private boolean isAdminAuthorized(final HttpRequestHeader requestHeader, final OutputStream outputStream) {
+		final String token = this.context.getConfig().getAdminToken();
+		final boolean authorized;
+		if(token != null) {
+			final String authorization = requestHeader.getHeader("Authorization");
+			// Compared in constant time so the token can't be guessed a byte at a time
+			authorized = authorization != null && MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+							authorization.trim().getBytes(StandardCharsets.UTF_8));
+		} else {
+			// A handler without a socket is being driven from inside the server (or a test).
+			authorized = this.clientSocket == null || this.clientSocket.getInetAddress().isLoopbackAddress();
+		}
+		if(!authorized) {
+			final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 401, "Unauthorized", new HashMap<>());
+			header.add("WWW-Authenticate", "Bearer");
+			header.add("Cache-Control", "no-store");
+			this.sendInternalResponse(header, "/error_pages/401.html", outputStream);
+			RequestHandler.LOGGER.warn("Refused an admin request for {} from {}", requestHeader.getResource(),
+							this.clientSocket != null ? this.clientSocket.getInetAddress() : null);
+		}
+		return authorized;
+	}
+
+	private static void sendAdminJson(final String json, final OutputStream outputStream) {
+		final HttpResponseHeader header = new HttpResponseHeader(RequestHandler.PROTOCOL, 200, "OK", new HashMap<>());
+		header.add("Cache-Control", "no-store");
+		RequestHandler.sendBytes(header, json.getBytes(StandardCharsets.UTF_8), "application/json", outputStream);
+	}
+
+	/**
+	 * Paces a response if there's a bandwidth limit and the response is big enough to be worth pacing.
+	 * @param outputStream The browser's output stream
+	 * @param length The length of the response body
+	 * @return The stream the response should be written to
+	 */
+	OutputStream shape(final OutputStream outputStream, final long length) {
+		final BandwidthShaper shaper = this.context.getShaper();
+		return shaper == null || outputStream == null ? outputStream : shaper.shape(outputStream, length);
+	}
+
 	/**
 	 * Sometimes, a request will be for a file that doesn't appear in the document root. I wanted
 	 * to provide some built in images for use in error pages.
@@ -207,10 +1204,18 @@ public class RequestHandler implements Runnable {
 	/**
 	 * Streams data from a file to the browser using the relevant streams.
 	 * @param header The header data to send to the browser
-	 * @param inStream A FileInputStream that's connected to the file on disk that you want to send.
+	 * @param inStream A stream that's connected to the data you want to send (usually a file on disk).
 	 * @param outStream A stream that can be used to send data to the browser.
 	 */
-	static void sendResponse(HttpResponseHeader header, FileInputStream inStream, OutputStream outStream) {
+	static void sendResponse(HttpResponseHeader header, InputStream inStream, OutputStream outStream) {
+		RequestHandler.sendResponse(header, inStream, outStream, null);
+	}
+
+	/**
+	 * Sends a response, staging it in a buffer the caller keeps between responses.
+	 * @param buffer At least RESPONSE_HEADER_BUFFER_SIZE + RESPONSE_BUFFER_SIZE bytes, or null to use a new one
+	 */
+	static void sendResponse(final HttpResponseHeader header, final InputStream inStream, final OutputStream outStream, byte[] buffer) {
 		if(outStream == null) {
 			RequestHandler.LOGGER.warn("There is an unexpected problem writing data to the client.");
 			return;
@@ -221,25 +1226,76 @@ public class RequestHandler implements Runnable {
 			return;
 		}
 
-		// Write the header
-		try {
-			outStream.write(header.getRawResponse().getBytes());
-		} catch(IOException e) {
-			RequestHandler.LOGGER.warn("There was a problem streaming the header to the client.", e);
+		if(buffer == null) {
+			buffer = new byte[RequestHandler.RESPONSE_HEADER_BUFFER_SIZE + RequestHandler.RESPONSE_BUFFER_SIZE];
 		}
+		// Stage the header and the first chunk of the body in one buffer. That way a small file goes out in a
+		// single write (and usually a single TCP segment) instead of a header write followed by a body write
+		// that Nagle holds back.
+		final HeaderWriteEvent headerWrite = HeaderWriteEvent.start();
+		int headerLength = header.writeTo(buffer, 0);
+		final int headerBytesSent;
+		if(headerLength < 0) {
+			// Too big to share the buffer. It goes out on its own.
+			final byte[] headerBytes = header.getRawResponse().getBytes(StandardCharsets.ISO_8859_1);
+			try {
+				outStream.write(headerBytes);
+			} catch(IOException e) {
+				RequestHandler.LOGGER.warn("There was a problem streaming the header to the client.", e);
+			}
+			headerLength = 0;
+			headerBytesSent = headerBytes.length;
+		} else {
+			headerBytesSent = headerLength;
+		}
+		headerWrite.finish(header.getStatusCode(), headerBytesSent);
 
 		// Stream the file to the client.
-		byte[] buffer = new byte[1024];
+		final BodyTransferEvent transfer = BodyTransferEvent.start();
+		int staged = headerLength;
 		int bytesRead;
+		long bytesSent = 0;
 		try {
-			while((bytesRead = inStream.read(buffer)) != -1) {
-				outStream.write(buffer, 0, bytesRead);
+			while((bytesRead = inStream.read(buffer, staged, Math.min(RequestHandler.RESPONSE_BUFFER_SIZE, buffer.length - staged))) != -1) {
+				bytesSent += bytesRead;
+				staged += bytesRead;
+				if(buffer.length - staged < RequestHandler.RESPONSE_BUFFER_SIZE) {
+					outStream.write(buffer, 0, staged);
+					staged = 0;
+				}
+			}
+			if(staged > 0) {
+				outStream.write(buffer, 0, staged);
 			}
-			// Flush the buffer
 			outStream.flush();
 		} catch(IOException e) {
 			RequestHandler.LOGGER.warn("There was a problem streaming the file to the client.", e);
 		}
+		transfer.finish(header.getStatusCode(), bytesSent, false);
+		AccessRecord.recordResponse(header.getStatusCode(), headerBytesSent + bytesSent);
+	}
+
+	/**
+	 * @return A response header for a 200 (or whatever) that's about to be sent. HTTP/1.1 responses reuse the
+	 * connection's.
+	 */
+	private HttpResponseHeader responseHeaderFor(final OutputStream outputStream, final int statusCode, final String status) {
+		return outputStream == this.outputStream && outputStream != null ? this.response.reset(RequestHandler.PROTOCOL, statusCode, status)
+						: new HttpResponseHeader(RequestHandler.PROTOCOL, statusCode, status, new HttpHeaders());
+	}
+
+	/**
+	 * @return The connection's buffer for staging responses, or null if the response isn't for the connection
+	 * itself (i.e., it's an HTTP/2 stream), in which case sendResponse uses a new one
+	 */
+	private byte[] responseBufferFor(final OutputStream outputStream) {
+		if(outputStream != this.outputStream || outputStream == null) {
+			return null;
+		}
+		if(this.responseBuffer == null) {
+			this.responseBuffer = new byte[RequestHandler.RESPONSE_HEADER_BUFFER_SIZE + RequestHandler.RESPONSE_BUFFER_SIZE];
+		}
+		return this.responseBuffer;
 	}
 
 	/**
@@ -256,21 +1312,48 @@ public class RequestHandler implements Runnable {
 
 		// Write the header
 		byte[] resourceData;
+		String contentType;
 		try {
 			resourceData = this.readInternalResource(internalFilename);
+			contentType = ContentTypes.detect(internalFilename, resourceData);
 		} catch(InternalResourceTooLargeException e) {
 			RequestHandler.LOGGER.warn("Just tried to read a resource that was too big!", e);
 			resourceData = "Internal Server Error -- error loading internal error page.".getBytes();
+			contentType = "text/plain";
 		} catch(IOException e) {
 			RequestHandler.LOGGER.warn("Couldn't read an internal resource!", e);
 			resourceData = "Internal Server Error -- error loading internal error page.".getBytes();
+			contentType = "text/plain";
+		}
+		RequestHandler.sendBytes(header, resourceData, contentType, outStream);
+	}
+
+	/**
+	 * Sends a response whose body is already in memory.
+	 * @param header The response header to use. Content-Length and Content-Type are added to it.
+	 * @param body The response body
+	 * @param contentType The body's mime-type
+	 * @param outStream The browsers stream
+	 */
+	static void sendBytes(final HttpResponseHeader header, final byte[] body, final String contentType, final OutputStream outStream) {
+		if(outStream == null) {
+			RequestHandler.LOGGER.warn("There is an unexpected problem writing data to the client.");
+			return;
 		}
-		header.add("Content-Length", String.valueOf(resourceData.length));
-		header.add("Content-Type", RequestHandler.tika.detect(resourceData));
+		header.add("Content-Length", String.valueOf(body.length));
+		header.add("Content-Type", contentType);
 		try {
-			outStream.write(header.getRawResponse().getBytes());
-			outStream.write(resourceData);
+			// Send the header and the body in a single write so they can share a TCP segment.
+			final HeaderWriteEvent headerWrite = HeaderWriteEvent.start();
+			final byte[] headerBytes = header.getRawResponse().getBytes();
+			final byte[] response = Arrays.copyOf(headerBytes, headerBytes.length + body.length);
+			System.arraycopy(body, 0, response, headerBytes.length, body.length);
+			headerWrite.finish(header.getStatusCode(), headerBytes.length);
+			final BodyTransferEvent transfer = BodyTransferEvent.start();
+			outStream.write(response);
 			outStream.flush();
+			transfer.finish(header.getStatusCode(), body.length, false);
+			AccessRecord.recordResponse(header.getStatusCode(), response.length);
 		} catch(IOException e) {
 			RequestHandler.LOGGER.warn("There was a problem streaming the header to the client.", e);
 		}
@@ -326,32 +1409,74 @@ public class RequestHandler implements Runnable {
 	 * @return A File object that represents the resource being requested.
 	 */
 	 File getFileObject(String resource) {
-		RequestHandler.LOGGER.debug("Processing resource {}", resource);
-		File file;
+		return this.getFileObject(this.getDocumentRoot(), resource);
+	}
 
-		// Replace '..' strings so that we never leave the document root.
-		resource = resource.replace("..", "");
+	/**
+	 * Creates a File object for a resource under a particular document root (i.e., a virtual host's).
+	 * @param documentRoot The document root
+	 * @param resource The resource name. Usually a filename.
+	 * @return A File object that represents the resource being requested.
+	 */
+	 File getFileObject(final String documentRoot, final String resource) {
+		RequestHandler.LOGGER.debug("Processing resource {}", resource);
+		final File file = new File(documentRoot + RequestHandler.normalizeResource(resource));
+		RequestHandler.LOGGER.debug("Resolved to {}", file.getPath());
+		return file;
+	}
 
-		// Decode the URL for processing
-		try {
-			resource = URLDecoder.decode(resource, "UTF-8");
-		} catch(UnsupportedEncodingException e) {
-			RequestHandler.LOGGER.error("An unexpected decoding error has occurred. {}", e);
-		}
+	/**
+	 * Cleans up a requested resource so it can be resolved against the document root.
+	 * @param resource The resource name from the request
+	 * @return The decoded resource with any '..' removed and '/' mapped to /index.html
+	 */
+	 static String normalizeResource(String resource) {
+		resource = RequestHandler.cleanResource(resource);
 
 		// Provide a default if no specific file is requested
 		switch(resource) {
 			// Create a default where if no file is requested, we serve index.html
 			case "/":
 				resource = "/index.html";
-				file = new File(this.getDocumentRoot() + resource);
 				break;
 			default:
-				file = new File(this.getDocumentRoot() + resource);
 				break;
 		}
-		RequestHandler.LOGGER.debug("Resolved to {}", file.getPath());
-		return file;
+		return resource;
+	}
+
+	/**
+	 * Dot files (i.e., .htpasswd or .git) aren't served or uploaded to. Uploads are also written to a ".upload-"
+	 * temp file next to their target before being moved into place, and those shouldn't be readable half written.
+	 * /.well-known/ is the exception, since that's where things like ACME challenges live.
+	 * @param resource The resource name from the request
+	 * @return True if any part of the decoded path starts with a '.'
+	 */
+	static boolean isHiddenResource(final String resource) {
+		final String path = RequestHandler.cleanResource(resource);
+		for(String segment : path.split("/")) {
+			if(segment.startsWith(".") && !segment.equals(".well-known")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes a requested resource and takes out anything that could get it out of the document root.
+	 * @param resource The resource name from the request
+	 * @return The decoded resource with any '..' removed
+	 */
+	static String cleanResource(String resource) {
+		// Decode the URL for processing. This has to come first, or an encoded '..' (%2e%2e) would get through.
+		try {
+			resource = URLDecoder.decode(resource, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			RequestHandler.LOGGER.error("An unexpected decoding error has occurred. {}", e);
+		}
+
+		// Replace '..' strings so that we never leave the document root.
+		return resource.replace("..", "");
 	}
 
 	/**
@@ -389,4 +1514,12 @@ public class RequestHandler implements Runnable {
 	public void setDocumentRoot(String documentRoot) {
 		this.documentRoot = documentRoot;
 	}
+
+	public ArchiveDocumentRoot getArchive() {
+		return archive;
+	}
+
+	public void setArchive(ArchiveDocumentRoot archive) {
+		this.archive = archive;
+	}
 }
@@ -0,0 +1,155 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.jfr.QueueWaitEvent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps big downloads from holding up small requests. Connections are served on the fast lane, which is the
+ * regular worker pool. When a request resolves to a response of at least large_response_size bytes, the
+ * connection is handed over to the large lane, a separate, smaller pool with a bounded queue, for that one
+ * response. Once it's sent, the connection goes back in line for the fast lane to read its next request.
+ * That way a burst of large transfers ties up the large lane's threads, not the ones serving pages.
+ * If the large lane's queue is full, the response is just sent from the fast lane like it used to be.
+ * Time spent waiting in each lane's queue is recorded in the server metrics.
+ * HTTP/2 streams get a pool of their own, the same size as the fast lane. A connection's thread waits for its
+ * streams to finish, so if they queued behind connections on the fast lane, a few HTTP/2 clients could tie
+ * up every worker waiting on streams that never get one.
+ */
+public class RequestLanes {
+	private final ThreadPoolExecutor fastLane;
+	private final ThreadPoolExecutor largeLane;
+	private final ThreadPoolExecutor streamLane;
+	// 0 means everything goes on the fast lane
+	private final long largeResponseSize;
+	private final ServerMetrics metrics;
+
+	/**
+	 * @param config The server configuration. Sets the size of each lane and what counts as large.
+	 * @param metrics Where queue wait times are recorded
+	 */
+	public RequestLanes(final ServerConfig config, final ServerMetrics metrics) {
+		final int threads = Math.max(1, config.getThreads());
+		this.fastLane = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<>(), new LaneThreadFactory("worker-"));
+		final int largeThreads = Math.max(1, config.getLargeLaneThreads());
+		this.largeLane = new ThreadPoolExecutor(largeThreads, largeThreads, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<>(Math.max(1, config.getLargeLaneQueueSize())), new LaneThreadFactory("transfer-"));
+		this.streamLane = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<>(), new LaneThreadFactory("h2-stream-"));
+		this.largeResponseSize = config.getLargeResponseSize();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Queues a connection on the fast lane.
+	 * @param connection The connection's handler
+	 * @throws RejectedExecutionException If the lanes have been shut down. The caller has to close the connection.
+	 */
+	public void submit(final Runnable connection) {
+		this.fastLane.execute(this.timed(false, connection));
+	}
+
+	/**
+	 * @return Where HTTP/2 streams are run. Each connection limits how many streams it has open at once.
+	 */
+	public Executor getStreamLane() {
+		return this.streamLane;
+	}
+
+	/**
+	 * @param size The size of a response body
+	 * @return True if the response should be sent from the large lane
+	 */
+	public boolean isLarge(final long size) {
+		return this.largeResponseSize > 0 && size >= this.largeResponseSize;
+	}
+
+	/**
+	 * Hands a large response over to the large lane. When it's been sent, the connection is put back on the
+	 * fast lane.
+	 * @param transfer Sends the response. Returns false if the connection was passed on to someone else (i.e.,
+	 *                 the drainer) or closed, and shouldn't go back on the fast lane.
+	 * @param connection Picks the connection back up where it left off
+	 * @param onClose Closes the connection if the fast lane has been shut down in the meantime
+	 * @return False if the large lane is backed up. The caller should send the response itself.
+	 */
+	public boolean handOff(final BooleanSupplier transfer, final Runnable connection, final Runnable onClose) {
+		try {
+			this.largeLane.execute(this.timed(true, () -> {
+				if(transfer.getAsBoolean()) {
+					try {
+						this.submit(connection);
+					} catch(RejectedExecutionException e) {
+						onClose.run();
+					}
+				}
+			}));
+			return true;
+		} catch(RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the lanes. Connections that are still being served get until the timeout to notice their sockets
+	 * have been closed, and then they're interrupted.
+	 * @param timeoutMillis How long to wait for the workers to finish
+	 */
+	public void shutdown(final long timeoutMillis) {
+		this.fastLane.shutdown();
+		this.largeLane.shutdown();
+		this.streamLane.shutdown();
+		try {
+			final long deadline = System.nanoTime() + timeoutMillis * 1000000;
+			if(!this.largeLane.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)
+							|| !this.fastLane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+							|| !this.streamLane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				this.shutdownNow();
+			}
+		} catch(InterruptedException e) {
+			this.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void shutdownNow() {
+		this.largeLane.shutdownNow();
+		this.fastLane.shutdownNow();
+		this.streamLane.shutdownNow();
+	}
+
+	/**
+	 * Wraps a task so the time it spends in the queue gets recorded.
+	 */
+	private Runnable timed(final boolean large, final Runnable task) {
+		final long queued = System.nanoTime();
+		final QueueWaitEvent event = QueueWaitEvent.start();
+		return () -> {
+			this.metrics.recordLaneWait(large, System.nanoTime() - queued);
+			event.finish(large ? "large" : "fast");
+			task.run();
+		};
+	}
+
+	private static class LaneThreadFactory implements java.util.concurrent.ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		LaneThreadFactory(final String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(runnable, this.prefix + this.count.incrementAndGet());
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.jaredstevens.interviews.aem;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Adds up what a sample of requests cost, by path prefix, so when something gets slow it's possible to tell which
+ * resources are heavy and whether it's CPU, allocation or waiting. A sampled request is charged the CPU time and
+ * the bytes allocated by the thread that served it, from the JVM's own per-thread counters. Whatever's left of
+ * its wall time was spent waiting on the disk, the client, a lock or a backend.
+ * Reading the counters isn't free, which is why only a sample of requests is measured. Work handed to another
+ * thread (i.e., a response finished by the drainer) isn't charged to the request.
+ * Once the table has MAX_PREFIXES prefixes, new ones are added up under "(other)", so a scan of random URLs can't
+ * grow it forever.
+ */
+public class ResourceCosts {
+	static final String OTHER = "(other)";
+	private static final int MAX_PREFIXES = 1024;
+
+	private final double sampleRate;
+	private final int prefixDepth;
+	private final int top;
+	private final Map<String, Cost> costs = new ConcurrentHashMap<>();
+
+	/**
+	 * @param sampleRate The fraction of requests to measure
+	 * @param prefixDepth How many path segments to add requests up by. "/images/logo.png" is "/images/" at 1.
+	 * @param top How many of the heaviest prefixes to report
+	 */
+	public ResourceCosts(final double sampleRate, final int prefixDepth, final int top) {
+		this.sampleRate = sampleRate;
+		this.prefixDepth = prefixDepth;
+		this.top = top;
+	}
+
+	/**
+	 * Decides whether to measure the request that was just started on this thread, and starts measuring it if so.
+	 */
+	public void sample(final AccessRecord record) {
+		if(this.sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < this.sampleRate) {
+			record.measureCost();
+		}
+	}
+
+	/**
+	 * Adds up a finished request. Does nothing if it wasn't measured.
+	 */
+	public void record(final AccessRecord record) {
+		if(record.getCpuNanos() < 0 && record.getAllocatedBytes() < 0) {
+			return;
+		}
+		String prefix = ResourceCosts.prefix(record.getResource(), this.prefixDepth);
+		if(!this.costs.containsKey(prefix) && this.costs.size() >= ResourceCosts.MAX_PREFIXES) {
+			prefix = ResourceCosts.OTHER;
+		}
+		this.costs.computeIfAbsent(prefix, key -> new Cost()).add(record);
+	}
+
+	/**
+	 * Cuts a resource down to its first few path segments. The query string is dropped.
+	 * @return The prefix, ending with a '/' unless the resource has fewer segments than that
+	 */
+	static String prefix(final String resource, final int depth) {
+		if(resource == null || !resource.startsWith("/")) {
+			return ResourceCosts.OTHER;
+		}
+		final int query = resource.indexOf('?');
+		final int end = query < 0 ? resource.length() : query;
+		int slash = 0;
+		for(int segment = 0; segment < depth; ++segment) {
+			final int next = resource.indexOf('/', slash + 1);
+			if(next < 0 || next >= end) {
+				return resource.substring(0, end);
+			}
+			slash = next;
+		}
+		return resource.substring(0, slash + 1);
+	}
+
+	/**
+	 * Adds the heaviest prefixes by CPU time and by allocation to a metrics snapshot.
+	 */
+	void addTo(final Map<String, Object> snapshot) {
+		long samples = 0;
+		for(Cost cost : this.costs.values()) {
+			samples += cost.samples.sum();
+		}
+		snapshot.put("request_cost_samples", samples);
+		snapshot.put("heaviest_by_cpu", this.heaviest(cost -> cost.cpuNanos.sum()));
+		snapshot.put("heaviest_by_allocation", this.heaviest(cost -> cost.allocatedBytes.sum()));
+	}
+
+	private List<Map<String, Object>> heaviest(final ToLongFunction<Cost> weight) {
+		final List<Map.Entry<String, Cost>> entries = new ArrayList<>(this.costs.entrySet());
+		entries.sort(Comparator.comparingLong((Map.Entry<String, Cost> entry) -> weight.applyAsLong(entry.getValue())).reversed());
+		final List<Map<String, Object>> heaviest = new ArrayList<>();
+		for(Map.Entry<String, Cost> entry : entries.subList(0, Math.min(this.top, entries.size()))) {
+			heaviest.add(entry.getValue().describe(entry.getKey()));
+		}
+		return heaviest;
+	}
+
+	private static class Cost {
+		private final LongAdder samples = new LongAdder();
+		private final LongAdder durationNanos = new LongAdder();
+		private final LongAdder cpuNanos = new LongAdder();
+		private final LongAdder allocatedBytes = new LongAdder();
+
+		void add(final AccessRecord record) {
+			this.samples.increment();
+			this.durationNanos.add(record.getDurationNanos());
+			this.cpuNanos.add(Math.max(0, record.getCpuNanos()));
+			this.allocatedBytes.add(Math.max(0, record.getAllocatedBytes()));
+		}
+
+		Map<String, Object> describe(final String prefix) {
+			final long samples = Math.max(1, this.samples.sum());
+			final Map<String, Object> description = new LinkedHashMap<>();
+			description.put("prefix", prefix);
+			description.put("samples", this.samples.sum());
+			description.put("cpu_millis", this.cpuNanos.sum() / 1000000.0);
+			description.put("allocated_bytes", this.allocatedBytes.sum());
+			description.put("avg_millis", this.durationNanos.sum() / 1000000.0 / samples);
+			description.put("avg_cpu_millis", this.cpuNanos.sum() / 1000000.0 / samples);
+			description.put("avg_allocated_bytes", this.allocatedBytes.sum() / samples);
+			return description;
+		}
+	}
+
+	/**
+	 * The current thread's counters. The bean is looked up the first time a request is measured rather than when
+	 * the server starts. Either counter is -1 if this JVM doesn't keep it.
+	 */
+	static final class Threads {
+		private static final ThreadMXBean BEAN = ManagementFactory.getThreadMXBean();
+		private static final boolean CPU = Threads.BEAN.isThreadCpuTimeSupported() && Threads.BEAN.isThreadCpuTimeEnabled();
+		// Allocation counters are a HotSpot extension
+		private static final com.sun.management.ThreadMXBean ALLOCATION = Threads.allocationBean();
+
+		private Threads() {
+		}
+
+		static long cpuNanos() {
+			return Threads.CPU ? Threads.BEAN.getCurrentThreadCpuTime() : -1;
+		}
+
+		static long allocatedBytes() {
+			return Threads.ALLOCATION == null ? -1 : Threads.ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		private static com.sun.management.ThreadMXBean allocationBean() {
+			if(!(Threads.BEAN instanceof com.sun.management.ThreadMXBean)) {
+				return null;
+			}
+			final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)Threads.BEAN;
+			return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+		}
+	}
+}
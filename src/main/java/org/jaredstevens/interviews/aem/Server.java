@@ -3,11 +3,11 @@ package org.jaredstevens.interviews.aem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
 import java.nio.file.AccessDeniedException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Spins up a small, multi-threaded HTTP web server.
@@ -19,6 +19,7 @@ public class Server {
 
 	public static void main(String[] args) {
 		ServerConfig config = null;
+		final StartupTimeline startup = StartupTimeline.sinceJvmStart();
 
 		// Ensure there is a configuration file provided.
 		if (args.length != 1) {
@@ -41,44 +42,129 @@ public class Server {
 			System.exit(ServerErrorCodes.CONFIG_FILE_PARSE_ERROR.getCode());
 		}
 
-		// Create our thread pool
-		ExecutorService threadPool = Executors.newFixedThreadPool(config.getThreads());
+		startup.mark("config parsed");
+		// This process is only ours, so JVM-wide TLS settings can come from the config.
+		TlsSupport.configureJvm(config);
 
+		final WebServer server = new WebServer.Builder().config(config).startup(startup).build();
 		try {
-			final InetAddress host = InetAddress.getByName(config.getHostname());
-			Server.LOGGER.debug("Creating a server socket. Binding to {}:{}", config.getHostname(), config.getPort());
-			Server.LOGGER.debug("{} resolves to IP {}", config.getHostname(), host.getHostAddress());
-			final ServerSocket serverSocket = new ServerSocket(config.getPort(), config.getBacklog(), host);
+			server.start();
+		} catch(WebServerException e) {
+			System.err.println(e.getMessage());
+			if(e.getCause() != null) {
+				System.err.println("Message: " + e.getCause().getMessage());
+				e.getCause().printStackTrace();
+			}
+			System.exit(e.getErrorCode().getCode());
+		}
+
+		// Stopping the process (i.e., during a rolling deploy) lets the requests in flight finish first.
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
+		try {
+			server.awaitTermination();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-			Server.LOGGER.info("Waiting for connections to {} on port {}", host.getHostName(), config.getPort());
-			Socket clientSocket;
-			while (true) {
-				clientSocket = serverSocket.accept();
-				clientSocket.setSoTimeout(config.getSocketTimeout());
-				Server.LOGGER.debug("Received request. Assigning to thread.");
-				threadPool.submit(new RequestHandler(clientSocket, config.getDocumentRoot()));
+	/**
+	 * Takes connections from a listener and hands them to the workers. This is the same for every kind of
+	 * listener, so a connection gets the same treatment however it came in. Only returns if accepting fails.
+	 * @param acceptor Waits for the next connection
+	 * @param context The server's shared state
+	 * @param tls The TLS setup for this listener's connections, or null if they're plain
+	 */
+	static void acceptConnections(final Acceptor acceptor, final ServerContext context, final TlsSupport tls) throws IOException {
+		final ServerConfig config = context.getConfig();
+		final RateLimiter rateLimiter = context.getRateLimiter();
+		Socket clientSocket;
+		while (true) {
+			clientSocket = acceptor.accept();
+			context.getMetrics().recordConnectionAccepted();
+			// A Unix domain socket's address is a placeholder shared by every client behind the proxy.
+			if(rateLimiter != null && !(clientSocket instanceof UnixDomainSocket) && !rateLimiter.tryAcquire(clientSocket.getInetAddress())) {
+				context.getMetrics().recordRateLimitedConnection();
+				Server.rejectConnection(clientSocket, rateLimiter);
+				continue;
 			}
-		} catch (BindException e) {
-			if(e.getMessage().equals("Permission denied (Bind failed)")) {
-				System.err.println("It looks like you may not have permissions to bind to port "+config.getPort());
-			} else if(e.getMessage().equals("Cannot assign requested address (Bind failed)")) {
-				System.err.println("Can't resolve the hostname/IP for this host. Check your server configuration.");
-			} else if(e.getMessage().equals("Address already in use (Bind failed)")) {
-				System.err.println("Something else is already using port "+config.getPort());
-			} else {
-				System.err.println("There was a problem binding to port " + config.getPort());
+			final ClientConnection connection = context.getConnections().register(clientSocket);
+			if(connection == null) {
+				Server.LOGGER.warn("At the connection cap. Turning away {}", clientSocket.getInetAddress());
+				Server.closeQuietly(clientSocket);
+				continue;
+			}
+			try {
+				Server.configureSocket(clientSocket, config);
+			} catch(SocketException e) {
+				// The client's usually gone already (i.e., it reset before we got to it). That's no reason to stop
+				// taking everyone else's connections.
+				Server.LOGGER.debug("Couldn't set up a connection from {}. Dropping it.", clientSocket.getInetAddress(), e);
+				Server.closeQuietly(clientSocket);
+				context.getConnections().unregister(connection);
+				continue;
+			}
+			if(tls != null) {
+				tls.onAccept(clientSocket);
+			}
+			Server.LOGGER.debug("Received request. Assigning to thread.");
+			try {
+				context.getLanes().submit(new RequestHandler(clientSocket, context, connection));
+			} catch(RejectedExecutionException e) {
+				// The server's stopping. The listener's closed (or about to be), so this is the last one.
+				Server.closeQuietly(clientSocket);
+				context.getConnections().unregister(connection);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the next connection on a listener.
+	 */
+	interface Acceptor {
+		Socket accept() throws IOException;
+	}
+
+	/**
+	 * Turns away a client that's over its rate limit without handing it to a worker thread.
+	 * @param clientSocket The socket that was just accepted
+	 * @param rateLimiter The limiter that turned it away
+	 */
+	static void rejectConnection(final Socket clientSocket, final RateLimiter rateLimiter) {
+		try(Socket socket = clientSocket) {
+			// A TLS socket would have to finish the handshake before it could send the 429, and that's exactly the
+			// work we're trying to avoid. Those clients are just disconnected.
+			if(!(socket instanceof SSLSocket)) {
+				rateLimiter.reject(socket.getOutputStream());
 			}
-			System.err.println("Message: "+e.getMessage());
-			e.printStackTrace();
-			System.exit(ServerErrorCodes.PORT_IN_USE.getCode());
-		} catch (UnknownHostException e) {
-			System.err.println("The hostname provided looks invalid: "+config.getHostname());
-			e.printStackTrace();
-			System.exit(ServerErrorCodes.INVALID_HOST_NAME.getCode());
-		} catch (IOException e) {
-			System.err.println("There was a problem while initializing and listening for requests.");
-			e.printStackTrace();
-			System.exit(ServerErrorCodes.SERVER_SOCKET_ERROR.getCode());
+		} catch(IOException e) {
+			Server.LOGGER.debug("Couldn't send a 429 to a rate limited client.", e);
+		}
+	}
+
+	/**
+	 * Closes a connection we aren't going to serve.
+	 */
+	private static void closeQuietly(final Socket clientSocket) {
+		try {
+			clientSocket.close();
+		} catch(IOException e) {
+			Server.LOGGER.debug("Couldn't close a rejected connection.", e);
+		}
+	}
+
+	/**
+	 * Applies the configured socket options to a newly accepted connection.
+	 * @param clientSocket The socket that was just accepted
+	 * @param config The server configuration
+	 * @throws SocketException Thrown if the OS rejects one of the options.
+	 */
+	static void configureSocket(final Socket clientSocket, final ServerConfig config) throws SocketException {
+		clientSocket.setSoTimeout(config.getSocketTimeout());
+		// Responses are already written in as few writes as possible, so there's nothing to gain from Nagle
+		// holding back the tail of a response until the client ACKs.
+		clientSocket.setTcpNoDelay(config.isTcpNoDelay());
+		if(config.getSendBufferSize() > 0) {
+			clientSocket.setSendBufferSize(config.getSendBufferSize());
 		}
 	}
 }
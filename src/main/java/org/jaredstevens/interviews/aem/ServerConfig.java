@@ -4,10 +4,12 @@ import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
+import org.jaredstevens.interviews.aem.proxy.ProxyRoute;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.List;
 
 /**
  * Copyright Jared Stevens 2017 All Rights Reserved
@@ -20,6 +22,100 @@ public class ServerConfig {
 	private int socketTimeout;
 	private int backlog;
 	private int threads;
+	// Caps on open connections, overall and per client IP. 0 means no cap.
+	private int maxConnections = 10000;
+	private int maxConnectionsPerIp = 256;
+	// How long a keep-alive connection can wait for its next request. 0 leaves it to socket_timeout.
+	private long idleTimeout = 5000;
+	// Limits on a request header. Going over a size limit gets a 431, and a header that takes longer than
+	// header_timeout milliseconds to arrive (all of it, not just one read, counted from its first byte) gets a 408.
+	private int maxRequestLineLength = 8192;
+	private int maxHeaderSize = 16384;
+	private int maxHeaderCount = 100;
+	private long headerTimeout = 10000;
+	// Responses at least this big are sent from a separate pool so they don't tie up the regular workers. 0 turns it off.
+	private long largeResponseSize = 1048576;
+	private int largeLaneThreads = 2;
+	private int largeLaneQueueSize = 64;
+	// Hot files are kept open between requests. 0 entries turns it off.
+	private int openFileCacheMaxEntries = 1024;
+	private long openFileCacheValid = 5000;
+	// Directories without an index.html are listed when autoindex is turned on. A listing is cached until its
+	// directory changes, or for autoindex_cache_valid milliseconds at most. Directories with more than
+	// autoindex_stream_threshold entries are streamed to the client instead of being rendered in memory.
+	private boolean autoindex;
+	private int autoindexCacheEntries = 256;
+	private long autoindexCacheValid = 10000;
+	private int autoindexStreamThreshold = 5000;
+	// File responses at least drain_min_size bytes are finished by a background drainer if the client can't take
+	// them right away. Clients that stop reading for write_stall_timeout milliseconds are dropped.
+	private long drainMinSize = 65536;
+	private int drainMaxConnections = 10000;
+	private long writeStallTimeout = 30000;
+	// Socket options applied to every accepted connection. A buffer size of 0 leaves the OS default alone.
+	private boolean tcpNoDelay = true;
+	private int sendBufferSize;
+	private int receiveBufferSize;
+	// Also listen on this Unix domain socket, for a proxy on the same host. Null turns it off. With tcp_enabled
+	// turned off, it's the only listener.
+	private String unixSocketPath;
+	private boolean tcpEnabled = true;
+	// How long requests already being served get to finish when the server is stopped
+	private long shutdownTimeout = 30000;
+	// Per-client rate limiting. A rate of 0 turns it off.
+	private double rateLimitRequestsPerSecond;
+	private int rateLimitBurst = 20;
+	private int rateLimitTableSize = 65536;
+	private long rateLimitIdleTimeout = 60000;
+	// Bandwidth shaping for large responses. A limit of 0 turns it off.
+	private long shapingMinSize = 1048576;
+	private long connectionBytesPerSecond;
+	private long globalBytesPerSecond;
+	// The most data sent in one chunk when a response's length isn't known up front
+	private int responseChunkSize = 8192;
+	// TLS is turned on by pointing keystore_path at a keystore holding the server's key and certificate.
+	private String keystorePath;
+	private String keystorePassword;
+	private String keystoreType;
+	private int tlsSessionCacheSize = 10000;
+	private int tlsSessionTimeout = 3600;
+	private boolean tlsSessionTickets = true;
+	// Requests under this path are answered by the server itself (i.e., /admin/metrics). Null turns it off.
+	private String adminPath;
+	// Clients must send "Authorization: Bearer <admin_token>" to see the admin resources. Without a token, only
+	// clients connecting from this machine can see them.
+	private String adminToken;
+	// Every request is logged here in Common Log Format. Null turns it off.
+	private String accessLog;
+	// A sample of requests is charged the CPU time and memory its thread used. These are added up by the first
+	// request_cost_prefix_depth segments of the path, so the heaviest resources show up in the metrics (the top
+	// request_cost_top of them). A rate of 0 turns it off, 1 measures every request.
+	private double requestCostSampleRate = 0.01;
+	private int requestCostPrefixDepth = 1;
+	private int requestCostTop = 10;
+	// At startup, the files requested most in the access log are opened and read before connections are taken,
+	// until either budget runs out. A time budget of 0 turns warm-up off.
+	private long warmupTimeBudget = 10000;
+	private long warmupByteBudget = 268435456;
+	private int warmupThreads = 4;
+	// Files with these extensions are also served at fingerprinted URLs (app.3f9a1c2b.js) that browsers can cache
+	// forever. The manifest maps each file to its fingerprinted URL. Empty turns fingerprinting off.
+	private List<String> fingerprintExtensions;
+	private String assetManifestPath = "/asset-manifest.json";
+	// Cache-Control headers for everything else, by path. The first rule whose glob matches is used.
+	private List<CacheControlRule> cacheControl;
+	// More sites served by this same server, picked by the request's Host header. Anything else goes to
+	// hostname/document_root.
+	private List<VirtualHost> virtualHosts;
+	// PUT/POST requests store their body at the requested path in the document root when this is turned on
+	private boolean uploadsEnabled;
+	private long uploadMaxSize = 104857600;
+	// Path prefixes that are forwarded to backend servers instead of being served from the document root
+	private List<ProxyRoute> proxies;
+	private int proxyMaxIdleConnections = 16;
+	private int proxyConnectTimeout = 1000;
+	private int proxyReadTimeout = 30000;
+	private long proxyIdleTimeout = 30000;
 
 	/**
 	 * Parses a JSON configuration file that defines the parameters for this web server
@@ -96,4 +192,476 @@ public class ServerConfig {
 	public void setThreads(int threads) {
 		this.threads = threads;
 	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public String getKeystorePath() {
+		return keystorePath;
+	}
+
+	public void setKeystorePath(String keystorePath) {
+		this.keystorePath = keystorePath;
+	}
+
+	public String getKeystorePassword() {
+		return keystorePassword;
+	}
+
+	public void setKeystorePassword(String keystorePassword) {
+		this.keystorePassword = keystorePassword;
+	}
+
+	public String getKeystoreType() {
+		return keystoreType;
+	}
+
+	public void setKeystoreType(String keystoreType) {
+		this.keystoreType = keystoreType;
+	}
+
+	public int getTlsSessionCacheSize() {
+		return tlsSessionCacheSize;
+	}
+
+	public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+		this.tlsSessionCacheSize = tlsSessionCacheSize;
+	}
+
+	public int getTlsSessionTimeout() {
+		return tlsSessionTimeout;
+	}
+
+	public void setTlsSessionTimeout(int tlsSessionTimeout) {
+		this.tlsSessionTimeout = tlsSessionTimeout;
+	}
+
+	public boolean isTlsSessionTickets() {
+		return tlsSessionTickets;
+	}
+
+	public void setTlsSessionTickets(boolean tlsSessionTickets) {
+		this.tlsSessionTickets = tlsSessionTickets;
+	}
+
+	public String getAdminPath() {
+		return adminPath;
+	}
+
+	public void setAdminPath(String adminPath) {
+		this.adminPath = adminPath;
+	}
+
+	public List<ProxyRoute> getProxies() {
+		return proxies;
+	}
+
+	public void setProxies(List<ProxyRoute> proxies) {
+		this.proxies = proxies;
+	}
+
+	public int getProxyMaxIdleConnections() {
+		return proxyMaxIdleConnections;
+	}
+
+	public void setProxyMaxIdleConnections(int proxyMaxIdleConnections) {
+		this.proxyMaxIdleConnections = proxyMaxIdleConnections;
+	}
+
+	public int getProxyConnectTimeout() {
+		return proxyConnectTimeout;
+	}
+
+	public void setProxyConnectTimeout(int proxyConnectTimeout) {
+		this.proxyConnectTimeout = proxyConnectTimeout;
+	}
+
+	public int getProxyReadTimeout() {
+		return proxyReadTimeout;
+	}
+
+	public void setProxyReadTimeout(int proxyReadTimeout) {
+		this.proxyReadTimeout = proxyReadTimeout;
+	}
+
+	public long getProxyIdleTimeout() {
+		return proxyIdleTimeout;
+	}
+
+	public void setProxyIdleTimeout(long proxyIdleTimeout) {
+		this.proxyIdleTimeout = proxyIdleTimeout;
+	}
+
+	public boolean isUploadsEnabled() {
+		return uploadsEnabled;
+	}
+
+	public void setUploadsEnabled(boolean uploadsEnabled) {
+		this.uploadsEnabled = uploadsEnabled;
+	}
+
+	public long getUploadMaxSize() {
+		return uploadMaxSize;
+	}
+
+	public void setUploadMaxSize(long uploadMaxSize) {
+		this.uploadMaxSize = uploadMaxSize;
+	}
+
+	public int getResponseChunkSize() {
+		return responseChunkSize;
+	}
+
+	public void setResponseChunkSize(int responseChunkSize) {
+		this.responseChunkSize = responseChunkSize;
+	}
+
+	public double getRateLimitRequestsPerSecond() {
+		return rateLimitRequestsPerSecond;
+	}
+
+	public void setRateLimitRequestsPerSecond(double rateLimitRequestsPerSecond) {
+		this.rateLimitRequestsPerSecond = rateLimitRequestsPerSecond;
+	}
+
+	public int getRateLimitBurst() {
+		return rateLimitBurst;
+	}
+
+	public void setRateLimitBurst(int rateLimitBurst) {
+		this.rateLimitBurst = rateLimitBurst;
+	}
+
+	public int getRateLimitTableSize() {
+		return rateLimitTableSize;
+	}
+
+	public void setRateLimitTableSize(int rateLimitTableSize) {
+		this.rateLimitTableSize = rateLimitTableSize;
+	}
+
+	public long getRateLimitIdleTimeout() {
+		return rateLimitIdleTimeout;
+	}
+
+	public void setRateLimitIdleTimeout(long rateLimitIdleTimeout) {
+		this.rateLimitIdleTimeout = rateLimitIdleTimeout;
+	}
+
+	public long getShapingMinSize() {
+		return shapingMinSize;
+	}
+
+	public void setShapingMinSize(long shapingMinSize) {
+		this.shapingMinSize = shapingMinSize;
+	}
+
+	public long getConnectionBytesPerSecond() {
+		return connectionBytesPerSecond;
+	}
+
+	public void setConnectionBytesPerSecond(long connectionBytesPerSecond) {
+		this.connectionBytesPerSecond = connectionBytesPerSecond;
+	}
+
+	public long getGlobalBytesPerSecond() {
+		return globalBytesPerSecond;
+	}
+
+	public void setGlobalBytesPerSecond(long globalBytesPerSecond) {
+		this.globalBytesPerSecond = globalBytesPerSecond;
+	}
+
+	public long getLargeResponseSize() {
+		return largeResponseSize;
+	}
+
+	public void setLargeResponseSize(long largeResponseSize) {
+		this.largeResponseSize = largeResponseSize;
+	}
+
+	public int getLargeLaneThreads() {
+		return largeLaneThreads;
+	}
+
+	public void setLargeLaneThreads(int largeLaneThreads) {
+		this.largeLaneThreads = largeLaneThreads;
+	}
+
+	public int getLargeLaneQueueSize() {
+		return largeLaneQueueSize;
+	}
+
+	public void setLargeLaneQueueSize(int largeLaneQueueSize) {
+		this.largeLaneQueueSize = largeLaneQueueSize;
+	}
+
+	public int getOpenFileCacheMaxEntries() {
+		return openFileCacheMaxEntries;
+	}
+
+	public void setOpenFileCacheMaxEntries(int openFileCacheMaxEntries) {
+		this.openFileCacheMaxEntries = openFileCacheMaxEntries;
+	}
+
+	public long getOpenFileCacheValid() {
+		return openFileCacheValid;
+	}
+
+	public void setOpenFileCacheValid(long openFileCacheValid) {
+		this.openFileCacheValid = openFileCacheValid;
+	}
+
+	public int getMaxRequestLineLength() {
+		return maxRequestLineLength;
+	}
+
+	public void setMaxRequestLineLength(int maxRequestLineLength) {
+		this.maxRequestLineLength = maxRequestLineLength;
+	}
+
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	public int getMaxHeaderCount() {
+		return maxHeaderCount;
+	}
+
+	public void setMaxHeaderCount(int maxHeaderCount) {
+		this.maxHeaderCount = maxHeaderCount;
+	}
+
+	public long getHeaderTimeout() {
+		return headerTimeout;
+	}
+
+	public void setHeaderTimeout(long headerTimeout) {
+		this.headerTimeout = headerTimeout;
+	}
+
+	public long getDrainMinSize() {
+		return drainMinSize;
+	}
+
+	public void setDrainMinSize(long drainMinSize) {
+		this.drainMinSize = drainMinSize;
+	}
+
+	public int getDrainMaxConnections() {
+		return drainMaxConnections;
+	}
+
+	public void setDrainMaxConnections(int drainMaxConnections) {
+		this.drainMaxConnections = drainMaxConnections;
+	}
+
+	public long getWriteStallTimeout() {
+		return writeStallTimeout;
+	}
+
+	public void setWriteStallTimeout(long writeStallTimeout) {
+		this.writeStallTimeout = writeStallTimeout;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getMaxConnectionsPerIp() {
+		return maxConnectionsPerIp;
+	}
+
+	public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+		this.maxConnectionsPerIp = maxConnectionsPerIp;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public String getAccessLog() {
+		return accessLog;
+	}
+
+	public void setAccessLog(String accessLog) {
+		this.accessLog = accessLog;
+	}
+
+	public long getWarmupTimeBudget() {
+		return warmupTimeBudget;
+	}
+
+	public void setWarmupTimeBudget(long warmupTimeBudget) {
+		this.warmupTimeBudget = warmupTimeBudget;
+	}
+
+	public long getWarmupByteBudget() {
+		return warmupByteBudget;
+	}
+
+	public void setWarmupByteBudget(long warmupByteBudget) {
+		this.warmupByteBudget = warmupByteBudget;
+	}
+
+	public int getWarmupThreads() {
+		return warmupThreads;
+	}
+
+	public void setWarmupThreads(int warmupThreads) {
+		this.warmupThreads = warmupThreads;
+	}
+
+	public List<String> getFingerprintExtensions() {
+		return fingerprintExtensions;
+	}
+
+	public void setFingerprintExtensions(List<String> fingerprintExtensions) {
+		this.fingerprintExtensions = fingerprintExtensions;
+	}
+
+	public String getAssetManifestPath() {
+		return assetManifestPath;
+	}
+
+	public void setAssetManifestPath(String assetManifestPath) {
+		this.assetManifestPath = assetManifestPath;
+	}
+
+	public List<CacheControlRule> getCacheControl() {
+		return cacheControl;
+	}
+
+	public void setCacheControl(List<CacheControlRule> cacheControl) {
+		this.cacheControl = cacheControl;
+	}
+
+	public List<VirtualHost> getVirtualHosts() {
+		return virtualHosts;
+	}
+
+	public void setVirtualHosts(List<VirtualHost> virtualHosts) {
+		this.virtualHosts = virtualHosts;
+	}
+
+	public String getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	public void setUnixSocketPath(String unixSocketPath) {
+		this.unixSocketPath = unixSocketPath;
+	}
+
+	public boolean isTcpEnabled() {
+		return tcpEnabled;
+	}
+
+	public void setTcpEnabled(boolean tcpEnabled) {
+		this.tcpEnabled = tcpEnabled;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public boolean isAutoindex() {
+		return autoindex;
+	}
+
+	public void setAutoindex(boolean autoindex) {
+		this.autoindex = autoindex;
+	}
+
+	public int getAutoindexCacheEntries() {
+		return autoindexCacheEntries;
+	}
+
+	public void setAutoindexCacheEntries(int autoindexCacheEntries) {
+		this.autoindexCacheEntries = autoindexCacheEntries;
+	}
+
+	public long getAutoindexCacheValid() {
+		return autoindexCacheValid;
+	}
+
+	public void setAutoindexCacheValid(long autoindexCacheValid) {
+		this.autoindexCacheValid = autoindexCacheValid;
+	}
+
+	public int getAutoindexStreamThreshold() {
+		return autoindexStreamThreshold;
+	}
+
+	public void setAutoindexStreamThreshold(int autoindexStreamThreshold) {
+		this.autoindexStreamThreshold = autoindexStreamThreshold;
+	}
+
+	public double getRequestCostSampleRate() {
+		return requestCostSampleRate;
+	}
+
+	public void setRequestCostSampleRate(double requestCostSampleRate) {
+		this.requestCostSampleRate = requestCostSampleRate;
+	}
+
+	public int getRequestCostPrefixDepth() {
+		return requestCostPrefixDepth;
+	}
+
+	public void setRequestCostPrefixDepth(int requestCostPrefixDepth) {
+		this.requestCostPrefixDepth = requestCostPrefixDepth;
+	}
+
+	public int getRequestCostTop() {
+		return requestCostTop;
+	}
+
+	public void setRequestCostTop(int requestCostTop) {
+		this.requestCostTop = requestCostTop;
+	}
+
+	public String getAdminToken() {
+		return adminToken;
+	}
+
+	public void setAdminToken(String adminToken) {
+		this.adminToken = adminToken;
+	}
 }
@@ -0,0 +1,164 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.proxy.ProxyHandler;
+
+import java.nio.file.Paths;
+
+/**
+ * Everything a request handler needs that's shared across the whole server: the configuration and the
+ * components built from it at startup.
+ */
+public class ServerContext {
+	private final ServerConfig config;
+	private final ArchiveDocumentRoot archive;
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final ConnectionRegistry connections;
+	// Null unless some paths are configured to be proxied
+	private final ProxyHandler proxy;
+	// Null unless rate limiting is turned on
+	private final RateLimiter rateLimiter;
+	// Null unless there's a bandwidth limit
+	private final BandwidthShaper shaper;
+	private final RequestLanes lanes;
+	private final OpenFileCache openFiles;
+	// Null if draining is turned off
+	private final OutboundDrainer drainer;
+	// Null unless there's an access log
+	private final AccessLog accessLog;
+	private final VirtualHosts virtualHosts;
+	// Null unless autoindex is turned on
+	private final DirectoryListings directoryListings;
+	// Null unless request costs are sampled
+	private final ResourceCosts resourceCosts;
+	private volatile StartupTimeline startup = new StartupTimeline();
+	// Set once the server is taking connections
+	private volatile boolean ready;
+	// Set once the server is stopping. Connections are closed after the request they're serving.
+	private volatile boolean draining;
+
+	/**
+	 * @param config The server configuration
+	 * @param archive The archive to serve from, or null if the document root is a directory
+	 */
+	public ServerContext(final ServerConfig config, final ArchiveDocumentRoot archive) {
+		this.config = config;
+		this.archive = archive;
+		this.connections = new ConnectionRegistry(config, this.metrics);
+		this.proxy = config.getProxies() == null || config.getProxies().isEmpty() ? null : new ProxyHandler(config);
+		this.rateLimiter = config.getRateLimitRequestsPerSecond() <= 0 ? null : new RateLimiter(
+						config.getRateLimitRequestsPerSecond(), config.getRateLimitBurst(),
+						config.getRateLimitTableSize(), config.getRateLimitIdleTimeout());
+		this.shaper = config.getConnectionBytesPerSecond() <= 0 && config.getGlobalBytesPerSecond() <= 0 ? null
+						: new BandwidthShaper(config.getShapingMinSize(), config.getConnectionBytesPerSecond(), config.getGlobalBytesPerSecond(), this.metrics);
+		this.lanes = new RequestLanes(config, this.metrics);
+		this.openFiles = new OpenFileCache(config.getOpenFileCacheMaxEntries(), config.getOpenFileCacheValid(), this.metrics);
+		this.drainer = config.getDrainMaxConnections() <= 0 ? null
+						: new OutboundDrainer(config.getDrainMaxConnections(), config.getWriteStallTimeout(), this.lanes, this.metrics);
+		this.accessLog = config.getAccessLog() == null ? null : new AccessLog(Paths.get(config.getAccessLog()));
+		this.virtualHosts = new VirtualHosts(config, this.openFiles, archive);
+		this.directoryListings = !config.isAutoindex() ? null
+						: new DirectoryListings(config.getAutoindexCacheEntries(), config.getAutoindexCacheValid(), config.getAutoindexStreamThreshold());
+		this.resourceCosts = config.getRequestCostSampleRate() <= 0 ? null
+						: new ResourceCosts(config.getRequestCostSampleRate(), config.getRequestCostPrefixDepth(), config.getRequestCostTop());
+		this.metrics.setResourceCosts(this.resourceCosts);
+	}
+
+	/**
+	 * Builds a context for serving a document root with an otherwise default configuration.
+	 * @param documentRoot The document root
+	 * @param archive The archive to serve from, or null if the document root is a directory
+	 * @return A new ServerContext
+	 */
+	public static ServerContext forDocumentRoot(final String documentRoot, final ArchiveDocumentRoot archive) {
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(documentRoot);
+		return new ServerContext(config, archive);
+	}
+
+	public ServerConfig getConfig() {
+		return config;
+	}
+
+	public ArchiveDocumentRoot getArchive() {
+		return archive;
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ProxyHandler getProxy() {
+		return proxy;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	public BandwidthShaper getShaper() {
+		return shaper;
+	}
+
+	public RequestLanes getLanes() {
+		return lanes;
+	}
+
+	public OpenFileCache getOpenFiles() {
+		return openFiles;
+	}
+
+	public OutboundDrainer getDrainer() {
+		return drainer;
+	}
+
+	public ConnectionRegistry getConnections() {
+		return connections;
+	}
+
+	public AccessLog getAccessLog() {
+		return accessLog;
+	}
+
+	public DirectoryListings getDirectoryListings() {
+		return directoryListings;
+	}
+
+	public ResourceCosts getResourceCosts() {
+		return resourceCosts;
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public void setReady(boolean ready) {
+		this.ready = ready;
+	}
+
+	public StartupTimeline getStartup() {
+		return startup;
+	}
+
+	public void setStartup(StartupTimeline startup) {
+		this.startup = startup;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	public void setDraining(boolean draining) {
+		this.draining = draining;
+	}
+
+	/**
+	 * @return The default site's asset fingerprints, or null if assets aren't fingerprinted
+	 */
+	public AssetFingerprints getAssets() {
+		return this.virtualHosts.getDefaultHost().getAssets();
+	}
+
+	public VirtualHosts getVirtualHosts() {
+		return virtualHosts;
+	}
+}
@@ -4,7 +4,7 @@ package org.jaredstevens.interviews.aem;
  * Copyright Jared Stevens 2017 All Rights Reserved
  */
 public enum ServerErrorCodes {
-	CONFIG_FILE_PARSE_ERROR(1), PORT_IN_USE(2), INVALID_HOST_NAME(3), SERVER_SOCKET_ERROR(4);
+	CONFIG_FILE_PARSE_ERROR(1), PORT_IN_USE(2), INVALID_HOST_NAME(3), SERVER_SOCKET_ERROR(4), DOCUMENT_ROOT_ERROR(5), TLS_CONFIG_ERROR(6);
 	private int code;
 
 	ServerErrorCodes(int code) {
@@ -0,0 +1,269 @@
+package org.jaredstevens.interviews.aem;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing what the server has been doing. These are updated from every worker thread, so they're
+ * all lock-free, and they're exported as JSON on the admin endpoint.
+ */
+public class ServerMetrics {
+	private static final Gson GSON = new GsonBuilder()
+					.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+					.setPrettyPrinting()
+					.create();
+
+	private final long startTime = System.currentTimeMillis();
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder connectionsRejected = new LongAdder();
+	private final LongAdder connectionsEvicted = new LongAdder();
+	private final LongAdder connectionsReaped = new LongAdder();
+	private final LongAdder rateLimitedConnections = new LongAdder();
+	private final LongAdder rateLimitedRequests = new LongAdder();
+	private final LongAdder shapedResponses = new LongAdder();
+	private final LongAdder shapingDelayNanos = new LongAdder();
+	private final LongAdder tlsHandshakes = new LongAdder();
+	private final LongAdder tlsResumedHandshakes = new LongAdder();
+	private final LongAdder tlsFailedHandshakes = new LongAdder();
+	private final LongAdder openFileCacheHits = new LongAdder();
+	private final LongAdder openFileCacheMisses = new LongAdder();
+	private final LongAdder drainedResponses = new LongAdder();
+	private final LongAdder writeStalls = new LongAdder();
+	private final RateCounter tlsHandshakeRate = new RateCounter();
+	private final WaitTimer fastLaneWait = new WaitTimer();
+	private final WaitTimer largeLaneWait = new WaitTimer();
+	// What startup warm-up got through. These are only set once.
+	private volatile long warmupResources;
+	private volatile long warmupBytes;
+	private volatile long warmupMillis;
+	// Null unless request costs are sampled
+	private volatile ResourceCosts resourceCosts;
+
+	public void recordConnectionAccepted() {
+		this.connectionsAccepted.increment();
+	}
+
+	public void recordRequest() {
+		this.requests.increment();
+	}
+
+	/**
+	 * Records a connection that was turned away because the server was at its connection cap.
+	 */
+	public void recordConnectionRejected() {
+		this.connectionsRejected.increment();
+	}
+
+	/**
+	 * Records an idle connection that was closed to make room for a new one.
+	 */
+	public void recordConnectionEvicted() {
+		this.connectionsEvicted.increment();
+	}
+
+	/**
+	 * Records a keep-alive connection that was closed for sitting idle too long.
+	 */
+	public void recordConnectionReaped() {
+		this.connectionsReaped.increment();
+	}
+
+	/**
+	 * Records what warm-up got done before the server started taking connections.
+	 * @param resources The number of files opened
+	 * @param bytes The number of bytes read
+	 * @param millis How long it took
+	 */
+	public void recordWarmup(final long resources, final long bytes, final long millis) {
+		this.warmupResources = resources;
+		this.warmupBytes = bytes;
+		this.warmupMillis = millis;
+	}
+
+	public void recordRateLimitedConnection() {
+		this.rateLimitedConnections.increment();
+	}
+
+	public void recordRateLimitedRequest() {
+		this.rateLimitedRequests.increment();
+	}
+
+	public void recordShapedResponse() {
+		this.shapedResponses.increment();
+	}
+
+	/**
+	 * Records time a paced download spent waiting for its turn to send.
+	 */
+	public void recordShapingDelay(final long nanos) {
+		this.shapingDelayNanos.add(nanos);
+	}
+
+	/**
+	 * Records a completed TLS handshake.
+	 * @param resumed True if the client resumed a cached session (and so skipped the full key exchange)
+	 */
+	public void recordTlsHandshake(final boolean resumed) {
+		this.tlsHandshakes.increment();
+		this.tlsHandshakeRate.increment();
+		if(resumed) {
+			this.tlsResumedHandshakes.increment();
+		}
+	}
+
+	public void recordTlsHandshakeFailure() {
+		this.tlsFailedHandshakes.increment();
+	}
+
+	/**
+	 * Records a lookup in the open file cache.
+	 * @param hit True if the file was already open
+	 */
+	public void recordOpenFileCache(final boolean hit) {
+		(hit ? this.openFileCacheHits : this.openFileCacheMisses).increment();
+	}
+
+	/**
+	 * Records a response that the client couldn't take all at once, so it was handed to the drainer.
+	 */
+	public void recordDrainedResponse() {
+		this.drainedResponses.increment();
+	}
+
+	/**
+	 * Records a connection that was dropped because it stopped reading its response.
+	 */
+	public void recordWriteStall() {
+		this.writeStalls.increment();
+	}
+
+	/**
+	 * Records how long a task sat in a lane's queue before a thread picked it up.
+	 * @param large True for the large lane, false for the fast lane
+	 */
+	public void recordLaneWait(final boolean large, final long nanos) {
+		(large ? this.largeLaneWait : this.fastLaneWait).record(nanos);
+	}
+
+	/**
+	 * Includes the heaviest resources, by what a sample of their requests cost, in the metrics.
+	 */
+	public void setResourceCosts(final ResourceCosts resourceCosts) {
+		this.resourceCosts = resourceCosts;
+	}
+
+	/**
+	 * @return The fraction of TLS handshakes that resumed a session, or 0 if there haven't been any.
+	 */
+	public double getTlsResumptionRatio() {
+		final long handshakes = this.tlsHandshakes.sum();
+		return handshakes == 0 ? 0 : (double)this.tlsResumedHandshakes.sum() / handshakes;
+	}
+
+	/**
+	 * Takes a point-in-time copy of the metrics.
+	 * @return The metrics, keyed by name
+	 */
+	public Map<String, Object> snapshot() {
+		final Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("uptime_millis", System.currentTimeMillis() - this.startTime);
+		snapshot.put("connections_accepted", this.connectionsAccepted.sum());
+		snapshot.put("requests", this.requests.sum());
+		snapshot.put("connections_rejected", this.connectionsRejected.sum());
+		snapshot.put("connections_evicted", this.connectionsEvicted.sum());
+		snapshot.put("connections_reaped", this.connectionsReaped.sum());
+		snapshot.put("rate_limited_connections", this.rateLimitedConnections.sum());
+		snapshot.put("rate_limited_requests", this.rateLimitedRequests.sum());
+		snapshot.put("shaped_responses", this.shapedResponses.sum());
+		snapshot.put("shaping_delay_millis", this.shapingDelayNanos.sum() / 1000000);
+		snapshot.put("tls_handshakes", this.tlsHandshakes.sum());
+		snapshot.put("tls_resumed_handshakes", this.tlsResumedHandshakes.sum());
+		snapshot.put("tls_failed_handshakes", this.tlsFailedHandshakes.sum());
+		snapshot.put("tls_resumption_ratio", this.getTlsResumptionRatio());
+		snapshot.put("tls_handshakes_per_second", this.tlsHandshakeRate.getRatePerSecond());
+		snapshot.put("open_file_cache_hits", this.openFileCacheHits.sum());
+		snapshot.put("open_file_cache_misses", this.openFileCacheMisses.sum());
+		snapshot.put("drained_responses", this.drainedResponses.sum());
+		snapshot.put("write_stalls", this.writeStalls.sum());
+		this.fastLaneWait.addTo(snapshot, "fast_lane");
+		this.largeLaneWait.addTo(snapshot, "large_lane");
+		snapshot.put("warmup_resources", this.warmupResources);
+		snapshot.put("warmup_bytes", this.warmupBytes);
+		snapshot.put("warmup_millis", this.warmupMillis);
+		final ResourceCosts costs = this.resourceCosts;
+		if(costs != null) {
+			costs.addTo(snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return The metrics formatted as JSON
+	 */
+	public String toJson() {
+		return ServerMetrics.GSON.toJson(this.snapshot());
+	}
+
+	/**
+	 * Counts events over the last minute using one slot per second, so the rate reflects recent traffic
+	 * rather than the average since startup.
+	 */
+	static class RateCounter {
+		private static final int WINDOW_SECONDS = 60;
+		private final AtomicLongArray counts = new AtomicLongArray(WINDOW_SECONDS);
+		// The second each slot's count belongs to
+		private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS);
+
+		void increment() {
+			final long now = System.currentTimeMillis() / 1000;
+			final int slot = (int)(now % WINDOW_SECONDS);
+			final long slotSecond = this.seconds.get(slot);
+			// The first event in a new second claims the slot and clears out the count from a minute ago.
+			if(slotSecond != now && this.seconds.compareAndSet(slot, slotSecond, now)) {
+				this.counts.set(slot, 0);
+			}
+			this.counts.incrementAndGet(slot);
+		}
+
+		double getRatePerSecond() {
+			final long now = System.currentTimeMillis() / 1000;
+			long total = 0;
+			for(int slot = 0; slot < WINDOW_SECONDS; ++slot) {
+				if(now - this.seconds.get(slot) < WINDOW_SECONDS) {
+					total += this.counts.get(slot);
+				}
+			}
+			return (double)total / WINDOW_SECONDS;
+		}
+	}
+
+	/**
+	 * Tracks how many tasks went through a queue and how long they waited.
+	 */
+	static class WaitTimer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		void record(final long nanos) {
+			this.count.increment();
+			this.totalNanos.add(nanos);
+			this.maxNanos.accumulate(nanos);
+		}
+
+		void addTo(final Map<String, Object> snapshot, final String name) {
+			final long tasks = this.count.sum();
+			snapshot.put(name + "_tasks", tasks);
+			snapshot.put(name + "_wait_avg_millis", tasks == 0 ? 0.0 : this.totalNanos.sum() / 1000000.0 / tasks);
+			snapshot.put(name + "_wait_max_millis", this.maxNanos.get() / 1000000.0);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.jaredstevens.interviews.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps track of how long startup took: when the config was parsed, when the listeners were bound, when the
+ * server was ready and when the first response went out. When the first response is out, the whole thing is
+ * logged at INFO in one line, like
+ * "Startup: config parsed +212 ms, bound +260 ms, ready +261 ms, first response +318 ms (since JVM start)".
+ * The command line server measures from when the JVM started. An embedded server measures from when it was
+ * started, since the JVM may have been up for days.
+ * Marking a milestone is just a clock read. The JVM's start time is only looked up when the timeline is logged,
+ * because the management classes it comes from take a while to load.
+ */
+public class StartupTimeline {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StartupTimeline.class);
+
+	// When the clock started, or 0 for when the JVM started
+	private final long originMillis;
+	private final List<String> milestones = new ArrayList<>();
+	private final List<Long> times = new ArrayList<>();
+	private final AtomicBoolean responded = new AtomicBoolean();
+	private final CountDownLatch firstResponse = new CountDownLatch(1);
+
+	/**
+	 * Starts the clock now.
+	 */
+	public StartupTimeline() {
+		this(System.currentTimeMillis());
+	}
+
+	private StartupTimeline(final long originMillis) {
+		this.originMillis = originMillis;
+	}
+
+	/**
+	 * @return A timeline that measures from when the JVM started
+	 */
+	public static StartupTimeline sinceJvmStart() {
+		return new StartupTimeline(0);
+	}
+
+	/**
+	 * Notes that a step of startup is done.
+	 * @param milestone What was done, like "bound"
+	 */
+	public synchronized void mark(final String milestone) {
+		this.milestones.add(milestone);
+		this.times.add(System.currentTimeMillis());
+	}
+
+	/**
+	 * Notes that a response went out. The first one logs the timeline. This is called for every response, so it's
+	 * just a read of a flag after that.
+	 */
+	public void responseSent() {
+		if(!this.responded.get() && this.responded.compareAndSet(false, true)) {
+			this.mark("first response");
+			this.firstResponse.countDown();
+			StartupTimeline.LOGGER.info("Startup: {}", this);
+		}
+	}
+
+	/**
+	 * Waits for the first response to go out, but not forever.
+	 * @return False if the time ran out first
+	 */
+	public boolean awaitFirstResponse(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.firstResponse.await(timeout, unit);
+	}
+
+	/**
+	 * @return How long after the start of the clock a milestone was reached, or -1 if it hasn't been
+	 */
+	public synchronized long elapsed(final String milestone) {
+		final int index = this.milestones.indexOf(milestone);
+		return index < 0 ? -1 : this.times.get(index) - this.origin();
+	}
+
+	private long origin() {
+		return this.originMillis != 0 ? this.originMillis : ManagementFactory.getRuntimeMXBean().getStartTime();
+	}
+
+	@Override
+	public synchronized String toString() {
+		final long origin = this.origin();
+		final StringBuilder timeline = new StringBuilder();
+		for(int i = 0; i < this.milestones.size(); ++i) {
+			if(i > 0) {
+				timeline.append(", ");
+			}
+			timeline.append(this.milestones.get(i)).append(" +").append(this.times.get(i) - origin).append(" ms");
+		}
+		return timeline.append(this.originMillis != 0 ? " (since start)" : " (since JVM start)").toString();
+	}
+}
@@ -0,0 +1,122 @@
+package org.jaredstevens.interviews.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Terminates TLS in the server so we don't need a separate TLS proxy in front of it.
+ * The key and certificate come from the keystore in the configuration. The server-side session cache is
+ * bounded (by default the JDK's cache can grow without limit) and session tickets are enabled, so returning
+ * clients can resume their session and skip the full key exchange.
+ * Everything here belongs to this server's own SSLContext, so other TLS users in the JVM (including other servers)
+ * aren't affected. The one exception is session tickets, which the JDK only lets you turn on or off for the
+ * whole JVM. Server.main sets that since it owns the process, and an embedded server just warns if it disagrees.
+ */
+public class TlsSupport {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TlsSupport.class);
+	private static final String SESSION_TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+	private final SSLContext sslContext;
+	private final ServerMetrics metrics;
+
+	/**
+	 * Loads the keystore and sets up the TLS context and its session cache.
+	 * @param config The server configuration. keystore_path must be set.
+	 * @param metrics Where handshake counts are recorded
+	 * @throws IOException Thrown if the keystore can't be read.
+	 * @throws GeneralSecurityException Thrown if the keystore can't be loaded or doesn't hold a usable key.
+	 */
+	public TlsSupport(final ServerConfig config, final ServerMetrics metrics) throws IOException, GeneralSecurityException {
+		this.metrics = metrics;
+		if(config.isTlsSessionTickets() != TlsSupport.sessionTicketsEnabled()) {
+			TlsSupport.LOGGER.warn("tls_session_tickets is {}, but session tickets are a JVM-wide setting. Start the JVM with -D{}={} to change it.",
+							config.isTlsSessionTickets(), TlsSupport.SESSION_TICKET_PROPERTY, config.isTlsSessionTickets());
+		}
+
+		final String keystoreType = config.getKeystoreType() != null ? config.getKeystoreType() : KeyStore.getDefaultType();
+		final char[] password = config.getKeystorePassword() != null ? config.getKeystorePassword().toCharArray() : new char[0];
+		final KeyStore keyStore = KeyStore.getInstance(keystoreType);
+		try(InputStream keystoreStream = new FileInputStream(config.getKeystorePath())) {
+			keyStore.load(keystoreStream, password);
+		}
+		final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, password);
+
+		this.sslContext = SSLContext.getInstance("TLS");
+		this.sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+		final SSLSessionContext sessionContext = this.sslContext.getServerSessionContext();
+		sessionContext.setSessionCacheSize(config.getTlsSessionCacheSize());
+		sessionContext.setSessionTimeout(config.getTlsSessionTimeout());
+		TlsSupport.LOGGER.info("TLS enabled using keystore {} (session cache size {}, timeout {}s)",
+						config.getKeystorePath(), config.getTlsSessionCacheSize(), config.getTlsSessionTimeout());
+	}
+
+	/**
+	 * Turns session tickets on or off for the whole JVM. Only call this when the server owns the process, before
+	 * anything has used TLS, since the JDK reads the setting once (and only JDKs 13+ support tickets).
+	 * @param config The server configuration
+	 */
+	static void configureJvm(final ServerConfig config) {
+		if(config.getKeystorePath() != null && System.getProperty(TlsSupport.SESSION_TICKET_PROPERTY) == null) {
+			System.setProperty(TlsSupport.SESSION_TICKET_PROPERTY, String.valueOf(config.isTlsSessionTickets()));
+		}
+	}
+
+	private static boolean sessionTicketsEnabled() {
+		return Boolean.parseBoolean(System.getProperty(TlsSupport.SESSION_TICKET_PROPERTY, "true"));
+	}
+
+	/**
+	 * @return An unbound server socket that speaks TLS
+	 */
+	public ServerSocket createServerSocket() throws IOException {
+		return this.sslContext.getServerSocketFactory().createServerSocket();
+	}
+
+	/**
+	 * Starts tracking the handshake for a newly accepted connection. The handshake itself happens on the
+	 * worker thread the first time the connection is read from, so the accept loop never waits on it.
+	 * @param clientSocket The socket that was just accepted
+	 */
+	public void onAccept(final Socket clientSocket) {
+		if(!(clientSocket instanceof SSLSocket)) {
+			return;
+		}
+		final long acceptTime = System.currentTimeMillis();
+		((SSLSocket)clientSocket).addHandshakeCompletedListener(event -> {
+			// A resumed session is one that was created before this connection existed.
+			final boolean resumed = event.getSession().getCreationTime() < acceptTime;
+			this.metrics.recordTlsHandshake(resumed);
+			TlsSupport.LOGGER.debug("TLS handshake completed ({}, resumed: {})", event.getSession().getProtocol(), resumed);
+		});
+	}
+
+	/**
+	 * Runs the TLS handshake for a connection, if it's a TLS connection.
+	 * @param clientSocket The client's socket
+	 * @param metrics Where a failed handshake is recorded
+	 * @return False if the handshake failed and the connection should be dropped
+	 */
+	static boolean handshake(final Socket clientSocket, final ServerMetrics metrics) {
+		if(!(clientSocket instanceof SSLSocket)) {
+			return true;
+		}
+		try {
+			((SSLSocket)clientSocket).startHandshake();
+			return true;
+		} catch(IOException e) {
+			metrics.recordTlsHandshakeFailure();
+			TlsSupport.LOGGER.debug("TLS handshake failed: {}", e.getMessage());
+			return false;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection accepted on a Unix domain socket, made to look like a Socket so it's served by the same
+ * RequestHandler as a TCP connection. Unix domain channels don't have a socket adaptor of their own.
+ * The channel is kept in non-blocking mode, and a read waits on a selector when there's nothing to read yet.
+ * That's what lets the socket timeout (and the header deadline, which is built on it) work the same as it does
+ * for TCP. Those selectors are only opened the first time a read or write actually has to wait.
+ * The client is always reported as the loopback address, since it's on this host. That address is only a
+ * placeholder, so these connections aren't held to the per-IP connection cap or rate limit. The proxy in front of
+ * the socket speaks for all of its clients at once.
+ * getChannel returns null, so responses are written by the worker rather than handed to the drainer. The
+ * only client is a proxy on the same host, and it isn't going to be slow to read.
+ */
+class UnixDomainSocket extends Socket {
+	private final SocketChannel channel;
+	private final InputStream inputStream = new ChannelInputStream();
+	private final OutputStream outputStream = new ChannelOutputStream();
+	private volatile int soTimeout;
+	private volatile boolean closed;
+	// Reads and writes can happen on different threads (i.e., HTTP/2), so they each wait on their own selector.
+	private volatile Selector readSelector;
+	private volatile Selector writeSelector;
+
+	UnixDomainSocket(final SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		this.ensureOpen();
+		return this.inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		this.ensureOpen();
+		return this.outputStream;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+
+	@Override
+	public SocketChannel getChannel() {
+		return null;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	@Override
+	public synchronized int getSoTimeout() {
+		return this.soTimeout;
+	}
+
+	@Override
+	public synchronized void setSoTimeout(final int timeout) throws SocketException {
+		if(timeout < 0) {
+			throw new IllegalArgumentException("timeout can't be negative");
+		}
+		this.soTimeout = timeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(final boolean on) {
+		// Nothing to do. There's no Nagle on a Unix domain socket.
+	}
+
+	@Override
+	public synchronized void setSendBufferSize(final int size) throws SocketException {
+		try {
+			this.channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+		} catch(IOException e) {
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void setReceiveBufferSize(final int size) throws SocketException {
+		try {
+			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+		} catch(IOException e) {
+			throw new SocketException(e.getMessage());
+		}
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		this.channel.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		this.channel.shutdownOutput();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			this.channel.close();
+		} finally {
+			// Closing a selector wakes up anyone waiting on it.
+			UnixDomainSocket.closeQuietly(this.readSelector);
+			UnixDomainSocket.closeQuietly(this.writeSelector);
+			super.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "UnixDomainSocket[" + (this.closed ? "closed" : "open") + "]";
+	}
+
+	private void ensureOpen() throws SocketException {
+		if(this.closed) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	/**
+	 * Waits for the channel to be readable or writable.
+	 * @param operation SelectionKey.OP_READ or SelectionKey.OP_WRITE
+	 * @param timeoutMillis How long to wait, or 0 to wait as long as it takes
+	 * @throws SocketTimeoutException If the timeout ran out first
+	 */
+	private void await(final int operation, final int timeoutMillis) throws IOException {
+		final Selector selector = this.selector(operation);
+		final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		try {
+			while(true) {
+				this.ensureOpen();
+				long wait = 0;
+				if(timeoutMillis > 0) {
+					wait = (deadline - System.nanoTime()) / 1000000;
+					if(wait <= 0) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+				}
+				if(selector.select(wait) > 0) {
+					selector.selectedKeys().clear();
+					return;
+				}
+			}
+		} catch(ClosedSelectorException e) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	private synchronized Selector selector(final int operation) throws IOException {
+		this.ensureOpen();
+		Selector selector = operation == SelectionKey.OP_READ ? this.readSelector : this.writeSelector;
+		if(selector == null) {
+			selector = Selector.open();
+			this.channel.register(selector, operation);
+			if(operation == SelectionKey.OP_READ) {
+				this.readSelector = selector;
+			} else {
+				this.writeSelector = selector;
+			}
+		}
+		return selector;
+	}
+
+	private static void closeQuietly(final Selector selector) {
+		if(selector == null) {
+			return;
+		}
+		try {
+			selector.close();
+		} catch(IOException e) {
+			// Nothing else to do with it.
+		}
+	}
+
+	private class ChannelInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			final byte[] single = new byte[1];
+			return this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+			if(length == 0) {
+				return 0;
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			int read;
+			while((read = UnixDomainSocket.this.channel.read(buffer)) == 0) {
+				UnixDomainSocket.this.await(SelectionKey.OP_READ, UnixDomainSocket.this.soTimeout);
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Same as a socket's stream: closing it closes the connection.
+			UnixDomainSocket.this.close();
+		}
+	}
+
+	private class ChannelOutputStream extends OutputStream {
+		@Override
+		public void write(final int b) throws IOException {
+			this.write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+			while(buffer.hasRemaining()) {
+				if(UnixDomainSocket.this.channel.write(buffer) == 0) {
+					// Writes don't time out on a TCP socket either.
+					UnixDomainSocket.this.await(SelectionKey.OP_WRITE, 0);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixDomainSocket.this.close();
+		}
+	}
+}
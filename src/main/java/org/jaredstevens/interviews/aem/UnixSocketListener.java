@@ -0,0 +1,135 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Listens on a Unix domain socket, so a proxy on the same host can skip the TCP stack. The connections it accepts
+ * are served just like TCP connections.
+ * Unix domain socket channels came in Java 16, and this still builds for Java 8, so the couple of calls that need
+ * them are made by reflection. On an older Java, opening a listener throws UnsupportedOperationException.
+ */
+public class UnixSocketListener implements Closeable {
+	private final Path path;
+	private final ServerSocketChannel channel;
+
+	/**
+	 * Binds to the socket's path. A socket file left over from a run that didn't shut down cleanly is removed
+	 * first. Anything else already at the path is left alone, and the bind fails.
+	 * @param path Where the socket goes
+	 * @param backlog How many connections can wait to be accepted
+	 */
+	public UnixSocketListener(final String path, final int backlog) throws IOException {
+		this.path = Paths.get(path).toAbsolutePath();
+		if(Files.exists(this.path, LinkOption.NOFOLLOW_LINKS)
+						&& Files.readAttributes(this.path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+			Files.delete(this.path);
+		}
+		this.channel = (ServerSocketChannel)UnixSocketListener.invoke(ServerSocketChannel.class, "open", ProtocolFamily.class, UnixSocketListener.unix());
+		try {
+			this.channel.bind(UnixSocketListener.address(this.path), backlog);
+		} catch(IOException e) {
+			this.channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the next connection.
+	 * @throws java.nio.channels.ClosedChannelException If the listener has been closed
+	 */
+	public Socket accept() throws IOException {
+		final SocketChannel client = this.channel.accept();
+		try {
+			return new UnixDomainSocket(client);
+		} catch(IOException e) {
+			client.close();
+			throw e;
+		}
+	}
+
+	public Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Stops listening and removes the socket file.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+		Files.deleteIfExists(this.path);
+	}
+
+	/**
+	 * Connects to a Unix domain socket. The server never does that itself; it's here for tests and benchmarks.
+	 * @return A connected channel, in blocking mode
+	 */
+	static SocketChannel connect(final Path path) throws IOException {
+		final SocketChannel channel = (SocketChannel)UnixSocketListener.invoke(SocketChannel.class, "open", ProtocolFamily.class, UnixSocketListener.unix());
+		try {
+			channel.connect(UnixSocketListener.address(path));
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * @return True if this Java can do Unix domain sockets
+	 */
+	static boolean isSupported() {
+		try {
+			UnixSocketListener.unix();
+			ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			return true;
+		} catch(UnsupportedOperationException | NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static ProtocolFamily unix() {
+		try {
+			return StandardProtocolFamily.valueOf("UNIX");
+		} catch(IllegalArgumentException e) {
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or newer.");
+		}
+	}
+
+	private static SocketAddress address(final Path path) throws IOException {
+		try {
+			return (SocketAddress)UnixSocketListener.invoke(Class.forName("java.net.UnixDomainSocketAddress"), "of", Path.class, path);
+		} catch(ClassNotFoundException e) {
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or newer.", e);
+		}
+	}
+
+	/**
+	 * Calls a static, one argument method, passing along any IOException it throws.
+	 */
+	private static Object invoke(final Class<?> type, final String name, final Class<?> parameterType, final Object argument) throws IOException {
+		try {
+			return type.getMethod(name, parameterType).invoke(null, argument);
+		} catch(InvocationTargetException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} catch(ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Unix domain sockets need Java 16 or newer.", e);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.jaredstevens.interviews.aem;
+
+import java.util.List;
+
+/**
+ * One entry in the "virtual_hosts" section of the server configuration: a site served from its own document root
+ * to requests for any of its host names. A host name like *.example.com covers every subdomain of example.com.
+ * All the sites share the server's connections, workers and open file cache. The cache_quota caps how many bytes
+ * of the site's files the open file cache holds at once, so one big site can't push everyone else's files out.
+ */
+public class VirtualHost {
+	private List<String> hostnames;
+	private String documentRoot;
+	// 0 means no quota
+	private long cacheQuota;
+	// Null unless assets are fingerprinted. Set up by VirtualHosts.
+	private transient AssetFingerprints assets;
+
+	public VirtualHost() {
+	}
+
+	public VirtualHost(final List<String> hostnames, final String documentRoot, final long cacheQuota) {
+		this.hostnames = hostnames;
+		this.documentRoot = documentRoot;
+		this.cacheQuota = cacheQuota;
+	}
+
+	/**
+	 * @return The name the site goes by in the open file cache and the logs: its first host name
+	 */
+	public String getName() {
+		return hostnames == null || hostnames.isEmpty() ? "default" : hostnames.get(0);
+	}
+
+	public List<String> getHostnames() {
+		return hostnames;
+	}
+
+	public void setHostnames(List<String> hostnames) {
+		this.hostnames = hostnames;
+	}
+
+	public String getDocumentRoot() {
+		return documentRoot;
+	}
+
+	public void setDocumentRoot(String documentRoot) {
+		this.documentRoot = documentRoot;
+	}
+
+	public long getCacheQuota() {
+		return cacheQuota;
+	}
+
+	public void setCacheQuota(long cacheQuota) {
+		this.cacheQuota = cacheQuota;
+	}
+
+	public AssetFingerprints getAssets() {
+		return assets;
+	}
+
+	void setAssets(AssetFingerprints assets) {
+		this.assets = assets;
+	}
+}
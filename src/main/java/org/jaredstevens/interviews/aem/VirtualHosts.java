@@ -0,0 +1,101 @@
+package org.jaredstevens.interviews.aem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the site a request is for by its Host header. Every configured host name goes into a hash table up front,
+ * so a lookup is one hash of the (already parsed) host name, plus one per subdomain level when there are wildcard
+ * names. Requests for a host that isn't configured, or without a Host header, go to the default site: the
+ * server's own hostname and document_root.
+ */
+public class VirtualHosts {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VirtualHosts.class);
+
+	private final VirtualHost defaultHost;
+	private final List<VirtualHost> hosts = new ArrayList<>();
+	private final Map<String, VirtualHost> exact = new HashMap<>();
+	// *.example.com is keyed by example.com
+	private final Map<String, VirtualHost> wildcards = new HashMap<>();
+
+	/**
+	 * @param config The server configuration
+	 * @param openFiles Where each site's cache quota is set, and where changed assets are dropped from
+	 * @param archive The archive the default site is served from, or null if it's a directory
+	 */
+	public VirtualHosts(final ServerConfig config, final OpenFileCache openFiles, final ArchiveDocumentRoot archive) {
+		this.defaultHost = new VirtualHost(config.getHostname() == null ? null : Collections.singletonList(config.getHostname()),
+						config.getDocumentRoot(), 0);
+		this.hosts.add(this.defaultHost);
+		if(config.getVirtualHosts() != null) {
+			for(VirtualHost host : config.getVirtualHosts()) {
+				this.add(host);
+				if(host.getCacheQuota() > 0) {
+					openFiles.setQuota(host.getName(), host.getCacheQuota());
+				}
+			}
+		}
+		if(config.getFingerprintExtensions() != null && !config.getFingerprintExtensions().isEmpty()) {
+			for(VirtualHost host : this.hosts) {
+				if(host == this.defaultHost && archive != null) {
+					// An archive can't be fingerprinted.
+					continue;
+				}
+				host.setAssets(new AssetFingerprints(host.getDocumentRoot(), config.getFingerprintExtensions(), openFiles));
+			}
+		}
+	}
+
+	private void add(final VirtualHost host) {
+		this.hosts.add(host);
+		for(String name : host.getHostnames()) {
+			name = name.toLowerCase(Locale.ROOT);
+			final Map<String, VirtualHost> table = name.startsWith("*.") ? this.wildcards : this.exact;
+			final VirtualHost previous = table.put(name.startsWith("*.") ? name.substring(2) : name, host);
+			if(previous != null) {
+				VirtualHosts.LOGGER.warn("{} is configured for more than one virtual host. Using {}.", name, host.getDocumentRoot());
+			}
+		}
+	}
+
+	/**
+	 * @param host The request's host, as parsed by HttpRequestHeader (lower case, no port)
+	 * @return The site for it. Never null.
+	 */
+	public VirtualHost lookup(final String host) {
+		if(host == null) {
+			return this.defaultHost;
+		}
+		VirtualHost found = this.exact.get(host);
+		if(found != null) {
+			return found;
+		}
+		if(!this.wildcards.isEmpty()) {
+			for(int dot = host.indexOf('.'); dot >= 0; dot = host.indexOf('.', dot + 1)) {
+				found = this.wildcards.get(host.substring(dot + 1));
+				if(found != null) {
+					return found;
+				}
+			}
+		}
+		return this.defaultHost;
+	}
+
+	public VirtualHost getDefaultHost() {
+		return defaultHost;
+	}
+
+	/**
+	 * @return Every site, the default first
+	 */
+	public List<VirtualHost> getHosts() {
+		return hosts;
+	}
+}
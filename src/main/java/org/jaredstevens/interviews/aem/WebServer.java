@@ -0,0 +1,433 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.jfr.JfrEvents;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server that can be started and stopped from code, several to a JVM if need be. Server.main is just a
+ * WebServer run from a config file.
+ * Stopping is graceful. The listeners are closed and /ready starts answering 503, so nothing new comes in.
+ * Requests that are already being served get until the deadline to finish, and each of those connections is
+ * closed once its response is out. Then whatever's left (idle keep-alives, HTTP/2 sessions, and anything that
+ * didn't make the deadline) is closed, and the workers are shut down.
+ * <pre>
+ * WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+ * server.start();
+ * int port = server.getPort();
+ * ...
+ * server.stop(5000);
+ * </pre>
+ */
+public class WebServer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebServer.class);
+	// How often a stopping server checks whether its in-flight requests are done
+	private static final long DRAIN_POLL_MILLIS = 50;
+	// How long warming up waits for the first request before getting on with it
+	private static final long WARM_UP_DELAY_MILLIS = 1000;
+
+	private final ServerConfig config;
+	private final List<Thread> acceptors = new ArrayList<>();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private StartupTimeline startup;
+	private ServerContext context;
+	private ServerSocket serverSocket;
+	private UnixSocketListener unixListener;
+	private Thread warmUp;
+	private volatile boolean started;
+	private volatile boolean stopping;
+
+	private WebServer(final ServerConfig config, final StartupTimeline startup) {
+		this.config = config;
+		this.startup = startup;
+	}
+
+	/**
+	 * Sets everything up and starts taking connections. Returns once the server is ready. Caches are warmed up in
+	 * the background after that.
+	 * @throws WebServerException If the server couldn't start. Anything it had opened is closed again.
+	 * @throws IllegalStateException If the server has already been started
+	 */
+	public synchronized void start() throws WebServerException {
+		if(this.started) {
+			throw new IllegalStateException("The server has already been started.");
+		}
+		this.started = true;
+		if(this.startup == null) {
+			this.startup = new StartupTimeline();
+		}
+		// JFR's event setup is the slowest part of the first request, and it doesn't need anything from the config.
+		final Thread preload = new Thread(JfrEvents::load, "preload");
+		preload.setDaemon(true);
+		preload.start();
+		try {
+			this.open();
+		} catch(WebServerException | RuntimeException e) {
+			this.stopping = true;
+			this.closeListeners();
+			this.shutdownContext(0);
+			this.terminated.countDown();
+			throw e;
+		}
+	}
+
+	private void open() throws WebServerException {
+		// If the document root is an archive, map it and index it once up front.
+		ArchiveDocumentRoot archive = null;
+		if(ArchiveDocumentRoot.isArchive(this.config.getDocumentRoot())) {
+			try {
+				archive = new ArchiveDocumentRoot(this.config.getDocumentRoot());
+			} catch(IOException e) {
+				throw new WebServerException(ServerErrorCodes.DOCUMENT_ROOT_ERROR, "Couldn't read the document root archive: " + this.config.getDocumentRoot(), e);
+			}
+		}
+		this.context = new ServerContext(this.config, archive);
+		this.context.setStartup(this.startup);
+
+		// Load the keystore up front so a bad path or password stops the server before it starts listening.
+		TlsSupport tls = null;
+		if(this.config.getKeystorePath() != null) {
+			try {
+				tls = new TlsSupport(this.config, this.context.getMetrics());
+			} catch(IOException | GeneralSecurityException e) {
+				throw new WebServerException(ServerErrorCodes.TLS_CONFIG_ERROR, "Couldn't load the TLS keystore: " + this.config.getKeystorePath(), e);
+			}
+		}
+		if(!this.config.isTcpEnabled() && this.config.getUnixSocketPath() == null) {
+			throw new WebServerException(ServerErrorCodes.CONFIG_FILE_PARSE_ERROR, "Nothing to listen on. Turn tcp_enabled on or set a unix_socket_path.", null);
+		}
+
+		// The Unix domain socket is opened first, so a proxy on the same host can connect as soon as we're ready.
+		if(this.config.getUnixSocketPath() != null) {
+			try {
+				this.unixListener = new UnixSocketListener(this.config.getUnixSocketPath(), this.config.getBacklog());
+			} catch(IOException | UnsupportedOperationException e) {
+				throw new WebServerException(ServerErrorCodes.SERVER_SOCKET_ERROR, "Couldn't listen on the Unix domain socket: " + this.config.getUnixSocketPath(), e);
+			}
+			this.startAcceptor("unix-socket-acceptor", this.unixListener::accept, null, this.unixListener.getPath().toString());
+		}
+		if(this.config.isTcpEnabled()) {
+			this.serverSocket = this.bind(tls);
+			this.startAcceptor("acceptor", this.serverSocket::accept, tls, this.config.getHostname() + ":" + this.getPort());
+		}
+		this.startup.mark("bound");
+		this.context.setReady(true);
+		this.startup.mark("ready");
+		WebServer.LOGGER.info("Ready.");
+		this.startWarmUp();
+	}
+
+	/**
+	 * Loads and fills everything that's only there to make requests faster, on a thread of its own so the server
+	 * can answer requests while it happens. Nothing needs it to be done: Tika is loaded by the first request that
+	 * needs it, a file that isn't cached yet is opened when it's asked for, and a fingerprinted URL is checked
+	 * against the file when it's requested. Stopping the server interrupts it.
+	 */
+	private void startWarmUp() {
+		this.warmUp = new Thread(() -> {
+			// The first request usually comes in right away (it's often the load balancer's health check). It
+			// doesn't have to share the CPU with this.
+			try {
+				this.startup.awaitFirstResponse(WebServer.WARM_UP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				return;
+			}
+			ContentTypes.warmUp();
+			// Get the files the last run served most open and read.
+			new CacheWarmer(this.context).warm();
+			for(VirtualHost host : this.context.getVirtualHosts().getHosts()) {
+				if(Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				if(host.getAssets() != null) {
+					host.getAssets().scan();
+				}
+			}
+			this.startup.mark("warmed up");
+			WebServer.LOGGER.info("Warmed up in {} ms.", this.startup.elapsed("warmed up") - this.startup.elapsed("ready"));
+		}, "warm-up");
+		this.warmUp.setDaemon(true);
+		this.warmUp.start();
+	}
+
+	/**
+	 * Opens the TCP listener.
+	 */
+	private ServerSocket bind(final TlsSupport tls) throws WebServerException {
+		final InetAddress host;
+		try {
+			host = InetAddress.getByName(this.config.getHostname());
+		} catch(UnknownHostException e) {
+			throw new WebServerException(ServerErrorCodes.INVALID_HOST_NAME, "The hostname provided looks invalid: " + this.config.getHostname(), e);
+		}
+		WebServer.LOGGER.debug("Creating a server socket. Binding to {}:{}", this.config.getHostname(), this.config.getPort());
+		WebServer.LOGGER.debug("{} resolves to IP {}", this.config.getHostname(), host.getHostAddress());
+		ServerSocket socket = null;
+		try {
+			// Plain connections come from a channel so responses to slow clients can be finished without blocking.
+			socket = tls != null ? tls.createServerSocket() : ServerSocketChannel.open().socket();
+			// The receive buffer has to be set before binding for windows larger than 64k to be negotiated.
+			if(this.config.getReceiveBufferSize() > 0) {
+				socket.setReceiveBufferSize(this.config.getReceiveBufferSize());
+			}
+			socket.bind(new InetSocketAddress(host, this.config.getPort()), this.config.getBacklog());
+			return socket;
+		} catch(BindException e) {
+			WebServer.closeQuietly(socket);
+			final String message;
+			if(e.getMessage().startsWith("Permission denied")) {
+				message = "It looks like you may not have permissions to bind to port " + this.config.getPort();
+			} else if(e.getMessage().startsWith("Cannot assign requested address")) {
+				message = "Can't resolve the hostname/IP for this host. Check your server configuration.";
+			} else if(e.getMessage().startsWith("Address already in use")) {
+				message = "Something else is already using port " + this.config.getPort();
+			} else {
+				message = "There was a problem binding to port " + this.config.getPort();
+			}
+			throw new WebServerException(ServerErrorCodes.PORT_IN_USE, message, e);
+		} catch(IOException e) {
+			WebServer.closeQuietly(socket);
+			throw new WebServerException(ServerErrorCodes.SERVER_SOCKET_ERROR, "There was a problem while initializing and listening for requests.", e);
+		}
+	}
+
+	private void startAcceptor(final String name, final Server.Acceptor acceptor, final TlsSupport tls, final String address) {
+		final Thread thread = new Thread(() -> {
+			try {
+				Server.acceptConnections(acceptor, this.context, tls);
+			} catch(IOException e) {
+				if(!this.stopping) {
+					// Nothing more is coming in, so there's no point staying up.
+					WebServer.LOGGER.error("Stopped accepting connections on {}", address, e);
+					this.stop();
+				}
+			}
+		}, name);
+		thread.start();
+		this.acceptors.add(thread);
+		WebServer.LOGGER.info("Waiting for connections on {}", address);
+	}
+
+	/**
+	 * Stops the server, giving in-flight requests up to the configured shutdown_timeout to finish.
+	 */
+	public void stop() {
+		this.stop(this.config.getShutdownTimeout());
+	}
+
+	/**
+	 * Stops the server. Returns once it's stopped. Stopping a server that's already stopping just waits for it.
+	 * @param timeoutMillis How long requests that are already being served get to finish
+	 */
+	public void stop(final long timeoutMillis) {
+		final boolean first;
+		synchronized(this) {
+			first = this.started && !this.stopping;
+			this.stopping = true;
+		}
+		if(!first) {
+			if(!this.started) {
+				this.terminated.countDown();
+			}
+			try {
+				this.terminated.await();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		final long deadline = System.nanoTime() + timeoutMillis * 1000000;
+		WebServer.LOGGER.info("Stopping. Waiting up to {} ms for requests in flight.", timeoutMillis);
+		this.context.setReady(false);
+		this.context.setDraining(true);
+		this.closeListeners();
+		final ConnectionRegistry connections = this.context.getConnections();
+		int active;
+		while((active = connections.countActive()) > 0 && deadline - System.nanoTime() > 0) {
+			try {
+				Thread.sleep(WebServer.DRAIN_POLL_MILLIS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if(active > 0) {
+			WebServer.LOGGER.warn("Gave up waiting on {} requests.", active);
+		}
+		this.shutdownContext(Math.max(0, (deadline - System.nanoTime()) / 1000000));
+		this.terminated.countDown();
+		WebServer.LOGGER.info("Stopped.");
+	}
+
+	/**
+	 * Closes whatever connections are left, then stops the workers and everything else this server started or
+	 * opened: the warm-up, reaper and drainer threads, the open file cache, the pooled proxy connections and the access
+	 * log. Another server can be started in the same JVM afterwards without anything left over from this one.
+	 * @param timeoutMillis How long the workers get to wind down
+	 */
+	private void shutdownContext(final long timeoutMillis) {
+		if(this.context == null) {
+			return;
+		}
+		if(this.warmUp != null) {
+			this.warmUp.interrupt();
+			try {
+				this.warmUp.join(1000);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.context.getConnections().close();
+		if(this.context.getDrainer() != null) {
+			this.context.getDrainer().close();
+		}
+		this.context.getLanes().shutdown(timeoutMillis);
+		this.context.getOpenFiles().clear();
+		if(this.context.getProxy() != null) {
+			this.context.getProxy().close();
+		}
+		if(this.context.getAccessLog() != null) {
+			this.context.getAccessLog().close();
+		}
+	}
+
+	private void closeListeners() {
+		WebServer.closeQuietly(this.serverSocket);
+		WebServer.closeQuietly(this.unixListener);
+		for(Thread acceptor : this.acceptors) {
+			if(acceptor != Thread.currentThread()) {
+				try {
+					acceptor.join(1000);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(final Closeable closeable) {
+		if(closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch(IOException e) {
+			WebServer.LOGGER.debug("Couldn't close {}", closeable, e);
+		}
+	}
+
+	/**
+	 * Waits for the server to stop.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		this.terminated.await();
+	}
+
+	/**
+	 * Waits for the server to stop, but not forever.
+	 * @return False if it was still running when the time ran out
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return this.terminated.await(timeout, unit);
+	}
+
+	/**
+	 * @return The TCP port the server is listening on (handy when it was bound to port 0), or -1 if it isn't
+	 */
+	public int getPort() {
+		return this.serverSocket != null ? this.serverSocket.getLocalPort() : -1;
+	}
+
+	/**
+	 * @return The server's shared state, or null if it hasn't been started
+	 */
+	public ServerContext getContext() {
+		return this.context;
+	}
+
+	public ServerConfig getConfig() {
+		return this.config;
+	}
+
+	/**
+	 * @return True once the server has started and until it starts stopping
+	 */
+	public boolean isRunning() {
+		return this.started && !this.stopping;
+	}
+
+	/**
+	 * Builds a WebServer. Anything not set here comes from the config.
+	 */
+	public static class Builder {
+		private ServerConfig config;
+		private String hostname;
+		private Integer port;
+		private String unixSocketPath;
+		private StartupTimeline startup;
+
+		/**
+		 * @param config The configuration to start from. The builder's other settings are applied on top of it.
+		 */
+		public Builder config(final ServerConfig config) {
+			this.config = config;
+			return this;
+		}
+
+		/**
+		 * @param hostname The address to listen on
+		 * @param port The port to listen on, or 0 to pick a free one
+		 */
+		public Builder bind(final String hostname, final int port) {
+			this.hostname = hostname;
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param path Also listen on a Unix domain socket at this path
+		 */
+		public Builder unixSocket(final String path) {
+			this.unixSocketPath = path;
+			return this;
+		}
+
+		/**
+		 * @param startup The timeline to mark startup on, if the clock started before the server was built (i.e.,
+		 * at JVM start). By default it starts when the server's started.
+		 */
+		public Builder startup(final StartupTimeline startup) {
+			this.startup = startup;
+			return this;
+		}
+
+		public WebServer build() {
+			final ServerConfig config = this.config != null ? this.config : new ServerConfig();
+			if(this.hostname != null) {
+				config.setHostname(this.hostname);
+				config.setPort(this.port);
+			}
+			if(this.unixSocketPath != null) {
+				config.setUnixSocketPath(this.unixSocketPath);
+			}
+			if(config.getDocumentRoot() == null) {
+				throw new IllegalStateException("The server needs a document root.");
+			}
+			return new WebServer(config, this.startup);
+		}
+	}
+}
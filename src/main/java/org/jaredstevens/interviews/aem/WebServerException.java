@@ -0,0 +1,18 @@
+package org.jaredstevens.interviews.aem;
+
+/**
+ * Thrown when a WebServer can't start. It carries the exit code the command line server stops with, so the
+ * reason it gave up is the same whether it's embedded or not.
+ */
+public class WebServerException extends Exception {
+	private final ServerErrorCodes errorCode;
+
+	public WebServerException(final ServerErrorCodes errorCode, final String message, final Throwable cause) {
+		super(message, cause);
+		this.errorCode = errorCode;
+	}
+
+	public ServerErrorCodes getErrorCode() {
+		return this.errorCode;
+	}
+}
@@ -0,0 +1,104 @@
+package org.jaredstevens.interviews.aem.http2;
+
+import java.util.AbstractMap;
+import java.util.Map;
+
+/**
+ * Pieces of HPACK (RFC 7541) shared by the encoder and decoder: the static table and integer encoding.
+ */
+final class Hpack {
+	// Every entry in the dynamic table costs its name and value length plus this much overhead.
+	static final int ENTRY_OVERHEAD = 32;
+
+	// RFC 7541, Appendix A. Index 0 isn't used.
+	static final Map.Entry<String, String>[] STATIC_TABLE = Hpack.buildStaticTable(
+					":authority", "",
+					":method", "GET",
+					":method", "POST",
+					":path", "/",
+					":path", "/index.html",
+					":scheme", "http",
+					":scheme", "https",
+					":status", "200",
+					":status", "204",
+					":status", "206",
+					":status", "304",
+					":status", "400",
+					":status", "404",
+					":status", "500",
+					"accept-charset", "",
+					"accept-encoding", "gzip, deflate",
+					"accept-language", "",
+					"accept-ranges", "",
+					"accept", "",
+					"access-control-allow-origin", "",
+					"age", "",
+					"allow", "",
+					"authorization", "",
+					"cache-control", "",
+					"content-disposition", "",
+					"content-encoding", "",
+					"content-language", "",
+					"content-length", "",
+					"content-location", "",
+					"content-range", "",
+					"content-type", "",
+					"cookie", "",
+					"date", "",
+					"etag", "",
+					"expect", "",
+					"expires", "",
+					"from", "",
+					"host", "",
+					"if-match", "",
+					"if-modified-since", "",
+					"if-none-match", "",
+					"if-range", "",
+					"if-unmodified-since", "",
+					"last-modified", "",
+					"link", "",
+					"location", "",
+					"max-forwards", "",
+					"proxy-authenticate", "",
+					"proxy-authorization", "",
+					"range", "",
+					"referer", "",
+					"refresh", "",
+					"retry-after", "",
+					"server", "",
+					"set-cookie", "",
+					"strict-transport-security", "",
+					"transfer-encoding", "",
+					"user-agent", "",
+					"vary", "",
+					"via", "",
+					"www-authenticate", "");
+
+	private Hpack() {
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map.Entry<String, String>[] buildStaticTable(final String... namesAndValues) {
+		final Map.Entry<String, String>[] table = (Map.Entry<String, String>[])new Map.Entry<?, ?>[namesAndValues.length / 2 + 1];
+		for(int i = 0; i < namesAndValues.length; i += 2) {
+			table[i / 2 + 1] = new AbstractMap.SimpleImmutableEntry<>(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return table;
+	}
+
+	/**
+	 * Finds a static table entry for a header.
+	 * @param name The header name (lower case)
+	 * @param value The header value
+	 * @param matchValue If true, only an entry with the same name and value counts as a match.
+	 * @return The index of the first matching entry, or 0 if there isn't one.
+	 */
+	static int findStaticIndex(final String name, final String value, final boolean matchValue) {
+		for(int i = 1; i < Hpack.STATIC_TABLE.length; ++i) {
+			if(Hpack.STATIC_TABLE[i].getKey().equals(name) && (!matchValue || Hpack.STATIC_TABLE[i].getValue().equals(value))) {
+				return i;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,157 @@
+package org.jaredstevens.interviews.aem.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) sent by the client.
+ * The dynamic table is connection state, so there's one decoder per connection and every header block
+ * has to go through it in order, even for streams we end up refusing.
+ */
+public class HpackDecoder {
+	private final LinkedList<Map.Entry<String, String>> dynamicTable = new LinkedList<>();
+	// The most the client is allowed to grow the table to (our SETTINGS_HEADER_TABLE_SIZE)
+	private final int maxTableSizeLimit;
+	private int maxTableSize;
+	private int tableSize;
+	// Where we are in the header block currently being decoded
+	private byte[] block;
+	private int position;
+
+	public HpackDecoder(final int maxTableSize) {
+		this.maxTableSizeLimit = maxTableSize;
+		this.maxTableSize = maxTableSize;
+	}
+
+	/**
+	 * Decodes a complete header block (HEADERS plus any CONTINUATION fragments).
+	 * @param headerBlock The header block
+	 * @return The header fields in the order they were sent
+	 * @throws Http2Exception Thrown with COMPRESSION_ERROR if the block can't be decoded.
+	 */
+	public List<Map.Entry<String, String>> decode(final byte[] headerBlock) throws Http2Exception {
+		this.block = headerBlock;
+		this.position = 0;
+		final List<Map.Entry<String, String>> headers = new ArrayList<>();
+		try {
+			while(this.position < this.block.length) {
+				final int first = this.block[this.position] & 0xff;
+				if((first & 0x80) != 0) {
+					// Indexed header field
+					headers.add(this.getEntry(this.readInteger(7)));
+				} else if((first & 0x40) != 0) {
+					// Literal header field with incremental indexing
+					final Map.Entry<String, String> header = this.readLiteral(6);
+					this.addToTable(header);
+					headers.add(header);
+				} else if((first & 0x20) != 0) {
+					// Dynamic table size update
+					final int newSize = this.readInteger(5);
+					if(newSize > this.maxTableSizeLimit) {
+						throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update larger than allowed: " + newSize);
+					}
+					this.maxTableSize = newSize;
+					this.evict(0);
+				} else {
+					// Literal header field without indexing (0000) or never indexed (0001)
+					headers.add(this.readLiteral(4));
+				}
+			}
+		} catch(ArrayIndexOutOfBoundsException e) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block", e);
+		} finally {
+			this.block = null;
+		}
+		return headers;
+	}
+
+	int getTableSize() {
+		return this.tableSize;
+	}
+
+	private Map.Entry<String, String> readLiteral(final int prefixBits) throws Http2Exception {
+		final int nameIndex = this.readInteger(prefixBits);
+		final String name = nameIndex == 0 ? this.readString() : this.getEntry(nameIndex).getKey();
+		final String value = this.readString();
+		return new AbstractMap.SimpleImmutableEntry<>(name, value);
+	}
+
+	private Map.Entry<String, String> getEntry(final int index) throws Http2Exception {
+		if(index <= 0) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header index: " + index);
+		}
+		if(index < Hpack.STATIC_TABLE.length) {
+			return Hpack.STATIC_TABLE[index];
+		}
+		final int dynamicIndex = index - Hpack.STATIC_TABLE.length;
+		if(dynamicIndex >= this.dynamicTable.size()) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header index out of range: " + index);
+		}
+		return this.dynamicTable.get(dynamicIndex);
+	}
+
+	private void addToTable(final Map.Entry<String, String> header) {
+		final int entrySize = HpackDecoder.entrySize(header);
+		// An entry bigger than the whole table just empties it.
+		this.evict(entrySize);
+		if(entrySize <= this.maxTableSize) {
+			this.dynamicTable.addFirst(header);
+			this.tableSize += entrySize;
+		}
+	}
+
+	/**
+	 * Drops the oldest entries until there's room for an entry of the given size.
+	 */
+	private void evict(final int roomNeeded) {
+		while(!this.dynamicTable.isEmpty() && this.tableSize + roomNeeded > this.maxTableSize) {
+			this.tableSize -= HpackDecoder.entrySize(this.dynamicTable.removeLast());
+		}
+	}
+
+	private static int entrySize(final Map.Entry<String, String> header) {
+		return header.getKey().length() + header.getValue().length() + Hpack.ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Reads an integer with an N-bit prefix (RFC 7541, section 5.1).
+	 */
+	private int readInteger(final int prefixBits) throws Http2Exception {
+		final int prefixMask = (1 << prefixBits) - 1;
+		int value = this.block[this.position++] & prefixMask;
+		if(value < prefixMask) {
+			return value;
+		}
+		int shift = 0;
+		int next;
+		do {
+			next = this.block[this.position++] & 0xff;
+			value += (next & 0x7f) << shift;
+			shift += 7;
+			if(shift > 28 || value < 0) {
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer too large");
+			}
+		} while((next & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Reads a string literal, which may be Huffman encoded (RFC 7541, section 5.2).
+	 */
+	private String readString() throws Http2Exception {
+		final boolean huffman = (this.block[this.position] & 0x80) != 0;
+		final int length = this.readInteger(7);
+		if(length > this.block.length - this.position) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String longer than header block");
+		}
+		final String value = huffman
+						? Huffman.decode(this.block, this.position, length)
+						: new String(this.block, this.position, length, StandardCharsets.ISO_8859_1);
+		this.position += length;
+		return value;
+	}
+}
@@ -0,0 +1,68 @@
+package org.jaredstevens.interviews.aem.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Encodes response headers into HPACK header blocks.
+ * We only ever use the static table and never add to the dynamic table, which keeps the encoder
+ * stateless (so streams can encode concurrently) at the cost of a few bytes per response.
+ */
+public class HpackEncoder {
+	/**
+	 * Encodes a list of header fields.
+	 * @param headers The header fields. Names must already be lower case.
+	 * @return The header block
+	 */
+	public byte[] encode(final Iterable<Map.Entry<String, String>> headers) {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for(Map.Entry<String, String> header : headers) {
+			final int fullMatch = Hpack.findStaticIndex(header.getKey(), header.getValue(), true);
+			if(fullMatch > 0) {
+				// Indexed header field
+				HpackEncoder.writeInteger(output, 0x80, 7, fullMatch);
+				continue;
+			}
+			// Literal header field without indexing, using the static table for the name if we can
+			final int nameMatch = Hpack.findStaticIndex(header.getKey(), null, false);
+			HpackEncoder.writeInteger(output, 0x00, 4, nameMatch);
+			if(nameMatch == 0) {
+				HpackEncoder.writeString(output, header.getKey());
+			}
+			HpackEncoder.writeString(output, header.getValue());
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Writes an integer with an N-bit prefix (RFC 7541, section 5.1).
+	 * @param output Where to write the integer
+	 * @param firstByteFlags The bits that sit above the prefix in the first byte
+	 * @param prefixBits The size of the prefix
+	 * @param value The value to encode
+	 */
+	static void writeInteger(final ByteArrayOutputStream output, final int firstByteFlags, final int prefixBits, int value) {
+		final int prefixMask = (1 << prefixBits) - 1;
+		if(value < prefixMask) {
+			output.write(firstByteFlags | value);
+			return;
+		}
+		output.write(firstByteFlags | prefixMask);
+		value -= prefixMask;
+		while(value >= 0x80) {
+			output.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+	/**
+	 * Writes a plain (not Huffman encoded) string literal.
+	 */
+	private static void writeString(final ByteArrayOutputStream output, final String value) {
+		final byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+		HpackEncoder.writeInteger(output, 0x00, 7, bytes.length);
+		output.write(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,773 @@
+package org.jaredstevens.interviews.aem.http2;
+
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestMethod;
+import org.jaredstevens.interviews.aem.httppojos.HttpResponseHeader;
+import org.jaredstevens.interviews.aem.httppojos.InvalidHttpMethodException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Serves HTTP/2 over cleartext (h2c) on a single connection.
+ * The connection's own thread reads frames. Each request stream is handed to one of the server's stream workers,
+ * which runs it through the same request processing the HTTP/1.1 path uses; the worker writes an HTTP/1.1 style response into a
+ * stream-specific OutputStream that turns it into HEADERS and DATA frames. Many streams can be in flight at
+ * once, and a stream that runs out of flow control window just waits for the client's WINDOW_UPDATE without
+ * holding up the others. A client gets at most MAX_CONCURRENT_STREAMS streams at once (we tell it so in our
+ * SETTINGS, and refuse any more), so one connection can't queue up unlimited work for the workers.
+ * Supports prior knowledge (the client starts with the connection preface) and "Upgrade: h2c".
+ * Request bodies aren't supported yet. A request that has one gets a 501.
+ */
+public class Http2Connection {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Http2Connection.class);
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final String PROTOCOL = "HTTP/2.0";
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	private static final int HEADER_TABLE_SIZE = 4096;
+	// How many streams a client may have open at once (and so how many workers one connection can use)
+	private static final int MAX_CONCURRENT_STREAMS = 32;
+	// The largest HTTP/1.1 style response header we'll translate
+	private static final int MAX_RESPONSE_HEADER_SIZE = 16384;
+	// The largest request header block (HEADERS plus any CONTINUATIONs) we'll collect before decoding it
+	private static final int MAX_REQUEST_HEADER_BLOCK_SIZE = 65536;
+
+	// Settings identifiers (RFC 7540, section 6.5.2)
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	// Headers that only mean something for HTTP/1.1 and aren't allowed in HTTP/2
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+	private final InputStream inStream;
+	private final OutputStream outStream;
+	private final BiConsumer<HttpRequestHeader, OutputStream> requestProcessor;
+	// Runs the streams. This belongs to the server, so it's bounded and stopped with it.
+	private final Executor streamWorkers;
+	private final HpackDecoder decoder = new HpackDecoder(Http2Connection.HEADER_TABLE_SIZE);
+	private final HpackEncoder encoder = new HpackEncoder();
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	// Serializes frame writes from the reader and the stream workers
+	private final Object writeLock = new Object();
+
+	// Flow control state. Guarded by this.
+	private int connectionSendWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+	private int initialStreamWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+	private volatile int peerMaxFrameSize = Http2Connection.DEFAULT_MAX_FRAME_SIZE;
+	private boolean closed;
+	// Set once a GOAWAY with an error has gone out, so finish() doesn't follow it with a NO_ERROR one
+	private boolean goneAway;
+
+	// Only touched by the reader thread
+	private int lastStreamId;
+	private int continuationStreamId;
+	// Whether the HEADERS frame the continuation belongs to ended its stream
+	private boolean continuationEndStream;
+	private ByteArrayOutputStream continuationBlock;
+
+	/**
+	 * @param inStream The client's input stream. For prior knowledge, the connection preface should still be
+	 *                 unread.
+	 * @param outStream The client's output stream
+	 * @param requestProcessor Processes a request and writes an HTTP/1.1 style response to the given stream.
+	 *                         This is RequestHandler::processStream.
+	 * @param streamWorkers Runs each stream's request. This shouldn't be the pool the connection itself runs on,
+	 *                      since the connection waits for its streams before it finishes.
+	 */
+	public Http2Connection(final InputStream inStream, final OutputStream outStream, final BiConsumer<HttpRequestHeader, OutputStream> requestProcessor,
+												 final Executor streamWorkers) {
+		this.inStream = inStream;
+		this.outStream = outStream;
+		this.requestProcessor = requestProcessor;
+		this.streamWorkers = streamWorkers;
+	}
+
+	/**
+	 * Checks to see if an HTTP/1.1 request is asking to upgrade the connection to h2c.
+	 * @param header The HTTP/1.1 request header
+	 * @return True if the client sent "Upgrade: h2c" along with an HTTP2-Settings header
+	 */
+	public static boolean isUpgradeRequest(final HttpRequestHeader header) {
+		final String upgrade = header.getHeader("Upgrade");
+		return header.getMethod() == HttpRequestMethod.GET
+						&& upgrade != null
+						&& upgrade.toLowerCase().contains("h2c")
+						&& header.getHeader("HTTP2-Settings") != null;
+	}
+
+	/**
+	 * Serves a connection where the client started talking HTTP/2 right away (prior knowledge).
+	 * Returns once the client goes away or goes idle.
+	 * @throws IOException Thrown if there's a problem talking to the client.
+	 */
+	public void serve() throws IOException {
+		try {
+			this.readPreface();
+			this.writeSettings();
+			this.readFrames();
+		} catch(Http2Exception e) {
+			this.goAway(e);
+		}
+		this.finish();
+	}
+
+	/**
+	 * Switches an HTTP/1.1 connection to HTTP/2 and serves it. The request that asked for the upgrade is
+	 * answered on stream 1. Returns once the client goes away or goes idle.
+	 * @param request The request that asked for the upgrade
+	 * @throws IOException Thrown if there's a problem talking to the client.
+	 */
+	public void serveUpgrade(final HttpRequestHeader request) throws IOException {
+		try {
+			// The client's settings come along with the upgrade request, base64url encoded.
+			final byte[] settings;
+			try {
+				settings = Base64.getUrlDecoder().decode(request.getHeader("HTTP2-Settings").trim());
+			} catch(IllegalArgumentException e) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Malformed HTTP2-Settings header", e);
+			}
+			this.applySettings(settings);
+
+			final Map<String, String> headers = new HashMap<>();
+			headers.put("Connection", "Upgrade");
+			headers.put("Upgrade", "h2c");
+			final HttpResponseHeader switching = new HttpResponseHeader("HTTP/1.1", 101, "Switching Protocols", headers);
+			synchronized(this.writeLock) {
+				this.outStream.write(switching.getRawResponse().getBytes(StandardCharsets.US_ASCII));
+			}
+			this.writeSettings();
+
+			// The upgrade request becomes stream 1, which the client has already finished sending.
+			request.setProtocol(Http2Connection.PROTOCOL);
+			this.lastStreamId = 1;
+			this.startStream(1, request);
+
+			this.readPreface();
+			this.readFrames();
+		} catch(Http2Exception e) {
+			this.goAway(e);
+		}
+		this.finish();
+	}
+
+	private void readPreface() throws IOException, Http2Exception {
+		final byte[] preface = new byte[Http2Connection.PREFACE.length];
+		int offset = 0;
+		while(offset < preface.length) {
+			final int bytesRead;
+			try {
+				bytesRead = this.inStream.read(preface, offset, preface.length - offset);
+			} catch(SocketTimeoutException e) {
+				continue;
+			}
+			if(bytesRead == -1) {
+				throw new EOFException("Connection closed before the HTTP/2 preface was read");
+			}
+			offset += bytesRead;
+		}
+		if(!Arrays.equals(preface, Http2Connection.PREFACE)) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+		}
+	}
+
+	/**
+	 * Reads and dispatches frames until the client closes the connection, sends GOAWAY, or goes idle.
+	 */
+	private void readFrames() throws IOException, Http2Exception {
+		while(true) {
+			final Http2Frame frame;
+			try {
+				frame = Http2Frame.read(this.inStream, Http2Connection.DEFAULT_MAX_FRAME_SIZE);
+			} catch(SocketTimeoutException e) {
+				// It's only idle if nothing is in flight. Clients don't have to say anything while they download.
+				if(this.streams.isEmpty() && this.continuationBlock == null) {
+					Http2Connection.LOGGER.debug("HTTP/2 connection went idle.");
+					return;
+				}
+				continue;
+			}
+			if(frame == null) {
+				return;
+			}
+			if(this.continuationBlock != null && frame.getType() != Http2Frame.CONTINUATION) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected a CONTINUATION frame");
+			}
+			switch(frame.getType()) {
+				case Http2Frame.HEADERS:
+					this.onHeaders(frame);
+					break;
+				case Http2Frame.CONTINUATION:
+					this.onContinuation(frame);
+					break;
+				case Http2Frame.DATA:
+					this.onData(frame);
+					break;
+				case Http2Frame.SETTINGS:
+					this.onSettings(frame);
+					break;
+				case Http2Frame.WINDOW_UPDATE:
+					this.onWindowUpdate(frame);
+					break;
+				case Http2Frame.RST_STREAM:
+					this.onResetStream(frame);
+					break;
+				case Http2Frame.PING:
+					this.onPing(frame);
+					break;
+				case Http2Frame.GOAWAY:
+					Http2Connection.LOGGER.debug("Client sent GOAWAY.");
+					return;
+				case Http2Frame.PUSH_PROMISE:
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients can't push");
+				default:
+					// PRIORITY and unknown frame types are ignored.
+					break;
+			}
+		}
+	}
+
+	private void onHeaders(final Http2Frame frame) throws IOException, Http2Exception {
+		final int streamId = frame.getStreamId();
+		if(streamId == 0 || streamId % 2 == 0) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid stream id for HEADERS: " + streamId);
+		}
+		final byte[] payload = frame.getPayload();
+		int offset = 0;
+		int length = payload.length;
+		if(frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+			if(length < 1) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS frame too short for padding");
+			}
+			final int padding = payload[0] & 0xff;
+			offset += 1;
+			length -= 1 + padding;
+		}
+		if(frame.hasFlag(Http2Frame.FLAG_PRIORITY)) {
+			// Stream dependency and weight. We don't prioritize, so skip them.
+			offset += 5;
+			length -= 5;
+		}
+		if(length < 0) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid HEADERS padding");
+		}
+		final byte[] fragment = Arrays.copyOfRange(payload, offset, offset + length);
+		if(frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+			this.onHeaderBlock(streamId, fragment, frame.hasFlag(Http2Frame.FLAG_END_STREAM));
+		} else {
+			this.continuationStreamId = streamId;
+			this.continuationEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+			this.continuationBlock = new ByteArrayOutputStream();
+			this.continuationBlock.write(fragment);
+		}
+	}
+
+	private void onContinuation(final Http2Frame frame) throws IOException, Http2Exception {
+		if(this.continuationBlock == null || frame.getStreamId() != this.continuationStreamId) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+		}
+		this.continuationBlock.write(frame.getPayload());
+		if(this.continuationBlock.size() > Http2Connection.MAX_REQUEST_HEADER_BLOCK_SIZE) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block too large");
+		}
+		if(frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+			final byte[] block = this.continuationBlock.toByteArray();
+			this.continuationBlock = null;
+			this.onHeaderBlock(this.continuationStreamId, block, this.continuationEndStream);
+		}
+	}
+
+	/**
+	 * Handles a complete request header block and starts the stream.
+	 * @param endStream False if a request body follows the header block
+	 */
+	private void onHeaderBlock(final int streamId, final byte[] block, final boolean endStream) throws IOException, Http2Exception {
+		// Always decode, even if we're going to refuse the stream, to keep the dynamic table in sync.
+		final List<Map.Entry<String, String>> fields = this.decoder.decode(block);
+		if(streamId <= this.lastStreamId) {
+			if(this.streams.containsKey(streamId)) {
+				// Trailers on a request we're already serving. We don't use them.
+				return;
+			}
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on a closed stream: " + streamId);
+		}
+		this.lastStreamId = streamId;
+		if(this.streams.size() >= Http2Connection.MAX_CONCURRENT_STREAMS) {
+			this.writeResetStream(streamId, Http2Exception.REFUSED_STREAM);
+			return;
+		}
+		final HttpRequestHeader request = Http2Connection.toRequestHeader(fields);
+		if(request == null) {
+			this.writeResetStream(streamId, Http2Exception.PROTOCOL_ERROR);
+			return;
+		}
+		if(!endStream) {
+			this.rejectBody(streamId);
+			return;
+		}
+		this.startStream(streamId, request);
+	}
+
+	/**
+	 * Answers a request that has a body with a 501. Request bodies aren't passed through to the request
+	 * processor, so running it would serve an upload (or proxy a request) with the body silently missing.
+	 * The client is told to stop sending the body, too.
+	 */
+	private void rejectBody(final int streamId) throws IOException {
+		final Map<String, String> headers = new HashMap<>();
+		headers.put("Content-Length", "0");
+		final HttpResponseHeader notImplemented = new HttpResponseHeader(Http2Connection.PROTOCOL, 501, "Not Implemented", headers);
+		final Stream stream;
+		synchronized(this) {
+			stream = new Stream(streamId, this.initialStreamWindow);
+		}
+		// There's no response body, so this never waits on flow control and can be written from the reader.
+		try(StreamOutputStream output = new StreamOutputStream(stream)) {
+			output.write(notImplemented.getRawResponse().getBytes(StandardCharsets.US_ASCII));
+		}
+		this.writeResetStream(streamId, Http2Exception.NO_ERROR);
+	}
+
+	private void startStream(final int streamId, final HttpRequestHeader request) throws IOException {
+		final Stream stream;
+		synchronized(this) {
+			stream = new Stream(streamId, this.initialStreamWindow);
+		}
+		this.streams.put(streamId, stream);
+		try {
+			this.streamWorkers.execute(() -> {
+				try(StreamOutputStream output = new StreamOutputStream(stream)) {
+					this.requestProcessor.accept(request, output);
+				} catch(IOException e) {
+					Http2Connection.LOGGER.debug("Couldn't finish HTTP/2 stream {}", streamId, e);
+				} finally {
+					this.endStream(streamId);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			// The server's stopping. The client can retry the request somewhere else.
+			this.endStream(streamId);
+			this.writeResetStream(streamId, Http2Exception.REFUSED_STREAM);
+		}
+	}
+
+	private void endStream(final int streamId) {
+		this.streams.remove(streamId);
+		synchronized(this) {
+			this.notifyAll();
+		}
+	}
+
+	private void onData(final Http2Frame frame) throws IOException {
+		// We don't accept request bodies (see rejectBody), but the client still used up flow control window sending it.
+		final int length = frame.getPayload().length;
+		if(length > 0) {
+			this.writeWindowUpdate(0, length);
+			if(this.streams.containsKey(frame.getStreamId()) && !frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+				this.writeWindowUpdate(frame.getStreamId(), length);
+			}
+		}
+	}
+
+	private void onSettings(final Http2Frame frame) throws IOException, Http2Exception {
+		if(frame.getStreamId() != 0) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+		}
+		if(frame.hasFlag(Http2Frame.FLAG_ACK)) {
+			return;
+		}
+		this.applySettings(frame.getPayload());
+		this.writeFrame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0], 0, 0);
+	}
+
+	private void applySettings(final byte[] payload) throws Http2Exception {
+		if(payload.length % 6 != 0) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS length: " + payload.length);
+		}
+		for(int offset = 0; offset < payload.length; offset += 6) {
+			final int identifier = ((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff);
+			final int value = Http2Frame.readInt(payload, offset + 2);
+			switch(identifier) {
+				case Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE:
+					if(value < 0) {
+						throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Initial window size too large");
+					}
+					synchronized(this) {
+						// Changing the initial window size adjusts every open stream by the difference.
+						final int delta = value - this.initialStreamWindow;
+						this.initialStreamWindow = value;
+						for(Stream stream : this.streams.values()) {
+							stream.sendWindow += delta;
+						}
+						this.notifyAll();
+					}
+					break;
+				case Http2Connection.SETTINGS_MAX_FRAME_SIZE:
+					if(value < Http2Connection.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+						throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid max frame size: " + value);
+					}
+					this.peerMaxFrameSize = value;
+					break;
+				default:
+					// We don't use the dynamic table when encoding, and we never push, so nothing else matters to us.
+					break;
+			}
+		}
+	}
+
+	private void onWindowUpdate(final Http2Frame frame) throws IOException, Http2Exception {
+		if(frame.getPayload().length != 4) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE length");
+		}
+		final int increment = Http2Frame.readInt(frame.getPayload(), 0) & 0x7fffffff;
+		if(increment == 0) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE with no increment");
+		}
+		synchronized(this) {
+			if(frame.getStreamId() == 0) {
+				if((long)this.connectionSendWindow + increment > Http2Connection.MAX_WINDOW_SIZE) {
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+				}
+				this.connectionSendWindow += increment;
+			} else {
+				final Stream stream = this.streams.get(frame.getStreamId());
+				if(stream != null) {
+					if((long)stream.sendWindow + increment > Http2Connection.MAX_WINDOW_SIZE) {
+						stream.reset = true;
+						this.writeResetStream(stream.id, Http2Exception.FLOW_CONTROL_ERROR);
+					} else {
+						stream.sendWindow += increment;
+					}
+				}
+			}
+			this.notifyAll();
+		}
+	}
+
+	private void onResetStream(final Http2Frame frame) {
+		final Stream stream = this.streams.get(frame.getStreamId());
+		if(stream != null) {
+			synchronized(this) {
+				stream.reset = true;
+				this.notifyAll();
+			}
+		}
+	}
+
+	private void onPing(final Http2Frame frame) throws IOException, Http2Exception {
+		if(frame.getPayload().length != 8) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING length");
+		}
+		if(!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+			this.writeFrame(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.getPayload(), 0, 8);
+		}
+	}
+
+	/**
+	 * Waits for any streams still being served, then says goodbye.
+	 */
+	private void finish() {
+		synchronized(this) {
+			while(!this.streams.isEmpty() && !this.closed) {
+				try {
+					this.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			this.closed = true;
+			this.notifyAll();
+			if(this.goneAway) {
+				return;
+			}
+		}
+		try {
+			this.writeGoAway(Http2Exception.NO_ERROR);
+		} catch(IOException e) {
+			Http2Connection.LOGGER.debug("Couldn't send GOAWAY. The client probably already closed the connection.");
+		}
+	}
+
+	private void goAway(final Http2Exception e) {
+		Http2Connection.LOGGER.warn("HTTP/2 protocol error: {}", e.getMessage());
+		synchronized(this) {
+			this.closed = true;
+			this.goneAway = true;
+			this.notifyAll();
+		}
+		try {
+			this.writeGoAway(e.getErrorCode());
+		} catch(IOException ioException) {
+			Http2Connection.LOGGER.debug("Couldn't send GOAWAY.", ioException);
+		}
+	}
+
+	/**
+	 * Blocks until there is flow control window available for the stream.
+	 * @return How many bytes (up to wanted) the stream may send
+	 * @throws IOException Thrown if the stream is reset or the connection closes while waiting.
+	 */
+	private synchronized int acquireSendWindow(final Stream stream, final int wanted) throws IOException {
+		while(true) {
+			if(this.closed) {
+				throw new IOException("HTTP/2 connection closed");
+			}
+			if(stream.reset) {
+				throw new IOException("HTTP/2 stream " + stream.id + " was reset by the client");
+			}
+			final int available = Math.min(this.connectionSendWindow, stream.sendWindow);
+			if(available > 0) {
+				final int granted = Math.min(available, wanted);
+				this.connectionSendWindow -= granted;
+				stream.sendWindow -= granted;
+				return granted;
+			}
+			try {
+				this.wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for flow control window");
+			}
+		}
+	}
+
+	private void writeSettings() throws IOException {
+		final byte[] payload = new byte[12];
+		payload[1] = (byte)Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS;
+		Http2Frame.writeInt(payload, 2, Http2Connection.MAX_CONCURRENT_STREAMS);
+		payload[7] = (byte)Http2Connection.SETTINGS_HEADER_TABLE_SIZE;
+		Http2Frame.writeInt(payload, 8, Http2Connection.HEADER_TABLE_SIZE);
+		this.writeFrame(Http2Frame.SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+
+	private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+		final byte[] payload = new byte[4];
+		Http2Frame.writeInt(payload, 0, increment);
+		this.writeFrame(Http2Frame.WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+	}
+
+	private void writeResetStream(final int streamId, final int errorCode) throws IOException {
+		final byte[] payload = new byte[4];
+		Http2Frame.writeInt(payload, 0, errorCode);
+		this.writeFrame(Http2Frame.RST_STREAM, 0, streamId, payload, 0, payload.length);
+	}
+
+	private void writeGoAway(final int errorCode) throws IOException {
+		final byte[] payload = new byte[8];
+		Http2Frame.writeInt(payload, 0, this.lastStreamId);
+		Http2Frame.writeInt(payload, 4, errorCode);
+		this.writeFrame(Http2Frame.GOAWAY, 0, 0, payload, 0, payload.length);
+	}
+
+	private void writeFrame(final int type, final int flags, final int streamId, final byte[] payload, final int offset, final int length) throws IOException {
+		final byte[] frame = Http2Frame.encode(type, flags, streamId, payload, offset, length);
+		synchronized(this.writeLock) {
+			this.outStream.write(frame);
+			this.outStream.flush();
+		}
+	}
+
+	/**
+	 * Builds a request header out of the decoded HTTP/2 header fields.
+	 * @return The request, or null if a required pseudo-header is missing or the method isn't one we know.
+	 */
+	static HttpRequestHeader toRequestHeader(final List<Map.Entry<String, String>> fields) {
+		final HttpRequestHeader request = new HttpRequestHeader();
+		final Map<String, String> headers = new HashMap<>();
+		String method = null;
+		for(Map.Entry<String, String> field : fields) {
+			switch(field.getKey()) {
+				case ":method":
+					method = field.getValue();
+					break;
+				case ":path":
+					request.setResource(field.getValue());
+					break;
+				case ":authority":
+					headers.put("Host", field.getValue());
+					break;
+				case ":scheme":
+					break;
+				default:
+					headers.put(field.getKey(), field.getValue());
+					break;
+			}
+		}
+		if(method == null || request.getResource() == null) {
+			return null;
+		}
+		try {
+			request.setMethod(HttpRequestMethod.getMethod(method));
+		} catch(InvalidHttpMethodException e) {
+			return null;
+		}
+		request.setProtocol(Http2Connection.PROTOCOL);
+		request.setRequestString(method + " " + request.getResource() + " " + Http2Connection.PROTOCOL);
+		request.setHeaders(headers);
+		return request;
+	}
+
+	/**
+	 * Per-stream state. The window is guarded by the connection.
+	 */
+	private static class Stream {
+		private final int id;
+		private int sendWindow;
+		private volatile boolean reset;
+
+		Stream(final int id, final int sendWindow) {
+			this.id = id;
+			this.sendWindow = sendWindow;
+		}
+	}
+
+	/**
+	 * Takes the HTTP/1.1 style response written by the request processor and sends it as HEADERS and DATA
+	 * frames on a stream.
+	 */
+	private class StreamOutputStream extends OutputStream {
+		private final Stream stream;
+		private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		private final byte[] data = new byte[Http2Connection.DEFAULT_MAX_FRAME_SIZE];
+		private int dataLength;
+		// Length of the header line currently being collected. An empty line ends the header.
+		private int headerLineLength;
+		private boolean headerSent;
+		private boolean closed;
+
+		StreamOutputStream(final Stream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			this.write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] bytes, int offset, int length) throws IOException {
+			if(this.closed) {
+				throw new IOException("Stream already closed");
+			}
+			// The response header comes first. Collect it until we see the blank line that ends it.
+			while(length > 0 && !this.headerSent) {
+				final byte next = bytes[offset++];
+				--length;
+				this.header.write(next);
+				if(next == '\n') {
+					if(this.headerLineLength == 0) {
+						this.sendHeaders();
+					}
+					this.headerLineLength = 0;
+				} else if(next != '\r') {
+					++this.headerLineLength;
+				}
+				if(!this.headerSent && this.header.size() > Http2Connection.MAX_RESPONSE_HEADER_SIZE) {
+					throw new IOException("Response header too large");
+				}
+			}
+			while(length > 0) {
+				final int copied = Math.min(length, this.data.length - this.dataLength);
+				System.arraycopy(bytes, offset, this.data, this.dataLength, copied);
+				this.dataLength += copied;
+				offset += copied;
+				length -= copied;
+				if(this.dataLength == this.data.length) {
+					this.sendData(false);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(this.headerSent && this.dataLength > 0) {
+				this.sendData(false);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(this.closed) {
+				return;
+			}
+			this.closed = true;
+			if(this.stream.reset) {
+				return;
+			}
+			if(!this.headerSent) {
+				// Nothing usable was written. Let the client know the stream failed.
+				Http2Connection.this.writeResetStream(this.stream.id, Http2Exception.INTERNAL_ERROR);
+				return;
+			}
+			this.sendData(true);
+		}
+
+		/**
+		 * Translates the HTTP/1.1 response header into a HEADERS frame (plus CONTINUATION frames if it's big).
+		 */
+		private void sendHeaders() throws IOException {
+			final String[] lines = new String(this.header.toByteArray(), StandardCharsets.ISO_8859_1).split("\r?\n");
+			final String[] statusParts = lines[0].split(" ");
+			if(statusParts.length < 2) {
+				throw new IOException("Malformed response status line: " + lines[0]);
+			}
+			final List<Map.Entry<String, String>> fields = new ArrayList<>();
+			fields.add(new AbstractMap.SimpleImmutableEntry<>(":status", statusParts[1]));
+			for(int i = 1; i < lines.length; ++i) {
+				final int separator = lines[i].indexOf(':');
+				if(separator <= 0) {
+					continue;
+				}
+				final String name = lines[i].substring(0, separator).trim().toLowerCase();
+				if(!Http2Connection.CONNECTION_HEADERS.contains(name)) {
+					fields.add(new AbstractMap.SimpleImmutableEntry<>(name, lines[i].substring(separator + 1).trim()));
+				}
+			}
+			final byte[] block = Http2Connection.this.encoder.encode(fields);
+			final int maxFrameSize = Http2Connection.this.peerMaxFrameSize;
+			// Header frames for one stream can't be interleaved with any other frames, so hold the write lock.
+			synchronized(Http2Connection.this.writeLock) {
+				int offset = 0;
+				int type = Http2Frame.HEADERS;
+				do {
+					final int length = Math.min(maxFrameSize, block.length - offset);
+					final boolean last = offset + length == block.length;
+					Http2Connection.this.writeFrame(type, last ? Http2Frame.FLAG_END_HEADERS : 0, this.stream.id, block, offset, length);
+					offset += length;
+					type = Http2Frame.CONTINUATION;
+				} while(offset < block.length);
+			}
+			this.headerSent = true;
+		}
+
+		/**
+		 * Sends the buffered body as DATA frames, waiting for flow control window as needed.
+		 * @param endStream If true, the last frame ends the stream (even if there's no data left).
+		 */
+		private void sendData(final boolean endStream) throws IOException {
+			int offset = 0;
+			do {
+				final int remaining = this.dataLength - offset;
+				final int length = remaining > 0
+								? Http2Connection.this.acquireSendWindow(this.stream, Math.min(remaining, Http2Connection.this.peerMaxFrameSize))
+								: 0;
+				final boolean last = endStream && offset + length == this.dataLength;
+				Http2Connection.this.writeFrame(Http2Frame.DATA, last ? Http2Frame.FLAG_END_STREAM : 0, this.stream.id, this.data, offset, length);
+				offset += length;
+			} while(offset < this.dataLength);
+			this.dataLength = 0;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package org.jaredstevens.interviews.aem.http2;
+
+/**
+ * Thrown when the client breaks the HTTP/2 protocol. The error code is sent back to the client in a
+ * GOAWAY (or RST_STREAM) frame.
+ */
+public class Http2Exception extends Exception {
+	// Error codes from RFC 7540, section 7
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int COMPRESSION_ERROR = 0x9;
+
+	private final int errorCode;
+
+	public Http2Exception(int errorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+	}
+
+	public Http2Exception(int errorCode, String message, Throwable cause) {
+		super(message, cause);
+		this.errorCode = errorCode;
+	}
+
+	public int getErrorCode() {
+		return this.errorCode;
+	}
+}
@@ -0,0 +1,142 @@
+package org.jaredstevens.interviews.aem.http2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * A single HTTP/2 frame: a 9 byte header (length, type, flags and stream id) followed by the payload.
+ * This handles reading frames off the wire and encoding them for sending.
+ */
+public class Http2Frame {
+	static final int HEADER_LENGTH = 9;
+
+	// Frame types
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+
+	// Flags
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	private final int type;
+	private final int flags;
+	private final int streamId;
+	private final byte[] payload;
+
+	public Http2Frame(final int type, final int flags, final int streamId, final byte[] payload) {
+		this.type = type;
+		this.flags = flags;
+		this.streamId = streamId;
+		this.payload = payload;
+	}
+
+	/**
+	 * Reads the next frame from the client.
+	 * @param inStream The stream to read from
+	 * @param maxFrameSize The largest payload we're willing to accept
+	 * @return The frame, or null if the client closed the connection between frames.
+	 * @throws SocketTimeoutException Thrown if no frame arrived before the socket timed out. Nothing has been
+	 * 	consumed from the stream when this happens, so it's safe to try again.
+	 * @throws Http2Exception Thrown if the frame is larger than maxFrameSize.
+	 * @throws IOException Thrown if there's a problem reading from the client.
+	 */
+	static Http2Frame read(final InputStream inStream, final int maxFrameSize) throws IOException, Http2Exception {
+		final byte[] header = new byte[HEADER_LENGTH];
+		final int first = inStream.read();
+		if(first == -1) {
+			return null;
+		}
+		header[0] = (byte)first;
+		Http2Frame.readFully(inStream, header, 1, HEADER_LENGTH - 1);
+
+		final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+		if(length > maxFrameSize) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame larger than " + maxFrameSize + ": " + length);
+		}
+		final int type = header[3] & 0xff;
+		final int flags = header[4] & 0xff;
+		final int streamId = Http2Frame.readInt(header, 5) & 0x7fffffff;
+		final byte[] payload = new byte[length];
+		Http2Frame.readFully(inStream, payload, 0, length);
+		return new Http2Frame(type, flags, streamId, payload);
+	}
+
+	/**
+	 * Encodes a frame (header and payload) into a single array so it can be sent with one write.
+	 */
+	static byte[] encode(final int type, final int flags, final int streamId, final byte[] payload, final int offset, final int length) {
+		final byte[] frame = new byte[HEADER_LENGTH + length];
+		frame[0] = (byte)(length >>> 16);
+		frame[1] = (byte)(length >>> 8);
+		frame[2] = (byte)length;
+		frame[3] = (byte)type;
+		frame[4] = (byte)flags;
+		Http2Frame.writeInt(frame, 5, streamId & 0x7fffffff);
+		System.arraycopy(payload, offset, frame, HEADER_LENGTH, length);
+		return frame;
+	}
+
+	static int readInt(final byte[] data, final int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+
+	static void writeInt(final byte[] data, final int offset, final int value) {
+		data[offset] = (byte)(value >>> 24);
+		data[offset + 1] = (byte)(value >>> 16);
+		data[offset + 2] = (byte)(value >>> 8);
+		data[offset + 3] = (byte)value;
+	}
+
+	/**
+	 * Reads exactly length bytes. Once we're part way into a frame, a socket timeout just means the client is
+	 * slow, so keep waiting rather than losing our place in the stream.
+	 */
+	private static void readFully(final InputStream inStream, final byte[] buffer, int offset, int length) throws IOException {
+		while(length > 0) {
+			final int bytesRead;
+			try {
+				bytesRead = inStream.read(buffer, offset, length);
+			} catch(SocketTimeoutException e) {
+				continue;
+			}
+			if(bytesRead == -1) {
+				throw new EOFException("Connection closed in the middle of a frame");
+			}
+			offset += bytesRead;
+			length -= bytesRead;
+		}
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean hasFlag(final int flag) {
+		return (this.flags & flag) != 0;
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+}
@@ -0,0 +1,11 @@
+package org.jaredstevens.interviews.aem.httppojos;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ * The request line or header is over one of the configured size limits. These are answered with a 431.
+ */
+public class HeaderTooLargeException extends BadRequestException {
+	public HeaderTooLargeException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,270 @@
+package org.jaredstevens.interviews.aem.httppojos;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ *
+ * A header map built to be cleared and filled again for every request on a keep-alive connection without
+ * allocating anything. The headers nearly every request or response has (Host, Connection, Content-Length,
+ * Range, If-None-Match...) each have a fixed slot. Anything else goes in a pair of arrays that grow when they
+ * have to and are kept after that. Names are case insensitive, like HTTP says they are.
+ * It's still a Map, so code that walks the headers doesn't need to change. Walking it with entrySet creates
+ * entries though, so the hot paths use get, or nameAt/valueAt.
+ */
+public class HttpHeaders extends AbstractMap<String, String> {
+	// The headers with slots of their own, spelled the way they're written out
+	private static final String[] KNOWN = {
+					"Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "Range", "If-Range",
+					"If-None-Match", "If-Modified-Since", "Accept-Encoding", "Accept", "User-Agent", "Expect", "Upgrade",
+					"Cache-Control", "ETag", "Last-Modified", "Content-Range", "Accept-Ranges", "Content-Encoding", "Vary"
+	};
+	// The slots of the known headers, by the length of their names, so a lookup only compares a couple of names
+	private static final int[][] BY_LENGTH;
+	private static final int INITIAL_EXTRAS = 8;
+
+	static {
+		int longest = 0;
+		for(String name : HttpHeaders.KNOWN) {
+			longest = Math.max(longest, name.length());
+		}
+		BY_LENGTH = new int[longest + 1][0];
+		for(int slot = 0; slot < HttpHeaders.KNOWN.length; ++slot) {
+			final int length = HttpHeaders.KNOWN[slot].length();
+			HttpHeaders.BY_LENGTH[length] = Arrays.copyOf(HttpHeaders.BY_LENGTH[length], HttpHeaders.BY_LENGTH[length].length + 1);
+			HttpHeaders.BY_LENGTH[length][HttpHeaders.BY_LENGTH[length].length - 1] = slot;
+		}
+	}
+
+	private final String[] known = new String[HttpHeaders.KNOWN.length];
+	private String[] names = new String[HttpHeaders.INITIAL_EXTRAS];
+	private String[] values = new String[HttpHeaders.INITIAL_EXTRAS];
+	private int extras;
+	private int size;
+
+	/**
+	 * Finds the slot for a header name, or a name in part of a string (i.e., a raw header line).
+	 * @return The slot, or -1 if the header doesn't have one
+	 */
+	static int slotOf(final String text, final int start, final int end) {
+		final int length = end - start;
+		if(length >= HttpHeaders.BY_LENGTH.length) {
+			return -1;
+		}
+		for(int slot : HttpHeaders.BY_LENGTH[length]) {
+			if(text.regionMatches(true, start, HttpHeaders.KNOWN[slot], 0, length)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String get(final Object key) {
+		if(!(key instanceof String)) {
+			return null;
+		}
+		final String name = (String)key;
+		final int slot = HttpHeaders.slotOf(name, 0, name.length());
+		if(slot >= 0) {
+			return this.known[slot];
+		}
+		final int index = this.indexOf(name, 0, name.length());
+		return index < 0 ? null : this.values[index];
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return this.get(key) != null;
+	}
+
+	/**
+	 * Sets a header, replacing any header with the same name (in any case).
+	 * @param value The value. Null removes the header.
+	 * @return The value it replaced, or null if there wasn't one
+	 */
+	@Override
+	public String put(final String name, final String value) {
+		return this.put(name, 0, name.length(), value);
+	}
+
+	/**
+	 * Sets a header whose name is part of a string, like a raw header line. The name is only copied out of the
+	 * line if it isn't one of the known headers.
+	 */
+	String put(final String text, final int start, final int end, final String value) {
+		if(value == null) {
+			return this.remove(text.substring(start, end));
+		}
+		final int slot = HttpHeaders.slotOf(text, start, end);
+		if(slot >= 0) {
+			final String previous = this.known[slot];
+			this.known[slot] = value;
+			if(previous == null) {
+				++this.size;
+			}
+			return previous;
+		}
+		final int index = this.indexOf(text, start, end);
+		if(index >= 0) {
+			final String previous = this.values[index];
+			this.values[index] = value;
+			return previous;
+		}
+		if(this.extras == this.names.length) {
+			this.names = Arrays.copyOf(this.names, this.extras * 2);
+			this.values = Arrays.copyOf(this.values, this.extras * 2);
+		}
+		this.names[this.extras] = start == 0 && end == text.length() ? text : text.substring(start, end);
+		this.values[this.extras] = value;
+		++this.extras;
+		++this.size;
+		return null;
+	}
+
+	@Override
+	public String remove(final Object key) {
+		if(!(key instanceof String)) {
+			return null;
+		}
+		final String name = (String)key;
+		final int slot = HttpHeaders.slotOf(name, 0, name.length());
+		if(slot >= 0) {
+			final String previous = this.known[slot];
+			if(previous != null) {
+				this.known[slot] = null;
+				--this.size;
+			}
+			return previous;
+		}
+		final int index = this.indexOf(name, 0, name.length());
+		return index < 0 ? null : this.removeExtra(index);
+	}
+
+	/**
+	 * Empties the map, keeping its arrays for next time.
+	 */
+	@Override
+	public void clear() {
+		Arrays.fill(this.known, null);
+		Arrays.fill(this.names, 0, this.extras, null);
+		Arrays.fill(this.values, 0, this.extras, null);
+		this.extras = 0;
+		this.size = 0;
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return How many positions nameAt and valueAt take. Some of them may be empty.
+	 */
+	public int positions() {
+		return this.known.length + this.extras;
+	}
+
+	/**
+	 * @return The name of the header at a position
+	 */
+	public String nameAt(final int position) {
+		return position < this.known.length ? HttpHeaders.KNOWN[position] : this.names[position - this.known.length];
+	}
+
+	/**
+	 * @return The value of the header at a position, or null if the position's empty
+	 */
+	public String valueAt(final int position) {
+		return position < this.known.length ? this.known[position] : this.values[position - this.known.length];
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return HttpHeaders.this.size;
+			}
+		};
+	}
+
+	private int indexOf(final String text, final int start, final int end) {
+		final int length = end - start;
+		for(int i = 0; i < this.extras; ++i) {
+			if(this.names[i].length() == length && this.names[i].regionMatches(true, 0, text, start, length)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String removeExtra(final int index) {
+		final String previous = this.values[index];
+		System.arraycopy(this.names, index + 1, this.names, index, this.extras - index - 1);
+		System.arraycopy(this.values, index + 1, this.values, index, this.extras - index - 1);
+		--this.extras;
+		this.names[this.extras] = null;
+		this.values[this.extras] = null;
+		--this.size;
+		return previous;
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+		private int next = this.skipEmpty(0);
+		private int last = -1;
+
+		private int skipEmpty(int position) {
+			while(position < HttpHeaders.this.positions() && HttpHeaders.this.valueAt(position) == null) {
+				++position;
+			}
+			return position;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next < HttpHeaders.this.positions();
+		}
+
+		@Override
+		public Map.Entry<String, String> next() {
+			if(!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			this.last = this.next;
+			this.next = this.skipEmpty(this.next + 1);
+			final String name = HttpHeaders.this.nameAt(this.last);
+			return new AbstractMap.SimpleEntry<String, String>(name, HttpHeaders.this.valueAt(this.last)) {
+				@Override
+				public String setValue(final String value) {
+					super.setValue(value);
+					return HttpHeaders.this.put(name, value);
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			if(this.last < 0) {
+				throw new IllegalStateException();
+			}
+			HttpHeaders.this.remove(HttpHeaders.this.nameAt(this.last));
+			if(this.last >= HttpHeaders.this.known.length) {
+				// The extras after it moved down one.
+				this.next = this.skipEmpty(this.last);
+			}
+			this.last = -1;
+		}
+	}
+}
@@ -6,12 +6,16 @@ import java.util.*;
  * Copyright Jared Stevens 2017 All Rights Reserved
  */
 public class HttpRequestHeader {
+	private static final String HTTP_1_1 = "HTTP/1.1";
+
 	private HttpRequestMethod method;
 	private String resource;
 	private String protocol;
 	private String requestString;
-	private Map<String, String> headers;
+	private final HttpHeaders headers = new HttpHeaders();
 	private String body;
+	// The Host header, lower cased and without the port. Worked out once, since every request gets looked up by it.
+	private String host;
 
 	/**
 	 * Parses a list of strings containing header info into an HttpRequestHeader object
@@ -20,36 +24,73 @@ public class HttpRequestHeader {
 	 * @throws BadRequestException Thrown if this method is unable to parse the header.
 	 */
 	public static HttpRequestHeader fromList(List<String> requestLines) throws BadRequestException {
-		HttpRequestHeader response = new HttpRequestHeader();
-		response.setHeaders(new HashMap<>());
+		final HttpRequestHeader response = new HttpRequestHeader();
+		response.parse(requestLines);
+		return response;
+	}
+
+	/**
+	 * Parses a request into this object, replacing whatever it held before. A connection keeps one of these and
+	 * parses each of its requests into it, so a keep-alive connection doesn't allocate a new header object and
+	 * map for every request. The only new objects are the strings for the resource and the header values.
+	 * @param requestLines The request line, followed by the header lines
+	 * @throws BadRequestException Thrown if this method is unable to parse the header.
+	 */
+	public void parse(final List<String> requestLines) throws BadRequestException {
+		this.reset();
+		if(requestLines.isEmpty()) {
+			throw new BadRequestException("Expecting Method, Resource and Protocol. Found nothing.");
+		}
 
-		// Parse out the request method
-		String method = requestLines.remove(0);
-		String methodParts[] = method.split(" ");
-		if(methodParts == null || methodParts.length != 3) {
+		// Parse out the request method, the requested resource and the protocol
+		final String method = requestLines.get(0);
+		final int methodEnd = method.indexOf(' ');
+		final int resourceEnd = methodEnd < 0 ? -1 : method.indexOf(' ', methodEnd + 1);
+		if(methodEnd <= 0 || resourceEnd <= methodEnd + 1 || resourceEnd == method.length() - 1 || method.indexOf(' ', resourceEnd + 1) >= 0) {
 			throw new BadRequestException("Expecting Method, Resource and Protocol. Found: "+method);
 		}
-		response.setRequestString(method);
+		this.setRequestString(method);
 		try {
-			response.method = HttpRequestMethod.getMethod(methodParts[0]);
+			this.method = HttpRequestMethod.getMethod(method, methodEnd);
 		} catch(InvalidHttpMethodException e) {
 			throw new BadRequestException("Unknown request method: "+method, e);
 		}
-
-		// Parse out the requested resource
-		response.setResource(methodParts[1]);
-
-		// Parse out the protocol
-		response.setProtocol(methodParts[2]);
+		this.setResource(method.substring(methodEnd + 1, resourceEnd));
+		// Nearly every request says HTTP/1.1, so there's no need for a new copy of it each time.
+		this.setProtocol(method.endsWith(HttpRequestHeader.HTTP_1_1) && resourceEnd == method.length() - HttpRequestHeader.HTTP_1_1.length() - 1
+						? HttpRequestHeader.HTTP_1_1 : method.substring(resourceEnd + 1));
 
 		// Parse out the headers
-		String parts[];
-		for(String header : requestLines) {
-			parts = header.split(":");
-			response.getHeaders().put(parts[0].trim(), parts[1].trim());
+		for(int i = 1; i < requestLines.size(); ++i) {
+			final String header = requestLines.get(i);
+			// Only split on the first colon. Values like "Host: localhost:4444" have colons in them too.
+			final int colon = header.indexOf(':');
+			if(colon < 0) {
+				throw new BadRequestException("Malformed header: "+header);
+			}
+			int nameStart = 0;
+			int nameEnd = colon;
+			while(nameStart < nameEnd && header.charAt(nameStart) <= ' ') {
+				++nameStart;
+			}
+			while(nameEnd > nameStart && header.charAt(nameEnd - 1) <= ' ') {
+				--nameEnd;
+			}
+			this.headers.put(header, nameStart, nameEnd, header.substring(colon + 1).trim());
 		}
+	}
 
-		return response;
+	/**
+	 * Empties this object out so it can be parsed into again.
+	 */
+	public void reset() {
+		this.method = null;
+		this.resource = null;
+		this.protocol = null;
+		this.requestString = null;
+		this.body = null;
+		this.host = null;
+		this.headers.clear();
 	}
 
 	/**
@@ -64,6 +105,40 @@ public class HttpRequestHeader {
 		return HttpRequestHeader.fromList(requestLines);
 	}
 
+	/**
+	 * Looks up a header by name. HTTP header names are case insensitive, and so is the header map.
+	 * @param name The header name
+	 * @return The header's value, or null if the request doesn't have it
+	 */
+	public String getHeader(final String name) {
+		return this.headers.get(name);
+	}
+
+	/**
+	 * Boils a Host header down to just the host name, i.e., "Example.com:8080" becomes "example.com" and
+	 * "[::1]:8080" becomes "[::1]".
+	 * @param value The header's value
+	 * @return The host name, or null if there isn't one
+	 */
+	static String parseHost(final String value) {
+		if(value == null || value.isEmpty()) {
+			return null;
+		}
+		final int end = value.startsWith("[") ? value.indexOf(']') + 1 : value.indexOf(':');
+		return (end > 0 ? value.substring(0, end) : value).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return The host the request is for, from the Host header, or null if it didn't have one
+	 */
+	public String getHost() {
+		if(this.host == null) {
+			// Requests that weren't parsed from text (i.e., HTTP/2) only have the header.
+			this.host = HttpRequestHeader.parseHost(this.getHeader("Host"));
+		}
+		return host;
+	}
+
 	public HttpRequestMethod getMethod() {
 		return method;
 	}
@@ -100,8 +175,15 @@ public class HttpRequestHeader {
 		return headers;
 	}
 
+	/**
+	 * Replaces the headers with a copy of the ones given.
+	 */
 	public void setHeaders(Map<String, String> headers) {
-		this.headers = headers;
+		this.headers.clear();
+		if(headers != null) {
+			this.headers.putAll(headers);
+		}
+		this.host = null;
 	}
 
 	public String getBody() {
@@ -5,6 +5,8 @@ package org.jaredstevens.interviews.aem.httppojos;
  */
 public enum HttpRequestMethod {
 	GET("GET"), POST("POST"), PUT("PUT"), HEAD("HEAD"), DELETE("DELETE"), PATCH("PATCH");
+	// values() makes a new copy every time it's called
+	private static final HttpRequestMethod[] METHODS = HttpRequestMethod.values();
 	private String method;
 	HttpRequestMethod(final String method) {
 		this.method = method;
@@ -16,11 +18,25 @@ public enum HttpRequestMethod {
 	}
 
 	public static HttpRequestMethod getMethod(String rawMethod) throws InvalidHttpMethodException {
-		for(HttpRequestMethod method : HttpRequestMethod.values()) {
+		for(HttpRequestMethod method : HttpRequestMethod.METHODS) {
 			if(rawMethod.equals(method.toString())) {
 				return method;
 			}
 		}
 		throw new InvalidHttpMethodException(rawMethod);
 	}
+
+	/**
+	 * Looks up the method at the start of a request line without copying it out first.
+	 * @param requestLine The request line
+	 * @param length How long the method is
+	 */
+	static HttpRequestMethod getMethod(final String requestLine, final int length) throws InvalidHttpMethodException {
+		for(HttpRequestMethod method : HttpRequestMethod.METHODS) {
+			if(method.method.length() == length && requestLine.startsWith(method.method)) {
+				return method;
+			}
+		}
+		throw new InvalidHttpMethodException(requestLine.substring(0, length));
+	}
 }
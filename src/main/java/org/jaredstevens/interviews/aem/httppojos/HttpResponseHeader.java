@@ -1,6 +1,5 @@
 package org.jaredstevens.interviews.aem.httppojos;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -16,7 +15,7 @@ public class HttpResponseHeader {
 		this.setProtocol("HTTP/1.1");
 		this.setStatusCode(200);
 		this.setStatus("OK");
-		this.setHeaders(new HashMap<>());
+		this.setHeaders(new HttpHeaders());
 	}
 
 	public HttpResponseHeader(final String protocol, final int statusCode, final String status, final Map<String, String> headers) {
@@ -51,6 +50,77 @@ public class HttpResponseHeader {
 		return response.toString();
 	}
 
+	/**
+	 * Sets this up as a new response with no headers, so one object can be used for every response on a
+	 * connection.
+	 * @return This response header
+	 */
+	public HttpResponseHeader reset(final String protocol, final int statusCode, final String status) {
+		this.setProtocol(protocol);
+		this.setStatusCode(statusCode);
+		this.setStatus(status);
+		if(this.headers instanceof HttpHeaders) {
+			this.headers.clear();
+		} else {
+			this.headers = new HttpHeaders();
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the same thing getRawResponse returns into a buffer, as ISO-8859-1 bytes, without making a string
+	 * of it first.
+	 * @param buffer Where to write it
+	 * @param offset Where in the buffer to start
+	 * @return How many bytes were written, or -1 if they wouldn't all fit
+	 */
+	public int writeTo(final byte[] buffer, final int offset) {
+		int position = HttpResponseHeader.write(this.getProtocol(), buffer, offset);
+		if(position >= 0 && position + 5 <= buffer.length && this.getStatusCode() >= 100 && this.getStatusCode() <= 999) {
+			buffer[position++] = ' ';
+			buffer[position++] = (byte)('0' + this.getStatusCode() / 100);
+			buffer[position++] = (byte)('0' + this.getStatusCode() / 10 % 10);
+			buffer[position++] = (byte)('0' + this.getStatusCode() % 10);
+			buffer[position++] = ' ';
+		} else {
+			position = HttpResponseHeader.write(" " + this.getStatusCode() + " ", buffer, position);
+		}
+		position = HttpResponseHeader.write(this.getStatus(), buffer, position);
+		position = HttpResponseHeader.write("\n", buffer, position);
+		if(this.headers instanceof HttpHeaders) {
+			final HttpHeaders httpHeaders = (HttpHeaders)this.headers;
+			for(int i = 0; i < httpHeaders.positions(); ++i) {
+				if(httpHeaders.valueAt(i) != null) {
+					position = HttpResponseHeader.writeHeader(httpHeaders.nameAt(i), httpHeaders.valueAt(i), buffer, position);
+				}
+			}
+		} else if(this.headers != null) {
+			for(Map.Entry<String, String> entry : this.headers.entrySet()) {
+				position = HttpResponseHeader.writeHeader(entry.getKey(), entry.getValue(), buffer, position);
+			}
+		}
+		position = HttpResponseHeader.write("\n", buffer, position);
+		return position < 0 ? -1 : position - offset;
+	}
+
+	private static int writeHeader(final String name, final String value, final byte[] buffer, final int position) {
+		return HttpResponseHeader.write("\n", buffer, HttpResponseHeader.write(value, buffer,
+						HttpResponseHeader.write(": ", buffer, HttpResponseHeader.write(name, buffer, position))));
+	}
+
+	/**
+	 * @return The position after the text, or -1 if it didn't fit (or position was already -1)
+	 */
+	private static int write(final String text, final byte[] buffer, final int position) {
+		if(position < 0 || position + text.length() > buffer.length) {
+			return -1;
+		}
+		for(int i = 0; i < text.length(); ++i) {
+			buffer[position + i] = (byte)text.charAt(i);
+		}
+		return position + text.length();
+	}
+
 	public String add(final String key, final String value) {
 		return this.getHeaders().put(key, value);
 	}
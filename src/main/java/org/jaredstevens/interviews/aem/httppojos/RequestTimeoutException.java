@@ -0,0 +1,11 @@
+package org.jaredstevens.interviews.aem.httppojos;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ * The client started sending a request but didn't finish the header in time. These are answered with a 408.
+ */
+public class RequestTimeoutException extends BadRequestException {
+	public RequestTimeoutException(String message) {
+		super(message);
+	}
+}
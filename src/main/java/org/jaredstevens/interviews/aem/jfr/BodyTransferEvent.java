@@ -0,0 +1,52 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Sending a response body. For a response that was handed to the drainer, this only covers what the worker
+ * wrote before handing it off.
+ */
+@Name("webserver.BodyTransfer")
+@Label("Body Transfer")
+@Category("Web Server")
+@Description("Sending a response body to the client")
+@StackTrace(false)
+public class BodyTransferEvent extends Event {
+	@Label("Status")
+	private int status;
+
+	@Label("Bytes")
+	@DataAmount
+	private long bytes;
+
+	@Label("Drained")
+	@Description("The client couldn't take it all right away, and the rest was handed to the drainer")
+	private boolean drained;
+
+	public static BodyTransferEvent start() {
+		final BodyTransferEvent event = new BodyTransferEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param status The response's status code
+	 * @param bytes The number of bytes in the body
+	 * @param drained True if the drainer took over sending it
+	 */
+	public void finish(final int status, final long bytes, final boolean drained) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.status = status;
+			this.bytes = bytes;
+			this.drained = drained;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reading and parsing a request header, from the first byte of it being available to the blank line at its end.
+ * The time a keep-alive connection spends idle before the request isn't included.
+ */
+@Name("webserver.HeaderParse")
+@Label("Header Parse")
+@Category("Web Server")
+@Description("Reading and parsing a request header")
+@StackTrace(false)
+public class HeaderParseEvent extends Event {
+	@Label("Method")
+	private String method;
+
+	@Label("Resource")
+	private String resource;
+
+	@Label("Header Fields")
+	private int fields;
+
+	@Label("Header Size")
+	@DataAmount
+	private int size;
+
+	public static HeaderParseEvent start() {
+		final HeaderParseEvent event = new HeaderParseEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param method The request method, or null if the header couldn't be parsed
+	 * @param resource The requested resource, or null if the header couldn't be parsed
+	 * @param fields The number of header fields, not counting the request line
+	 * @param size The size of the header fields in bytes, not counting the request line
+	 */
+	public void finish(final String method, final String resource, final int fields, final int size) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.method = method;
+			this.resource = resource;
+			this.fields = fields;
+			this.size = size;
+			this.commit();
+		}
+	}
+}
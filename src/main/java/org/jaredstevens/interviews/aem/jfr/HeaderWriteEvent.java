@@ -0,0 +1,46 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Formatting a response header and writing it out. The header is usually staged in the same buffer as the start
+ * of the body, so the time to get it onto the wire shows up in the body transfer that follows.
+ */
+@Name("webserver.HeaderWrite")
+@Label("Header Write")
+@Category("Web Server")
+@Description("Formatting and writing a response header")
+@StackTrace(false)
+public class HeaderWriteEvent extends Event {
+	@Label("Status")
+	private int status;
+
+	@Label("Header Size")
+	@DataAmount
+	private int size;
+
+	public static HeaderWriteEvent start() {
+		final HeaderWriteEvent event = new HeaderWriteEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param status The response's status code
+	 * @param size The size of the header in bytes
+	 */
+	public void finish(final int status, final int size) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.status = status;
+			this.size = size;
+			this.commit();
+		}
+	}
+}
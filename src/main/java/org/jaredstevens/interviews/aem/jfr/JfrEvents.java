@@ -0,0 +1,28 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+/**
+ * The first time an event class is loaded, JFR sets up its metadata and generates a handler for it, which takes a
+ * few hundred ms. Loading them all up front, off the request path, means the first request doesn't pay for it.
+ */
+public final class JfrEvents {
+	private static final Class<?>[] EVENTS = {
+					RequestEvent.class, QueueWaitEvent.class, HeaderParseEvent.class, PathResolutionEvent.class,
+					MimeDetectionEvent.class, HeaderWriteEvent.class, BodyTransferEvent.class
+	};
+
+	private JfrEvents() {
+	}
+
+	/**
+	 * Loads and registers every event class.
+	 */
+	public static void load() {
+		for(Class<?> event : JfrEvents.EVENTS) {
+			try {
+				Class.forName(event.getName(), true, event.getClassLoader());
+			} catch(ClassNotFoundException e) {
+				// It's right there. Worst case, it's loaded by the first request instead.
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Working out a file's content type. Most of the time it's already cached with the open file, and this is
+ * over right away. When it isn't, Tika looks at the file's name and maybe its first few bytes.
+ */
+@Name("webserver.MimeDetection")
+@Label("MIME Detection")
+@Category("Web Server")
+@Description("Working out the content type of a file")
+@StackTrace(false)
+public class MimeDetectionEvent extends Event {
+	@Label("Path")
+	private String path;
+
+	@Label("Content Type")
+	private String contentType;
+
+	@Label("Cached")
+	private boolean cached;
+
+	public static MimeDetectionEvent start() {
+		final MimeDetectionEvent event = new MimeDetectionEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param path The file
+	 * @param contentType Its content type
+	 * @param cached True if the content type came out of the open file cache
+	 */
+	public void finish(final String path, final String contentType, final boolean cached) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.path = path;
+			this.contentType = contentType;
+			this.cached = cached;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Turning a requested resource into an open file: normalizing the path and getting the file out of the open
+ * file cache, which may mean a stat() to revalidate it or opening it for the first time.
+ */
+@Name("webserver.PathResolution")
+@Label("Path Resolution")
+@Category("Web Server")
+@Description("Mapping a resource to a file and opening it")
+@StackTrace(false)
+public class PathResolutionEvent extends Event {
+	@Label("Resource")
+	private String resource;
+
+	@Label("Path")
+	private String path;
+
+	@Label("Found")
+	private boolean found;
+
+	public static PathResolutionEvent start() {
+		final PathResolutionEvent event = new PathResolutionEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param resource The requested resource
+	 * @param path The file it mapped to
+	 * @param found False if the file couldn't be opened
+	 */
+	public void finish(final String resource, final String path, final boolean found) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.resource = resource;
+			this.path = path;
+			this.found = found;
+			this.commit();
+		}
+	}
+}
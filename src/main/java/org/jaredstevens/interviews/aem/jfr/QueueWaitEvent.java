@@ -0,0 +1,43 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The time a connection spent in a lane's queue waiting for a thread. For a new connection, that's the time
+ * between the accept and the dispatch to a worker. It's begun on the thread that queued the task and committed
+ * on the thread that ran it.
+ */
+@Name("webserver.QueueWait")
+@Label("Queue Wait")
+@Category("Web Server")
+@Description("Time a connection waited in a lane's queue for a thread")
+@StackTrace(false)
+public class QueueWaitEvent extends Event {
+	@Label("Lane")
+	private String lane;
+
+	/**
+	 * Starts timing the wait.
+	 */
+	public static QueueWaitEvent start() {
+		final QueueWaitEvent event = new QueueWaitEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param lane The lane the task waited in: "fast" or "large"
+	 */
+	public void finish(final String lane) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.lane = lane;
+			this.commit();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package org.jaredstevens.interviews.aem.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Covers one request, from the end of its header to the end of its response (or to the point it was handed to
+ * the drainer). The phase events it's made up of are recorded on the same thread inside its time span.
+ */
+@Name("webserver.Request")
+@Label("HTTP Request")
+@Category("Web Server")
+@Description("A request, from the end of its header to the end of its response")
+@StackTrace(false)
+public class RequestEvent extends Event {
+	@Label("Method")
+	private String method;
+
+	@Label("Resource")
+	private String resource;
+
+	@Label("Status")
+	private int status;
+
+	@Label("Bytes Sent")
+	@DataAmount
+	private long bytes;
+
+	/**
+	 * Starts timing a request.
+	 */
+	public static RequestEvent start(final String method, final String resource) {
+		final RequestEvent event = new RequestEvent();
+		if(event.isEnabled()) {
+			event.method = method;
+			event.resource = resource;
+		}
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param status The response's status code
+	 * @param bytes The size of the response, header included
+	 */
+	public void finish(final int status, final long bytes) {
+		this.end();
+		if(this.shouldCommit()) {
+			this.status = status;
+			this.bytes = bytes;
+			this.commit();
+		}
+	}
+}
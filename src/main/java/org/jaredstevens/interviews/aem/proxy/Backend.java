@@ -0,0 +1,173 @@
+package org.jaredstevens.interviews.aem.proxy;
+
+import org.jaredstevens.interviews.aem.HttpInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single upstream server along with its pool of idle keep-alive connections.
+ * Connections are handed out most-recently-used first. That keeps a small set of connections warm and lets the
+ * rest sit idle long enough to be dropped, instead of cycling through all of them and finding each one stale.
+ */
+public class Backend {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Backend.class);
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+	private final String host;
+	private final int port;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final long idleTimeout;
+	private final LinkedBlockingDeque<Connection> idleConnections;
+	// Requests currently being forwarded to this backend. Used for least-outstanding-requests balancing.
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * @param address The backend's address as "host:port"
+	 * @param maxIdleConnections The most idle connections kept open to this backend
+	 * @param connectTimeout How long to wait when connecting, in milliseconds
+	 * @param readTimeout How long to wait on the backend for data, in milliseconds
+	 * @param idleTimeout How long an idle connection is kept before it's thrown away, in milliseconds
+	 */
+	public Backend(final String address, final int maxIdleConnections, final int connectTimeout, final int readTimeout, final long idleTimeout) {
+		final int separator = address.lastIndexOf(':');
+		if(separator <= 0) {
+			throw new IllegalArgumentException("Backend address should look like host:port. Found: " + address);
+		}
+		this.host = address.substring(0, separator);
+		this.port = Integer.parseInt(address.substring(separator + 1));
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.idleTimeout = idleTimeout;
+		this.idleConnections = new LinkedBlockingDeque<>(Math.max(1, maxIdleConnections));
+	}
+
+	/**
+	 * Hands out a connection to the backend, reusing an idle one if there is one.
+	 * @return A connection. It has to be given back with release() or discard().
+	 * @throws IOException Thrown if a new connection can't be opened.
+	 */
+	Connection acquire() throws IOException {
+		Connection connection;
+		final long now = System.currentTimeMillis();
+		while((connection = this.idleConnections.pollFirst()) != null) {
+			if(now - connection.idleSince < this.idleTimeout && !connection.socket.isClosed()) {
+				connection.reused = true;
+				return connection;
+			}
+			connection.close();
+		}
+		final Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(this.host, this.port), this.connectTimeout);
+			socket.setSoTimeout(this.readTimeout);
+			socket.setTcpNoDelay(true);
+		} catch(IOException e) {
+			socket.close();
+			throw e;
+		}
+		Backend.LOGGER.debug("Opened a new connection to {}", this);
+		return new Connection(socket);
+	}
+
+	/**
+	 * Puts a connection back in the pool after a complete response has been read from it.
+	 * If the pool is full, the connection is closed.
+	 */
+	void release(final Connection connection) {
+		connection.idleSince = System.currentTimeMillis();
+		if(this.closed || !this.idleConnections.offerFirst(connection)) {
+			connection.close();
+		} else if(this.closed) {
+			// Closed while it was going back in the pool
+			this.closeIdleConnections();
+		}
+	}
+
+	/**
+	 * Closes the idle connections, and any that are released from now on.
+	 */
+	public void close() {
+		this.closed = true;
+		this.closeIdleConnections();
+	}
+
+	private void closeIdleConnections() {
+		Connection connection;
+		while((connection = this.idleConnections.pollFirst()) != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes a connection that can't be reused (the backend asked to close it, or something went wrong).
+	 */
+	void discard(final Connection connection) {
+		connection.close();
+	}
+
+	int getOutstanding() {
+		return this.outstanding.get();
+	}
+
+	void startRequest() {
+		this.outstanding.incrementAndGet();
+	}
+
+	void finishRequest() {
+		this.outstanding.decrementAndGet();
+	}
+
+	int getIdleConnections() {
+		return this.idleConnections.size();
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public String toString() {
+		return this.host + ":" + this.port;
+	}
+
+	/**
+	 * A connection to the backend. The input stream is kept with the socket because it may have buffered
+	 * the start of the next response.
+	 */
+	static class Connection {
+		final Socket socket;
+		final HttpInputStream in;
+		final OutputStream out;
+		long idleSince;
+		// True if this connection came out of the pool, in which case the backend may have already closed it.
+		boolean reused;
+
+		Connection(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new HttpInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream(), Backend.OUTPUT_BUFFER_SIZE);
+		}
+
+		void close() {
+			try {
+				this.socket.close();
+			} catch(IOException e) {
+				Backend.LOGGER.debug("Couldn't close backend connection.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package org.jaredstevens.interviews.aem.proxy;
+
+import org.jaredstevens.interviews.aem.AccessRecord;
+import org.jaredstevens.interviews.aem.ChunkedOutputStream;
+import org.jaredstevens.interviews.aem.HttpInputStream;
+import org.jaredstevens.interviews.aem.ServerConfig;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards requests under the configured path prefixes to backend servers, the way a reverse proxy like nginx
+ * would. Connections to each backend are kept alive and pooled, and each request goes to whichever backend has
+ * the fewest requests in flight.
+ * Bodies are streamed through a buffer in both directions, so a large upload or download never has to fit in
+ * memory.
+ */
+public class ProxyHandler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProxyHandler.class);
+	private static final int BUFFER_SIZE = 8192;
+	private static final String HTTP2_PROTOCOL = "HTTP/2.0";
+	private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	// These only apply to a single connection, so they're never passed along. The body framing headers are
+	// added back where they're needed.
+	private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList(
+					"connection", "keep-alive", "proxy-connection", "te", "trailer", "transfer-encoding", "upgrade",
+					"expect", "http2-settings"));
+
+	private final List<Route> routes = new ArrayList<>();
+	private final int chunkSize;
+
+	/**
+	 * Sets up the routes and backend pools from the "proxies" section of the configuration.
+	 * @param config The server configuration
+	 */
+	public ProxyHandler(final ServerConfig config) {
+		this.chunkSize = config.getResponseChunkSize();
+		for(ProxyRoute route : config.getProxies()) {
+			if(route.getPrefix() == null || route.getBackends() == null || route.getBackends().isEmpty()) {
+				throw new IllegalArgumentException("Each proxy needs a prefix and at least one backend.");
+			}
+			final Backend[] backends = new Backend[route.getBackends().size()];
+			for(int i = 0; i < backends.length; ++i) {
+				backends[i] = new Backend(route.getBackends().get(i), config.getProxyMaxIdleConnections(),
+								config.getProxyConnectTimeout(), config.getProxyReadTimeout(), config.getProxyIdleTimeout());
+			}
+			this.routes.add(new Route(route, backends));
+			ProxyHandler.LOGGER.info("Proxying {} to {}", route.getPrefix(), route.getBackends());
+		}
+		// Check the most specific prefixes first
+		this.routes.sort((a, b) -> b.config.getPrefix().length() - a.config.getPrefix().length());
+	}
+
+	/**
+	 * Closes every backend's pooled connections. Requests that are still being forwarded close theirs when
+	 * they're done.
+	 */
+	public void close() {
+		for(Route route : this.routes) {
+			for(Backend backend : route.backends) {
+				backend.close();
+			}
+		}
+	}
+
+	/**
+	 * @param resource The requested resource
+	 * @return True if the request should be forwarded instead of served from the document root
+	 */
+	public boolean handles(final String resource) {
+		return this.findRoute(resource) != null;
+	}
+
+	/**
+	 * Checks to see if a request says it has a body.
+	 */
+	public static boolean hasRequestBody(final HttpRequestHeader request) {
+		return ProxyHandler.isChunked(request.getHeader("Transfer-Encoding")) || ProxyHandler.getContentLength(request) > 0;
+	}
+
+	/**
+	 * Forwards a request to a backend and relays the response to the client.
+	 * If a pooled connection turns out to have been closed by the backend, the request is retried on a fresh
+	 * connection, as long as none of the request body has been consumed yet.
+	 * @param request The request header from the client
+	 * @param requestBody The client's stream, positioned at the start of the request body. This can be null if
+	 *                    the request doesn't have a body.
+	 * @param clientOut The client's output stream
+	 * @param clientAddress The client's IP address for X-Forwarded-For, or null if it isn't known
+	 * @return False if no backend response could be had and nothing was sent to the client. The caller should
+	 * 	send an error page.
+	 * @throws IOException Thrown if the relay failed after part of the response was sent to the client. The
+	 * 	client's connection is in an unknown state at that point and should be closed.
+	 */
+	public boolean forward(final HttpRequestHeader request, final HttpInputStream requestBody, final OutputStream clientOut,
+												 final String clientAddress) throws IOException {
+		final Route route = this.findRoute(request.getResource());
+		if(route == null) {
+			return false;
+		}
+		final Backend backend = route.chooseBackend();
+		backend.startRequest();
+		try {
+			boolean continueSent = false;
+			while(true) {
+				final Backend.Connection connection;
+				try {
+					connection = backend.acquire();
+				} catch(IOException e) {
+					ProxyHandler.LOGGER.warn("Couldn't connect to backend {}: {}", backend, e.getMessage());
+					return false;
+				}
+				boolean bodyStarted = false;
+				boolean responseStarted = false;
+				try {
+					final byte[] buffer = new byte[ProxyHandler.BUFFER_SIZE];
+					connection.out.write(this.buildRequestHeader(request, backend, clientAddress));
+					if(ProxyHandler.hasRequestBody(request) && requestBody != null) {
+						// We took the Expect header out and are about to start reading, so let the client know.
+						if(!continueSent && "100-continue".equalsIgnoreCase(request.getHeader("Expect"))) {
+							clientOut.write(ProxyHandler.CONTINUE_RESPONSE);
+							clientOut.flush();
+							continueSent = true;
+						}
+						bodyStarted = true;
+						if(ProxyHandler.isChunked(request.getHeader("Transfer-Encoding"))) {
+							ProxyHandler.relayChunked(requestBody, connection.out, true, buffer);
+						} else {
+							ProxyHandler.copy(requestBody, connection.out, ProxyHandler.getContentLength(request), buffer);
+						}
+					}
+					connection.out.flush();
+
+					final String statusLine = ProxyHandler.readStatusLine(connection.in);
+					if(statusLine == null) {
+						throw new EOFException("Backend closed the connection without responding.");
+					}
+					responseStarted = true;
+					if(this.relayResponse(statusLine, request, connection.in, clientOut, buffer)) {
+						backend.release(connection);
+					} else {
+						backend.discard(connection);
+					}
+					return true;
+				} catch(IOException e) {
+					backend.discard(connection);
+					if(responseStarted) {
+						throw e;
+					}
+					if(connection.reused && !bodyStarted) {
+						ProxyHandler.LOGGER.debug("Pooled connection to {} went stale. Retrying on a new one.", backend);
+						continue;
+					}
+					ProxyHandler.LOGGER.warn("Request to backend {} failed: {}", backend, e.getMessage());
+					return false;
+				}
+			}
+		} finally {
+			backend.finishRequest();
+		}
+	}
+
+	/**
+	 * Builds the request header sent to the backend. Hop-by-hop headers are dropped and X-Forwarded-For is
+	 * added so the backend can tell who the client is.
+	 */
+	private byte[] buildRequestHeader(final HttpRequestHeader request, final Backend backend, final String clientAddress) {
+		final StringBuilder header = new StringBuilder()
+						.append(request.getMethod()).append(' ').append(request.getResource()).append(" HTTP/1.1\r\n");
+		String forwardedFor = null;
+		boolean hasHost = false;
+		for(Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+			final String name = entry.getKey().toLowerCase();
+			if(ProxyHandler.HOP_BY_HOP_HEADERS.contains(name)) {
+				continue;
+			}
+			if(name.equals("x-forwarded-for")) {
+				forwardedFor = entry.getValue();
+				continue;
+			}
+			hasHost |= name.equals("host");
+			header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+		}
+		if(!hasHost) {
+			header.append("Host: ").append(backend).append("\r\n");
+		}
+		if(clientAddress != null) {
+			forwardedFor = forwardedFor == null ? clientAddress : forwardedFor + ", " + clientAddress;
+		}
+		if(forwardedFor != null) {
+			header.append("X-Forwarded-For: ").append(forwardedFor).append("\r\n");
+		}
+		if(ProxyHandler.isChunked(request.getHeader("Transfer-Encoding"))) {
+			header.append("Transfer-Encoding: chunked\r\n");
+		}
+		header.append("\r\n");
+		return header.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the backend's response header and streams the response to the client.
+	 * The body is passed along with the same framing where the client can use it. HTTP/2 clients get the body
+	 * without chunk framing, since HTTP/2 frames the body itself. A body that's only ended by the backend
+	 * closing the connection is re-chunked for HTTP/1.1 clients so their connection can stay open.
+	 * @return True if the backend connection can be reused
+	 */
+	private boolean relayResponse(final String statusLine, final HttpRequestHeader request, final HttpInputStream backendIn,
+																final OutputStream clientOut, final byte[] buffer) throws IOException {
+		final int status = ProxyHandler.getStatusCode(statusLine);
+		AccessRecord.recordResponse(status, 0);
+		// The client is talking to us, not the backend, so the response carries our protocol version. Passing
+		// along an HTTP/1.0 status line would make the client close its connection.
+		final StringBuilder header = new StringBuilder("HTTP/1.1").append(statusLine.substring(statusLine.indexOf(' '))).append("\r\n");
+		long contentLength = -1;
+		boolean chunked = false;
+		boolean closeRequested = statusLine.startsWith("HTTP/1.0");
+		String line;
+		while((line = backendIn.readLine()) != null && !line.isEmpty()) {
+			final int separator = line.indexOf(':');
+			if(separator <= 0) {
+				throw new IOException("Malformed response header from backend: " + line);
+			}
+			final String name = line.substring(0, separator).trim().toLowerCase();
+			final String value = line.substring(separator + 1).trim();
+			if(name.equals("content-length")) {
+				contentLength = ProxyHandler.parseLength(value);
+			} else if(name.equals("transfer-encoding")) {
+				chunked = ProxyHandler.isChunked(value);
+			} else if(name.equals("connection")) {
+				closeRequested = value.equalsIgnoreCase("close");
+			}
+			if(!ProxyHandler.HOP_BY_HOP_HEADERS.contains(name)) {
+				header.append(line).append("\r\n");
+			}
+		}
+		if(line == null) {
+			throw new EOFException("Backend closed the connection in the middle of the response header.");
+		}
+
+		final boolean http2Client = ProxyHandler.HTTP2_PROTOCOL.equals(request.getProtocol());
+		final boolean noBody = request.getMethod() == HttpRequestMethod.HEAD || status < 200 || status == 204 || status == 304;
+		final boolean closeDelimited = !noBody && !chunked && contentLength < 0;
+		if(!http2Client && (chunked || closeDelimited) && !noBody) {
+			header.append("Transfer-Encoding: chunked\r\n");
+		}
+		header.append("\r\n");
+
+		final OutputStream out = new BufferedOutputStream(clientOut, ProxyHandler.BUFFER_SIZE);
+		out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+		if(noBody) {
+			// Nothing to read
+		} else if(chunked) {
+			ProxyHandler.relayChunked(backendIn, out, !http2Client, buffer);
+		} else if(contentLength >= 0) {
+			ProxyHandler.copy(backendIn, out, contentLength, buffer);
+		} else if(http2Client) {
+			ProxyHandler.copy(backendIn, out, -1, buffer);
+		} else {
+			final ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, this.chunkSize);
+			ProxyHandler.copy(backendIn, chunkedOut, -1, buffer);
+			chunkedOut.close();
+		}
+		out.flush();
+		return !closeRequested && !closeDelimited;
+	}
+
+	/**
+	 * Reads the backend's status line, skipping past any interim (1xx) responses.
+	 * @return The final status line, or null if the backend closed the connection first
+	 */
+	private static String readStatusLine(final HttpInputStream backendIn) throws IOException {
+		String statusLine;
+		while((statusLine = backendIn.readLine()) != null) {
+			final int status = ProxyHandler.getStatusCode(statusLine);
+			if(status >= 200 || status == 101) {
+				return statusLine;
+			}
+			String line;
+			while((line = backendIn.readLine()) != null && !line.isEmpty()) {
+				// Interim response headers aren't passed along
+			}
+		}
+		return null;
+	}
+
+	private static int getStatusCode(final String statusLine) throws IOException {
+		final String[] parts = statusLine.split(" ", 3);
+		try {
+			return Integer.parseInt(parts[1]);
+		} catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			throw new IOException("Malformed status line from backend: " + statusLine);
+		}
+	}
+
+	/**
+	 * Copies a body from one stream to another. Whatever has been read is flushed as soon as the source has
+	 * nothing more waiting, so a slow trickle of data isn't held back until the buffer fills.
+	 * @param length The number of bytes to copy, or -1 to copy until the end of the stream
+	 */
+	static void copy(final InputStream in, final OutputStream out, final long length, final byte[] buffer) throws IOException {
+		long remaining = length;
+		while(remaining != 0) {
+			final int toRead = remaining < 0 ? buffer.length : (int)Math.min(buffer.length, remaining);
+			final int bytesRead = in.read(buffer, 0, toRead);
+			if(bytesRead == -1) {
+				if(remaining < 0) {
+					break;
+				}
+				throw new EOFException("Body ended " + remaining + " bytes early.");
+			}
+			out.write(buffer, 0, bytesRead);
+			if(remaining > 0) {
+				remaining -= bytesRead;
+			}
+			if(in.available() == 0) {
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Copies a chunked body, optionally keeping the chunk framing.
+	 * @param keepFraming True to pass the chunk sizes and trailers along, false to pass only the data
+	 */
+	static void relayChunked(final HttpInputStream in, final OutputStream out, final boolean keepFraming, final byte[] buffer) throws IOException {
+		while(true) {
+			final String sizeLine = in.readLine();
+			if(sizeLine == null) {
+				throw new EOFException("Chunked body ended early.");
+			}
+			final int extension = sizeLine.indexOf(';');
+			final long size;
+			try {
+				size = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+			} catch(NumberFormatException e) {
+				throw new IOException("Malformed chunk size: " + sizeLine);
+			}
+			if(keepFraming) {
+				out.write((sizeLine + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			}
+			if(size == 0) {
+				break;
+			}
+			ProxyHandler.copy(in, out, size, buffer);
+			// The line break after the chunk data
+			in.readLine();
+			if(keepFraming) {
+				out.write('\r');
+				out.write('\n');
+			}
+		}
+		String trailer;
+		while((trailer = in.readLine()) != null && !trailer.isEmpty()) {
+			if(keepFraming) {
+				out.write((trailer + "\r\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		if(trailer == null) {
+			throw new EOFException("Chunked body ended in the trailers.");
+		}
+		if(keepFraming) {
+			out.write('\r');
+			out.write('\n');
+		}
+	}
+
+	private static boolean isChunked(final String transferEncoding) {
+		return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+	}
+
+	private static long getContentLength(final HttpRequestHeader request) {
+		try {
+			return ProxyHandler.parseLength(request.getHeader("Content-Length"));
+		} catch(IOException e) {
+			return -1;
+		}
+	}
+
+	private static long parseLength(final String value) throws IOException {
+		if(value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			throw new IOException("Malformed Content-Length: " + value);
+		}
+	}
+
+	private Route findRoute(final String resource) {
+		for(Route route : this.routes) {
+			if(route.config.matches(resource)) {
+				return route;
+			}
+		}
+		return null;
+	}
+
+	Backend[] getBackends(final String resource) {
+		final Route route = this.findRoute(resource);
+		return route == null ? null : route.backends;
+	}
+
+	/**
+	 * A configured route along with the backends built for it.
+	 */
+	private static class Route {
+		final ProxyRoute config;
+		final Backend[] backends;
+		// Rotates the starting point of the search, so backends that are tied don't always go to the first one.
+		final AtomicInteger next = new AtomicInteger();
+
+		Route(final ProxyRoute config, final Backend[] backends) {
+			this.config = config;
+			this.backends = backends;
+		}
+
+		/**
+		 * Picks the backend with the fewest requests in flight.
+		 */
+		Backend chooseBackend() {
+			final int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.backends.length;
+			Backend best = null;
+			for(int i = 0; i < this.backends.length; ++i) {
+				final Backend candidate = this.backends[(start + i) % this.backends.length];
+				if(best == null || candidate.getOutstanding() < best.getOutstanding()) {
+					best = candidate;
+				}
+			}
+			return best;
+		}
+	}
+}
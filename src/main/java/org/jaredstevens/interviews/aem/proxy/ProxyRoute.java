@@ -0,0 +1,54 @@
+package org.jaredstevens.interviews.aem.proxy;
+
+import java.util.List;
+
+/**
+ * One entry in the "proxies" section of the server configuration. Requests whose path starts with the prefix
+ * are forwarded to one of the backends instead of being served from the document root.
+ */
+public class ProxyRoute {
+	private String prefix;
+	// Each backend is a "host:port" pair
+	private List<String> backends;
+
+	public ProxyRoute() {
+	}
+
+	public ProxyRoute(final String prefix, final List<String> backends) {
+		this.prefix = prefix;
+		this.backends = backends;
+	}
+
+	/**
+	 * Checks to see if a request path falls under this route. The prefix has to match whole path segments, so
+	 * /api matches /api and /api/users, but not /apikeys.
+	 * @param resource The requested resource
+	 * @return True if requests for the resource should be forwarded by this route
+	 */
+	public boolean matches(final String resource) {
+		if(!resource.startsWith(this.prefix)) {
+			return false;
+		}
+		if(resource.length() == this.prefix.length() || this.prefix.endsWith("/")) {
+			return true;
+		}
+		final char next = resource.charAt(this.prefix.length());
+		return next == '/' || next == '?';
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public List<String> getBackends() {
+		return backends;
+	}
+
+	public void setBackends(List<String> backends) {
+		this.backends = backends;
+	}
+}
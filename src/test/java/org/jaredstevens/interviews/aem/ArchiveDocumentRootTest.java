@@ -0,0 +1,149 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class ArchiveDocumentRootTest {
+	private final static String storedContent = "<!DOCTYPE html>\n<html><body>hi there.</body></html>";
+	private final static String deflatedContent = "body { color: black; } body { color: black; } body { color: black; }";
+
+	/**
+	 * Builds a small archive with a stored entry, a deflated entry and a directory.
+	 */
+	private static File createArchive() throws IOException {
+		final File archive = File.createTempFile("docroot", ".zip");
+		archive.deleteOnExit();
+		try(ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+			final byte[] stored = storedContent.getBytes();
+			final CRC32 crc = new CRC32();
+			crc.update(stored);
+			final ZipEntry storedEntry = new ZipEntry("index.html");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(stored.length);
+			storedEntry.setCrc(crc.getValue());
+			zip.putNextEntry(storedEntry);
+			zip.write(stored);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("css/"));
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("css/site.css"));
+			zip.write(deflatedContent.getBytes());
+			zip.closeEntry();
+		}
+		return archive;
+	}
+
+	private static String readFully(InputStream inStream) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[16];
+		int bytesRead;
+		while((bytesRead = inStream.read(buffer)) != -1) {
+			output.write(buffer, 0, bytesRead);
+		}
+		return output.toString();
+	}
+
+	@Test
+	public void isArchiveTest() throws IOException {
+		final File archive = ArchiveDocumentRootTest.createArchive();
+		assertTrue("Zip file wasn't recognized as an archive.", ArchiveDocumentRoot.isArchive(archive.getPath()));
+		assertFalse("A directory was recognized as an archive.", ArchiveDocumentRoot.isArchive("src/test/resources/test_files/"));
+		assertFalse("A missing file was recognized as an archive.", ArchiveDocumentRoot.isArchive("missing.zip"));
+	}
+
+	@Test
+	public void readEntriesTest() throws IOException {
+		final ArchiveDocumentRoot root = new ArchiveDocumentRoot(ArchiveDocumentRootTest.createArchive().getPath());
+		assertEquals("Directories shouldn't be indexed.", 2, root.size());
+		assertNull("Found an entry that shouldn't exist.", root.getEntry("missing.html"));
+
+		final ArchiveDocumentRoot.Entry stored = root.getEntry("index.html");
+		assertEquals(ArchiveDocumentRoot.METHOD_STORED, stored.getMethod());
+		assertEquals(storedContent.length(), stored.getSize());
+		try(InputStream inStream = root.openStream(stored)) {
+			assertEquals("Stored entry wasn't read correctly.", storedContent, ArchiveDocumentRootTest.readFully(inStream));
+		}
+
+		final ArchiveDocumentRoot.Entry deflated = root.getEntry("css/site.css");
+		assertEquals(ArchiveDocumentRoot.METHOD_DEFLATED, deflated.getMethod());
+		assertEquals(deflatedContent.length(), deflated.getSize());
+		try(InputStream inStream = root.openStream(deflated)) {
+			assertEquals("Deflated entry wasn't inflated correctly.", deflatedContent, ArchiveDocumentRootTest.readFully(inStream));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void readInvalidArchiveTest() throws IOException {
+		new ArchiveDocumentRoot("src/test/resources/test_files/index.html");
+	}
+
+	@Test
+	public void entryPastTheEndTest() throws IOException {
+		// Point the central directory's compressed size for index.html way past the end of the archive.
+		final File archive = ArchiveDocumentRootTest.createArchive();
+		final byte[] bytes = Files.readAllBytes(archive.toPath());
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		boolean patched = false;
+		for(int position = 0; position + 46 < bytes.length && !patched; ++position) {
+			if(buffer.getInt(position) == 0x02014b50 && new String(bytes, position + 46, 10, StandardCharsets.UTF_8).equals("index.html")) {
+				buffer.putInt(position + 20, 0xfffffff0);
+				patched = true;
+			}
+		}
+		assertTrue(patched);
+		Files.write(archive.toPath(), bytes);
+
+		final ArchiveDocumentRoot root = new ArchiveDocumentRoot(archive.getPath());
+		assertNull("An entry running past the end should be left out.", root.getEntry("index.html"));
+		try(InputStream inStream = root.openStream(root.getEntry("css/site.css"))) {
+			assertEquals(deflatedContent, ArchiveDocumentRootTest.readFully(inStream));
+		}
+	}
+
+	@Test
+	public void corruptEntryTest() throws IOException, BadRequestException {
+		// Make css/site.css's deflated data start with a block of the reserved type.
+		final File archive = ArchiveDocumentRootTest.createArchive();
+		final int dataOffset = new ArchiveDocumentRoot(archive.getPath()).getEntry("css/site.css").getDataOffset();
+		final byte[] bytes = Files.readAllBytes(archive.toPath());
+		bytes[dataOffset] = (byte)0xff;
+		Files.write(archive.toPath(), bytes);
+
+		final RequestHandler thread = new RequestHandler(null, null, new ArchiveDocumentRoot(archive.getPath()));
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.processRequest(HttpRequestHeader.fromString("GET /css/site.css HTTP/1.1\nHost: localhost:4444\n\n"), outputStream);
+		assertTrue("A corrupt entry should get a 500: " + outputStream, outputStream.toString().startsWith("HTTP/1.1 500 Internal Server Error"));
+	}
+
+	@Test
+	public void processArchiveRequestTest() throws IOException, BadRequestException {
+		final Socket inputSocket = null;
+		final ArchiveDocumentRoot root = new ArchiveDocumentRoot(ArchiveDocumentRootTest.createArchive().getPath());
+		final RequestHandler thread = new RequestHandler(inputSocket, null, root);
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("GET / HTTP/1.1\nHost: localhost:4444\n\n");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.processRequest(requestHeader, outputStream);
+		assertEquals("Output didn't match expected value.", "HTTP/1.1 200 OK\n" +
+						"Content-Length: 51\n" +
+						"Content-Type: text/html\n\n" +
+						storedContent, outputStream.toString());
+	}
+}
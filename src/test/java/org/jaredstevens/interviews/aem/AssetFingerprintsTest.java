@@ -0,0 +1,142 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class AssetFingerprintsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File root;
+
+	@Before
+	public void createDocumentRoot() throws IOException {
+		this.root = this.folder.newFolder("root");
+		new File(this.root, "css").mkdir();
+		this.write("app.js", "console.log('hi');");
+		this.write("css/site.css", "body {}");
+		this.write("index.html", "<html></html>");
+	}
+
+	private void write(final String name, final String contents) throws IOException {
+		Files.write(new File(this.root, name).toPath(), contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String get(final ServerContext context, final String resource) throws BadRequestException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		new RequestHandler((Socket)null, context).processRequest(
+						HttpRequestHeader.fromString("GET " + resource + " HTTP/1.1\nHost: localhost\n\n"), outputStream);
+		return outputStream.toString();
+	}
+
+	@Test
+	public void fingerprintTest() throws IOException {
+		final AssetFingerprints assets = new AssetFingerprints(this.root.getPath(), Arrays.asList("js", ".css"));
+		assets.scan();
+		final String hash = assets.fingerprint("/app.js");
+		assertTrue(hash, hash.matches("[0-9a-f]{8}"));
+		assertNull("HTML isn't fingerprinted.", assets.fingerprint("/index.html"));
+		assertEquals("/app.js", assets.resolve("/app." + hash + ".js"));
+		assertNull(assets.resolve("/app.00000000.js"));
+		assertTrue(assets.toManifestJson().contains("\"/css/site.css\": \"/css/site." + assets.fingerprint("/css/site.css") + ".css\""));
+
+		// A changed file gets a new fingerprint, and the old one stops working.
+		this.write("app.js", "console.log('bye');");
+		new File(this.root, "app.js").setLastModified(System.currentTimeMillis() + 10000);
+		assertNull(assets.resolve("/app." + hash + ".js"));
+		assertNotEquals(hash, assets.fingerprint("/app.js"));
+	}
+
+	@Test
+	public void cacheControlTest() throws BadRequestException {
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(this.root.getPath() + "/");
+		config.setFingerprintExtensions(Collections.singletonList("js"));
+		config.setCacheControl(Arrays.asList(new CacheControlRule("/**.html", "no-cache"), new CacheControlRule("/**", "max-age=60")));
+		final ServerContext context = new ServerContext(config, null);
+		final String hash = context.getAssets().fingerprint("/app.js");
+
+		final String fingerprinted = this.get(context, "/app." + hash + ".js");
+		assertTrue(fingerprinted, fingerprinted.startsWith("HTTP/1.1 200 OK"));
+		assertTrue(fingerprinted.contains("Cache-Control: " + AssetFingerprints.IMMUTABLE));
+		assertTrue(fingerprinted.endsWith("console.log('hi');"));
+		assertTrue(this.get(context, "/app.js").contains("Cache-Control: max-age=60"));
+		assertTrue(this.get(context, "/").contains("Cache-Control: no-cache"));
+		assertTrue(this.get(context, "/app.12345678.js").startsWith("HTTP/1.1 404"));
+
+		final String manifest = this.get(context, "/asset-manifest.json");
+		assertTrue(manifest, manifest.contains("\"/app.js\": \"/app." + hash + ".js\""));
+	}
+
+	@Test
+	public void staleOpenFileTest() throws IOException, BadRequestException {
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(this.root.getPath() + "/");
+		config.setFingerprintExtensions(Collections.singletonList("js"));
+		config.setOpenFileCacheValid(60000);
+		final ServerContext context = new ServerContext(config, null);
+		assertTrue(this.get(context, "/app." + context.getAssets().fingerprint("/app.js") + ".js").endsWith("console.log('hi');"));
+
+		// The cache won't look at the disk again for a minute, but the new URL has to get the new contents.
+		this.write("app.js", "console.log('bye');");
+		new File(this.root, "app.js").setLastModified(System.currentTimeMillis() + 10000);
+		final String changed = this.get(context, "/app." + context.getAssets().fingerprint("/app.js") + ".js");
+		assertTrue(changed, changed.endsWith("console.log('bye');"));
+
+		// Even if the cache is holding a copy the fingerprints didn't see being replaced
+		this.write("app.js", "console.log('again');");
+		new File(this.root, "app.js").setLastModified(System.currentTimeMillis() + 20000);
+		final AssetFingerprints uncached = new AssetFingerprints(config.getDocumentRoot(), Collections.singletonList("js"));
+		final String hash = uncached.fingerprint("/app.js");
+		context.getVirtualHosts().getDefaultHost().setAssets(uncached);
+		final String again = this.get(context, "/app." + hash + ".js");
+		assertTrue(again, again.endsWith("console.log('again');"));
+	}
+
+	@Test
+	public void rehashDropsCachedCopyTest() throws IOException, BadRequestException {
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(this.root.getPath() + "/");
+		config.setFingerprintExtensions(Collections.singletonList("js"));
+		config.setOpenFileCacheValid(60000);
+		final ServerContext context = new ServerContext(config, null);
+		context.getAssets().fingerprint("/app.js");
+		assertTrue(this.get(context, "/app.js").endsWith("console.log('hi');"));
+
+		// The cache won't look at the disk again for a minute, but the fingerprints saw the file change.
+		this.write("app.js", "console.log('bye');");
+		new File(this.root, "app.js").setLastModified(System.currentTimeMillis() + 10000);
+		context.getAssets().fingerprint("/app.js");
+		final String changed = this.get(context, "/app.js");
+		assertTrue(changed, changed.endsWith("console.log('bye');"));
+	}
+
+	@Test
+	public void manifestFromLastScanTest() throws InterruptedException {
+		final AssetFingerprints assets = new AssetFingerprints(this.root.getPath(), Collections.singletonList("js"));
+		// Nothing's been scanned yet, so this starts a scan, but doesn't wait for it.
+		assertFalse(assets.toManifestJson().contains("/app.js"));
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(!assets.toManifestJson().contains("/app.js")) {
+			assertTrue("The background scan never finished.", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}
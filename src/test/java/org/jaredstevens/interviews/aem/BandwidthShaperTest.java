@@ -0,0 +1,94 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class BandwidthShaperTest {
+	private static final int KB = 1024;
+
+	@Test
+	public void smallResponsesBypassTest() {
+		final BandwidthShaper shaper = new BandwidthShaper(100 * KB, 1, 1, new ServerMetrics());
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		assertSame("A small response shouldn't be paced.", outputStream, shaper.shape(outputStream, 99 * KB));
+		assertNotSame(outputStream, shaper.shape(outputStream, 100 * KB));
+	}
+
+	@Test
+	public void connectionLimitTest() throws IOException {
+		// 1 MB/s. The first 64K slice goes right away and the other four each wait their turn: about 250ms.
+		final ServerMetrics metrics = new ServerMetrics();
+		final BandwidthShaper shaper = new BandwidthShaper(0, 1024 * KB, 0, metrics);
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final long start = System.nanoTime();
+		try(OutputStream paced = shaper.shape(outputStream, 320 * KB)) {
+			paced.write(new byte[320 * KB]);
+		}
+		final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertEquals(320 * KB, outputStream.size());
+		assertTrue("Download wasn't paced: " + elapsedMillis + "ms", elapsedMillis >= 230);
+		assertTrue("Download was paced too hard: " + elapsedMillis + "ms", elapsedMillis < 1000);
+		assertEquals(1L, metrics.snapshot().get("shaped_responses"));
+	}
+
+	@Test
+	public void globalLimitSharedFairlyTest() throws InterruptedException {
+		// Two downloads share 2 MB/s. Taking turns, they should finish at about the same time.
+		final BandwidthShaper shaper = new BandwidthShaper(0, 0, 2048 * KB, new ServerMetrics());
+		final long[] finished = new long[2];
+		final Thread[] downloads = new Thread[2];
+		final long start = System.nanoTime();
+		for(int i = 0; i < downloads.length; ++i) {
+			final int download = i;
+			downloads[i] = new Thread(() -> {
+				try(OutputStream paced = shaper.shape(new ByteArrayOutputStream(), 512 * KB)) {
+					for(int slice = 0; slice < 8; ++slice) {
+						paced.write(new byte[64 * KB]);
+					}
+				} catch(IOException e) {
+					fail(e.getMessage());
+				}
+				finished[download] = System.nanoTime() - start;
+			});
+			downloads[i].start();
+		}
+		for(Thread download : downloads) {
+			download.join();
+		}
+		// 1 MB at 2 MB/s is about 500ms in total, less the first slice.
+		final long slowest = Math.max(finished[0], finished[1]) / 1000000;
+		final long gap = Math.abs(finished[0] - finished[1]) / 1000000;
+		assertTrue("Shared limit wasn't applied: " + slowest + "ms", slowest >= 400);
+		assertTrue("One download finished well ahead of the other: " + gap + "ms", gap < 150);
+	}
+
+	@Test
+	public void interruptTest() throws InterruptedException {
+		// 1 KB/s, so the second slice would take a minute. Interrupting the download (like shutdownNow does) should end it.
+		final BandwidthShaper shaper = new BandwidthShaper(0, KB, 0, new ServerMetrics());
+		final AtomicReference<IOException> failure = new AtomicReference<>();
+		final Thread download = new Thread(() -> {
+			try(OutputStream paced = shaper.shape(new ByteArrayOutputStream(), 128 * KB)) {
+				paced.write(new byte[128 * KB]);
+			} catch(IOException e) {
+				failure.set(e);
+			}
+		});
+		download.start();
+		Thread.sleep(100);
+		download.interrupt();
+		download.join(2000);
+		assertFalse("The download kept waiting after it was interrupted.", download.isAlive());
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof InterruptedIOException);
+	}
+}
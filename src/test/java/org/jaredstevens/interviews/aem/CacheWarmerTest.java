@@ -0,0 +1,73 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class CacheWarmerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File writeLog(final String... requests) throws IOException, BadRequestException {
+		final File log = this.folder.newFile("access.log");
+		try(AccessLog accessLog = new AccessLog(log.toPath())) {
+			for(String request : requests) {
+				final String[] parts = request.split(" ");
+				final AccessRecord record = AccessRecord.begin(
+								HttpRequestHeader.fromString(parts[0] + " " + parts[1] + " HTTP/1.1\n\n"), null);
+				AccessRecord.recordResponse(Integer.parseInt(parts[2]), 100);
+				record.end();
+				accessLog.log(record);
+			}
+		}
+		return log;
+	}
+
+	@Test
+	public void accessLogFormatTest() {
+		final String line = AccessLog.format(new AccessRecord(null, "GET /index.html HTTP/1.1", "/index.html"));
+		assertTrue(line, line.matches("- - - \\[\\d{2}/\\w{3}/\\d{4}:\\d{2}:\\d{2}:\\d{2} [+-]\\d{4}] \"GET /index.html HTTP/1.1\" 0 -"));
+	}
+
+	@Test
+	public void rankResourcesTest() throws IOException, BadRequestException {
+		final File log = this.writeLog("GET /b.txt 200", "GET /a.txt 200", "GET /b.txt?v=2 304", "GET /c.txt 404",
+						"POST /c.txt 200", "GET /c.txt 404", "GET /a.txt 200", "GET /b.txt 200");
+		assertEquals(Arrays.asList("/b.txt", "/a.txt"), CacheWarmer.rankResources(log.toPath(), 10));
+		assertEquals(Collections.singletonList("/b.txt"), CacheWarmer.rankResources(log.toPath(), 1));
+	}
+
+	@Test
+	public void warmTest() throws IOException, BadRequestException {
+		final File root = this.folder.newFolder("root");
+		Files.write(new File(root, "a.txt").toPath(), new byte[1000]);
+		Files.write(new File(root, "b.txt").toPath(), "hello".getBytes(StandardCharsets.US_ASCII));
+		final File log = this.writeLog("GET /a.txt 200", "GET /b.txt 200", "GET /b.txt 200", "GET /gone.txt 200");
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setAccessLog(log.getPath());
+		// Room to read b.txt, but not a.txt
+		config.setWarmupByteBudget(100);
+		config.setWarmupThreads(1);
+		final ServerContext context = new ServerContext(config, null);
+		new CacheWarmer(context).warm();
+		assertEquals(2L, context.getMetrics().snapshot().get("warmup_resources"));
+		assertEquals(5L, context.getMetrics().snapshot().get("warmup_bytes"));
+		assertEquals("Both files should be left open.", 2, context.getOpenFiles().size());
+		context.getAccessLog().close();
+	}
+}
@@ -0,0 +1,84 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class ChunkedOutputStreamTest {
+	@Test
+	public void writeChunksTest() throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream, 4);
+		chunked.write("hello world".getBytes(StandardCharsets.UTF_8));
+		// Two full chunks go out right away, the rest waits for more data.
+		assertEquals("4\r\nhell\r\n4\r\no wo\r\n", outputStream.toString());
+		chunked.close();
+		assertEquals("4\r\nhell\r\n4\r\no wo\r\n3\r\nrld\r\n0\r\n\r\n", outputStream.toString());
+	}
+
+	@Test
+	public void flushSendsPartialChunkTest() throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream, 8192);
+		chunked.write('h');
+		chunked.write('i');
+		assertEquals("Nothing should be sent before a flush.", 0, outputStream.size());
+		chunked.flush();
+		assertEquals("2\r\nhi\r\n", outputStream.toString());
+		// Flushing with nothing buffered shouldn't send an empty chunk. That would end the body.
+		chunked.flush();
+		assertEquals("2\r\nhi\r\n", outputStream.toString());
+	}
+
+	@Test
+	public void trailersTest() throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream, 8192);
+		chunked.write("data".getBytes(StandardCharsets.UTF_8));
+		chunked.addTrailer("Server-Timing", "gen;dur=12");
+		chunked.close();
+		assertEquals("4\r\ndata\r\n0\r\nServer-Timing: gen;dur=12\r\n\r\n", outputStream.toString());
+	}
+
+	@Test
+	public void unframedTest() throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream, 4, false);
+		chunked.write("hello world".getBytes(StandardCharsets.UTF_8));
+		chunked.addTrailer("X-Dropped", "yes");
+		chunked.close();
+		assertEquals("hello world", outputStream.toString());
+	}
+
+	@Test(expected = IOException.class)
+	public void writeAfterCloseTest() throws IOException {
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(new ByteArrayOutputStream(), 16);
+		chunked.close();
+		chunked.write('x');
+	}
+
+	@Test
+	public void roundTripTest() throws IOException {
+		final byte[] data = new byte[100000];
+		new Random(42).nextBytes(data);
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try(ChunkedOutputStream chunked = new ChunkedOutputStream(outputStream, 3000)) {
+			chunked.write(data, 0, 12345);
+			chunked.flush();
+			chunked.write(data, 12345, data.length - 12345);
+		}
+		final ChunkedInputStream decoded = new ChunkedInputStream(new HttpInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		assertEquals(data.length, RequestHandler.copyBody(decoded, result, -1, 0));
+		assertArrayEquals(data, result.toByteArray());
+	}
+}
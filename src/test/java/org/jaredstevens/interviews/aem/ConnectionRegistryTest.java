@@ -0,0 +1,125 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class ConnectionRegistryTest {
+	private ServerSocket serverSocket;
+	private final List<Socket> sockets = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for(Socket socket : this.sockets) {
+			socket.close();
+		}
+		this.serverSocket.close();
+	}
+
+	/**
+	 * @return The server side of a new loopback connection
+	 */
+	private Socket connect() throws IOException {
+		this.sockets.add(new Socket(this.serverSocket.getInetAddress(), this.serverSocket.getLocalPort()));
+		final Socket accepted = this.serverSocket.accept();
+		this.sockets.add(accepted);
+		return accepted;
+	}
+
+	@Test
+	public void capEvictsOldestIdleTest() throws IOException, InterruptedException {
+		final ServerMetrics metrics = new ServerMetrics();
+		final ConnectionRegistry registry = new ConnectionRegistry(2, 0, 0, 100, metrics);
+		final Socket firstSocket = this.connect();
+		final ClientConnection first = registry.register(firstSocket);
+		final ClientConnection second = registry.register(this.connect());
+		assertEquals(2, registry.size());
+		// Nothing's idle, so there's no room.
+		assertNull(registry.register(this.connect()));
+		assertEquals(1L, metrics.snapshot().get("connections_rejected"));
+		registry.markIdle(first);
+		Thread.sleep(5);
+		registry.markIdle(second);
+		second.markActive();
+		assertNotNull("An idle connection should make room.", registry.register(this.connect()));
+		assertTrue("The idle connection should have been closed.", firstSocket.isClosed());
+		assertEquals(1L, metrics.snapshot().get("connections_evicted"));
+	}
+
+	@Test
+	public void perAddressCapTest() throws IOException {
+		final ConnectionRegistry registry = new ConnectionRegistry(0, 1, 0, 100, new ServerMetrics());
+		final ClientConnection connection = registry.register(this.connect());
+		assertNull("A second connection from the same address should be turned away.", registry.register(this.connect()));
+		registry.unregister(connection);
+		registry.unregister(connection);
+		assertEquals(0, registry.size());
+		assertNotNull(registry.register(this.connect()));
+	}
+
+	@Test
+	public void reaperClosesIdleConnectionsTest() throws IOException, InterruptedException {
+		final ServerMetrics metrics = new ServerMetrics();
+		final ConnectionRegistry registry = new ConnectionRegistry(0, 0, 200, 10, metrics);
+		final Socket idleSocket = this.connect();
+		final Socket busySocket = this.connect();
+		registry.markIdle(registry.register(idleSocket));
+		final ClientConnection busy = registry.register(busySocket);
+		registry.markIdle(busy);
+		// Keep the busy connection going back and forth, like it's serving requests.
+		final long start = System.currentTimeMillis();
+		while(System.currentTimeMillis() - start < 500) {
+			busy.markActive();
+			Thread.sleep(20);
+			registry.markIdle(busy);
+		}
+		assertTrue("The idle connection should have been reaped.", idleSocket.isClosed());
+		assertFalse("A connection that keeps doing things shouldn't be reaped.", busySocket.isClosed());
+		assertEquals(1L, metrics.snapshot().get("connections_reaped"));
+	}
+
+	@Test
+	public void closeOnlyWhileIdleTest() throws IOException {
+		final ConnectionRegistry registry = new ConnectionRegistry(0, 0, 0, 100, new ServerMetrics());
+		final ClientConnection connection = registry.register(this.connect());
+		registry.markIdle(connection);
+		final long idleSince = connection.getLastActivity();
+		assertTrue(connection.markActive());
+		assertFalse("It was picked back up, so it shouldn't be closed.", connection.markClosing(idleSince));
+		registry.markIdle(connection);
+		assertFalse("It's been idle again, but not since then.", connection.markClosing(idleSince));
+		assertEquals(ClientConnection.State.IDLE, connection.getState());
+		assertTrue(connection.markClosing(connection.getLastActivity()));
+		assertFalse("Once it's being closed, it can't be picked back up.", connection.markActive());
+		assertEquals(ClientConnection.State.CLOSING, connection.getState());
+	}
+
+	@Test
+	public void tableTest() throws IOException {
+		final ConnectionRegistry registry = new ConnectionRegistry(0, 0, 0, 100, new ServerMetrics());
+		final ClientConnection connection = registry.register(this.connect());
+		connection.recordRequest();
+		connection.addBytesOut(42);
+		final String json = registry.toJson();
+		assertTrue(json, json.contains("\"open\": 1"));
+		assertTrue(json, json.contains("\"bytes_out\": 42"));
+		assertTrue(json, json.contains("\"state\": \"OPEN\""));
+	}
+}
@@ -0,0 +1,208 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class DirectoryListingsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void htmlListingTest() throws IOException {
+		final Path directory = this.folder.newFolder("files").toPath();
+		Files.write(directory.resolve("b <b>.txt"), "12345".getBytes(StandardCharsets.UTF_8));
+		Files.write(directory.resolve("a.txt"), "1".getBytes(StandardCharsets.UTF_8));
+		Files.createDirectory(directory.resolve("z-dir"));
+		Files.write(directory.resolve(".secret"), "hidden".getBytes(StandardCharsets.UTF_8));
+		final DirectoryListings listings = new DirectoryListings(16, 60000, 100);
+		final String html = new String(listings.get(directory, "/files/", DirectoryListings.Format.HTML), StandardCharsets.UTF_8);
+
+		assertTrue(html, html.contains("<title>Index of /files/</title>"));
+		assertTrue("There should be a link up.", html.contains("<a href=\"../\">"));
+		assertFalse("Dot files should be left out.", html.contains(".secret"));
+		assertTrue("Names should be escaped and links encoded.", html.contains("<a href=\"/files/b%20%3Cb%3E.txt\">b &lt;b&gt;.txt</a>"));
+		assertTrue(html.contains("<td>5</td>"));
+		final int dir = html.indexOf("z-dir/");
+		final int a = html.indexOf("a.txt");
+		final int b = html.indexOf("b &lt;b&gt;.txt");
+		assertTrue("Directories come first, then files by name.", dir < a && a < b);
+	}
+
+	@Test
+	public void jsonListingTest() throws IOException {
+		final Path directory = this.folder.newFolder("files").toPath();
+		Files.write(directory.resolve("a \"quoted\".txt"), "123".getBytes(StandardCharsets.UTF_8));
+		Files.createDirectory(directory.resolve("sub"));
+		final DirectoryListings listings = new DirectoryListings(16, 60000, 100);
+		final String json = new String(listings.get(directory, "/", DirectoryListings.Format.JSON), StandardCharsets.UTF_8);
+		assertTrue(json, json.startsWith("[{\"name\":\"sub\",\"type\":\"directory\",\"modified\":\""));
+		assertTrue(json, json.contains("{\"name\":\"a \\\"quoted\\\".txt\",\"type\":\"file\",\"size\":3,\"modified\":\""));
+		assertTrue(json.endsWith("}]"));
+	}
+
+	@Test
+	public void cachedUntilTheDirectoryChangesTest() throws IOException {
+		final Path directory = this.folder.newFolder("files").toPath();
+		Files.write(directory.resolve("one.txt"), "1".getBytes(StandardCharsets.UTF_8));
+		final DirectoryListings listings = new DirectoryListings(16, 60000, 100);
+		final byte[] first = listings.get(directory, "/files/", DirectoryListings.Format.HTML);
+		assertSame("An unchanged directory shouldn't be rendered again.", first, listings.get(directory, "/files/", DirectoryListings.Format.HTML));
+
+		Files.write(directory.resolve("two.txt"), "2".getBytes(StandardCharsets.UTF_8));
+		// Some file systems only keep modification times to the second, so make sure it moves.
+		Files.setLastModifiedTime(directory, FileTime.fromMillis(Files.getLastModifiedTime(directory).toMillis() + 2000));
+		final String second = new String(listings.get(directory, "/files/", DirectoryListings.Format.HTML), StandardCharsets.UTF_8);
+		assertTrue("A changed directory should be rendered again.", second.contains("two.txt"));
+
+		final DirectoryListings untrusted = new DirectoryListings(16, 0, 100);
+		assertNotSame("A listing past its validity should be rendered again.", untrusted.get(directory, "/files/", DirectoryListings.Format.HTML),
+						untrusted.get(directory, "/files/", DirectoryListings.Format.HTML));
+	}
+
+	@Test
+	public void bigDirectoriesAreStreamedTest() throws IOException {
+		final Path directory = this.folder.newFolder("files").toPath();
+		for(int i = 0; i < 50; ++i) {
+			Files.write(directory.resolve("file" + i + ".txt"), new byte[i]);
+		}
+		final DirectoryListings listings = new DirectoryListings(16, 60000, 20);
+		assertNull("A directory over the threshold shouldn't be rendered in memory.", listings.get(directory, "/files/", DirectoryListings.Format.HTML));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		listings.stream(directory, "/files/", DirectoryListings.Format.HTML, out);
+		final String html = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		for(int i = 0; i < 50; ++i) {
+			assertTrue(html.contains(">file" + i + ".txt</a>"));
+		}
+		assertTrue(html.endsWith("</table></body></html>\n"));
+	}
+
+	@Test
+	public void autoindexRequestsTest() throws IOException, WebServerException {
+		final File root = this.folder.newFolder("site");
+		final File withIndex = new File(root, "docs");
+		assertTrue(withIndex.mkdir());
+		Files.write(new File(withIndex, "index.html").toPath(), "Docs home".getBytes(StandardCharsets.UTF_8));
+		final File big = new File(root, "big");
+		assertTrue(big.mkdir());
+		for(int i = 0; i < 30; ++i) {
+			Files.write(new File(big, "file" + i).toPath(), new byte[0]);
+		}
+		Files.write(new File(root, "readme.txt").toPath(), "Read me".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(2);
+		config.setAutoindex(true);
+		config.setAutoindexStreamThreshold(20);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		try(Socket socket = new Socket("localhost", server.getPort())) {
+			final InputStream inputStream = socket.getInputStream();
+			String response = DirectoryListingsTest.get(socket, "/", "");
+			assertTrue(response, response.startsWith("HTTP/1.1 200 OK") && response.contains("Content-Type: text/html; charset=utf-8"));
+			assertTrue("The root has no index.html, so it's listed.", response.contains("<a href=\"/readme.txt\">readme.txt</a>"));
+
+			response = DirectoryListingsTest.get(socket, "/docs", "");
+			assertTrue(response, response.startsWith("HTTP/1.1 301") && response.contains("Location: /docs/"));
+			response = DirectoryListingsTest.get(socket, "/docs/", "");
+			assertTrue("A directory with an index.html is served by it.", response.endsWith("Docs home"));
+
+			response = DirectoryListingsTest.get(socket, "/", "Accept: application/json\n");
+			assertTrue(response, response.contains("Content-Type: application/json") && response.contains("\"name\":\"readme.txt\""));
+
+			socket.getOutputStream().write("GET /big/ HTTP/1.1\nHost: localhost\n\n".getBytes(StandardCharsets.US_ASCII));
+			final HttpInputStream httpInput = new HttpInputStream(inputStream);
+			final StringBuilder header = new StringBuilder();
+			String line;
+			while((line = httpInput.readLine()) != null && !line.isEmpty()) {
+				header.append(line).append('\n');
+			}
+			assertTrue(header.toString(), header.toString().contains("Transfer-Encoding: chunked"));
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			final InputStream chunked = new ChunkedInputStream(httpInput);
+			int b;
+			while((b = chunked.read()) != -1) {
+				body.write(b);
+			}
+			final String html = new String(body.toByteArray(), StandardCharsets.UTF_8);
+			assertTrue(html, html.contains(">file29</a>") && html.endsWith("</html>\n"));
+			assertTrue("The connection should still be usable.", DirectoryListingsTest.get(socket, "/readme.txt", "", httpInput).endsWith("Read me"));
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	@Test
+	public void outsideTheDocumentRootTest() throws IOException, WebServerException {
+		assertEquals("//secret/", RequestHandler.cleanResource("/%2e%2e/secret/"));
+		assertEquals("/./secret/", RequestHandler.cleanResource("/.%2e./secret/"));
+		final File root = this.folder.newFolder("site");
+		final File secret = this.folder.newFolder("secret");
+		Files.write(new File(secret, "index.html").toPath(), "Secret".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(secret, "passwords.txt").toPath(), "hunter2".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(2);
+		config.setAutoindex(true);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		try(Socket socket = new Socket("localhost", server.getPort())) {
+			// '..' used to be stripped before the URL was decoded, so an encoded one got through.
+			for(String resource : new String[] {"/%2e%2e/secret/", "/%2E%2E/secret/passwords.txt", "/.%2e/secret/index.html"}) {
+				final String response = DirectoryListingsTest.get(socket, resource, "");
+				assertTrue(resource + ": " + response, response.startsWith("HTTP/1.1 404"));
+				assertFalse(resource, response.contains("Secret") || response.contains("hunter2") || response.contains("passwords.txt"));
+			}
+			assertFalse("That's just the document root.", DirectoryListingsTest.get(socket, "/%2e%2e/", "").contains("secret"));
+			try {
+				Files.createSymbolicLink(new File(root, "link").toPath(), secret.toPath());
+			} catch(UnsupportedOperationException | IOException e) {
+				return;
+			}
+			assertTrue("A symlink out of the document root shouldn't be listed.", DirectoryListingsTest.get(socket, "/link/", "").startsWith("HTTP/1.1 404"));
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	@Test
+	public void autoindexOffTest() throws IOException, WebServerException {
+		final File root = this.folder.newFolder("site");
+		assertTrue(new File(root, "files").mkdir());
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(2);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		try(Socket socket = new Socket("localhost", server.getPort())) {
+			assertTrue(DirectoryListingsTest.get(socket, "/files/", "").startsWith("HTTP/1.1 404"));
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	private static String get(final Socket socket, final String resource, final String headers) throws IOException {
+		return DirectoryListingsTest.get(socket, resource, headers, socket.getInputStream());
+	}
+
+	private static String get(final Socket socket, final String resource, final String headers, final InputStream inputStream) throws IOException {
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write(("GET " + resource + " HTTP/1.1\nHost: localhost\n" + headers + "\n").getBytes(StandardCharsets.US_ASCII));
+		return UnixSocketListenerTest.readResponse(inputStream);
+	}
+}
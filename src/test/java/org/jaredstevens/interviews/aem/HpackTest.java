@@ -0,0 +1,72 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.http2.HpackDecoder;
+import org.jaredstevens.interviews.aem.http2.HpackEncoder;
+import org.jaredstevens.interviews.aem.http2.Http2Exception;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class HpackTest {
+	private static byte[] fromHex(final String hex) {
+		final byte[] data = new byte[hex.length() / 2];
+		for(int i = 0; i < data.length; ++i) {
+			data[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return data;
+	}
+
+	private static Map.Entry<String, String> header(final String name, final String value) {
+		return new AbstractMap.SimpleImmutableEntry<>(name, value);
+	}
+
+	@Test
+	public void decodeHuffmanRequestsTest() throws Http2Exception {
+		// The request examples with Huffman coding from RFC 7541, Appendix C.4
+		final HpackDecoder decoder = new HpackDecoder(4096);
+		List<Map.Entry<String, String>> headers = decoder.decode(HpackTest.fromHex("828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+		assertEquals(4, headers.size());
+		assertEquals(HpackTest.header(":method", "GET"), headers.get(0));
+		assertEquals(HpackTest.header(":scheme", "http"), headers.get(1));
+		assertEquals(HpackTest.header(":path", "/"), headers.get(2));
+		assertEquals(HpackTest.header(":authority", "www.example.com"), headers.get(3));
+
+		// The second request refers back to :authority in the dynamic table
+		headers = decoder.decode(HpackTest.fromHex("828684be5886a8eb10649cbf"));
+		assertEquals(5, headers.size());
+		assertEquals(HpackTest.header(":authority", "www.example.com"), headers.get(3));
+		assertEquals(HpackTest.header("cache-control", "no-cache"), headers.get(4));
+
+		headers = decoder.decode(HpackTest.fromHex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+		assertEquals(5, headers.size());
+		assertEquals(HpackTest.header(":scheme", "https"), headers.get(1));
+		assertEquals(HpackTest.header(":path", "/index.html"), headers.get(2));
+		assertEquals(HpackTest.header("custom-key", "custom-value"), headers.get(4));
+	}
+
+	@Test(expected = Http2Exception.class)
+	public void decodeInvalidIndexTest() throws Http2Exception {
+		// Index 70 doesn't exist: the dynamic table is empty
+		new HpackDecoder(4096).decode(new byte[] {(byte)(0x80 | 70)});
+	}
+
+	@Test
+	public void encodeRoundTripTest() throws Http2Exception {
+		final List<Map.Entry<String, String>> headers = new ArrayList<>();
+		headers.add(HpackTest.header(":status", "200"));
+		headers.add(HpackTest.header("content-length", "12"));
+		headers.add(HpackTest.header("x-custom", "some value"));
+		final byte[] block = new HpackEncoder().encode(headers);
+		// :status 200 is in the static table, so it should be a single indexed byte
+		assertEquals((byte)0x88, block[0]);
+		assertEquals(headers, new HpackDecoder(4096).decode(block));
+	}
+}
@@ -0,0 +1,316 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.http2.HpackDecoder;
+import org.jaredstevens.interviews.aem.http2.HpackEncoder;
+import org.jaredstevens.interviews.aem.http2.Http2Connection;
+import org.jaredstevens.interviews.aem.http2.Http2Exception;
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class Http2ConnectionTest {
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+
+	private final ExecutorService workers = Executors.newFixedThreadPool(2);
+
+	@After
+	public void stopWorkers() {
+		this.workers.shutdownNow();
+	}
+
+	@Test
+	public void prefaceAndSettingsTest() throws IOException {
+		final List<Frame> frames = this.serve(Http2ConnectionTest.client(
+						Http2ConnectionTest.frame(SETTINGS, 0, 0, new byte[0]),
+						Http2ConnectionTest.frame(PING, 0, 0, "12345678".getBytes(StandardCharsets.US_ASCII))), Http2ConnectionTest::hello);
+		assertEquals(SETTINGS, frames.get(0).type);
+		assertEquals("Our SETTINGS aren't an ACK.", 0, frames.get(0).flags);
+		assertEquals("We should tell the client how many streams it can have.", 32, Http2ConnectionTest.setting(frames.get(0), 0x3));
+		assertEquals(SETTINGS, frames.get(1).type);
+		assertEquals(FLAG_ACK, frames.get(1).flags);
+		assertEquals(PING, frames.get(2).type);
+		assertEquals(FLAG_ACK, frames.get(2).flags);
+		assertEquals("12345678", new String(frames.get(2).payload, StandardCharsets.US_ASCII));
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 0, Http2Exception.NO_ERROR);
+	}
+
+	@Test
+	public void badPrefaceTest() throws IOException {
+		final byte[] preface = "PRI * HTTP/2.0\r\n\r\nXX\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		final List<Frame> frames = this.serve(preface, Http2ConnectionTest::hello);
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 0, Http2Exception.PROTOCOL_ERROR);
+	}
+
+	@Test
+	public void headersAndContinuationTest() throws IOException, Http2Exception {
+		final byte[] block = new HpackEncoder().encode(Http2ConnectionTest.request("/index.html"));
+		final int split = block.length / 2;
+		final List<Frame> frames = this.serve(Http2ConnectionTest.client(
+						Http2ConnectionTest.frame(HEADERS, FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, split)),
+						Http2ConnectionTest.frame(CONTINUATION, FLAG_END_HEADERS, 1, Arrays.copyOfRange(block, split, block.length))),
+						Http2ConnectionTest::hello);
+		final Frame headers = Http2ConnectionTest.find(frames, HEADERS, 1);
+		assertNotNull(frames.toString(), headers);
+		final List<Map.Entry<String, String>> fields = new HpackDecoder(4096).decode(headers.payload);
+		assertEquals(new AbstractMap.SimpleImmutableEntry<>(":status", "200"), fields.get(0));
+		assertFalse("Connection headers don't belong in HTTP/2.", fields.toString().contains("connection"));
+		final Frame data = Http2ConnectionTest.find(frames, DATA, 1);
+		assertEquals("Hello /index.html", new String(data.payload, StandardCharsets.US_ASCII));
+		assertEquals(FLAG_END_STREAM, data.flags & FLAG_END_STREAM);
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 1, Http2Exception.NO_ERROR);
+	}
+
+	@Test
+	public void continuationOnAnotherStreamTest() throws IOException {
+		final byte[] block = new HpackEncoder().encode(Http2ConnectionTest.request("/index.html"));
+		final List<Frame> frames = this.serve(Http2ConnectionTest.client(
+						Http2ConnectionTest.frame(HEADERS, FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, 2)),
+						Http2ConnectionTest.frame(CONTINUATION, FLAG_END_HEADERS, 3, Arrays.copyOfRange(block, 2, block.length))),
+						Http2ConnectionTest::hello);
+		assertNull("The stream shouldn't have started.", Http2ConnectionTest.find(frames, HEADERS, 1));
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 0, Http2Exception.PROTOCOL_ERROR);
+	}
+
+	@Test
+	public void upgradeTest() throws IOException, BadRequestException, Http2Exception {
+		// SETTINGS_MAX_CONCURRENT_STREAMS = 100, base64url encoded
+		final HttpRequestHeader request = HttpRequestHeader.fromList(Arrays.asList("GET /upgraded HTTP/1.1", "Host: localhost", "Connection: Upgrade, HTTP2-Settings",
+						"Upgrade: h2c", "HTTP2-Settings: AAMAAABk"));
+		assertTrue(Http2Connection.isUpgradeRequest(request));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Http2Connection(new ByteArrayInputStream(Http2ConnectionTest.client()), out, Http2ConnectionTest::hello, this.workers).serveUpgrade(request);
+
+		final byte[] written = out.toByteArray();
+		final String switching = "HTTP/1.1 101 Switching Protocols";
+		assertTrue(new String(written, StandardCharsets.ISO_8859_1).startsWith(switching));
+		final int headerEnd = new String(written, StandardCharsets.ISO_8859_1).indexOf("\n\n") + 2;
+		final List<Frame> frames = Http2ConnectionTest.frames(Arrays.copyOfRange(written, headerEnd, written.length));
+		assertEquals(SETTINGS, frames.get(0).type);
+		final Frame data = Http2ConnectionTest.find(frames, DATA, 1);
+		assertNotNull("The upgrade request is answered on stream 1.", data);
+		assertEquals("Hello /upgraded", new String(data.payload, StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void resetStreamTest() throws IOException {
+		// No window for the body, so the stream waits until the client gives up on it.
+		final byte[] settings = new byte[6];
+		ByteBuffer.wrap(settings).putShort((short)0x4).putInt(0);
+		final byte[] reset = new byte[4];
+		ByteBuffer.wrap(reset).putInt(Http2Exception.NO_ERROR);
+		final List<Frame> frames = this.serve(Http2ConnectionTest.client(
+						Http2ConnectionTest.frame(SETTINGS, 0, 0, settings),
+						Http2ConnectionTest.frame(HEADERS, FLAG_END_STREAM | FLAG_END_HEADERS, 1, new HpackEncoder().encode(Http2ConnectionTest.request("/"))),
+						Http2ConnectionTest.frame(RST_STREAM, 0, 1, reset)), Http2ConnectionTest::hello);
+		assertNull("A reset stream shouldn't send its body.", Http2ConnectionTest.find(frames, DATA, 1));
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 1, Http2Exception.NO_ERROR);
+	}
+
+	@Test
+	public void requestBodyTest() throws IOException, Http2Exception {
+		final List<Map.Entry<String, String>> post = new ArrayList<>(Http2ConnectionTest.request("/upload.txt"));
+		post.set(0, new AbstractMap.SimpleImmutableEntry<>(":method", "POST"));
+		final AtomicBoolean processed = new AtomicBoolean();
+		final List<Frame> frames = this.serve(Http2ConnectionTest.client(
+						Http2ConnectionTest.frame(HEADERS, FLAG_END_HEADERS, 1, new HpackEncoder().encode(post)),
+						Http2ConnectionTest.frame(DATA, FLAG_END_STREAM, 1, "body".getBytes(StandardCharsets.US_ASCII))),
+						(request, output) -> processed.set(true));
+		assertFalse("The request shouldn't be served without its body.", processed.get());
+		final Frame headers = Http2ConnectionTest.find(frames, HEADERS, 1);
+		assertNotNull(frames.toString(), headers);
+		assertEquals(new AbstractMap.SimpleImmutableEntry<>(":status", "501"), new HpackDecoder(4096).decode(headers.payload).get(0));
+		final Frame reset = Http2ConnectionTest.find(frames, RST_STREAM, 1);
+		assertNotNull("The client should be told to stop sending the body.", reset);
+		assertEquals(Http2Exception.NO_ERROR, ByteBuffer.wrap(reset.payload).getInt());
+		assertNotNull("The body still used up the connection's window.", Http2ConnectionTest.find(frames, WINDOW_UPDATE, 0));
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 1, Http2Exception.NO_ERROR);
+	}
+
+	@Test
+	public void pushPromiseFromClientTest() throws IOException {
+		final List<Frame> frames = this.serve(Http2ConnectionTest.client(Http2ConnectionTest.frame(PUSH_PROMISE, FLAG_END_HEADERS, 1, new byte[4])),
+						Http2ConnectionTest::hello);
+		Http2ConnectionTest.assertGoAway(frames.get(frames.size() - 1), 0, Http2Exception.PROTOCOL_ERROR);
+	}
+
+	@Test
+	public void tooManyStreamsTest() throws Exception {
+		// Every stream waits until we let it go, so the 33rd arrives while 32 are open.
+		final CountDownLatch release = new CountDownLatch(1);
+		final byte[][] frames = new byte[33][];
+		for(int i = 0; i < frames.length; ++i) {
+			frames[i] = Http2ConnectionTest.frame(HEADERS, FLAG_END_STREAM | FLAG_END_HEADERS, i * 2 + 1,
+							new HpackEncoder().encode(Http2ConnectionTest.request("/" + i)));
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Thread connection = new Thread(() -> {
+			try {
+				new Http2Connection(new ByteArrayInputStream(Http2ConnectionTest.client(frames)), out, (request, output) -> {
+					try {
+						release.await();
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					Http2ConnectionTest.hello(request, output);
+				}, this.workers).serve();
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		connection.start();
+		final long deadline = System.currentTimeMillis() + 5000;
+		Frame refused = null;
+		while(refused == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			synchronized(out) {
+				refused = Http2ConnectionTest.find(Http2ConnectionTest.frames(out.toByteArray()), RST_STREAM, 65);
+			}
+		}
+		assertNotNull("The stream over the limit should be refused.", refused);
+		assertEquals(Http2Exception.REFUSED_STREAM, ByteBuffer.wrap(refused.payload).getInt());
+		release.countDown();
+		connection.join(5000);
+		assertFalse(connection.isAlive());
+		final List<Frame> written = Http2ConnectionTest.frames(out.toByteArray());
+		assertNotNull("Streams within the limit should still be answered.", Http2ConnectionTest.find(written, DATA, 63));
+	}
+
+	/**
+	 * Answers every request with "Hello" and its path, HTTP/1.1 style, like RequestHandler would.
+	 */
+	private static void hello(final HttpRequestHeader request, final OutputStream output) {
+		final String body = "Hello " + request.getResource();
+		try {
+			output.write(("HTTP/1.1 200 OK\nConnection: keep-alive\nContent-Length: " + body.length() + "\n\n" + body).getBytes(StandardCharsets.US_ASCII));
+		} catch(IOException e) {
+			// The stream was reset
+		}
+	}
+
+	/**
+	 * Serves everything the client sent, then returns what the server wrote back.
+	 */
+	private List<Frame> serve(final byte[] client, final BiConsumer<HttpRequestHeader, OutputStream> processor) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Http2Connection(new ByteArrayInputStream(client), out, processor, this.workers).serve();
+		return Http2ConnectionTest.frames(out.toByteArray());
+	}
+
+	private static List<Map.Entry<String, String>> request(final String path) {
+		return Arrays.asList(new AbstractMap.SimpleImmutableEntry<>(":method", "GET"), new AbstractMap.SimpleImmutableEntry<>(":scheme", "http"),
+						new AbstractMap.SimpleImmutableEntry<>(":path", path), new AbstractMap.SimpleImmutableEntry<>(":authority", "localhost"));
+	}
+
+	/**
+	 * @return The connection preface followed by the frames
+	 */
+	private static byte[] client(final byte[]... frames) throws IOException {
+		final ByteArrayOutputStream client = new ByteArrayOutputStream();
+		client.write(Http2Connection.PREFACE);
+		for(byte[] frame : frames) {
+			client.write(frame);
+		}
+		return client.toByteArray();
+	}
+
+	private static byte[] frame(final int type, final int flags, final int streamId, final byte[] payload) {
+		final ByteBuffer frame = ByteBuffer.allocate(9 + payload.length);
+		frame.put((byte)(payload.length >>> 16)).put((byte)(payload.length >>> 8)).put((byte)payload.length);
+		frame.put((byte)type).put((byte)flags).putInt(streamId).put(payload);
+		return frame.array();
+	}
+
+	private static List<Frame> frames(final byte[] written) {
+		final List<Frame> frames = new ArrayList<>();
+		final ByteBuffer buffer = ByteBuffer.wrap(written);
+		while(buffer.remaining() >= 9) {
+			final int length = ((buffer.get() & 0xff) << 16) | ((buffer.get() & 0xff) << 8) | (buffer.get() & 0xff);
+			final Frame frame = new Frame(buffer.get() & 0xff, buffer.get() & 0xff, buffer.getInt() & 0x7fffffff, new byte[length]);
+			buffer.get(frame.payload);
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	private static Frame find(final List<Frame> frames, final int type, final int streamId) {
+		for(Frame frame : frames) {
+			if(frame.type == type && frame.streamId == streamId) {
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	private static int setting(final Frame settings, final int identifier) {
+		final ByteBuffer payload = ByteBuffer.wrap(settings.payload);
+		while(payload.remaining() >= 6) {
+			final int id = payload.getShort() & 0xffff;
+			final int value = payload.getInt();
+			if(id == identifier) {
+				return value;
+			}
+		}
+		return -1;
+	}
+
+	private static void assertGoAway(final Frame frame, final int lastStreamId, final int errorCode) {
+		assertEquals(GOAWAY, frame.type);
+		final ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+		assertEquals(lastStreamId, payload.getInt());
+		assertEquals(errorCode, payload.getInt());
+	}
+
+	private static class Frame {
+		private final int type;
+		private final int flags;
+		private final int streamId;
+		private final byte[] payload;
+
+		Frame(final int type, final int flags, final int streamId, final byte[] payload) {
+			this.type = type;
+			this.flags = flags;
+			this.streamId = streamId;
+			this.payload = payload;
+		}
+
+		@Override
+		public String toString() {
+			return "type " + this.type + " flags " + this.flags + " stream " + this.streamId + " length " + this.payload.length;
+		}
+	}
+}
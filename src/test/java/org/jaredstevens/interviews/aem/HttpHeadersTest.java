@@ -0,0 +1,76 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.HttpHeaders;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class HttpHeadersTest {
+	@Test
+	public void caseInsensitiveTest() {
+		final HttpHeaders headers = new HttpHeaders();
+		headers.put("content-length", "12");
+		headers.put("X-Request-Id", "abc");
+		assertEquals("12", headers.get("Content-Length"));
+		assertEquals("12", headers.get("CONTENT-LENGTH"));
+		assertEquals("abc", headers.get("x-request-id"));
+		assertEquals("12", headers.put("Content-Length", "13"));
+		assertEquals("abc", headers.put("x-request-ID", "def"));
+		assertEquals(2, headers.size());
+		assertEquals("def", headers.remove("X-REQUEST-ID"));
+		assertEquals("13", headers.remove("Content-length"));
+		assertTrue(headers.isEmpty());
+		assertNull(headers.get("Content-Length"));
+	}
+
+	@Test
+	public void clearAndReuseTest() {
+		final HttpHeaders headers = new HttpHeaders();
+		for(int request = 0; request < 3; ++request) {
+			headers.clear();
+			assertTrue(headers.isEmpty());
+			assertNull("The last request's headers shouldn't leak into this one.", headers.get("X-Extra-1"));
+			headers.put("Host", "localhost");
+			// More extras than it starts out with room for
+			for(int i = 0; i < 20; ++i) {
+				headers.put("X-Extra-" + i, String.valueOf(request));
+			}
+			assertEquals(21, headers.size());
+			assertEquals(String.valueOf(request), headers.get("x-extra-19"));
+		}
+	}
+
+	@Test
+	public void entrySetTest() {
+		final HttpHeaders headers = new HttpHeaders();
+		final Map<String, String> expected = new HashMap<>();
+		expected.put("Content-Type", "text/html");
+		expected.put("Content-Length", "12");
+		expected.put("X-One", "1");
+		expected.put("X-Two", "2");
+		headers.putAll(expected);
+		assertEquals(expected, new HashMap<>(headers));
+
+		final Iterator<Map.Entry<String, String>> entries = headers.entrySet().iterator();
+		while(entries.hasNext()) {
+			final Map.Entry<String, String> entry = entries.next();
+			if(entry.getKey().equals("X-One") || entry.getKey().equals("Content-Type")) {
+				entries.remove();
+			} else if(entry.getKey().equals("X-Two")) {
+				entry.setValue("two");
+			}
+		}
+		assertEquals(2, headers.size());
+		assertEquals("12", headers.get("Content-Length"));
+		assertEquals("two", headers.get("X-Two"));
+		assertFalse(headers.containsKey("X-One"));
+		assertFalse(headers.containsKey("Content-Type"));
+	}
+}
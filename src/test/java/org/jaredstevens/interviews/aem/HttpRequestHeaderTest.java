@@ -47,4 +47,35 @@ public class HttpRequestHeaderTest {
 		assertEquals("Connection header wasn't parsed correctly.", "The greatest and best browser in the world", header.getHeaders().get("User-Agent"));
 		assertNull("Didn't expect a body.", header.getBody());
 	}
+
+	@Test
+	public void hostTest() throws BadRequestException {
+		assertEquals("example.com", HttpRequestHeader.fromString("GET / HTTP/1.1\nHost: Example.COM:8080\n\n").getHost());
+		assertEquals("[::1]", HttpRequestHeader.fromString("GET / HTTP/1.1\nhost: [::1]:4444\n\n").getHost());
+		assertNull(HttpRequestHeader.fromString("GET / HTTP/1.1\n\n").getHost());
+	}
+
+	@Test
+	public void parseReuseTest() throws BadRequestException {
+		final HttpRequestHeader header = new HttpRequestHeader();
+		final List<String> lines = new ArrayList<>();
+		lines.add("GET /first.html HTTP/1.1");
+		lines.add("Host: one.example");
+		lines.add("X-Trace: 1");
+		header.parse(lines);
+		assertEquals("one.example", header.getHost());
+		assertEquals("1", header.getHeader("x-trace"));
+
+		lines.clear();
+		lines.add("HEAD /second.html HTTP/1.0");
+		lines.add("host: two.example");
+		header.reset();
+		header.parse(lines);
+		assertEquals(HttpRequestMethod.HEAD, header.getMethod());
+		assertEquals("/second.html", header.getResource());
+		assertEquals("HTTP/1.0", header.getProtocol());
+		assertEquals("two.example", header.getHost());
+		assertNull("The last request's headers shouldn't carry over.", header.getHeader("X-Trace"));
+		assertEquals(1, header.getHeaders().size());
+	}
 }
@@ -3,6 +3,8 @@ package org.jaredstevens.interviews.aem;
 import org.jaredstevens.interviews.aem.httppojos.HttpResponseHeader;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import static org.junit.Assert.*;
@@ -27,4 +29,19 @@ public class HttpResponseHeaderTest {
 		header = new HttpResponseHeader();
 		assertEquals("HTTP/1.1 200 OK\n\n", header.getRawResponse());
 	}
+
+	@Test
+	public void resetAndWriteToTest() {
+		final HttpResponseHeader header = new HttpResponseHeader();
+		header.add("X-Old", "gone");
+		header.reset("HTTP/1.1", 200, "OK");
+		header.add("Content-Length", "12");
+		header.add("Content-Type", "text/html");
+		assertEquals("HTTP/1.1 200 OK\nContent-Length: 12\nContent-Type: text/html\n\n", header.getRawResponse());
+
+		final byte[] buffer = new byte[64];
+		final int length = header.writeTo(buffer, 0);
+		assertArrayEquals(header.getRawResponse().getBytes(StandardCharsets.ISO_8859_1), Arrays.copyOf(buffer, length));
+		assertEquals("A header that doesn't fit shouldn't be written.", -1, header.writeTo(new byte[10], 0));
+	}
 }
@@ -0,0 +1,345 @@
+package org.jaredstevens.interviews.aem;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ *
+ * Guards request latency and throughput against regressions. It starts the server in-process on a copy of
+ * test_files (plus the 1 MB large_file.bin from error_pages), replays the same mixed workload from a few clients for a while,
+ * and compares throughput and each kind of request's p99 with the baseline in slo_baseline.json. Anything worse
+ * than the baseline by more than its tolerance fails. Either way the numbers are written to slo-results.json, so
+ * they can be kept and plotted over time.
+ * It takes a while and depends on the machine, so it isn't part of the regular tests. It runs with the slo
+ * profile: mvn -Pslo verify
+ * To record a new baseline on the machine that does the checking, add -Dslo.update=true.
+ */
+public class LatencySlo {
+	private static final Gson GSON = new GsonBuilder()
+					.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+					.setPrettyPrinting()
+					.create();
+	// Requests made, in order, on the one connection of a keep-alive sequence
+	private static final String[] KEEP_ALIVE_SEQUENCE = {"/index.html", "/server_config.json", "/missing.html"};
+	private static final int KEEP_ALIVE_REQUESTS = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void latencyTest() throws IOException, WebServerException, InterruptedException {
+		final Path baselinePath = Paths.get(System.getProperty("slo.baseline", "src/test/resources/slo_baseline.json"));
+		final Path resultsPath = Paths.get(System.getProperty("slo.results", "target/slo-results.json"));
+		final Baseline baseline;
+		try(Reader reader = Files.newBufferedReader(baselinePath, StandardCharsets.UTF_8)) {
+			baseline = LatencySlo.GSON.fromJson(reader, Baseline.class);
+		}
+
+		final File root = this.folder.newFolder("test_files");
+		try(Stream<Path> files = Files.list(Paths.get("src/test/resources/test_files"))) {
+			for(Path file : (Iterable<Path>)files::iterator) {
+				Files.copy(file, root.toPath().resolve(file.getFileName().toString()));
+			}
+		}
+		Files.copy(Paths.get("src/test/resources/error_pages/large_file.bin"), root.toPath().resolve("large_file.bin"));
+
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(baseline.clients * 2);
+		config.setSocketTimeout(30000);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		final Results results;
+		try {
+			LatencySlo.run(server.getPort(), baseline.clients, baseline.warmUp);
+			results = LatencySlo.run(server.getPort(), baseline.clients, baseline.duration);
+		} finally {
+			server.stop(1000);
+		}
+
+		results.check(baseline);
+		Files.createDirectories(resultsPath.toAbsolutePath().getParent());
+		try(Writer writer = Files.newBufferedWriter(resultsPath, StandardCharsets.UTF_8)) {
+			LatencySlo.GSON.toJson(results, writer);
+		}
+		System.out.println(LatencySlo.GSON.toJson(results));
+		if(Boolean.getBoolean("slo.update")) {
+			baseline.throughput = Math.floor(results.throughput);
+			for(Map.Entry<String, Latency> latency : results.latency.entrySet()) {
+				baseline.p99.put(latency.getKey(), Math.ceil(latency.getValue().p99 * 10) / 10);
+			}
+			try(Writer writer = Files.newBufferedWriter(baselinePath, StandardCharsets.UTF_8)) {
+				LatencySlo.GSON.toJson(baseline, writer);
+			}
+			return;
+		}
+		assertEquals("Every request should have been answered as expected.", 0, results.errors);
+		assertTrue("Regressed against " + baselinePath + ": " + results.regressions + ". See " + resultsPath, results.passed);
+	}
+
+	/**
+	 * Replays the workload from a number of clients at once, until the time's up.
+	 */
+	private static Results run(final int port, final int clients, final long millis) throws InterruptedException {
+		final long started = System.nanoTime();
+		final long deadline = started + millis * 1000000L;
+		final List<Client> running = new ArrayList<>();
+		for(int i = 0; i < clients; ++i) {
+			final Client client = new Client(port, deadline);
+			client.start();
+			running.add(client);
+		}
+		for(Client client : running) {
+			client.join();
+		}
+		final double seconds = (System.nanoTime() - started) / 1e9;
+		final Map<String, List<Long>> times = new LinkedHashMap<>();
+		final Results results = new Results();
+		long bytes = 0;
+		for(Client client : running) {
+			for(Map.Entry<String, List<Long>> kind : client.times.entrySet()) {
+				times.computeIfAbsent(kind.getKey(), key -> new ArrayList<>()).addAll(kind.getValue());
+			}
+			bytes += client.bytes;
+			results.errors += client.errors;
+			if(client.failure != null && results.failure == null) {
+				results.failure = client.failure.toString();
+			}
+		}
+		results.finished = Instant.now().toString();
+		results.javaVersion = System.getProperty("java.version");
+		results.clients = clients;
+		results.seconds = seconds;
+		for(Map.Entry<String, List<Long>> kind : times.entrySet()) {
+			final Latency latency = new Latency(kind.getValue());
+			results.latency.put(kind.getKey(), latency);
+			results.requests += latency.requests;
+		}
+		results.throughput = results.requests / seconds;
+		results.megabytesPerSecond = bytes / seconds / (1024 * 1024);
+		return results;
+	}
+
+	/**
+	 * One client, going through the same cycle of requests over and over: a few small files on their own
+	 * connections, a keep-alive sequence, a couple of 404s and large_file.bin.
+	 */
+	private static class Client extends Thread {
+		private final int port;
+		private final long deadline;
+		private final Map<String, List<Long>> times = new HashMap<>();
+		private long bytes;
+		private long errors;
+		private IOException failure;
+
+		private Client(final int port, final long deadline) {
+			this.port = port;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			int cycle = 0;
+			try {
+				while(System.nanoTime() - this.deadline < 0) {
+					for(int i = 0; i < 4; ++i) {
+						this.request("small", "/index.html", 200);
+					}
+					this.keepAlive();
+					this.request("not_found", "/missing-" + cycle + ".html", 404);
+					this.request("not_found", "/missing/" + cycle, 404);
+					this.request("large", "/large_file.bin", 200);
+					++cycle;
+				}
+			} catch(IOException e) {
+				++this.errors;
+				this.failure = e;
+			}
+		}
+
+		/**
+		 * Makes one request on a connection of its own.
+		 */
+		private void request(final String kind, final String resource, final int status) throws IOException {
+			final long started = System.nanoTime();
+			try(Socket socket = this.connect()) {
+				this.exchange(socket.getOutputStream(), new BufferedInputStream(socket.getInputStream(), 65536), resource, status);
+			}
+			this.record(kind, started);
+		}
+
+		private void keepAlive() throws IOException {
+			long started = System.nanoTime();
+			try(Socket socket = this.connect()) {
+				final OutputStream outputStream = socket.getOutputStream();
+				final InputStream inputStream = new BufferedInputStream(socket.getInputStream(), 65536);
+				for(int i = 0; i < LatencySlo.KEEP_ALIVE_REQUESTS; ++i) {
+					final String resource = LatencySlo.KEEP_ALIVE_SEQUENCE[i % LatencySlo.KEEP_ALIVE_SEQUENCE.length];
+					this.exchange(outputStream, inputStream, resource, resource.startsWith("/missing") ? 404 : 200);
+					this.record("keep_alive", started);
+					started = System.nanoTime();
+				}
+			}
+		}
+
+		private Socket connect() throws IOException {
+			final Socket socket = new Socket(InetAddress.getByName("localhost"), this.port);
+			socket.setSoTimeout(30000);
+			return socket;
+		}
+
+		/**
+		 * Sends a request and reads past its response, counting it as an error if it isn't the expected status.
+		 */
+		private void exchange(final OutputStream outputStream, final InputStream inputStream, final String resource, final int status) throws IOException {
+			outputStream.write(("GET " + resource + " HTTP/1.1\nHost: localhost\n\n").getBytes(StandardCharsets.US_ASCII));
+			final StringBuilder line = new StringBuilder();
+			String statusLine = null;
+			long contentLength = 0;
+			int b;
+			while((b = inputStream.read()) != -1) {
+				if(b == '\r') {
+					continue;
+				}
+				if(b != '\n') {
+					line.append((char)b);
+					continue;
+				}
+				if(line.length() == 0) {
+					break;
+				}
+				final String header = line.toString();
+				if(statusLine == null) {
+					statusLine = header;
+				} else if(header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+					contentLength = Long.parseLong(header.substring(15).trim());
+				}
+				line.setLength(0);
+			}
+			if(b == -1 || statusLine == null) {
+				throw new IOException("The server closed the connection before answering " + resource);
+			}
+			if(!statusLine.startsWith("HTTP/1.1 " + status)) {
+				++this.errors;
+			}
+			this.bytes += contentLength;
+			while(contentLength > 0) {
+				final long skipped = inputStream.skip(contentLength);
+				if(skipped <= 0) {
+					throw new IOException("The response to " + resource + " was cut short");
+				}
+				contentLength -= skipped;
+			}
+		}
+
+		private void record(final String kind, final long started) {
+			this.times.computeIfAbsent(kind, key -> new ArrayList<>()).add(System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * What slo_baseline.json holds: how to run the workload, and what it's expected to do.
+	 */
+	private static class Baseline {
+		// How far off the baseline is still fine, as a fraction of it
+		private double tolerance = 0.25;
+		// Added to the allowed p99s, since a fraction of a millisecond or two is mostly noise
+		private double p99SlackMillis = 1;
+		private int clients = 4;
+		private long warmUp = 3000;
+		private long duration = 10000;
+		// Requests per second, of every kind together
+		private double throughput;
+		// Milliseconds, by kind of request
+		private Map<String, Double> p99 = new LinkedHashMap<>();
+	}
+
+	private static class Latency {
+		private final long requests;
+		private final double p50;
+		private final double p90;
+		private final double p99;
+		private final double max;
+
+		private Latency(final List<Long> nanos) {
+			Collections.sort(nanos);
+			this.requests = nanos.size();
+			this.p50 = Latency.percentile(nanos, 0.50);
+			this.p90 = Latency.percentile(nanos, 0.90);
+			this.p99 = Latency.percentile(nanos, 0.99);
+			this.max = Latency.percentile(nanos, 1);
+		}
+
+		/**
+		 * @return The percentile of sorted times, in milliseconds
+		 */
+		private static double percentile(final List<Long> nanos, final double fraction) {
+			if(nanos.isEmpty()) {
+				return 0;
+			}
+			final int index = Math.max(0, (int)Math.ceil(fraction * nanos.size()) - 1);
+			return Math.round(nanos.get(index) / 1000.0) / 1000.0;
+		}
+	}
+
+	private static class Results {
+		private String finished;
+		private String javaVersion;
+		private int clients;
+		private double seconds;
+		private long requests;
+		private long errors;
+		private String failure;
+		private double throughput;
+		private double megabytesPerSecond;
+		private final Map<String, Latency> latency = new LinkedHashMap<>();
+		private final List<String> regressions = new ArrayList<>();
+		private boolean passed;
+
+		private void check(final Baseline baseline) {
+			final double minimumThroughput = baseline.throughput * (1 - baseline.tolerance);
+			if(this.throughput < minimumThroughput) {
+				this.regressions.add(String.format("throughput %.0f/s is under %.0f/s", this.throughput, minimumThroughput));
+			}
+			for(Map.Entry<String, Double> expected : baseline.p99.entrySet()) {
+				final Latency measured = this.latency.get(expected.getKey());
+				final double allowed = expected.getValue() * (1 + baseline.tolerance) + baseline.p99SlackMillis;
+				if(measured == null) {
+					this.regressions.add(expected.getKey() + " requests were never made");
+				} else if(measured.p99 > allowed) {
+					this.regressions.add(String.format("%s p99 %.1f ms is over %.1f ms", expected.getKey(), measured.p99, allowed));
+				}
+			}
+			this.passed = this.regressions.isEmpty() && this.errors == 0;
+		}
+	}
+}
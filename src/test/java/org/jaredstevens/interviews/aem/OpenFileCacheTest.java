@@ -0,0 +1,150 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class OpenFileCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File write(final String name, final String content) throws IOException {
+		final File file = new File(this.folder.getRoot(), name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static String read(final InputStream inputStream) throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[3];
+		int read;
+		while((read = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, read);
+		}
+		return outputStream.toString("UTF-8");
+	}
+
+	@Test
+	public void hitSharesChannelTest() throws IOException {
+		final ServerMetrics metrics = new ServerMetrics();
+		final OpenFileCache cache = new OpenFileCache(16, 60000, metrics);
+		final File file = this.write("index.html", "hello world");
+		try(OpenFileCache.OpenFile first = cache.open(file); OpenFileCache.OpenFile second = cache.open(file)) {
+			assertSame("The second open should come from the cache.", first, second);
+			assertEquals(11, first.getSize());
+			// Two streams over the same channel, read in lockstep, don't get in each other's way.
+			final InputStream one = first.newInputStream();
+			final InputStream two = second.newInputStream();
+			assertEquals('h', one.read());
+			assertEquals('h', two.read());
+			assertEquals("ello world", OpenFileCacheTest.read(one));
+			assertEquals("ello world", OpenFileCacheTest.read(two));
+		}
+		assertEquals(1L, metrics.snapshot().get("open_file_cache_hits"));
+		assertEquals(1L, metrics.snapshot().get("open_file_cache_misses"));
+	}
+
+	@Test
+	public void changedFileReopenedTest() throws IOException {
+		// Entries are checked against the file every time.
+		final OpenFileCache cache = new OpenFileCache(16, 0, new ServerMetrics());
+		final File file = this.write("page.html", "old");
+		final OpenFileCache.OpenFile old;
+		try(OpenFileCache.OpenFile openFile = cache.open(file)) {
+			old = openFile;
+		}
+		this.write("page.html", "brand new");
+		try(OpenFileCache.OpenFile openFile = cache.open(file)) {
+			assertNotSame(old, openFile);
+			assertEquals("brand new", OpenFileCacheTest.read(openFile.newInputStream()));
+		}
+		assertFalse("The stale channel should have been closed.", old.isOpen());
+	}
+
+	@Test
+	public void evictionWaitsForReadersTest() throws IOException {
+		final OpenFileCache cache = new OpenFileCache(1, 60000, new ServerMetrics());
+		final File first = this.write("a.txt", "aaa");
+		final OpenFileCache.OpenFile inUse = cache.open(first);
+		try(OpenFileCache.OpenFile other = cache.open(this.write("b.txt", "bbb"))) {
+			assertEquals("bbb", OpenFileCacheTest.read(other.newInputStream()));
+		}
+		assertEquals(1, cache.size());
+		assertTrue("An evicted file should stay open while it's being sent.", inUse.isOpen());
+		assertEquals("aaa", OpenFileCacheTest.read(inUse.newInputStream()));
+		inUse.close();
+		assertFalse(inUse.isOpen());
+	}
+
+	@Test
+	public void invalidateTest() throws IOException {
+		final OpenFileCache cache = new OpenFileCache(16, 60000, new ServerMetrics());
+		final File file = this.write("upload.txt", "v1");
+		cache.open(file).close();
+		cache.invalidate(file);
+		assertEquals(0, cache.size());
+		this.write("upload.txt", "v2");
+		try(OpenFileCache.OpenFile openFile = cache.open(file)) {
+			assertEquals("v2", OpenFileCacheTest.read(openFile.newInputStream()));
+		}
+	}
+
+	@Test
+	public void disabledTest() throws IOException {
+		final OpenFileCache cache = new OpenFileCache(0, 60000, new ServerMetrics());
+		final OpenFileCache.OpenFile openFile = cache.open(this.write("a.txt", "aaa"));
+		openFile.close();
+		assertEquals(0, cache.size());
+		assertFalse(openFile.isOpen());
+	}
+
+	@Test
+	public void quotaTest() throws IOException {
+		final OpenFileCache cache = new OpenFileCache(16, 60000, new ServerMetrics());
+		cache.setQuota("small.example.com", 10);
+		final File first = this.write("first.txt", "12345");
+		final File second = this.write("second.txt", "67890");
+		final File third = this.write("third.txt", "abcde");
+		cache.open(first, "small.example.com").close();
+		cache.open(second, "small.example.com").close();
+		assertEquals(10, cache.getUsage("small.example.com"));
+		cache.open(first, "small.example.com").close();
+		// Over the quota. second.txt has gone unused the longest, so it makes room.
+		cache.open(third, "small.example.com").close();
+		assertEquals(10, cache.getUsage("small.example.com"));
+		assertEquals(2, cache.size());
+		// Another site's files don't count against this one's quota.
+		cache.open(this.write("other.txt", "a much longer file"), "other.example.com").close();
+		assertEquals(3, cache.size());
+		// Too big to ever fit, so it isn't cached.
+		try(OpenFileCache.OpenFile big = cache.open(this.write("big.txt", "more than ten bytes"), "small.example.com")) {
+			assertEquals("more than ten bytes", OpenFileCacheTest.read(big.newInputStream()));
+		}
+		assertEquals(3, cache.size());
+		cache.invalidate(first);
+		assertEquals(5, cache.getUsage("small.example.com"));
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void missingFileTest() throws IOException {
+		new OpenFileCache(16, 60000, new ServerMetrics()).open(new File(this.folder.getRoot(), "missing.html"));
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void directoryTest() throws IOException {
+		new OpenFileCache(16, 60000, new ServerMetrics()).open(this.folder.newFolder("dir"));
+	}
+}
@@ -0,0 +1,112 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class OutboundDrainerTest {
+	private static final int FILE_SIZE = 32 * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private OutboundQueue response(final OpenFileCache.OpenFile file) {
+		final OutboundQueue queue = new OutboundQueue(1024);
+		assertTrue(queue.add(ByteBuffer.wrap("HTTP/1.1 200 OK\n\n".getBytes(StandardCharsets.US_ASCII))));
+		queue.add(file, 0, file.getSize());
+		return queue;
+	}
+
+	private OpenFileCache.OpenFile bigFile(final byte[] data) throws IOException {
+		final File file = this.folder.newFile("big.bin");
+		Files.write(file.toPath(), data);
+		return new OpenFileCache(0, 0, new ServerMetrics()).open(file);
+	}
+
+	@Test
+	public void slowClientIsDrainedTest() throws IOException, InterruptedException {
+		final byte[] data = new byte[OutboundDrainerTest.FILE_SIZE];
+		new Random(7).nextBytes(data);
+		final ServerMetrics metrics = new ServerMetrics();
+		final OutboundDrainer drainer = new OutboundDrainer(16, 5000, new RequestLanes(new ServerConfig(), metrics), metrics);
+		try(ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+						Socket client = new Socket("localhost", server.socket().getLocalPort());
+						SocketChannel channel = server.accept()) {
+			final OpenFileCache.OpenFile file = this.bigFile(data);
+			final CountDownLatch resumed = new CountDownLatch(1);
+			// The client hasn't read anything yet, so 32 MB can't all go out at once.
+			assertTrue("The drainer should have taken over.", drainer.send(channel, this.response(file), resumed::countDown, () -> {}));
+			final InputStream inputStream = client.getInputStream();
+			final byte[] received = new byte[17 + data.length];
+			int total = 0;
+			int read;
+			while(total < received.length && (read = inputStream.read(received, total, received.length - total)) != -1) {
+				total += read;
+			}
+			assertEquals(received.length, total);
+			assertArrayEquals(data, Arrays.copyOfRange(received, 17, received.length));
+			assertTrue("The connection should be resumed once it's drained.", resumed.await(5, TimeUnit.SECONDS));
+			assertTrue("The channel should be back in blocking mode.", channel.isBlocking());
+			assertFalse("The file should be released.", file.isOpen());
+			assertEquals(1L, metrics.snapshot().get("drained_responses"));
+		}
+	}
+
+	// The client is only there to not read, and the drainer's onClose has to close the channel itself.
+	@Test
+	@SuppressWarnings("try")
+	public void stalledClientIsDroppedTest() throws IOException, InterruptedException {
+		final ServerMetrics metrics = new ServerMetrics();
+		final OutboundDrainer drainer = new OutboundDrainer(16, 300, new RequestLanes(new ServerConfig(), metrics), metrics);
+		try(ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+						Socket client = new Socket("localhost", server.socket().getLocalPort());
+						SocketChannel channel = server.accept()) {
+			final OpenFileCache.OpenFile file = this.bigFile(new byte[OutboundDrainerTest.FILE_SIZE]);
+			assertTrue(drainer.send(channel, this.response(file), () -> fail("A stalled connection shouldn't be resumed."), () -> {
+				try {
+					channel.close();
+				} catch(IOException e) {
+					fail(e.getMessage());
+				}
+			}));
+			// Never read anything.
+			final long deadline = System.currentTimeMillis() + 5000;
+			while(channel.isOpen() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertFalse("A client that stopped reading should be dropped.", channel.isOpen());
+			assertFalse(file.isOpen());
+			assertEquals(1L, metrics.snapshot().get("write_stalls"));
+		}
+	}
+
+	@Test
+	public void bufferLimitTest() {
+		final OutboundQueue queue = new OutboundQueue(10);
+		assertTrue(queue.add(ByteBuffer.allocate(6)));
+		assertFalse("Buffered bytes should be capped.", queue.add(ByteBuffer.allocate(5)));
+		assertTrue(queue.add(ByteBuffer.allocate(4)));
+		queue.addMapped(ByteBuffer.allocateDirect(64));
+		assertEquals(74, queue.size());
+	}
+}
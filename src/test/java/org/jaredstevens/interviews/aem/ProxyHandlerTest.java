@@ -0,0 +1,272 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.jaredstevens.interviews.aem.proxy.ProxyHandler;
+import org.jaredstevens.interviews.aem.proxy.ProxyRoute;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class ProxyHandlerTest {
+	private final static String documentRoot = "src/test/resources/test_files/";
+	private StubBackend backend;
+
+	@Before
+	public void startBackend() throws IOException {
+		this.backend = new StubBackend();
+	}
+
+	@After
+	public void stopBackend() throws IOException {
+		this.backend.close();
+	}
+
+	private static ServerContext proxyContext(final String... backends) {
+		final ServerContext base = ServerContext.forDocumentRoot(ProxyHandlerTest.documentRoot, null);
+		base.getConfig().setProxies(Collections.singletonList(new ProxyRoute("/api", Arrays.asList(backends))));
+		return new ServerContext(base.getConfig(), null);
+	}
+
+	private static HttpRequestHeader request(final String rawHeader) throws BadRequestException {
+		return HttpRequestHeader.fromString(rawHeader);
+	}
+
+	@Test
+	public void routeMatchesTest() {
+		final ProxyRoute route = new ProxyRoute("/api", Collections.singletonList("localhost:1"));
+		assertTrue(route.matches("/api"));
+		assertTrue(route.matches("/api/users"));
+		assertTrue(route.matches("/api?q=1"));
+		assertFalse("Prefixes should only match whole path segments.", route.matches("/apikeys"));
+		assertFalse(route.matches("/index.html"));
+	}
+
+	@Test
+	public void forwardReusesConnectionTest() throws BadRequestException {
+		final RequestHandler thread = new RequestHandler(null, ProxyHandlerTest.proxyContext(this.backend.getAddress()));
+		final HttpRequestHeader requestHeader = ProxyHandlerTest.request("GET /api/fixed HTTP/1.1\nHost: localhost:4444\n\n");
+		for(int i = 0; i < 2; ++i) {
+			final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			thread.processRequest(requestHeader, outputStream);
+			assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", outputStream.toString());
+		}
+		assertEquals("The pooled backend connection wasn't reused.", 1, this.backend.getConnections());
+		assertTrue("Host header wasn't passed through.", this.backend.getRequests().get(0).contains("Host: localhost:4444"));
+	}
+
+	@Test
+	public void forwardChunkedResponseTest() throws BadRequestException {
+		final RequestHandler thread = new RequestHandler(null, ProxyHandlerTest.proxyContext(this.backend.getAddress()));
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.processRequest(ProxyHandlerTest.request("GET /api/chunked HTTP/1.1\nHost: localhost\n\n"), outputStream);
+		assertEquals("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nhel\r\n2\r\nlo\r\n0\r\n\r\n", outputStream.toString());
+
+		// HTTP/2 frames the body itself, so the chunk framing is taken off.
+		final HttpRequestHeader http2Request = ProxyHandlerTest.request("GET /api/chunked HTTP/1.1\nHost: localhost\n\n");
+		http2Request.setProtocol("HTTP/2.0");
+		final ByteArrayOutputStream http2Stream = new ByteArrayOutputStream();
+		thread.processRequest(http2Request, http2Stream);
+		assertEquals("HTTP/1.1 200 OK\r\n\r\nhello", http2Stream.toString());
+	}
+
+	@Test
+	public void forwardCloseDelimitedResponseTest() throws BadRequestException {
+		final RequestHandler thread = new RequestHandler(null, ProxyHandlerTest.proxyContext(this.backend.getAddress()));
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.processRequest(ProxyHandlerTest.request("GET /api/close HTTP/1.1\nHost: localhost\n\n"), outputStream);
+		// The backend's body ends when it hangs up, so it's re-chunked to keep the client's connection open.
+		assertEquals("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nbye\r\n0\r\n\r\n", outputStream.toString());
+	}
+
+	@Test
+	public void forwardRequestBodyTest() throws BadRequestException, IOException {
+		final ServerContext context = ProxyHandlerTest.proxyContext(this.backend.getAddress());
+		final HttpRequestHeader requestHeader = ProxyHandlerTest.request("POST /api/echo HTTP/1.1\nHost: localhost\nContent-Length: 11\nExpect: 100-continue\n\n");
+		final HttpInputStream body = new HttpInputStream(new ByteArrayInputStream("hello world".getBytes(StandardCharsets.UTF_8)));
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		assertTrue(context.getProxy().forward(requestHeader, body, outputStream, "10.0.0.1"));
+		assertEquals("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello world", outputStream.toString());
+		final String forwarded = this.backend.getRequests().get(0);
+		assertTrue("X-Forwarded-For wasn't added.", forwarded.contains("X-Forwarded-For: 10.0.0.1"));
+		assertFalse("Expect is hop-by-hop and shouldn't be forwarded.", forwarded.contains("Expect"));
+	}
+
+	@Test
+	public void leastOutstandingBalancingTest() throws BadRequestException, IOException, InterruptedException {
+		try(StubBackend second = new StubBackend()) {
+			final ServerContext context = ProxyHandlerTest.proxyContext(this.backend.getAddress(), second.getAddress());
+			final ProxyHandler proxy = context.getProxy();
+			final HttpRequestHeader requestHeader = ProxyHandlerTest.request("GET /api/slow HTTP/1.1\nHost: localhost\n\n");
+			final HttpRequestHeader fastHeader = ProxyHandlerTest.request("GET /api/fixed HTTP/1.1\nHost: localhost\n\n");
+
+			// Tie up one of the backends with a request that won't finish until we let it.
+			final Thread slowRequest = new Thread(() -> {
+				try {
+					proxy.forward(requestHeader, null, new ByteArrayOutputStream(), null);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			slowRequest.start();
+			while(this.backend.getRequests().size() + second.getRequests().size() == 0) {
+				Thread.yield();
+			}
+			final StubBackend busy = this.backend.getRequests().isEmpty() ? second : this.backend;
+			final StubBackend idle = busy == this.backend ? second : this.backend;
+			for(int i = 0; i < 3; ++i) {
+				assertTrue(proxy.forward(fastHeader, null, new ByteArrayOutputStream(), null));
+			}
+			assertEquals("Requests should go to the backend with nothing in flight.", 3, idle.getRequests().size());
+			assertEquals(1, busy.getRequests().size());
+			busy.release();
+			slowRequest.join();
+		}
+	}
+
+	@Test
+	public void badGatewayTest() throws BadRequestException, IOException {
+		final String address = this.backend.getAddress();
+		this.backend.close();
+		final RequestHandler thread = new RequestHandler(null, ProxyHandlerTest.proxyContext(address));
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.processRequest(ProxyHandlerTest.request("GET /api/fixed HTTP/1.1\nHost: localhost\n\n"), outputStream);
+		assertTrue(outputStream.toString().startsWith("HTTP/1.1 502 Bad Gateway\n"));
+	}
+
+	@Test
+	public void badGatewayWithBodyClosesTest() throws IOException, WebServerException {
+		final String address = this.backend.getAddress();
+		this.backend.close();
+		final ServerContext context = ProxyHandlerTest.proxyContext(address);
+		context.getConfig().setThreads(2);
+		final WebServer server = new WebServer.Builder().config(context.getConfig()).bind("localhost", 0).build();
+		server.start();
+		try(Socket socket = new Socket("localhost", server.getPort())) {
+			socket.setSoTimeout(5000);
+			// The body looks like a request. If it's left unread, it gets served as one.
+			final String smuggled = "GET /index.html HTTP/1.1\nHost: localhost\n\n";
+			socket.getOutputStream().write(("POST /api/echo HTTP/1.1\nHost: localhost\nContent-Length: " + smuggled.length() + "\n\n" + smuggled
+							+ "GET /index.html HTTP/1.1\nHost: localhost\n\n").getBytes(StandardCharsets.US_ASCII));
+			assertTrue(UnixSocketListenerTest.readResponse(socket.getInputStream()).startsWith("HTTP/1.1 502 Bad Gateway\n"));
+			assertEquals("Nothing after the 502 should have been answered.", -1, socket.getInputStream().read());
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	/**
+	 * A tiny keep-alive HTTP server that answers a few fixed paths.
+	 */
+	private static class StubBackend implements Closeable {
+		private final ServerSocket serverSocket = new ServerSocket(0);
+		private final AtomicInteger connections = new AtomicInteger();
+		private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+		private final Object slowLock = new Object();
+		private boolean released;
+
+		StubBackend() throws IOException {
+			final Thread acceptThread = new Thread(() -> {
+				try {
+					while(true) {
+						final Socket socket = this.serverSocket.accept();
+						this.connections.incrementAndGet();
+						new Thread(() -> this.serve(socket)).start();
+					}
+				} catch(IOException e) {
+					// Closed
+				}
+			});
+			acceptThread.setDaemon(true);
+			acceptThread.start();
+		}
+
+		String getAddress() {
+			return "localhost:" + this.serverSocket.getLocalPort();
+		}
+
+		int getConnections() {
+			return this.connections.get();
+		}
+
+		List<String> getRequests() {
+			return this.requests;
+		}
+
+		void release() {
+			synchronized(this.slowLock) {
+				this.released = true;
+				this.slowLock.notifyAll();
+			}
+		}
+
+		private void serve(final Socket socket) {
+			try(Socket client = socket; HttpInputStream in = new HttpInputStream(client.getInputStream())) {
+				final OutputStream out = client.getOutputStream();
+				String requestLine;
+				while((requestLine = in.readLine()) != null) {
+					final StringBuilder request = new StringBuilder(requestLine).append('\n');
+					int contentLength = 0;
+					String line;
+					while((line = in.readLine()) != null && !line.isEmpty()) {
+						request.append(line).append('\n');
+						if(line.toLowerCase().startsWith("content-length:")) {
+							contentLength = Integer.parseInt(line.substring(15).trim());
+						}
+					}
+					final byte[] body = new byte[contentLength];
+					new DataInputStream(in).readFully(body);
+					this.requests.add(request.toString());
+					final String path = requestLine.split(" ")[1];
+					switch(path) {
+						case "/api/slow":
+							synchronized(this.slowLock) {
+								while(!this.released) {
+									this.slowLock.wait();
+								}
+							}
+							out.write("HTTP/1.1 204 No Content\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+							break;
+						case "/api/chunked":
+							out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nhel\r\n2\r\nlo\r\n0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+							break;
+						case "/api/close":
+							out.write("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nbye".getBytes(StandardCharsets.UTF_8));
+							return;
+						case "/api/echo":
+							out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+							out.write(body);
+							break;
+						default:
+							out.write("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.UTF_8));
+							break;
+					}
+					out.flush();
+				}
+			} catch(IOException | InterruptedException e) {
+				// The proxy hung up
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.release();
+			this.serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class RateLimiterTest {
+	@Test
+	public void burstThenRefillTest() {
+		final RateLimiter limiter = new RateLimiter(10, 3, 1024, 60000);
+		final long client = 42;
+		for(int i = 0; i < 3; ++i) {
+			assertTrue("Request within the burst was limited.", limiter.tryAcquire(client, 1));
+		}
+		assertFalse("Request past the burst wasn't limited.", limiter.tryAcquire(client, 1));
+		// 10 per second is one token every 100ms
+		assertFalse(limiter.tryAcquire(client, 99));
+		assertTrue(limiter.tryAcquire(client, 101));
+		assertFalse(limiter.tryAcquire(client, 102));
+		// A long wait only refills up to the burst
+		for(int i = 0; i < 3; ++i) {
+			assertTrue(limiter.tryAcquire(client, 50000));
+		}
+		assertFalse(limiter.tryAcquire(client, 50000));
+	}
+
+	@Test
+	public void slowRateRefillTest() {
+		// Half a request per second. Checking every millisecond shouldn't keep the bucket from refilling.
+		final RateLimiter limiter = new RateLimiter(0.5, 1, 1024, 60000);
+		assertTrue(limiter.tryAcquire(7, 1));
+		long now = 2;
+		while(!limiter.tryAcquire(7, now)) {
+			++now;
+		}
+		assertEquals("Bucket refilled at the wrong time.", 2001, now, 2);
+	}
+
+	@Test
+	public void clientsAreIndependentTest() {
+		final RateLimiter limiter = new RateLimiter(1, 1, 1024, 60000);
+		assertTrue(limiter.tryAcquire(1, 1));
+		assertFalse(limiter.tryAcquire(1, 1));
+		assertTrue("One client's limit affected another.", limiter.tryAcquire(2, 1));
+	}
+
+	@Test
+	public void tableFullTest() {
+		// Far more clients than slots. Every new client still gets its burst, and the table never blocks anyone.
+		final RateLimiter limiter = new RateLimiter(1, 2, 16, 1000);
+		for(long client = 1; client <= 10000; ++client) {
+			assertTrue("A new client was limited.", limiter.tryAcquire(client, 1));
+		}
+		// A client that's still in the table is still limited.
+		assertTrue(limiter.tryAcquire(10000, 1));
+		assertFalse(limiter.tryAcquire(10000, 1));
+	}
+
+	@Test
+	public void keyTest() throws UnknownHostException {
+		assertEquals((1L << 32) | 0xc0a80105L, RateLimiter.key(InetAddress.getByName("192.168.1.5")));
+		assertNotEquals(RateLimiter.key(InetAddress.getByName("192.168.1.5")), RateLimiter.key(InetAddress.getByName("192.168.1.6")));
+		// IPv6 clients share a bucket across their /64
+		assertEquals(RateLimiter.key(InetAddress.getByName("2001:db8:1:2::1")), RateLimiter.key(InetAddress.getByName("2001:db8:1:2::ffff")));
+		assertNotEquals(RateLimiter.key(InetAddress.getByName("2001:db8:1:2::1")), RateLimiter.key(InetAddress.getByName("2001:db8:1:3::1")));
+	}
+
+	@Test
+	public void rejectTest() throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		new RateLimiter(0.25, 1, 16, 1000).reject(outputStream);
+		assertEquals("HTTP/1.1 429 Too Many Requests\n" +
+						"Retry-After: 4\n" +
+						"Content-Length: 0\n" +
+						"Connection: close\n\n", outputStream.toString());
+	}
+}
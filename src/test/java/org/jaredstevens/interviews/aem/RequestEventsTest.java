@@ -0,0 +1,81 @@
+package org.jaredstevens.interviews.aem;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class RequestEventsTest {
+	private final static String documentRoot = "src/test/resources/test_files/";
+	private final static String[] EVENTS = {
+					"webserver.Request", "webserver.PathResolution", "webserver.MimeDetection",
+					"webserver.HeaderWrite", "webserver.BodyTransfer"
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+	private Map<String, RecordedEvent> record(final String resource) throws IOException, BadRequestException {
+		final RequestHandler thread = new RequestHandler((Socket)null, RequestEventsTest.documentRoot);
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("GET " + resource + " HTTP/1.1\nHost: localhost\n\n");
+		final Path dump = this.folder.newFile().toPath();
+		try(Recording recording = new Recording()) {
+			for(String name : RequestEventsTest.EVENTS) {
+				recording.enable(name).withThreshold(Duration.ZERO);
+			}
+			recording.start();
+			thread.processRequest(requestHeader, this.outputStream);
+			recording.stop();
+			recording.dump(dump);
+		}
+		final Map<String, RecordedEvent> events = new HashMap<>();
+		final List<RecordedEvent> recorded = RecordingFile.readAllEvents(dump);
+		for(RecordedEvent event : recorded) {
+			events.put(event.getEventType().getName(), event);
+		}
+		return events;
+	}
+
+	@Test
+	public void requestPhasesTest() throws IOException, BadRequestException {
+		final Map<String, RecordedEvent> events = this.record("/index.html");
+		for(String name : RequestEventsTest.EVENTS) {
+			assertTrue("Missing " + name, events.containsKey(name));
+		}
+		final RecordedEvent request = events.get("webserver.Request");
+		assertEquals("GET", request.getString("method"));
+		assertEquals("/index.html", request.getString("resource"));
+		assertEquals(200, request.getInt("status"));
+		assertEquals(this.outputStream.size(), request.getLong("bytes"));
+		assertEquals(51L, events.get("webserver.BodyTransfer").getLong("bytes"));
+		assertEquals("text/html", events.get("webserver.MimeDetection").getString("contentType"));
+		assertTrue(events.get("webserver.PathResolution").getBoolean("found"));
+	}
+
+	@Test
+	public void notFoundTest() throws IOException, BadRequestException {
+		final Map<String, RecordedEvent> events = this.record("/missing.html");
+		assertEquals(404, events.get("webserver.Request").getInt("status"));
+		assertFalse(events.get("webserver.PathResolution").getBoolean("found"));
+		assertFalse("Nothing to detect for a missing file.", events.containsKey("webserver.MimeDetection"));
+	}
+}
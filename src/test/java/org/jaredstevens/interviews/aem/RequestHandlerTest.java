@@ -2,13 +2,20 @@ package org.jaredstevens.interviews.aem;
 
 import org.jaredstevens.interviews.aem.httppojos.*;
 import org.jaredstevens.interviews.aem.httppojos.HttpResponseHeader;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 
 import static org.junit.Assert.*;
@@ -18,6 +25,8 @@ import static org.junit.Assert.*;
  */
 public class RequestHandlerTest {
 	private final static String documentRoot = "src/test/resources/test_files/";
+	@Rule
+	public TemporaryFolder uploadRoot = new TemporaryFolder();
 
 	@Test
 	public void processStringHeaderTest() throws IOException, BadRequestException {
@@ -28,7 +37,7 @@ public class RequestHandlerTest {
 
 		final Socket inputSocket = null;
 		final InputStream streamFromBrowser = new ByteArrayInputStream(testStream.toString().getBytes());
-		final BufferedReader reader = new BufferedReader(new InputStreamReader(streamFromBrowser));
+		final HttpInputStream reader = new HttpInputStream(streamFromBrowser);
 		final RequestHandler thread = new RequestHandler(inputSocket, RequestHandlerTest.documentRoot);
 		final HttpRequestHeader header = thread.processHeader(reader);
 		assertEquals("Request method doesn't match expected result.", HttpRequestMethod.GET, header.getMethod());
@@ -46,7 +55,7 @@ public class RequestHandlerTest {
 
 		final Socket inputSocket = null;
 		final InputStream streamFromBrowser = new ByteArrayInputStream(testStream.toString().getBytes());
-		final BufferedReader reader = new BufferedReader(new InputStreamReader(streamFromBrowser));
+		final HttpInputStream reader = new HttpInputStream(streamFromBrowser);
 		final RequestHandler thread = new RequestHandler(inputSocket, RequestHandlerTest.documentRoot);
 		thread.processHeader(reader);
 	}
@@ -65,7 +74,7 @@ public class RequestHandlerTest {
 
 		final Socket inputSocket = null;
 		final InputStream streamFromBrowser = new ByteArrayInputStream(testStream.toString().getBytes());
-		final BufferedReader reader = new BufferedReader(new InputStreamReader(streamFromBrowser));
+		final HttpInputStream reader = new HttpInputStream(streamFromBrowser);
 		final RequestHandler thread = new RequestHandler(inputSocket, RequestHandlerTest.documentRoot);
 
 		HttpRequestHeader header;
@@ -82,6 +91,97 @@ public class RequestHandlerTest {
 		assertEquals("Unexpected number of request headers", 3, header.getHeaders().size());
 	}
 
+	@Test(expected = HeaderTooLargeException.class)
+	public void processLongRequestLineTest() throws BadRequestException {
+		final ServerConfig config = new ServerConfig();
+		config.setMaxRequestLineLength(32);
+		final String request = "GET /" + new String(new char[100]).replace('\0', 'a') + " HTTP/1.1\r\n\r\n";
+		final RequestHandler thread = new RequestHandler(null, new ServerContext(config, null));
+		thread.processHeader(new HttpInputStream(new ByteArrayInputStream(request.getBytes(StandardCharsets.US_ASCII))));
+	}
+
+	@Test
+	public void processHeaderLimitsTest() throws BadRequestException {
+		final ServerConfig config = new ServerConfig();
+		config.setMaxHeaderCount(2);
+		config.setMaxHeaderSize(64);
+		final RequestHandler thread = new RequestHandler(null, new ServerContext(config, null));
+		final String twoHeaders = "GET / HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n";
+		assertEquals(2, thread.processHeader(new HttpInputStream(new ByteArrayInputStream(twoHeaders.getBytes(StandardCharsets.US_ASCII)))).getHeaders().size());
+		final String[] tooBig = {
+						"GET / HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\nX-Three: 3\r\n\r\n",
+						"GET / HTTP/1.1\r\nHost: localhost\r\nCookie: " + new String(new char[60]).replace('\0', 'c') + "\r\n\r\n"
+		};
+		for(String request : tooBig) {
+			try {
+				thread.processHeader(new HttpInputStream(new ByteArrayInputStream(request.getBytes(StandardCharsets.US_ASCII))));
+				fail("Header over the limit was accepted: " + request);
+			} catch(HeaderTooLargeException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void processSlowHeaderTest() throws IOException, BadRequestException, InterruptedException {
+		final ServerConfig config = new ServerConfig();
+		config.setHeaderTimeout(300);
+		final RequestHandler thread = new RequestHandler(null, new ServerContext(config, null));
+		try(ServerSocket serverSocket = new ServerSocket(0);
+						Socket client = new Socket("localhost", serverSocket.getLocalPort());
+						Socket server = serverSocket.accept()) {
+			// Each byte arrives well within the socket's timeout, but the header as a whole takes too long.
+			server.setSoTimeout(200);
+			final Thread trickle = new Thread(() -> {
+				try {
+					for(byte b : "GET / HTTP/1.1\r\nHost: localhost\r\n".getBytes(StandardCharsets.US_ASCII)) {
+						client.getOutputStream().write(b);
+						Thread.sleep(50);
+					}
+				} catch(IOException | InterruptedException e) {
+					// The server gave up on us
+				}
+			});
+			trickle.start();
+			final long start = System.nanoTime();
+			try {
+				thread.processHeader(new HttpInputStream(server.getInputStream(), server));
+				fail("A header sent a byte at a time should hit the deadline.");
+			} catch(RequestTimeoutException e) {
+				final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+				assertTrue("Deadline wasn't enforced in time: " + elapsedMillis + "ms", elapsedMillis < 600);
+			}
+			assertEquals("The socket's own timeout should be put back.", 200, server.getSoTimeout());
+			trickle.interrupt();
+			trickle.join();
+		}
+	}
+
+	@Test
+	public void processHeaderAfterIdleTest() throws IOException, BadRequestException {
+		final ServerConfig config = new ServerConfig();
+		config.setHeaderTimeout(300);
+		final RequestHandler thread = new RequestHandler(null, new ServerContext(config, null));
+		try(ServerSocket serverSocket = new ServerSocket(0);
+						Socket client = new Socket("localhost", serverSocket.getLocalPort());
+						Socket server = serverSocket.accept()) {
+			// Sitting idle for longer than the header deadline is fine. The clock starts on the first byte.
+			server.setSoTimeout(2000);
+			final Thread lateClient = new Thread(() -> {
+				try {
+					Thread.sleep(500);
+					client.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				} catch(IOException | InterruptedException e) {
+					// The server gave up on us
+				}
+			});
+			lateClient.start();
+			final HttpRequestHeader header = thread.processHeader(new HttpInputStream(server.getInputStream(), server));
+			assertNotNull("The request was dropped as if the connection were idle.", header);
+			assertEquals("/", header.getResource());
+		}
+	}
+
 	@Test
 	public void processRequestTest() throws BadRequestException {
 		final Socket inputSocket = null;
@@ -149,6 +249,158 @@ public class RequestHandlerTest {
 						"Content-Type: image/jpeg\n\n", outputStream.toString().substring(0, 63));
 	}
 
+	private RequestHandler uploadHandler(final long maxSize) {
+		final ServerContext context = ServerContext.forDocumentRoot(this.uploadRoot.getRoot().getPath(), null);
+		context.getConfig().setUploadsEnabled(true);
+		context.getConfig().setUploadMaxSize(maxSize);
+		return new RequestHandler(null, context);
+	}
+
+	private static HttpInputStream bodyStream(final String body) {
+		return new HttpInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void receiveUploadTest() throws BadRequestException, IOException {
+		final RequestHandler thread = this.uploadHandler(0);
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("PUT /docs/hello.txt HTTP/1.1\nHost: localhost:4444\nContent-Length: 11\nExpect: 100-continue\n\n");
+		// The next request is left in the stream to make sure the upload doesn't read past its body.
+		final HttpInputStream body = RequestHandlerTest.bodyStream("hello worldGET / HTTP/1.1\n");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.receiveUpload(requestHeader, body, outputStream);
+		assertEquals("HTTP/1.1 100 Continue\n\nHTTP/1.1 201 Created\nContent-Length: 0\n\n", outputStream.toString());
+		final File uploaded = new File(this.uploadRoot.getRoot(), "docs/hello.txt");
+		assertEquals("hello world", new String(Files.readAllBytes(uploaded.toPath()), StandardCharsets.UTF_8));
+		assertEquals("Upload read past the end of its body.", "GET / HTTP/1.1", body.readLine());
+		assertEquals("Temp file was left behind.", 1, uploaded.getParentFile().list().length);
+	}
+
+	@Test
+	public void receiveChunkedUploadTest() throws BadRequestException, IOException {
+		final RequestHandler thread = this.uploadHandler(0);
+		final File uploaded = this.uploadRoot.newFile("data.txt");
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("POST /data.txt HTTP/1.1\nHost: localhost:4444\nTransfer-Encoding: chunked\n\n");
+		final HttpInputStream body = RequestHandlerTest.bodyStream("6\r\nhello \r\n5;ext=1\r\nworld\r\n0\r\nX-Trailer: yes\r\n\r\nnext");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.receiveUpload(requestHeader, body, outputStream);
+		// The file was already there, so it's replaced rather than created.
+		assertEquals("HTTP/1.1 200 OK\nContent-Length: 0\n\n", outputStream.toString());
+		assertEquals("hello world", new String(Files.readAllBytes(uploaded.toPath()), StandardCharsets.UTF_8));
+		assertEquals("next", body.readLine());
+	}
+
+	@Test
+	public void receiveUploadTooLargeTest() throws BadRequestException, IOException {
+		final RequestHandler thread = this.uploadHandler(4);
+		final HttpRequestHeader lengthHeader = HttpRequestHeader.fromString("PUT /big.txt HTTP/1.1\nHost: localhost:4444\nContent-Length: 11\n\n");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.receiveUpload(lengthHeader, RequestHandlerTest.bodyStream("hello world"), outputStream);
+		assertTrue(outputStream.toString().startsWith("HTTP/1.1 413 Payload Too Large\n"));
+		assertTrue("The error page should match the status.", outputStream.toString().contains("<h1>413 - "));
+
+		// A chunked body doesn't say how big it is up front, so it's cut off once it goes over.
+		final HttpRequestHeader chunkedHeader = HttpRequestHeader.fromString("PUT /big.txt HTTP/1.1\nHost: localhost:4444\nTransfer-Encoding: chunked\n\n");
+		final ByteArrayOutputStream chunkedStream = new ByteArrayOutputStream();
+		thread.receiveUpload(chunkedHeader, RequestHandlerTest.bodyStream("b\r\nhello world\r\n0\r\n\r\n"), chunkedStream);
+		assertTrue(chunkedStream.toString().startsWith("HTTP/1.1 413 Payload Too Large\n"));
+		assertEquals("Nothing should have been stored.", 0, this.uploadRoot.getRoot().list().length);
+	}
+
+	@Test
+	public void receiveUploadNegativeLengthTest() throws BadRequestException, IOException {
+		final RequestHandler thread = this.uploadHandler(0);
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("PUT /neg.txt HTTP/1.1\nHost: localhost:4444\nContent-Length: -1\n\n");
+		final HttpInputStream body = RequestHandlerTest.bodyStream("GET / HTTP/1.1\n");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.receiveUpload(requestHeader, body, outputStream);
+		assertTrue(outputStream.toString().startsWith("HTTP/1.1 400 Bad Request\n"));
+		assertEquals("The next request shouldn't have been taken for the body.", "GET / HTTP/1.1", body.readLine());
+		assertEquals(0, this.uploadRoot.getRoot().list().length);
+	}
+
+	@Test
+	public void hiddenFilesTest() throws BadRequestException, IOException {
+		final RequestHandler thread = this.uploadHandler(0);
+		Files.write(this.uploadRoot.newFile(".upload-1234.tmp").toPath(), "half an upl".getBytes(StandardCharsets.UTF_8));
+		final ByteArrayOutputStream getStream = new ByteArrayOutputStream();
+		thread.processRequest(HttpRequestHeader.fromString("GET /%2eupload-1234.tmp HTTP/1.1\nHost: localhost:4444\n\n"), getStream);
+		assertTrue("A temp file was served.", getStream.toString().startsWith("HTTP/1.1 404 Not Found\n"));
+
+		final ByteArrayOutputStream putStream = new ByteArrayOutputStream();
+		thread.receiveUpload(HttpRequestHeader.fromString("PUT /.upload-1234.tmp HTTP/1.1\nHost: localhost:4444\nContent-Length: 2\n\n"),
+						RequestHandlerTest.bodyStream("hi"), putStream);
+		assertTrue(putStream.toString().startsWith("HTTP/1.1 401 Unauthorized\n"));
+
+		assertTrue(RequestHandler.isHiddenResource("/site/.git/config"));
+		assertFalse(RequestHandler.isHiddenResource("/.well-known/acme-challenge/token"));
+		assertFalse(RequestHandler.isHiddenResource("/css/site.css"));
+	}
+
+	@Test
+	public void receiveUploadOutsideDocumentRootTest() throws BadRequestException {
+		final RequestHandler thread = this.uploadHandler(0);
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("PUT /%2e%2e/escape.txt HTTP/1.1\nHost: localhost:4444\nContent-Length: 2\n\n");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.receiveUpload(requestHeader, RequestHandlerTest.bodyStream("hi"), outputStream);
+		assertFalse(new File(this.uploadRoot.getRoot().getParentFile(), "escape.txt").exists());
+		// The '..' is dropped once the URL's decoded, so it lands in the document root instead.
+		assertTrue(outputStream.toString(), new File(this.uploadRoot.getRoot(), "escape.txt").exists());
+	}
+
+	@Test
+	public void serveAdminMetricsTest() throws BadRequestException {
+		final Socket inputSocket = null;
+		final ServerContext context = ServerContext.forDocumentRoot(RequestHandlerTest.documentRoot, null);
+		context.getConfig().setAdminPath("/admin");
+		context.getMetrics().recordTlsHandshake(false);
+		context.getMetrics().recordTlsHandshake(true);
+		final RequestHandler thread = new RequestHandler(inputSocket, context);
+		final HttpRequestHeader requestHeader = HttpRequestHeader.fromString("GET /admin/metrics HTTP/1.1\nHost: localhost:4444\n\n");
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		thread.processRequest(requestHeader, outputStream);
+		final String response = outputStream.toString();
+		assertTrue("Unexpected response status.", response.startsWith("HTTP/1.1 200 OK\n"));
+		assertTrue("Metrics weren't served as JSON.", response.contains("Content-Type: application/json\n"));
+		assertTrue("Request count is missing.", response.contains("\"requests\": 1"));
+		assertTrue("Resumption ratio is missing.", response.contains("\"tls_resumption_ratio\": 0.5"));
+
+		// Without an admin path, the same request goes to the document root like any other.
+		context.getConfig().setAdminPath(null);
+		final ByteArrayOutputStream notFoundStream = new ByteArrayOutputStream();
+		thread.processRequest(requestHeader, notFoundStream);
+		assertTrue("Admin resource was served while disabled.", notFoundStream.toString().startsWith("HTTP/1.1 404 Not Found\n"));
+	}
+
+	@Test
+	public void adminAuthorizationTest() throws BadRequestException, UnknownHostException {
+		final ServerContext context = ServerContext.forDocumentRoot(RequestHandlerTest.documentRoot, null);
+		context.getConfig().setAdminPath("/admin");
+		final InetAddress remote = InetAddress.getByName("192.0.2.1");
+		final Socket remoteSocket = new Socket() {
+			@Override
+			public InetAddress getInetAddress() {
+				return remote;
+			}
+		};
+		final RequestHandler thread = new RequestHandler(remoteSocket, context);
+		final ByteArrayOutputStream refusedStream = new ByteArrayOutputStream();
+		thread.processRequest(HttpRequestHeader.fromString("GET /admin/connections HTTP/1.1\nHost: localhost:4444\n\n"), refusedStream);
+		assertTrue("A remote client saw the connection table.", refusedStream.toString().startsWith("HTTP/1.1 401 Unauthorized\n"));
+
+		final ByteArrayOutputStream readyStream = new ByteArrayOutputStream();
+		thread.processRequest(HttpRequestHeader.fromString("GET /admin/ready HTTP/1.1\nHost: localhost:4444\n\n"), readyStream);
+		assertFalse("Health checks should get through.", readyStream.toString().startsWith("HTTP/1.1 401"));
+
+		// With a token, it's the token that counts, wherever the client is.
+		context.getConfig().setAdminToken("secret");
+		final ByteArrayOutputStream wrongTokenStream = new ByteArrayOutputStream();
+		thread.processRequest(HttpRequestHeader.fromString("GET /admin/metrics HTTP/1.1\nHost: localhost:4444\nAuthorization: Bearer guess\n\n"), wrongTokenStream);
+		assertTrue(wrongTokenStream.toString().startsWith("HTTP/1.1 401 Unauthorized\n"));
+		final ByteArrayOutputStream tokenStream = new ByteArrayOutputStream();
+		thread.processRequest(HttpRequestHeader.fromString("GET /admin/metrics HTTP/1.1\nHost: localhost:4444\nAuthorization: Bearer secret\n\n"), tokenStream);
+		assertTrue(tokenStream.toString().startsWith("HTTP/1.1 200 OK\n"));
+	}
+
 	@Test
 	public void sendResponseTest() throws IOException {
 		HashMap<String, String> headers = new HashMap<>();
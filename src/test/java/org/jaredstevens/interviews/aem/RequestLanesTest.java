@@ -0,0 +1,115 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class RequestLanesTest {
+	private static ServerConfig config(final int largeThreads, final int largeQueueSize) {
+		final ServerConfig config = new ServerConfig();
+		config.setThreads(1);
+		config.setLargeLaneThreads(largeThreads);
+		config.setLargeLaneQueueSize(largeQueueSize);
+		return config;
+	}
+
+	@Test
+	public void isLargeTest() {
+		final ServerConfig config = RequestLanesTest.config(1, 1);
+		config.setLargeResponseSize(1000);
+		final RequestLanes lanes = new RequestLanes(config, new ServerMetrics());
+		assertFalse(lanes.isLarge(999));
+		assertTrue(lanes.isLarge(1000));
+		config.setLargeResponseSize(0);
+		assertFalse("A size of 0 should keep everything on the fast lane.", new RequestLanes(config, new ServerMetrics()).isLarge(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void handOffTest() throws InterruptedException {
+		final ServerMetrics metrics = new ServerMetrics();
+		final RequestLanes lanes = new RequestLanes(RequestLanesTest.config(1, 1), metrics);
+		final AtomicReference<String> transferThread = new AtomicReference<>();
+		final AtomicReference<String> connectionThread = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		assertTrue(lanes.handOff(() -> {
+			transferThread.set(Thread.currentThread().getName());
+			return true;
+		}, () -> {
+			connectionThread.set(Thread.currentThread().getName());
+			done.countDown();
+		}, () -> fail("The connection shouldn't have been closed.")));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(transferThread.get().startsWith("transfer-"));
+		assertTrue("The connection should go back to the fast lane.", connectionThread.get().startsWith("worker-"));
+		assertEquals(1L, metrics.snapshot().get("large_lane_tasks"));
+		assertEquals(1L, metrics.snapshot().get("fast_lane_tasks"));
+	}
+
+	@Test
+	public void largeLaneFullTest() throws InterruptedException {
+		final RequestLanes lanes = new RequestLanes(RequestLanesTest.config(1, 1), new ServerMetrics());
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		// One transfer running and one waiting fills the lane.
+		assertTrue(lanes.handOff(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		}, () -> {}, () -> {}));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(lanes.handOff(() -> true, () -> {}, () -> {}));
+		assertFalse("A full large lane should leave the transfer to the caller.", lanes.handOff(() -> true, () -> {}, () -> {}));
+		release.countDown();
+	}
+
+	@Test
+	public void handOffToDrainerTest() throws InterruptedException {
+		final ServerMetrics metrics = new ServerMetrics();
+		final RequestLanes lanes = new RequestLanes(RequestLanesTest.config(1, 1), metrics);
+		final CountDownLatch transferred = new CountDownLatch(1);
+		// The drainer took the connection, so it's the drainer that puts it back.
+		assertTrue(lanes.handOff(() -> {
+			transferred.countDown();
+			return false;
+		}, () -> fail("The connection went back to the fast lane while the drainer had it."), () -> {}));
+		assertTrue(transferred.await(5, TimeUnit.SECONDS));
+		lanes.shutdown(5000);
+		assertEquals(0L, metrics.snapshot().get("fast_lane_tasks"));
+	}
+
+	@Test
+	public void handOffAfterShutdownTest() throws InterruptedException {
+		final RequestLanes lanes = new RequestLanes(RequestLanesTest.config(1, 1), new ServerMetrics());
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		assertTrue(lanes.handOff(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		}, () -> fail("The fast lane was shut down."), closed::countDown));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// The server stops while the response is going out, so there's no fast lane to go back to.
+		final Thread stopping = new Thread(() -> lanes.shutdown(5000));
+		stopping.start();
+		Thread.sleep(100);
+		release.countDown();
+		assertTrue("The connection should be closed instead.", closed.await(5, TimeUnit.SECONDS));
+		stopping.join(5000);
+	}
+}
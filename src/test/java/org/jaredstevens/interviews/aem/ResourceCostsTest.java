@@ -0,0 +1,86 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class ResourceCostsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void prefixTest() {
+		assertEquals("/images/", ResourceCosts.prefix("/images/logo.png", 1));
+		assertEquals("/images/icons/", ResourceCosts.prefix("/images/icons/a.png?v=2", 2));
+		assertEquals("/index.html", ResourceCosts.prefix("/index.html", 1));
+		assertEquals("/api", ResourceCosts.prefix("/api?q=a/b", 1));
+		assertEquals("/", ResourceCosts.prefix("/images/logo.png", 0));
+		assertEquals(ResourceCosts.OTHER, ResourceCosts.prefix("*", 1));
+	}
+
+	@Test
+	public void measuredRequestTest() {
+		final AccessRecord record = new AccessRecord("127.0.0.1", "GET /big HTTP/1.1", "/big");
+		record.measureCost();
+		final byte[][] garbage = new byte[16][];
+		for(int i = 0; i < garbage.length; ++i) {
+			garbage[i] = new byte[65536];
+		}
+		record.end();
+		assertTrue("At least the garbage should be counted: " + record.getAllocatedBytes(), record.getAllocatedBytes() >= 16 * 65536);
+		assertTrue(record.getCpuNanos() >= 0);
+		assertTrue(AccessLog.format(record), AccessLog.format(record).matches(".*\"GET /big HTTP/1.1\" 0 - cpu_us=\\d+ alloc=\\d+"));
+
+		final AccessRecord unmeasured = new AccessRecord("127.0.0.1", "GET /big HTTP/1.1", "/big");
+		unmeasured.end();
+		assertEquals(-1, unmeasured.getCpuNanos());
+		assertTrue("Unmeasured requests are logged as before.", AccessLog.format(unmeasured).endsWith("\"GET /big HTTP/1.1\" 0 -"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void heaviestResourcesTest() throws IOException, WebServerException {
+		final File root = this.folder.newFolder("site");
+		assertTrue(new File(root, "images").mkdir());
+		Files.write(new File(root, "images/big.bin").toPath(), new byte[1 << 20]);
+		Files.write(new File(root, "index.html").toPath(), "Hello".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(2);
+		config.setRequestCostSampleRate(1);
+		config.setRequestCostTop(1);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		try(Socket socket = new Socket("localhost", server.getPort())) {
+			for(int i = 0; i < 3; ++i) {
+				for(String resource : new String[] {"/index.html", "/images/big.bin"}) {
+					socket.getOutputStream().write(("GET " + resource + " HTTP/1.1\nHost: localhost\n\n").getBytes(StandardCharsets.US_ASCII));
+					assertTrue(UnixSocketListenerTest.readResponse(socket.getInputStream()).startsWith("HTTP/1.1 200"));
+				}
+			}
+			final Map<String, Object> snapshot = server.getContext().getMetrics().snapshot();
+			assertEquals(6L, snapshot.get("request_cost_samples"));
+			final List<Map<String, Object>> heaviest = (List<Map<String, Object>>)snapshot.get("heaviest_by_cpu");
+			assertEquals("Only the top one should be reported.", 1, heaviest.size());
+			assertEquals(3L, heaviest.get(0).get("samples"));
+			final Map<String, Object> allocation = ((List<Map<String, Object>>)snapshot.get("heaviest_by_allocation")).get(0);
+			assertTrue(allocation.toString(), allocation.get("prefix").equals("/images/") || allocation.get("prefix").equals("/index.html"));
+			assertTrue(server.getContext().getMetrics().toJson().contains("\"avg_cpu_millis\""));
+		} finally {
+			server.stop(1000);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ *
+ * Starts the command line server in a fresh JVM over and over, and times how long it takes from launching the
+ * JVM to the first response. The server's own startup timeline for each run is printed too, so a regression
+ * can be pinned on a step. Given a budget, it exits with 1 if the median is over it, so it can guard a build.
+ * This isn't a unit test; run it by hand:
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.jaredstevens.interviews.aem.StartupBenchmark -Dexec.args="10 2000"
+ */
+public class StartupBenchmark {
+	private static final long GIVE_UP_MILLIS = 30000;
+
+	public static void main(String[] args) throws Exception {
+		final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		final long budget = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+		final Path root = Files.createTempDirectory("startup-benchmark");
+		Files.write(root.resolve("index.html"), "<html>Hello</html>".getBytes(StandardCharsets.UTF_8));
+		final List<Long> times = new ArrayList<>();
+		for(int run = 0; run < runs; ++run) {
+			final int port = StartupBenchmark.freePort();
+			final Path config = root.resolve("config.json");
+			Files.write(config, ("{\"hostname\": \"localhost\", \"port\": " + port + ", \"document_root\": \"" + root + "/\"}")
+							.getBytes(StandardCharsets.UTF_8));
+			final long millis = StartupBenchmark.timeFirstResponse(root, config, port);
+			times.add(millis);
+			System.out.printf("run %2d: first response %5d ms   %s%n", run + 1, millis, StartupBenchmark.timeline(root));
+		}
+		Collections.sort(times);
+		final long median = times.get(times.size() / 2);
+		System.out.printf("median %d ms, best %d ms, worst %d ms%n", median, times.get(0), times.get(times.size() - 1));
+
+		try(Stream<Path> files = Files.list(root)) {
+			files.forEach(file -> file.toFile().delete());
+		}
+		Files.deleteIfExists(root);
+		if(budget > 0 && median > budget) {
+			System.out.printf("Over the %d ms budget.%n", budget);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Launches the server and asks it for a page until it answers.
+	 * @return How long that took, from launching the JVM
+	 */
+	private static long timeFirstResponse(final Path root, final Path config, final int port) throws IOException, InterruptedException {
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		final long started = System.nanoTime();
+		final Process server = new ProcessBuilder(java, "-cp", StartupBenchmark.classPath(), Server.class.getName(), config.toString())
+						.directory(root.toFile())
+						.redirectErrorStream(true)
+						.redirectOutput(root.resolve("stdout.txt").toFile())
+						.start();
+		try {
+			while(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(StartupBenchmark.GIVE_UP_MILLIS)) {
+				if(StartupBenchmark.tryGet(port)) {
+					return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+				}
+				if(!server.isAlive()) {
+					throw new IOException("The server exited with " + server.exitValue() + ". See " + root.resolve("stdout.txt"));
+				}
+				Thread.sleep(5);
+			}
+			throw new IOException("The server didn't answer in " + StartupBenchmark.GIVE_UP_MILLIS + " ms");
+		} finally {
+			server.destroy();
+			server.waitFor();
+		}
+	}
+
+	private static boolean tryGet(final int port) throws IOException {
+		try(Socket socket = new Socket(InetAddress.getByName("localhost"), port)) {
+			final OutputStream outputStream = socket.getOutputStream();
+			outputStream.write("GET /index.html HTTP/1.1\nHost: localhost\n\n".getBytes(StandardCharsets.US_ASCII));
+			final InputStream inputStream = socket.getInputStream();
+			return inputStream.read() != -1;
+		} catch(IOException e) {
+			// Not listening yet
+			return false;
+		}
+	}
+
+	/**
+	 * @return The startup timeline the server logged, or a note that it didn't
+	 */
+	private static String timeline(final Path root) throws IOException {
+		final Path log = root.resolve("server.log");
+		if(Files.exists(log)) {
+			for(String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+				final int start = line.indexOf("Startup: ");
+				if(start >= 0) {
+					Files.delete(log);
+					return line.substring(start + "Startup: ".length());
+				}
+			}
+		}
+		return "(no startup timeline logged)";
+	}
+
+	/**
+	 * @return This JVM's class path, made absolute, since the server runs in another directory
+	 */
+	private static String classPath() {
+		final StringBuilder classPath = new StringBuilder();
+		for(String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if(classPath.length() > 0) {
+				classPath.append(File.pathSeparator);
+			}
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+		return classPath.toString();
+	}
+
+	private static int freePort() throws IOException {
+		try(ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("localhost"))) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package org.jaredstevens.interviews.aem;
+
+import org.apache.tika.Tika;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class StartupTimelineTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void timelineTest() throws InterruptedException {
+		final StartupTimeline timeline = new StartupTimeline();
+		timeline.mark("bound");
+		assertFalse("Nothing's been sent yet.", timeline.awaitFirstResponse(10, TimeUnit.MILLISECONDS));
+		timeline.responseSent();
+		final long first = timeline.elapsed("first response");
+		Thread.sleep(5);
+		timeline.responseSent();
+		assertEquals("Only the first response is marked.", first, timeline.elapsed("first response"));
+		assertTrue(timeline.awaitFirstResponse(0, TimeUnit.MILLISECONDS));
+		assertTrue(timeline.elapsed("bound") >= 0 && timeline.elapsed("bound") <= first);
+		assertEquals(-1, timeline.elapsed("warmed up"));
+		assertTrue(timeline.toString(), timeline.toString().matches("bound \\+\\d+ ms, first response \\+\\d+ ms \\(since start\\)"));
+	}
+
+	@Test
+	public void firstResponseIsMarkedTest() throws IOException, WebServerException, InterruptedException {
+		final File root = this.folder.newFolder();
+		Files.write(new File(root, "index.html").toPath(), "Hello".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(2);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		try {
+			final StartupTimeline timeline = server.getContext().getStartup();
+			assertTrue(timeline.elapsed("ready") >= timeline.elapsed("bound"));
+			assertEquals(-1, timeline.elapsed("first response"));
+			try(Socket socket = new Socket("localhost", server.getPort())) {
+				socket.getOutputStream().write("GET /index.html HTTP/1.1\nHost: localhost\n\n".getBytes(StandardCharsets.US_ASCII));
+				assertTrue(UnixSocketListenerTest.readResponse(socket.getInputStream()).endsWith("Hello"));
+			}
+			assertTrue(timeline.awaitFirstResponse(5, TimeUnit.SECONDS));
+			assertTrue(timeline.elapsed("first response") >= timeline.elapsed("ready"));
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	@Test
+	public void contentTypesAgreeWithTikaTest() throws IOException {
+		// The table that spares the first requests from loading Tika mustn't change what types files are served as.
+		final Tika tika = new Tika();
+		final File folder = this.folder.newFolder();
+		for(String name : new String[] {"a.html", "a.htm", "a.css", "a.js", "a.json", "a.xml", "a.svg", "a.txt", "a.PNG", "a.jpg", "a.jpeg", "a.gif", "a.bin", "noextension", "dir.d/file"}) {
+			assertEquals(name, tika.detect(name), ContentTypes.detect(name));
+		}
+		final File html = new File(folder, "page.html");
+		Files.write(html.toPath(), "<html><body>Hi</body></html>".getBytes(StandardCharsets.UTF_8));
+		assertEquals(tika.detect(html), ContentTypes.detect(html));
+	}
+}
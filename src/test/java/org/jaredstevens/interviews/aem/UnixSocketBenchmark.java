@@ -0,0 +1,151 @@
+package org.jaredstevens.interviews.aem;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ *
+ * Compares the same server over loopback TCP and over a Unix domain socket. Both listeners share one context, so
+ * the only difference is the transport. Each client keeps one connection open and fetches the same file over and
+ * over. This isn't a unit test; run it by hand:
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.jaredstevens.interviews.aem.UnixSocketBenchmark -Dexec.args="16 10 4096"
+ */
+public class UnixSocketBenchmark {
+	private interface Connector {
+		SocketChannel connect() throws IOException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final int size = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+		final Path root = Files.createTempDirectory("uds-benchmark");
+		final byte[] content = new byte[size];
+		new Random(1).nextBytes(content);
+		Files.write(root.resolve("file.bin"), content);
+		final ServerConfig config = new ServerConfig();
+		config.setHostname("localhost");
+		config.setDocumentRoot(root.toString() + "/");
+		config.setThreads(clients);
+		config.setSocketTimeout(30000);
+		final ServerContext context = new ServerContext(config, null);
+
+		final ServerSocket tcp = ServerSocketChannel.open().socket();
+		tcp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), clients);
+		final UnixSocketListener unix = new UnixSocketListener(root.resolve("server.sock").toString(), clients);
+		UnixSocketBenchmark.serve(tcp::accept, context);
+		UnixSocketBenchmark.serve(unix::accept, context);
+
+		final InetSocketAddress tcpAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), tcp.getLocalPort());
+		// A short warm-up for each, so neither gets the JIT's cold start
+		UnixSocketBenchmark.run(() -> SocketChannel.open(tcpAddress), clients, 2);
+		UnixSocketBenchmark.run(() -> UnixSocketListener.connect(unix.getPath()), clients, 2);
+		System.out.printf("%d clients, %d seconds, %d byte responses%n", clients, seconds, size);
+		UnixSocketBenchmark.report("loopback TCP", UnixSocketBenchmark.run(() -> SocketChannel.open(tcpAddress), clients, seconds), seconds, size);
+		UnixSocketBenchmark.report("Unix socket", UnixSocketBenchmark.run(() -> UnixSocketListener.connect(unix.getPath()), clients, seconds), seconds, size);
+
+		tcp.close();
+		unix.close();
+		Files.deleteIfExists(root.resolve("file.bin"));
+		Files.deleteIfExists(root);
+		System.exit(0);
+	}
+
+	private static void serve(final Server.Acceptor acceptor, final ServerContext context) {
+		final Thread thread = new Thread(() -> {
+			try {
+				Server.acceptConnections(acceptor, context, null);
+			} catch(IOException e) {
+				// The listener was closed.
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return How many requests were answered
+	 */
+	private static long run(final Connector connector, final int clients, final int seconds) throws InterruptedException {
+		final AtomicLong requests = new AtomicLong();
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final byte[] request = "GET /file.bin HTTP/1.1\nHost: localhost\n\n".getBytes(StandardCharsets.US_ASCII);
+		final List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < clients; ++i) {
+			final Thread thread = new Thread(() -> {
+				try(SocketChannel channel = connector.connect()) {
+					final OutputStream outputStream = Channels.newOutputStream(channel);
+					final InputStream inputStream = new BufferedInputStream(Channels.newInputStream(channel), 65536);
+					while(System.nanoTime() - deadline < 0) {
+						outputStream.write(request);
+						UnixSocketBenchmark.skipResponse(inputStream);
+						requests.incrementAndGet();
+					}
+				} catch(IOException e) {
+					System.err.println("A client failed: " + e);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		return requests.get();
+	}
+
+	/**
+	 * Reads past one response without keeping any of it.
+	 */
+	private static void skipResponse(final InputStream inputStream) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		long contentLength = 0;
+		int b;
+		while((b = inputStream.read()) != -1) {
+			if(b != '\n') {
+				line.append((char)b);
+				continue;
+			}
+			if(line.length() == 0) {
+				break;
+			}
+			final String header = line.toString();
+			if(header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				contentLength = Long.parseLong(header.substring(15).trim());
+			}
+			line.setLength(0);
+		}
+		if(b == -1) {
+			throw new IOException("The server closed the connection");
+		}
+		while(contentLength > 0) {
+			final long skipped = inputStream.skip(contentLength);
+			if(skipped <= 0) {
+				throw new IOException("The response was cut short");
+			}
+			contentLength -= skipped;
+		}
+	}
+
+	private static void report(final String name, final long requests, final int seconds, final int size) {
+		final double perSecond = (double)requests / seconds;
+		System.out.printf("%-13s %,12.0f requests/s %,10.1f MB/s%n", name, perSecond, perSecond * size / (1024 * 1024));
+	}
+}
@@ -0,0 +1,179 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class UnixSocketListenerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private UnixSocketListener listener;
+
+	@Before
+	public void setUp() throws IOException {
+		Assume.assumeTrue("Unix domain sockets need Java 16 or newer.", UnixSocketListener.isSupported());
+		this.listener = new UnixSocketListener(new File(this.folder.getRoot(), "server.sock").getPath(), 50);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if(this.listener != null) {
+			this.listener.close();
+		}
+	}
+
+	/**
+	 * Reads one response off the stream, which is left at the start of the next one.
+	 */
+	static String readResponse(final InputStream inputStream) throws IOException {
+		final StringBuilder header = new StringBuilder();
+		int contentLength = 0;
+		int b;
+		while((b = inputStream.read()) != -1) {
+			header.append((char)b);
+			if(header.toString().endsWith("\n\n")) {
+				break;
+			}
+		}
+		for(String line : header.toString().split("\n")) {
+			if(line.toLowerCase().startsWith("content-length:")) {
+				contentLength = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+			}
+		}
+		final byte[] body = new byte[contentLength];
+		int total = 0;
+		int read;
+		while(total < body.length && (read = inputStream.read(body, total, body.length - total)) != -1) {
+			total += read;
+		}
+		return header + new String(body, 0, total, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void servesRequestsTest() throws IOException, InterruptedException {
+		final File root = this.folder.newFolder("site");
+		Files.write(new File(root, "index.html").toPath(), "Hello over a Unix domain socket".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setHostname("localhost");
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setSocketTimeout(5000);
+		final ServerContext context = new ServerContext(config, null);
+		final Thread acceptor = new Thread(() -> {
+			try {
+				Server.acceptConnections(this.listener::accept, context, null);
+			} catch(IOException e) {
+				// Closed at the end of the test
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		try(SocketChannel channel = UnixSocketListener.connect(this.listener.getPath())) {
+			final OutputStream outputStream = Channels.newOutputStream(channel);
+			final InputStream inputStream = Channels.newInputStream(channel);
+			// Two requests on the same connection
+			for(int i = 0; i < 2; ++i) {
+				outputStream.write("GET /index.html HTTP/1.1\nHost: localhost\n\n".getBytes(StandardCharsets.US_ASCII));
+				final String response = UnixSocketListenerTest.readResponse(inputStream);
+				assertTrue(response, response.startsWith("HTTP/1.1 200"));
+				assertTrue(response, response.endsWith("Hello over a Unix domain socket"));
+			}
+		}
+		assertEquals(1L, context.getMetrics().snapshot().get("connections_accepted"));
+		this.listener.close();
+		acceptor.join(5000);
+		assertFalse("Closing the listener should stop the acceptor.", acceptor.isAlive());
+		assertFalse("The socket file should be removed.", this.listener.getPath().toFile().exists());
+	}
+
+	@Test
+	public void noPerAddressLimitsTest() throws IOException {
+		final File root = this.folder.newFolder("site");
+		Files.write(new File(root, "index.html").toPath(), "Hello".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setHostname("localhost");
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setSocketTimeout(5000);
+		config.setThreads(4);
+		config.setMaxConnectionsPerIp(1);
+		config.setRateLimitRequestsPerSecond(0.1);
+		config.setRateLimitBurst(1);
+		final ServerContext context = new ServerContext(config, null);
+		final Thread acceptor = new Thread(() -> {
+			try {
+				Server.acceptConnections(this.listener::accept, context, null);
+			} catch(IOException e) {
+				// Closed at the end of the test
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		// Every client behind the proxy shows up as loopback, so a per-IP limit would be shared by all of them.
+		try(SocketChannel first = UnixSocketListener.connect(this.listener.getPath());
+						SocketChannel second = UnixSocketListener.connect(this.listener.getPath())) {
+			for(SocketChannel channel : new SocketChannel[] {first, second}) {
+				for(int i = 0; i < 2; ++i) {
+					Channels.newOutputStream(channel).write("GET /index.html HTTP/1.1\nHost: localhost\n\n".getBytes(StandardCharsets.US_ASCII));
+					final String response = UnixSocketListenerTest.readResponse(Channels.newInputStream(channel));
+					assertTrue(response, response.startsWith("HTTP/1.1 200"));
+				}
+			}
+			assertEquals(context.getConnections().toJson(), 2, context.getConnections().size());
+		} finally {
+			this.listener.close();
+		}
+	}
+
+	@Test
+	public void readTimeoutTest() throws IOException {
+		try(SocketChannel client = UnixSocketListener.connect(this.listener.getPath());
+						Socket accepted = this.listener.accept()) {
+			accepted.setSoTimeout(200);
+			final long started = System.currentTimeMillis();
+			try {
+				accepted.getInputStream().read();
+				fail("Nothing was sent, so the read should time out.");
+			} catch(SocketTimeoutException e) {
+				assertTrue(System.currentTimeMillis() - started >= 190);
+			}
+			client.write(ByteBuffer.wrap(new byte[] {42}));
+			assertEquals(42, accepted.getInputStream().read());
+			client.shutdownOutput();
+			assertEquals(-1, accepted.getInputStream().read());
+		}
+	}
+
+	@Test
+	public void staleSocketFileIsReplacedTest() throws IOException {
+		final String path = new File(this.folder.getRoot(), "stale.sock").getPath();
+		// The first listener is never closed, like a server that crashed, so its socket file is left behind.
+		final UnixSocketListener crashed = new UnixSocketListener(path, 50);
+		try(UnixSocketListener restarted = new UnixSocketListener(path, 50);
+						SocketChannel client = UnixSocketListener.connect(restarted.getPath());
+						Socket accepted = restarted.accept()) {
+			assertTrue(client.isConnected());
+			assertFalse(accepted.isClosed());
+		} finally {
+			crashed.close();
+		}
+	}
+}
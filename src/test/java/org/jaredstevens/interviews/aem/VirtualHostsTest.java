@@ -0,0 +1,110 @@
+package org.jaredstevens.interviews.aem;
+
+import org.jaredstevens.interviews.aem.httppojos.BadRequestException;
+import org.jaredstevens.interviews.aem.httppojos.HttpRequestHeader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class VirtualHostsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String site(final String name) throws IOException {
+		final File root = this.folder.newFolder(name);
+		Files.write(new File(root, "index.html").toPath(), name.getBytes(StandardCharsets.UTF_8));
+		return root.getPath() + "/";
+	}
+
+	private ServerContext context() throws IOException {
+		final ServerConfig config = new ServerConfig();
+		config.setHostname("localhost");
+		config.setDocumentRoot(this.site("default"));
+		config.setVirtualHosts(Arrays.asList(
+						new VirtualHost(Arrays.asList("blog.example.com", "www.blog.example.com"), this.site("blog"), 0),
+						new VirtualHost(Collections.singletonList("*.shop.example.com"), this.site("shop"), 1024)));
+		return new ServerContext(config, null);
+	}
+
+	private String get(final ServerContext context, final String host) throws BadRequestException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		new RequestHandler((Socket)null, context).processRequest(
+						HttpRequestHeader.fromString("GET / HTTP/1.1\nHost: " + host + "\n\n"), outputStream);
+		final String response = outputStream.toString();
+		return response.substring(response.lastIndexOf('\n') + 1);
+	}
+
+	@Test
+	public void lookupTest() throws IOException {
+		final VirtualHosts hosts = this.context().getVirtualHosts();
+		assertEquals("blog.example.com", hosts.lookup("www.blog.example.com").getName());
+		assertEquals("*.shop.example.com", hosts.lookup("eu.shop.example.com").getName());
+		assertEquals("*.shop.example.com", hosts.lookup("a.b.shop.example.com").getName());
+		assertSame("The wildcard doesn't cover the bare domain.", hosts.getDefaultHost(), hosts.lookup("shop.example.com"));
+		assertSame(hosts.getDefaultHost(), hosts.lookup("unknown.example.com"));
+		assertSame(hosts.getDefaultHost(), hosts.lookup(null));
+	}
+
+	@Test
+	public void serveByHostTest() throws IOException, BadRequestException {
+		final ServerContext context = this.context();
+		assertEquals("blog", this.get(context, "Blog.Example.com:4444"));
+		assertEquals("shop", this.get(context, "us.shop.example.com"));
+		assertEquals("default", this.get(context, "localhost:4444"));
+		assertEquals("Everything shares the one cache.", 3, context.getOpenFiles().size());
+		assertEquals(4, context.getOpenFiles().getUsage("*.shop.example.com"));
+	}
+
+	@Test
+	public void uploadBesideArchiveTest() throws IOException, WebServerException {
+		// The default site is served out of an archive, which can't take uploads. The blog is still a directory.
+		final File archive = this.folder.newFile("default.zip");
+		try(ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+			zip.putNextEntry(new ZipEntry("index.html"));
+			zip.write("default".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		final String blog = this.site("blog");
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(archive.getPath());
+		config.setVirtualHosts(Collections.singletonList(new VirtualHost(Collections.singletonList("blog.example.com"), blog, 0)));
+		config.setUploadsEnabled(true);
+		config.setThreads(4);
+		config.setSocketTimeout(5000);
+		final WebServer server = new WebServer.Builder().config(config).bind("localhost", 0).build();
+		server.start();
+		try {
+			assertTrue(this.put(server, "blog.example.com").startsWith("HTTP/1.1 201 Created"));
+			assertEquals("hello", new String(Files.readAllBytes(new File(blog, "hello.txt").toPath()), StandardCharsets.UTF_8));
+			assertTrue(this.put(server, "localhost").startsWith("HTTP/1.1 400 Bad Request"));
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	private String put(final WebServer server, final String host) throws IOException {
+		try(Socket socket = new Socket(InetAddress.getByName("localhost"), server.getPort())) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("PUT /hello.txt HTTP/1.1\nHost: " + host + "\nContent-Length: 5\n\nhello").getBytes(StandardCharsets.US_ASCII));
+			return UnixSocketListenerTest.readResponse(socket.getInputStream());
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package org.jaredstevens.interviews.aem;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright Jared Stevens 2017 All Rights Reserved
+ */
+public class WebServerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private WebServer build() throws IOException {
+		final File root = this.folder.newFolder();
+		Files.write(new File(root, "index.html").toPath(), "Hello".getBytes(StandardCharsets.UTF_8));
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(root.getPath() + "/");
+		config.setThreads(4);
+		config.setSocketTimeout(5000);
+		return new WebServer.Builder().config(config).bind("localhost", 0).build();
+	}
+
+	private static Socket connect(final WebServer server) throws IOException {
+		final Socket socket = new Socket(InetAddress.getByName("localhost"), server.getPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static String get(final Socket socket, final String resource) throws IOException {
+		socket.getOutputStream().write(("GET " + resource + " HTTP/1.1\nHost: localhost\n\n").getBytes(StandardCharsets.US_ASCII));
+		return UnixSocketListenerTest.readResponse(socket.getInputStream());
+	}
+
+	@Test
+	public void severalServersInOneJvmTest() throws IOException, WebServerException, InterruptedException {
+		final WebServer first = this.build();
+		final WebServer second = this.build();
+		first.start();
+		second.start();
+		assertNotEquals(first.getPort(), second.getPort());
+		try(Socket one = WebServerTest.connect(first); Socket two = WebServerTest.connect(second)) {
+			assertTrue(WebServerTest.get(one, "/index.html").endsWith("Hello"));
+			assertTrue(WebServerTest.get(two, "/index.html").endsWith("Hello"));
+		}
+		first.stop(1000);
+		assertTrue(first.awaitTermination(1, TimeUnit.SECONDS));
+		assertFalse(first.isRunning());
+		try {
+			new Socket(InetAddress.getByName("localhost"), first.getPort()).close();
+			fail("A stopped server shouldn't take connections.");
+		} catch(ConnectException e) {
+			// Expected
+		}
+		try(Socket two = WebServerTest.connect(second)) {
+			assertTrue("Stopping one server shouldn't affect the other.", WebServerTest.get(two, "/index.html").endsWith("Hello"));
+		}
+		second.stop(1000);
+	}
+
+	@Test
+	public void stopDrainsRequestsInFlightTest() throws Exception {
+		final WebServer server = this.build();
+		server.start();
+		try(Socket busy = WebServerTest.connect(server); Socket idle = WebServerTest.connect(server)) {
+			assertTrue(WebServerTest.get(idle, "/index.html").endsWith("Hello"));
+			// Half a request, so it's in flight when the server is told to stop.
+			final OutputStream busyOutput = busy.getOutputStream();
+			busyOutput.write("GET /index.html HTTP/1.1\n".getBytes(StandardCharsets.US_ASCII));
+			busyOutput.flush();
+			final long deadline = System.currentTimeMillis() + 5000;
+			while(server.getContext().getConnections().countActive() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			final Thread stopper = new Thread(() -> server.stop(5000));
+			stopper.start();
+			Thread.sleep(300);
+			assertTrue("The server should wait for the request in flight.", stopper.isAlive());
+			assertFalse("The server shouldn't be ready while it's stopping.", server.getContext().isReady());
+
+			busyOutput.write("Host: localhost\n\n".getBytes(StandardCharsets.US_ASCII));
+			final InputStream busyInput = busy.getInputStream();
+			final String response = UnixSocketListenerTest.readResponse(busyInput);
+			assertTrue(response, response.startsWith("HTTP/1.1 200") && response.endsWith("Hello"));
+			assertEquals("The connection should be closed after its last response.", -1, busyInput.read());
+			stopper.join(2000);
+			assertFalse("The server should stop once the request is done, not at the deadline.", stopper.isAlive());
+			assertEquals("Idle keep-alives should be closed.", -1, idle.getInputStream().read());
+		}
+		assertTrue(server.awaitTermination(0, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void badClientDoesNotStopAcceptingTest() throws IOException {
+		final ServerConfig config = new ServerConfig();
+		config.setDocumentRoot(this.folder.newFolder().getPath() + "/");
+		config.setThreads(1);
+		final ServerContext context = new ServerContext(config, null);
+		try(ServerSocket listener = new ServerSocket(0, 50, InetAddress.getByName("localhost"))) {
+			// A client that reset before it could be set up. After it, the listener closes.
+			final Socket reset = new Socket() {
+				@Override
+				public void setSoTimeout(final int timeout) throws SocketException {
+					throw new SocketException("Invalid argument");
+				}
+			};
+			reset.connect(listener.getLocalSocketAddress());
+			final Iterator<Socket> accepted = Collections.singletonList(reset).iterator();
+			try {
+				Server.acceptConnections(() -> {
+					if(!accepted.hasNext()) {
+						throw new SocketException("Socket closed");
+					}
+					return accepted.next();
+				}, context, null);
+				fail("Only closing the listener should stop the accept loop.");
+			} catch(SocketException e) {
+				assertEquals("The bad client shouldn't stop the accept loop.", "Socket closed", e.getMessage());
+			}
+			assertTrue("The bad client should be dropped.", reset.isClosed());
+			assertEquals("Its registry slot should be given back.", 0, context.getConnections().size());
+		} finally {
+			context.getLanes().shutdown(0);
+		}
+	}
+
+	@Test
+	public void idleConnectionsDontHoldWorkersTest() throws IOException, WebServerException, InterruptedException {
+		final WebServer server = this.build();
+		server.getConfig().setThreads(1);
+		server.getConfig().setIdleTimeout(1000);
+		server.start();
+		try(Socket idle = WebServerTest.connect(server); Socket other = WebServerTest.connect(server)) {
+			assertTrue(WebServerTest.get(idle, "/index.html").endsWith("Hello"));
+			// The only worker would be stuck waiting on the idle connection if it weren't parked.
+			final long start = System.nanoTime();
+			assertTrue(WebServerTest.get(other, "/index.html").endsWith("Hello"));
+			assertTrue("The second client waited on the idle one.", (System.nanoTime() - start) / 1000000 < 500);
+			assertTrue("A parked connection should pick up where it left off.", WebServerTest.get(idle, "/index.html").endsWith("Hello"));
+
+			// Left alone, it's reaped.
+			Thread.sleep(1500);
+			assertEquals(-1, idle.getInputStream().read());
+			assertEquals(-1, other.getInputStream().read());
+			assertEquals(0, server.getContext().getConnections().size());
+		} finally {
+			server.stop(1000);
+		}
+	}
+
+	/**
+	 * @return How many threads are running that belong to a server: its acceptors, workers and helpers
+	 */
+	private static int serverThreads() {
+		int count = 0;
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.isAlive() && thread.getName().matches("acceptor|outbound-drainer|idle-reaper|warm-up|(worker|transfer|h2-stream)-\\d+")) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void restartTest() throws IOException, WebServerException, InterruptedException {
+		final File fds = new File("/proc/self/fd");
+		Assume.assumeTrue("Counting file descriptors needs /proc.", fds.isDirectory());
+		int threads = -1;
+		int files = -1;
+		for(int i = 0; i < 5; ++i) {
+			final WebServer server = this.build();
+			server.start();
+			try(Socket socket = WebServerTest.connect(server)) {
+				// Opens the file (and keeps it in the cache), starts the reaper, and parks the connection on the drainer.
+				assertTrue(WebServerTest.get(socket, "/index.html").endsWith("Hello"));
+				Thread.sleep(100);
+			} finally {
+				server.stop(1000);
+			}
+			// Worker threads can take a moment to exit after their pool has terminated.
+			final long deadline = System.currentTimeMillis() + 1000;
+			while(threads >= 0 && WebServerTest.serverThreads() > threads && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			if(threads < 0) {
+				threads = WebServerTest.serverThreads();
+				files = fds.list().length;
+				continue;
+			}
+			assertTrue("Threads were left running after stop().", WebServerTest.serverThreads() <= threads);
+			assertTrue("Files were left open after stop(): " + fds.list().length + " > " + files, fds.list().length <= files);
+		}
+	}
+
+	private static int warmUpThreads() {
+		int count = 0;
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.isAlive() && thread.getName().equals("warm-up")) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void stopDuringWarmUpTest() throws IOException, WebServerException {
+		final int before = WebServerTest.warmUpThreads();
+		final WebServer server = this.build();
+		// Warming up waits a second for the first request, which never comes.
+		server.start();
+		server.stop(1000);
+		assertTrue("The warm-up thread outlived the server.", WebServerTest.warmUpThreads() <= before);
+	}
+
+	@Test
+	public void portInUseTest() throws IOException {
+		try(ServerSocket taken = new ServerSocket(0, 50, InetAddress.getByName("localhost"))) {
+			final WebServer server = this.build();
+			server.getConfig().setPort(taken.getLocalPort());
+			try {
+				server.start();
+				fail("The port's already taken.");
+			} catch(WebServerException e) {
+				assertEquals(ServerErrorCodes.PORT_IN_USE, e.getErrorCode());
+			}
+			assertFalse(server.isRunning());
+		}
+	}
+}